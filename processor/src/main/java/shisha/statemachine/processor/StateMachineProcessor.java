@@ -0,0 +1,646 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>StateMachineDefinitionFactory</code> for every class
+ * annotated with <code>@AStateMachine</code>. The generated class is named after
+ * the binary name of the annotated class plus <code>_StateMachineFactory</code>,
+ * and <code>StateMachines</code> uses it instead of reading the annotations with
+ * reflection.
+ *
+ * <p>
+ * The generated factory defines states, events and transitions with direct
+ * calls, and binds the annotated methods through one controller class per phase
+ * that dispatches with a switch. So, all the transition controllers of a state
+ * machine are of the same class and the strategies call sites stay monomorphic.
+ *
+ * <p>
+ * The same checks <code>StateMachines</code> performs at runtime are reported as
+ * compilation errors. On top of that, when all states and events are String
+ * constants, the processor also checks the transitions refer to defined states
+ * and events and that the state machine has one and only start state.
+ *
+ * <p>
+ * The processor does not depend on the state machine library: annotations and
+ * types are referred to by name.
+ */
+@SupportedAnnotationTypes(StateMachineProcessor.A_STATE_MACHINE)
+public class StateMachineProcessor extends AbstractProcessor {
+    static final String PACKAGE = "shisha.statemachine";
+    static final String A_STATE_MACHINE = PACKAGE + ".annotations.AStateMachine";
+    static final String STATE = PACKAGE + ".annotations.State";
+    static final String EVENT = PACKAGE + ".annotations.Event";
+    static final String TRANSITION = PACKAGE + ".annotations.Transition";
+    static final String TRANSITIONS = PACKAGE + ".annotations.Transitions";
+    static final String ENTER_STATE = PACKAGE + ".annotations.EnterState";
+    static final String EXIT_STATE = PACKAGE + ".annotations.ExitState";
+    static final String CHOICE_STATE = PACKAGE + ".annotations.ChoiceState";
+    static final String CHOICE = PACKAGE + ".annotations.Choice";
+    static final String TRANSITION_INFO = PACKAGE + ".TransitionInfo";
+    static final String EVENT_INFO = PACKAGE + ".EventInfo";
+
+    /** Same value as StateMachineDefinitionFactory.GENERATED_SUFFIX */
+    static final String GENERATED_SUFFIX = "_StateMachineFactory";
+
+    private Elements elements;
+    private Types types;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+
+        TypeElement annotation = elements.getTypeElement(A_STATE_MACHINE);
+        if (annotation == null)
+            return false;
+
+        for (Element element : env.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@AStateMachine can only be applied to classes");
+                continue;
+            }
+
+            Model model = new Model((TypeElement) element);
+            if (model.parse()) {
+                try {
+                    model.write();
+                } catch (IOException e) {
+                    error(element, "Cannot generate the state machine factory: " + e.getMessage());
+                }
+            }
+        }
+
+        // Other processors might be interested in the annotation too
+        return false;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private void warning(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message, element);
+    }
+
+    private AnnotationMirror getAnnotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(name))
+                return mirror;
+        }
+        return null;
+    }
+
+    private Object getValue(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : elements
+                .getElementValuesWithDefaults(mirror).entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name))
+                return entry.getValue().getValue();
+        }
+        return null;
+    }
+
+    private boolean isType(TypeMirror type, String name) {
+        if (type.getKind() != TypeKind.DECLARED)
+            return false;
+
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        return element.getQualifiedName().contentEquals(name);
+    }
+
+    private boolean isEnum(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM;
+    }
+
+    /**
+     * A state or an event declared by an annotated field
+     */
+    private static class Symbol {
+        final VariableElement field;
+        final String name;
+        final boolean isStart;
+        final boolean isFinal;
+        // Only for choice states
+        boolean isChoice;
+        String otherwise;
+
+        Symbol(VariableElement field, String name, boolean isStart, boolean isFinal) {
+            this.field = field;
+            this.name = name;
+            this.isStart = isStart;
+            this.isFinal = isFinal;
+        }
+    }
+
+    /**
+     * An annotated method. Each one gets a case in the switch of the
+     * controller class of its phase.
+     */
+    private static class Handler {
+        final ExecutableElement method;
+        final int index;
+        final List<String[]> transitions = new ArrayList<String[]>();
+        String state;
+        // Only for choice branches
+        String target;
+        int order;
+
+        Handler(ExecutableElement method, int index) {
+            this.method = method;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Everything the processor knows about one annotated class
+     */
+    private class Model {
+        private final TypeElement type;
+        private final List<Symbol> states = new ArrayList<Symbol>();
+        private final List<Symbol> events = new ArrayList<Symbol>();
+        private final List<Handler> transitions = new ArrayList<Handler>();
+        private final List<Handler> exits = new ArrayList<Handler>();
+        private final List<Handler> enters = new ArrayList<Handler>();
+        private final List<Handler> guards = new ArrayList<Handler>();
+        private final Map<String, Handler> transitionGuards = new HashMap<String, Handler>();
+        private boolean valid = true;
+
+        Model(TypeElement type) {
+            this.type = type;
+        }
+
+        private void fail(Element element, String message) {
+            error(element, message);
+            valid = false;
+        }
+
+        boolean parse() {
+            if (type.getModifiers().contains(Modifier.PRIVATE) || type.getNestingKind() == NestingKind.LOCAL
+                    || type.getNestingKind() == NestingKind.ANONYMOUS) {
+                fail(type, "@AStateMachine " + type.getSimpleName() + " must be accessible from its package");
+                return false;
+            }
+
+            for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                AnnotationMirror state = getAnnotation(field, STATE);
+                if (state != null && checkSymbol(field, "@State")) {
+                    states.add(new Symbol(field, symbolName(field), (Boolean) getValue(state, "isStart"),
+                            (Boolean) getValue(state, "isFinal")));
+                }
+
+                AnnotationMirror choice = getAnnotation(field, CHOICE_STATE);
+                if (choice != null && checkSymbol(field, "@ChoiceState")) {
+                    if (state != null) {
+                        fail(field, "@ChoiceState " + field.getSimpleName() + " cannot be a @State");
+                    } else {
+                        Symbol symbol = new Symbol(field, symbolName(field), false, false);
+                        symbol.isChoice = true;
+                        symbol.otherwise = (String) getValue(choice, "otherwise");
+                        states.add(symbol);
+                    }
+                }
+
+                if (getAnnotation(field, EVENT) != null && checkSymbol(field, "@Event"))
+                    events.add(new Symbol(field, symbolName(field), false, false));
+            }
+
+            for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type)))
+                parseMethod(method);
+
+            for (Handler handler : transitions) {
+                for (String[] tx : handler.transitions) {
+                    if (!tx[3].isEmpty())
+                        parseGuard(handler.method, tx[3]);
+                }
+            }
+
+            // Same order as StateMachines#checkTransitionAnnotations
+            Collections.sort(transitions, new Comparator<Handler>() {
+                public int compare(Handler h1, Handler h2) {
+                    return h1.method.getSimpleName().toString().compareTo(h2.method.getSimpleName().toString());
+                }
+            });
+            Collections.sort(guards, new Comparator<Handler>() {
+                public int compare(Handler h1, Handler h2) {
+                    return h1.order != h2.order ? (h1.order < h2.order ? -1 : 1) : h1.method.getSimpleName()
+                            .toString().compareTo(h2.method.getSimpleName().toString());
+                }
+            });
+
+            if (valid)
+                checkDefinition();
+
+            return valid;
+        }
+
+        private void parseMethod(ExecutableElement method) {
+            AnnotationMirror transitionsAnn = getAnnotation(method, TRANSITIONS);
+            AnnotationMirror transitionAnn = getAnnotation(method, TRANSITION);
+            AnnotationMirror enterAnn = getAnnotation(method, ENTER_STATE);
+            AnnotationMirror exitAnn = getAnnotation(method, EXIT_STATE);
+            AnnotationMirror choiceAnn = getAnnotation(method, CHOICE);
+            if (transitionsAnn == null && transitionAnn == null && enterAnn == null && exitAnn == null
+                    && choiceAnn == null)
+                return;
+
+            // Reflection only sees public methods, so the rest are ignored at runtime
+            if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+                warning(method, "Method " + method.getSimpleName() + " is ignored because it is not public");
+                return;
+            }
+
+            List<? extends VariableElement> parameters = method.getParameters();
+            if (parameters.size() != 1 || !isType(parameters.get(0).asType(), TRANSITION_INFO)) {
+                fail(method, "Transition for method " + method.getSimpleName()
+                        + " is not well defined. It should have one and only TransitionEvent paramter");
+                return;
+            }
+
+            // Same precedence as StateMachines#checkTransitionAnnotations
+            if (choiceAnn != null) {
+                TypeMirror resultType = method.getReturnType();
+                if (resultType.getKind() != TypeKind.BOOLEAN && !isType(resultType, Boolean.class.getName())) {
+                    fail(method, "Choice for method " + method.getSimpleName()
+                            + " is not well defined. It must return a boolean");
+                    return;
+                }
+                Handler handler = new Handler(method, guards.size());
+                handler.state = (String) getValue(choiceAnn, "source");
+                handler.target = (String) getValue(choiceAnn, "target");
+                handler.order = (Integer) getValue(choiceAnn, "order");
+                guards.add(handler);
+            } else if (transitionsAnn != null) {
+                Handler handler = new Handler(method, transitions.size());
+                @SuppressWarnings("unchecked")
+                List<? extends AnnotationValue> values = (List<? extends AnnotationValue>) getValue(transitionsAnn,
+                        "value");
+                for (AnnotationValue value : values)
+                    handler.transitions.add(transition((AnnotationMirror) value.getValue()));
+                transitions.add(handler);
+            } else if (transitionAnn != null) {
+                Handler handler = new Handler(method, transitions.size());
+                handler.transitions.add(transition(transitionAnn));
+                transitions.add(handler);
+            } else if (enterAnn != null) {
+                if (!isType(method.getReturnType(), EVENT_INFO)) {
+                    fail(method, "Transition for method " + method.getSimpleName()
+                            + " is not well defined. Enter phase must return a EventInfo");
+                    return;
+                }
+                Handler handler = new Handler(method, enters.size());
+                handler.state = (String) getValue(enterAnn, "value");
+                enters.add(handler);
+            } else {
+                if (!isType(method.getReturnType(), Boolean.class.getName())) {
+                    fail(method, "Transition for method " + method.getSimpleName()
+                            + " is not well defined. Exit phase must return a boolean");
+                    return;
+                }
+                Handler handler = new Handler(method, exits.size());
+                handler.state = (String) getValue(exitAnn, "value");
+                exits.add(handler);
+            }
+        }
+
+        private String[] transition(AnnotationMirror mirror) {
+            return new String[] { (String) getValue(mirror, "source"), (String) getValue(mirror, "event"),
+                    (String) getValue(mirror, "target"), (String) getValue(mirror, "guard") };
+        }
+
+        /**
+         * Finds the method named as the guard of a transition. Each one gets a
+         * case in the switch of the guards, as the choice branches do.
+         */
+        private void parseGuard(ExecutableElement transition, String name) {
+            if (transitionGuards.containsKey(name))
+                return;
+
+            for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+                List<? extends VariableElement> parameters = method.getParameters();
+                if (method.getSimpleName().contentEquals(name) && method.getModifiers().contains(Modifier.PUBLIC)
+                        && parameters.size() == 1 && isType(parameters.get(0).asType(), TRANSITION_INFO)) {
+                    TypeMirror resultType = method.getReturnType();
+                    if (resultType.getKind() != TypeKind.BOOLEAN && !isType(resultType, Boolean.class.getName())) {
+                        fail(transition, "Guard " + name + " of method " + transition.getSimpleName()
+                                + " must return a boolean");
+                        return;
+                    }
+                    Handler handler = new Handler(method, guards.size());
+                    guards.add(handler);
+                    transitionGuards.put(name, handler);
+                    return;
+                }
+            }
+            fail(transition, "Guard " + name + " of method " + transition.getSimpleName()
+                    + " must be a public method with one and only TransitionEvent parameter");
+        }
+
+        private boolean checkSymbol(VariableElement field, String annotation) {
+            Set<Modifier> modifiers = field.getModifiers();
+            TypeMirror fieldType = field.asType();
+            if (!modifiers.contains(Modifier.PUBLIC) || !modifiers.contains(Modifier.FINAL)
+                    || !(isType(fieldType, String.class.getName()) || isEnum(fieldType))) {
+                fail(field, annotation + " " + field.getSimpleName() + " must be declared as public final");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * The name of the symbol if it is known at compile time, null otherwise
+         */
+        private String symbolName(VariableElement field) {
+            Object value = field.getConstantValue();
+            return value instanceof String ? (String) value : null;
+        }
+
+        /**
+         * Checks the same constraints StateMachineDefinitionImpl does. They can
+         * only be checked when the names of all the symbols are constants.
+         */
+        private void checkDefinition() {
+            Map<String, Symbol> stateNames = new HashMap<String, Symbol>();
+            Set<String> eventNames = new HashSet<String>();
+            Symbol start = null;
+
+            for (Symbol event : events) {
+                if (event.name == null)
+                    return;
+                if (!eventNames.add(event.name))
+                    fail(event.field, "@Event " + event.field.getSimpleName() + " has been declared twice");
+            }
+
+            for (Symbol state : states) {
+                if (state.name == null)
+                    return;
+                if (stateNames.put(state.name, state) != null)
+                    fail(state.field, "State " + state.name + " already defined");
+                if (state.isStart && state.isFinal)
+                    fail(state.field, "Cannot define state " + state.name
+                            + " as start and end. It does not make sense");
+                if (state.isStart) {
+                    if (start != null)
+                        fail(state.field, "A state machine can only have one start state. Cannot define state "
+                                + state.name + " as start state because " + start.name
+                                + " was already defined as the one and only");
+                    start = state;
+                }
+            }
+
+            if (start == null)
+                fail(type, "Start state has not been defined for the state machine");
+
+            for (Handler handler : transitions) {
+                for (String[] tx : handler.transitions) {
+                    checkState(handler.method, tx[0]);
+                    checkState(handler.method, tx[2]);
+                    if (!eventNames.contains(tx[1]))
+                        fail(handler.method, "Event " + tx[1] + " does not exist");
+
+                    Symbol source = stateNames.get(tx[0]);
+                    if (source != null && source.isFinal && !tx[0].equals(tx[2]))
+                        fail(handler.method, "Cannot create transitions from the final state " + tx[0]);
+                    checkNotChoice(handler.method, stateNames.get(tx[0]));
+                }
+            }
+
+            for (Handler handler : enters) {
+                checkState(handler.method, handler.state);
+                checkNotChoice(handler.method, stateNames.get(handler.state));
+            }
+            for (Handler handler : exits) {
+                checkState(handler.method, handler.state);
+                checkNotChoice(handler.method, stateNames.get(handler.state));
+            }
+
+            for (Symbol state : states) {
+                if (state.isChoice && !state.otherwise.isEmpty())
+                    checkState(state.field, state.otherwise);
+            }
+            for (Handler handler : guards) {
+                // Guards of transitions have no state
+                if (handler.state == null)
+                    continue;
+                checkState(handler.method, handler.state);
+                checkState(handler.method, handler.target);
+                Symbol choice = stateNames.get(handler.state);
+                if (choice != null && !choice.isChoice)
+                    fail(handler.method, "State " + handler.state + " is not a choice state");
+            }
+        }
+
+        private void checkNotChoice(Element element, Symbol state) {
+            if (state != null && state.isChoice)
+                fail(element, "Choice state " + state.name
+                        + " cannot have transitions nor controllers. Use its branches instead");
+        }
+
+        private void checkState(Element element, String state) {
+            for (Symbol symbol : states) {
+                if (symbol.name.equals(state))
+                    return;
+            }
+            fail(element, "State " + state + " does not exist");
+        }
+
+        private String typeName() {
+            return types.erasure(type.asType()).toString();
+        }
+
+        /**
+         * The expression reading the symbol in the generated factory. Symbols
+         * declared in instance fields, which StateMachines reads from every
+         * instance, are read from the instance the definition is created for,
+         * and enum constants are read by name.
+         */
+        private String reference(Symbol symbol) {
+            String owner = symbol.field.getModifiers().contains(Modifier.STATIC) ? typeName() : "instance";
+            String reference = owner + "." + symbol.field.getSimpleName();
+            return symbol.name == null && isEnum(symbol.field.asType()) ? reference + ".name()" : reference;
+        }
+
+        void write() throws IOException {
+            String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+            String binaryName = elements.getBinaryName(type).toString();
+            String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                    + GENERATED_SUFFIX;
+            String typeName = typeName();
+
+            StringBuilder sb = new StringBuilder();
+            if (!packageName.isEmpty())
+                sb.append("package ").append(packageName).append(";\n\n");
+
+            sb.append("/**\n * Generated by ").append(StateMachineProcessor.class.getName()).append(" for {@link ")
+                    .append(typeName).append("}. Do not edit.\n */\n");
+            sb.append("public final class ").append(simpleName).append(" implements ").append(PACKAGE)
+                    .append(".StateMachineDefinitionFactory<").append(typeName).append("> {\n");
+
+            sb.append("    public ").append(PACKAGE).append(".StateMachineDefinition newDefinition(").append(typeName)
+                    .append(" instance)\n            throws ").append(PACKAGE)
+                    .append(".exceptions.StateMachineDefinitionException {\n");
+            sb.append("        ").append(PACKAGE).append(".StateMachineDefinitionImpl definition = new ")
+                    .append(PACKAGE).append(".StateMachineDefinitionImpl();\n");
+
+            for (Symbol state : states) {
+                if (state.isChoice) {
+                    sb.append("        definition.defineChoiceState(").append(reference(state)).append(");\n");
+                } else {
+                    sb.append("        definition.defineState(").append(reference(state)).append(", ")
+                            .append(state.isStart).append(", ").append(state.isFinal).append(");\n");
+                }
+            }
+            for (Symbol event : events)
+                sb.append("        definition.defineEvent(").append(reference(event)).append(");\n");
+
+            for (Symbol state : states) {
+                if (state.isChoice && !state.otherwise.isEmpty()) {
+                    sb.append("        definition.defineChoice(").append(reference(state)).append(", null, ")
+                            .append(literal(state.otherwise)).append(");\n");
+                }
+            }
+            for (Handler handler : guards) {
+                if (handler.state == null)
+                    continue;
+                sb.append("        definition.defineChoice(").append(literal(handler.state))
+                        .append(", new Guards(instance, ").append(handler.index).append("), ")
+                        .append(literal(handler.target)).append(");\n");
+            }
+
+            for (Handler handler : transitions) {
+                for (String[] tx : handler.transitions) {
+                    sb.append("        definition.defineTransition(").append(literal(tx[0])).append(", ")
+                            .append(literal(tx[1])).append(", ").append(literal(tx[2]))
+                            .append(", new Transitions(instance, ").append(handler.index).append(")");
+                    if (!tx[3].isEmpty() && transitionGuards.containsKey(tx[3]))
+                        sb.append(", new Guards(instance, ").append(transitionGuards.get(tx[3]).index).append(")");
+                    sb.append(");\n");
+                }
+            }
+            for (Handler handler : exits) {
+                sb.append("        definition.defineExitState(").append(literal(handler.state))
+                        .append(", new ExitStates(instance, ").append(handler.index).append("));\n");
+            }
+            for (Handler handler : enters) {
+                sb.append("        definition.defineEnterState(").append(literal(handler.state))
+                        .append(", new EnterStates(instance, ").append(handler.index).append("));\n");
+            }
+            sb.append("        return definition;\n    }\n");
+
+            writeController(sb, "Transitions", "TransitionController", "void", "execute", transitions, simpleName);
+            writeController(sb, "ExitStates", "ExitStateController", "Boolean", "execute", exits, simpleName);
+            writeController(sb, "EnterStates", "EnterStateController", PACKAGE + ".EventInfo", "execute", enters,
+                    simpleName);
+            writeController(sb, "Guards", "Guard", "boolean", "evaluate", guards, simpleName);
+
+            sb.append("\n    @SuppressWarnings(\"unchecked\")\n");
+            sb.append("    private static <T extends Throwable> T propagate(Throwable e) throws T {\n");
+            sb.append("        throw (T) e;\n    }\n");
+            sb.append("}\n");
+
+            String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(sb.toString());
+            } finally {
+                writer.close();
+            }
+        }
+
+        private void writeController(StringBuilder sb, String className, String controller, String resultType,
+                String methodName, List<Handler> handlers, String factoryName) {
+            if (handlers.isEmpty())
+                return;
+
+            String typeName = typeName();
+            boolean isVoid = resultType.equals("void");
+
+            sb.append("\n    private static final class ").append(className).append(" implements ").append(PACKAGE)
+                    .append(".").append(controller).append(" {\n");
+            sb.append("        private final ").append(typeName).append(" instance;\n");
+            sb.append("        private final int method;\n\n");
+            sb.append("        ").append(className).append("(").append(typeName)
+                    .append(" instance, int method) {\n");
+            sb.append("            this.instance = instance;\n            this.method = method;\n        }\n\n");
+            sb.append("        public ").append(resultType).append(" ").append(methodName).append("(")
+                    .append(TRANSITION_INFO)
+                    .append(" info) {\n");
+            sb.append("            switch (method) {\n");
+            for (Handler handler : handlers) {
+                String call = "instance." + handler.method.getSimpleName() + "(info);";
+                String statement = isVoid ? call : "return " + call;
+                sb.append("            case ").append(handler.index).append(":\n");
+                if (handler.method.getThrownTypes().isEmpty()) {
+                    sb.append("                ").append(statement).append("\n");
+                } else {
+                    sb.append("                try {\n                    ").append(statement).append("\n");
+                    sb.append("                } catch (Throwable e) {\n");
+                    sb.append("                    throw ").append(factoryName)
+                            .append(".<RuntimeException> propagate(e);\n                }\n");
+                }
+                if (isVoid)
+                    sb.append("                break;\n");
+            }
+            sb.append("            default:\n");
+            sb.append("                throw new IllegalStateException(\"Unknown method \" + method);\n");
+            sb.append("            }\n        }\n    }\n");
+        }
+
+        private String literal(String value) {
+            return elements.getConstantExpression(value);
+        }
+    }
+}
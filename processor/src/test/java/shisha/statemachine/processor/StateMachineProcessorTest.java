@@ -0,0 +1,314 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.processor;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionFactory;
+import shisha.statemachine.StateMachines;
+
+public class StateMachineProcessorTest {
+    private static final String HEADER = "package sample;\n"
+            + "import shisha.statemachine.*;\n"
+            + "import shisha.statemachine.annotations.*;\n";
+
+    private static final String LEGAL = HEADER
+            + "@AStateMachine\n"
+            + "public class Legal {\n"
+            + "    @State(isStart=true) public static final String STATE_A = \"STATE_A\";\n"
+            + "    @State public static final String STATE_B = \"STATE_B\";\n"
+            + "    @State public static final String STATE_COND = \"STATE_COND\";\n"
+            + "    @State(isFinal=true) public static final String STATE_D = \"STATE_D\";\n"
+            + "    @Event public static final String EVENT_AB = \"EVENT_AB\";\n"
+            + "    @Event public static final String EVENT_BC = \"EVENT_BC\";\n"
+            + "    @Event public static final String EVENT_CD = \"EVENT_CD\";\n"
+            + "    public StringBuilder trace = new StringBuilder();\n"
+            + "    @Transitions({@Transition(source=STATE_A, target=STATE_B, event=EVENT_AB),\n"
+            + "                  @Transition(source=STATE_COND, target=STATE_D, event=EVENT_CD)})\n"
+            + "    public void noop(TransitionInfo info) { trace.append(\"tx \"); }\n"
+            + "    @Transition(source=STATE_B, target=STATE_COND, event=EVENT_BC)\n"
+            + "    public void toCond(TransitionInfo info) throws java.io.IOException { trace.append(\"cond \"); }\n"
+            + "    @ExitState(STATE_A)\n"
+            + "    public Boolean exitA(TransitionInfo info) { trace.append(\"exit \"); return true; }\n"
+            + "    @EnterState(STATE_COND)\n"
+            + "    public EventInfo enterCond(TransitionInfo info) { return new EventInfo(EVENT_CD, null); }\n"
+            + "}\n";
+
+    private static final String ENUMS = HEADER
+            + "@AStateMachine\n"
+            + "public class Enums {\n"
+            + "    public enum S { A, B }\n"
+            + "    @State(isStart=true) public static final S A = S.A;\n"
+            + "    @State public static final S B = S.B;\n"
+            + "    @Event public static final String AB = \"AB\";\n"
+            + "    @Transition(source=\"A\", target=\"B\", event=AB)\n"
+            + "    public void ab(TransitionInfo info) { }\n"
+            + "}\n";
+
+    private static final String CHOICE = HEADER
+            + "@AStateMachine\n"
+            + "public class Choices {\n"
+            + "    @State(isStart=true) public static final String STATE_A = \"STATE_A\";\n"
+            + "    @ChoiceState(otherwise=STATE_A) public static final String STATE_COND = \"STATE_COND\";\n"
+            + "    @State public static final String STATE_BIG = \"STATE_BIG\";\n"
+            + "    @State public static final String STATE_HUGE = \"STATE_HUGE\";\n"
+            + "    @Event public static final String EVENT_GO = \"EVENT_GO\";\n"
+            + "    @Transition(source=STATE_A, target=STATE_COND, event=EVENT_GO)\n"
+            + "    public void go(TransitionInfo info) { }\n"
+            + "    @Choice(source=STATE_COND, target=STATE_BIG, order=1)\n"
+            + "    public boolean isBig(TransitionInfo info) { return (Integer) info.getObject() > 100; }\n"
+            + "    @Choice(source=STATE_COND, target=STATE_HUGE)\n"
+            + "    public Boolean isHuge(TransitionInfo info) { return (Integer) info.getObject() > 1000; }\n"
+            + "}\n";
+
+    private static final String GUARDED = HEADER
+            + "@AStateMachine\n"
+            + "public class Guarded {\n"
+            + "    @State(isStart=true) public static final String STATE_A = \"STATE_A\";\n"
+            + "    @State public static final String STATE_AUTO = \"STATE_AUTO\";\n"
+            + "    @State public static final String STATE_MANUAL = \"STATE_MANUAL\";\n"
+            + "    @Event public static final String EVENT_PAY = \"EVENT_PAY\";\n"
+            + "    @Transition(source=STATE_A, target=STATE_AUTO, event=EVENT_PAY, guard=\"isSmall\")\n"
+            + "    public void auto(TransitionInfo info) { }\n"
+            + "    @Transition(source=STATE_A, target=STATE_MANUAL, event=EVENT_PAY)\n"
+            + "    public void manual(TransitionInfo info) { }\n"
+            + "    public boolean isSmall(TransitionInfo info) { return (Integer) info.getObject() < 100; }\n"
+            + "}\n";
+
+    private static class Result {
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+        File output;
+
+        boolean hasError(String message) {
+            for (Diagnostic<? extends JavaFileObject> error : errors) {
+                if (error.getMessage(Locale.ENGLISH).contains(message))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String className, String code) {
+            super(URI.create("string:///sample/" + className + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private Result compile(String className, String code) throws IOException {
+        Result result = new Result();
+        result.output = Files.createTempDirectory("processor").toFile();
+
+        // Surefire runs the tests with a manifest-only jar
+        String classpath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        List<String> options = Arrays.asList("-classpath", classpath, "-d", result.output.getPath(), "-s",
+                result.output.getPath());
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null,
+                Collections.singletonList(new Source(className, code)));
+        task.setProcessors(Collections.singletonList(new StateMachineProcessor()));
+        task.call();
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                result.errors.add(diagnostic);
+        }
+        return result;
+    }
+
+    private Object newInstance(Result result, String className) throws Exception {
+        assertTrue(result.errors.isEmpty(), result.errors.toString());
+        URLClassLoader loader = new URLClassLoader(new URL[] { result.output.toURI().toURL() }, getClass()
+                .getClassLoader());
+        return loader.loadClass(className).newInstance();
+    }
+
+    @Test
+    public void testFactoryIsGenerated() throws Exception {
+        Result result = compile("Legal", LEGAL);
+        Object instance = newInstance(result, "sample.Legal");
+
+        Class<?> factory = instance.getClass().getClassLoader()
+                .loadClass("sample.Legal" + StateMachineDefinitionFactory.GENERATED_SUFFIX);
+        assertTrue(StateMachineDefinitionFactory.class.isAssignableFrom(factory));
+
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_AB", null);
+        sm.processEvent("EVENT_BC", null);
+
+        assertEquals(sm.getCurrentState(), "STATE_D");
+        assertEquals(instance.getClass().getField("trace").get(instance).toString(), "exit tx cond tx ");
+    }
+
+    @Test
+    public void testEnumSymbols() throws Exception {
+        Object instance = newInstance(compile("Enums", ENUMS), "sample.Enums");
+
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("AB", null);
+        assertEquals(sm.getCurrentState(), "B");
+    }
+
+    @Test
+    public void testInstanceFieldSymbols() throws Exception {
+        Result result = compile("InstanceFields", LEGAL.replace("class Legal", "class InstanceFields")
+                .replace("@State public static final String STATE_B", "@State public final String STATE_B")
+                .replace("@Event public static final String EVENT_BC", "@Event public final String EVENT_BC"));
+        Object instance = newInstance(result, "sample.InstanceFields");
+
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_AB", null);
+        sm.processEvent("EVENT_BC", null);
+        assertEquals(sm.getCurrentState(), "STATE_D");
+    }
+
+    @Test
+    public void testNonConstantStringSymbols() throws Exception {
+        Result result = compile("NonConstant", LEGAL.replace("class Legal", "class NonConstant")
+                .replace("@State public static final String STATE_B = \"STATE_B\"",
+                        "@State public static final String STATE_B = String.valueOf(\"STATE_B\")")
+                .replace("@Event public static final String EVENT_BC = \"EVENT_BC\"",
+                        "@Event public final String EVENT_BC = String.valueOf(\"EVENT_BC\")")
+                .replace("target=STATE_B", "target=\"STATE_B\"")
+                .replace("source=STATE_B, target=STATE_COND, event=EVENT_BC",
+                        "source=\"STATE_B\", target=STATE_COND, event=\"EVENT_BC\""));
+        Object instance = newInstance(result, "sample.NonConstant");
+
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_AB", null);
+        sm.processEvent("EVENT_BC", null);
+        assertEquals(sm.getCurrentState(), "STATE_D");
+    }
+
+    @Test
+    public void testStateMustBePublic() throws Exception {
+        Result result = compile("NotPublic", LEGAL.replace("class Legal", "class NotPublic").replace(
+                "public static final String STATE_B", "static final String STATE_B"));
+        assertTrue(result.hasError("@State STATE_B must be declared as public final"));
+    }
+
+    @Test
+    public void testTransitionWithWrongParameters() throws Exception {
+        Result result = compile("WrongParameters", LEGAL.replace("class Legal", "class WrongParameters").replace(
+                "public void noop(TransitionInfo info)", "public void noop()"));
+        assertTrue(result.hasError("Transition for method noop is not well defined"));
+    }
+
+    @Test
+    public void testExitMustReturnBoolean() throws Exception {
+        Result result = compile("WrongExit", LEGAL.replace("class Legal", "class WrongExit").replace(
+                "public Boolean exitA(TransitionInfo info) { trace.append(\"exit \"); return true; }",
+                "public void exitA(TransitionInfo info) { }"));
+        assertTrue(result.hasError("Exit phase must return a boolean"));
+    }
+
+    @Test
+    public void testTransitionToUndefinedState() throws Exception {
+        Result result = compile("UndefinedState", LEGAL.replace("class Legal", "class UndefinedState").replace(
+                "target=STATE_COND", "target=\"STATE_X\""));
+        assertTrue(result.hasError("State STATE_X does not exist"));
+    }
+
+    @Test
+    public void testStartStateNotDefined() throws Exception {
+        Result result = compile("NoStart", LEGAL.replace("class Legal", "class NoStart").replace(
+                "@State(isStart=true)", "@State"));
+        assertTrue(result.hasError("Start state has not been defined for the state machine"));
+    }
+
+    @Test
+    public void testTransitionFromFinalState() throws Exception {
+        Result result = compile("FromFinal", LEGAL.replace("class Legal", "class FromFinal").replace(
+                "@Transition(source=STATE_B, target=STATE_COND", "@Transition(source=STATE_D, target=STATE_COND"));
+        assertTrue(result.hasError("Cannot create transitions from the final state STATE_D"));
+    }
+
+    @Test
+    public void testChoiceState() throws Exception {
+        Object instance = newInstance(compile("Choices", CHOICE), "sample.Choices");
+
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_GO", 5000);
+        assertEquals(sm.getCurrentState(), "STATE_HUGE");
+
+        sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_GO", 500);
+        assertEquals(sm.getCurrentState(), "STATE_BIG");
+
+        sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_GO", 5);
+        assertEquals(sm.getCurrentState(), "STATE_A");
+    }
+
+    @Test
+    public void testBranchFromRegularState() throws Exception {
+        Result result = compile("NotChoice", CHOICE.replace("class Choices", "class NotChoice").replace(
+                "@Choice(source=STATE_COND, target=STATE_HUGE)", "@Choice(source=STATE_A, target=STATE_HUGE)"));
+        assertTrue(result.hasError("State STATE_A is not a choice state"));
+    }
+
+    @Test
+    public void testGuardedTransitions() throws Exception {
+        Object instance = newInstance(compile("Guarded", GUARDED), "sample.Guarded");
+
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_PAY", 50);
+        assertEquals(sm.getCurrentState(), "STATE_AUTO");
+
+        sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent("EVENT_PAY", 500);
+        assertEquals(sm.getCurrentState(), "STATE_MANUAL");
+    }
+
+    @Test
+    public void testGuardNotFound() throws Exception {
+        Result result = compile("NoGuard", GUARDED.replace("class Guarded", "class NoGuard").replace(
+                "guard=\"isSmall\"", "guard=\"isTiny\""));
+        assertTrue(result.hasError("Guard isTiny of method auto must be a public method"));
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * {@link TransitionListener} doing nothing, for listeners only interested in
+ * some of the callbacks
+ */
+public abstract class AbstractTransitionListener implements TransitionListener {
+    public void beforeExit(TransitionInfo event) {
+    }
+
+    public void cancelled(TransitionInfo event) {
+    }
+
+    public void afterTransition(TransitionInfo event) {
+    }
+
+    public void afterEnter(TransitionInfo event) {
+    }
+
+    public void redirected(TransitionInfo event, EventInfo redirect) {
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.annotations.ChoiceState;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+
+/**
+ * Creates definitions for an {@link shisha.statemachine.annotations.AStateMachine}
+ * class using reflection. The annotations are parsed and validated only once per
+ * class, the first time an instance is seen. The resulting definition is kept
+ * frozen as a template and every new instance gets a copy of it whose
+ * controllers are bound to the instance.
+ * 
+ * <p>
+ * States and events declared in instance fields may differ from one instance
+ * to another, so classes declaring them are parsed for every instance as
+ * before.
+ */
+final class AnnotatedDefinitionFactory implements StateMachineDefinitionFactory<Object> {
+    private static Logger l = LoggerFactory.getLogger(AnnotatedDefinitionFactory.class);
+
+    private final Class<?> type;
+    private final boolean cacheable;
+    private volatile StateMachineDefinitionImpl template;
+
+    AnnotatedDefinitionFactory(Class<?> type) {
+        this.type = type;
+        this.cacheable = hasOnlyStaticSymbols(type);
+    }
+
+    public StateMachineDefinition newDefinition(Object instance) throws StateMachineDefinitionException {
+        if (!cacheable)
+            return parse(instance);
+
+        StateMachineDefinitionImpl current = template;
+        if (current == null) {
+            synchronized (this) {
+                current = template;
+                if (current == null) {
+                    // Failures are not cached, the next instance will report them again
+                    current = parse(instance);
+                    StateMachines.configure(current, type);
+                    current.freeze();
+                    template = current;
+                    l.debug("#newDefinition: cached definition for " + type.getName());
+                }
+            }
+        }
+
+        return current.bind(instance);
+    }
+
+    private static StateMachineDefinitionImpl parse(Object instance) throws StateMachineDefinitionException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        StateMachines.checkFieldAnnotations(definition, instance);
+        StateMachines.checkTransitionAnnotations(definition, instance);
+        return definition;
+    }
+
+    private static boolean hasOnlyStaticSymbols(Class<?> type) {
+        for (Field field : type.getDeclaredFields()) {
+            if ((field.isAnnotationPresent(State.class) || field.isAnnotationPresent(ChoiceState.class)
+                    || field.isAnnotationPresent(Event.class))
+                    && !Modifier.isStatic(field.getModifiers()))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TransitionListener} delivering the callbacks to another listener from
+ * a thread of its own. The thread processing the event copies the source,
+ * event, target, object and redirection of the transition into a preallocated
+ * entry of a ring buffer, without locking nor allocating, and the listener
+ * thread delivers every published entry in order, within a millisecond or
+ * when half of the ring is used. The transition context is not copied.
+ *
+ * <p>
+ * Transitions never wait for the listener: when the ring is full the callback
+ * is dropped and counted, see {@link #getDroppedCount()}. Exceptions thrown by
+ * the listener are logged.
+ *
+ * <p>
+ * The thread is a daemon and runs until {@link #close()} is called.
+ */
+public final class AsyncTransitionListener implements TransitionListener, Closeable {
+    private static Logger l = LoggerFactory.getLogger(AsyncTransitionListener.class);
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int BEFORE_EXIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int AFTER_TRANSITION = 2;
+    private static final int AFTER_ENTER = 3;
+    private static final int REDIRECTED = 4;
+
+    private final TransitionListener listener;
+    private final Entry[] entries;
+    private final int mask;
+
+    // Sequence of the entry published in each position, -1 if none
+    private final AtomicLongArray published;
+    // Next sequence to claim and next sequence to deliver
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+
+    // Written by the listener thread only
+    private volatile long delivered;
+
+    /**
+     * @param ringSize entries of the ring, rounded up to a power of two
+     */
+    public AsyncTransitionListener(TransitionListener listener, int ringSize) {
+        if (listener == null)
+            throw new IllegalArgumentException("The listener cannot be null");
+        if (ringSize <= 0 || ringSize > 1 << 30)
+            throw new IllegalArgumentException("Ring size must be between 1 and 2^30");
+
+        int size = Integer.highestOneBit(ringSize);
+        if (size < ringSize)
+            size <<= 1;
+
+        this.listener = listener;
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            published.set(i, -1);
+        }
+
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                deliver();
+            }
+        }, "statemachine-listener");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void beforeExit(TransitionInfo event) {
+        publish(BEFORE_EXIT, event, null);
+    }
+
+    public void cancelled(TransitionInfo event) {
+        publish(CANCELLED, event, null);
+    }
+
+    public void afterTransition(TransitionInfo event) {
+        publish(AFTER_TRANSITION, event, null);
+    }
+
+    public void afterEnter(TransitionInfo event) {
+        publish(AFTER_ENTER, event, null);
+    }
+
+    public void redirected(TransitionInfo event, EventInfo redirect) {
+        publish(REDIRECTED, event, redirect);
+    }
+
+    /**
+     * Returns the number of callbacks dropped because the ring was full or
+     * the listener closed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of callbacks delivered to the listener
+     */
+    public long getDeliveredCount() {
+        return delivered;
+    }
+
+    /**
+     * Returns the number of callbacks waiting to be delivered
+     */
+    public int getQueueDepth() {
+        return (int) (claimed.get() - consumed.get());
+    }
+
+    /**
+     * Stops the thread once the callbacks already published are delivered,
+     * and waits for it to finish
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish(int kind, TransitionInfo event, EventInfo redirect) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (!running || sequence - consumed.get() >= entries.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) sequence & mask;
+        Entry entry = entries[index];
+        entry.kind = kind;
+        entry.source = event.getSource();
+        entry.event = event.getEvent();
+        entry.target = event.getTarget();
+        entry.object = event.getObject();
+        entry.redirect = redirect;
+        published.set(index, sequence);
+
+        // Waking the thread up costs more than the transition, so it is only
+        // done when the ring fills up. Otherwise it wakes up by itself.
+        if (sleeping && sequence - consumed.get() >= entries.length >> 1)
+            LockSupport.unpark(thread);
+    }
+
+    private void deliver() {
+        // Reused for every callback, as listeners must not keep it
+        TransitionInfo info = new TransitionInfo(null, null, null, null);
+        long next = 0;
+        while (running || next != claimed.get()) {
+            if (published.get((int) next & mask) != next) {
+                sleeping = true;
+                if (published.get((int) next & mask) != next && running)
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                sleeping = false;
+                continue;
+            }
+
+            Entry entry = entries[(int) next & mask];
+            info.reset(entry.source, entry.event, entry.target, entry.object);
+            EventInfo redirect = entry.redirect;
+            int kind = entry.kind;
+            entry.object = null;
+            entry.redirect = null;
+            next++;
+            consumed.set(next);
+
+            try {
+                switch (kind) {
+                case BEFORE_EXIT:
+                    listener.beforeExit(info);
+                    break;
+                case CANCELLED:
+                    listener.cancelled(info);
+                    break;
+                case AFTER_TRANSITION:
+                    listener.afterTransition(info);
+                    break;
+                case AFTER_ENTER:
+                    listener.afterEnter(info);
+                    break;
+                default:
+                    listener.redirected(info, redirect);
+                }
+            } catch (Throwable e) {
+                // Errors too, or the thread would die and the ring fill up
+                l.error("#deliver: listener failed on transition " + info, e);
+            }
+            delivered++;
+        }
+        l.debug("#deliver: listener stopped");
+    }
+
+    private static final class Entry {
+        int kind;
+        String source;
+        String event;
+        String target;
+        Object object;
+        EventInfo redirect;
+    }
+}
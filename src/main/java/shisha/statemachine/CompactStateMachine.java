@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.RedirectChainTooLongException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StartStateNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.metrics.StateMachineMetrics;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+/**
+ * Flyweight state machine meant for applications holding millions of them, one
+ * per business entity. Everything but the current state is shared: the frozen
+ * definition, with its controllers, is referenced by every machine, and there
+ * is no strategy nor lock object per machine. The per instance state is the
+ * ordinal of the current state and a few flags.
+ *
+ * <p>
+ * Events are processed as the {@link shisha.statemachine.strategy.NonReentrantStrategy}
+ * does, but holding the monitor of the machine instead of a lock: only one
+ * thread executes a transition at a time, and processing an event from a
+ * controller of the same machine throws {@link ReentrantTransitionNotAllowed}.
+ * Use the {@link EnterStateController} to chain events, up to
+ * {@link ReentrantStrategy#DEFAULT_MAX_CHAIN_LENGTH} redirects per event.
+ *
+ * <p>
+ * As controllers are shared, the definition should be created once and reused,
+ * with controllers that get the entity they work on through the object passed
+ * along with the event.
+ */
+public final class CompactStateMachine implements StateMachine {
+    private static final byte IN_TRANSITION = 1;
+
+    // Records the population as the machines move
+    private static final TransitionDispatcher.StateAccessor<CompactStateMachine> STATE =
+            new TransitionDispatcher.StateAccessor<CompactStateMachine>() {
+        public int getStateId(CompactStateMachine machine, int slot) {
+            return machine.currentState;
+        }
+
+        public void setStateId(CompactStateMachine machine, int slot, int state) {
+            int previous = machine.currentState;
+            machine.currentState = state;
+            StateMachineMetrics metrics = machine.definition.getTransitionTable().getMetrics();
+            if (metrics != null)
+                metrics.moved(previous, state);
+        }
+    };
+
+    private final StateMachineDefinitionImpl definition;
+    // Written holding the monitor, read by any thread without it
+    private volatile int currentState;
+    // Only used holding the monitor
+    private byte flags;
+
+    public CompactStateMachine(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        if (definition.getStartState() == null)
+            throw new StartStateNotDefinedException("Start state has not been defined for the state machine");
+
+        TransitionTable table = StateMachineDefinitionImpl.freeze(definition);
+        this.definition = (StateMachineDefinitionImpl) definition;
+        this.currentState = table.getStartState();
+        if (table.getMetrics() != null)
+            table.getMetrics().created(currentState);
+    }
+
+    public String getCurrentState() {
+        return definition.getTransitionTable().getStateName(currentState);
+    }
+
+    public int getCurrentStateId() {
+        return currentState;
+    }
+
+    public StateMachineDefinition getDefinition() {
+        return definition;
+    }
+
+    public void processEvent(String event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        int eventId = definition.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        processEvent(eventId, object);
+    }
+
+    public synchronized void processEvent(int eventId, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        TransitionTable table = definition.getTransitionTable();
+        if (eventId < 0 || eventId >= table.getEventCount())
+            throw new EventNotDefinedException("Event " + eventId + " not defined", StateMachineException.STACKLESS);
+
+        if ((flags & IN_TRANSITION) != 0)
+            throw new ReentrantTransitionNotAllowed("Reentrance from the same thread is not allowed",
+                    StateMachineException.STACKLESS);
+
+        flags |= IN_TRANSITION;
+        try {
+            run(table, eventId, object, true);
+        } finally {
+            flags &= ~IN_TRANSITION;
+        }
+    }
+
+    public ProcessResult tryProcessEvent(String event, Object object) {
+        int eventId = definition.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            return ProcessResult.UNKNOWN_EVENT;
+
+        return tryProcessEvent(eventId, object);
+    }
+
+    public synchronized ProcessResult tryProcessEvent(int eventId, Object object) {
+        TransitionTable table = definition.getTransitionTable();
+        if (eventId < 0 || eventId >= table.getEventCount())
+            return ProcessResult.UNKNOWN_EVENT;
+
+        if ((flags & IN_TRANSITION) != 0)
+            return ProcessResult.REENTRANT_REJECTED;
+
+        flags |= IN_TRANSITION;
+        try {
+            return run(table, eventId, object, false);
+        } catch (StateMachineException e) {
+            throw new IllegalStateException("Exceptions are not thrown when trying to process an event", e);
+        } finally {
+            flags &= ~IN_TRANSITION;
+        }
+    }
+
+    public ProcessResult[] processEvents(List<EventInfo> events, boolean stopOnFailure) {
+        return processEvents(events.toArray(new EventInfo[events.size()]), 0, events.size(), stopOnFailure);
+    }
+
+    /**
+     * Processes the batch holding the monitor once. A batch sent from a
+     * controller of the same machine is rejected as a whole: every event is
+     * {@link ProcessResult#REENTRANT_REJECTED}.
+     */
+    public synchronized ProcessResult[] processEvents(EventInfo[] events, int offset, int length,
+            boolean stopOnFailure) {
+        StateMachineImpl.checkRange(events, offset, length);
+        ProcessResult[] results = new ProcessResult[length];
+        if ((flags & IN_TRANSITION) != 0) {
+            Arrays.fill(results, ProcessResult.REENTRANT_REJECTED);
+            return results;
+        }
+
+        TransitionTable table = definition.getTransitionTable();
+        flags |= IN_TRANSITION;
+        try {
+            for (int i = 0; i < length; i++) {
+                EventInfo event = events[offset + i];
+                int eventId = table.getEventId(event.getEvent());
+                results[i] = eventId == TransitionTable.UNDEFINED ? ProcessResult.UNKNOWN_EVENT
+                        : run(table, eventId, event.getObject(), false);
+                if (stopOnFailure && results[i].isFailure()) {
+                    Arrays.fill(results, i + 1, length, ProcessResult.SKIPPED);
+                    break;
+                }
+            }
+            return results;
+        } catch (StateMachineException e) {
+            throw new IllegalStateException("Exceptions are not thrown when trying to process an event", e);
+        } finally {
+            flags &= ~IN_TRANSITION;
+        }
+    }
+
+    public CompletionStage<ProcessResult> processEventAsync(String event, Object object) {
+        int eventId = definition.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        return processEventAsync(eventId, object);
+    }
+
+    /**
+     * Processes the event in the calling thread
+     */
+    public CompletionStage<ProcessResult> processEventAsync(int eventId, Object object) {
+        CompletableFuture<ProcessResult> result = new CompletableFuture<ProcessResult>();
+        try {
+            result.complete(tryProcessEvent(eventId, object));
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Processes the event and the redirections of its enter phase with the
+     * shared {@link TransitionDispatcher}, holding the monitor
+     */
+    private ProcessResult run(TransitionTable table, int eventId, Object object, boolean throwing)
+            throws StateMachineDefinitionException, RedirectChainTooLongException {
+        return TransitionDispatcher.SHARED.dispatch(table, STATE, this, 0, eventId, object, throwing);
+    }
+
+    /**
+     * Returns the state machine definition in a XML format. This is not a cheap
+     * operation.
+     */
+    public String toString() {
+        return definition.toString();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * Typed handle for a value of the transition context. Keys are obtained from
+ * {@link StateMachineDefinitionImpl#defineContextKey(String, Class)} and each
+ * one is given a fixed slot, so {@link TransitionInfo#get(ContextKey)} and
+ * {@link TransitionInfo#put(ContextKey, Object)} are an array access instead of
+ * a lookup in the context map.
+ *
+ * <p>
+ * Keys are only meaningful for the machines of the definition that created
+ * them: keys of different definitions may share slots.
+ */
+public final class ContextKey<T> {
+    private final String name;
+    private final Class<T> type;
+    private final int index;
+
+    ContextKey(String name, Class<T> type, int index) {
+        this.name = name;
+        this.type = type;
+        this.index = index;
+    }
+
+    /**
+     * The name of the value in the map returned by
+     * {@link TransitionInfo#getTransitionContext()}
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    public String toString() {
+        return name + "<" + type.getSimpleName() + ">";
+    }
+}
@@ -25,6 +25,11 @@ package shisha.statemachine;
  * is going to be executedby the state machine without releasing the lock. This is very useful in certain
  * circumstances (specially ghost-like condition states that we need to check a lot of
  * conditions for taking a decision about the next actions to happen)</li>
+ * 
+ * <p>
+ * Decisions that only depend on the event are better modelled with a choice
+ * state, see {@link StateMachineDefinitionImpl#defineChoiceState(String)}. It is
+ * resolved within the same transition, without running a second one.
  */
 public interface EnterStateController {
     public EventInfo execute(TransitionInfo event);
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+
+/**
+ * Typed view of a {@link StateMachine} whose states and events are the constants
+ * of two enums. The names of the constants must match the names of the states
+ * and events in the definition.
+ *
+ * <p>
+ * Enum constants are translated to event ids and state ids to enum constants
+ * through arrays indexed by ordinal, so no names are built or hashed when
+ * processing events.
+ *
+ * <p>
+ * Every state of the definition must have a constant in the state enum. Events
+ * of the definition do not need a constant in the event enum, but they cannot be
+ * processed through this view.
+ */
+public class EnumStateMachine<S extends Enum<S>, E extends Enum<E>> {
+    private final StateMachine stateMachine;
+
+    // Indexed by event ordinal
+    private final int[] eventIds;
+
+    // Indexed by state id
+    private final S[] states;
+
+    public EnumStateMachine(StateMachine stateMachine, Class<S> stateType, Class<E> eventType)
+            throws StateMachineDefinitionException {
+        this.stateMachine = stateMachine;
+
+        StateMachineDefinitionImpl definition = (StateMachineDefinitionImpl) stateMachine.getDefinition();
+        TransitionTable table = definition.freeze();
+
+        E[] events = eventType.getEnumConstants();
+        this.eventIds = new int[events.length];
+        for (E event : events)
+            eventIds[event.ordinal()] = table.getEventId(event.name());
+
+        @SuppressWarnings("unchecked")
+        S[] result = (S[]) Array.newInstance(stateType, table.getStateCount());
+        for (int i = 0; i < result.length; i++) {
+            try {
+                result[i] = Enum.valueOf(stateType, table.getStateName(i));
+            } catch (IllegalArgumentException e) {
+                throw new StateNotDefinedException("State " + table.getStateName(i) + " has no constant in "
+                        + stateType.getName());
+            }
+        }
+        this.states = result;
+    }
+
+    public S getCurrentState() {
+        return states[stateMachine.getCurrentStateId()];
+    }
+
+    public void processEvent(E event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        int eventId = eventIds[event.ordinal()];
+        if (eventId == TransitionTable.UNDEFINED)
+            throw new EventNotDefinedException("Event " + event + " not defined");
+
+        stateMachine.processEvent(eventId, object);
+    }
+
+    /**
+     * See {@link StateMachine#tryProcessEvent(String, Object)}
+     */
+    public ProcessResult tryProcessEvent(E event, Object object) {
+        int eventId = eventIds[event.ordinal()];
+        if (eventId == TransitionTable.UNDEFINED)
+            return ProcessResult.UNKNOWN_EVENT;
+
+        return stateMachine.tryProcessEvent(eventId, object);
+    }
+
+    /**
+     * See {@link StateMachine#processEventAsync(String, Object)}
+     */
+    public CompletionStage<ProcessResult> processEventAsync(E event, Object object) {
+        int eventId = eventIds[event.ordinal()];
+        if (eventId == TransitionTable.UNDEFINED)
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        return stateMachine.processEventAsync(eventId, object);
+    }
+
+    /**
+     * Returns the untyped state machine this view delegates to
+     */
+    public StateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    public String toString() {
+        return stateMachine.toString();
+    }
+}
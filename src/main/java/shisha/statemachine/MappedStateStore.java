@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link StateStore} backed by a memory mapped file, so the states live out of
+ * the Java heap and survive restarts. Use it with a {@link StateMachineArray},
+ * which rebuilds its free list from the file when it is opened again.
+ *
+ * <p>
+ * Every slot is a fixed width record of {@value #RECORD_SIZE} bytes: the state
+ * ordinal, a version increased on every write and the time of the last write
+ * in milliseconds. Reading a slot does not allocate. The file is mapped in
+ * chunks, so it can hold more than 2GB.
+ *
+ * <p>
+ * Durability: writes go to the page cache and the operating system flushes
+ * them at some point, so they survive the process but not the machine
+ * crashing. They are flushed to the device every <code>syncEvery</code> writes
+ * and on {@link #sync()} and {@link #close()}. A <code>syncEvery</code> of 0
+ * only flushes on demand. Flushing writes all the dirty pages of the file, so
+ * it is expensive.
+ *
+ * <p>
+ * The file does not record which definition it belongs to. Opening it with a
+ * definition whose states have a different order gives meaningless states.
+ */
+public class MappedStateStore extends StateStore implements Closeable {
+    private static Logger l = LoggerFactory.getLogger(MappedStateStore.class);
+
+    /** Bytes per slot */
+    public static final int RECORD_SIZE = 16;
+
+    private static final int MAGIC = 0x534d5354;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int STATE_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int TIMESTAMP_OFFSET = 8;
+
+    // 64M records, 1GB, per mapping
+    private static final int CHUNK_SHIFT = 26;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] chunks;
+    private final int capacity;
+    private final int syncEvery;
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Opens the store, creating the file if it does not exist
+     *
+     * @param capacity number of slots. An existing file must have the same
+     *        capacity
+     * @param syncEvery flush the file every that many writes, or only on demand
+     *        if it is 0
+     */
+    public MappedStateStore(File file, int capacity, int syncEvery) throws IOException {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        if (syncEvery < 0)
+            throw new IllegalArgumentException("syncEvery must not be negative");
+
+        this.file = file;
+        this.capacity = capacity;
+        this.syncEvery = syncEvery;
+
+        boolean exists = file.exists() && file.length() > 0;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (exists) {
+                checkHeader();
+            } else {
+                header.putInt(0, MAGIC);
+                header.putInt(4, FORMAT);
+                header.putInt(8, RECORD_SIZE);
+                header.putInt(12, capacity);
+            }
+
+            // A new file is full of zeros, so records store the state plus one
+            // and zero is a free slot
+            this.chunks = new MappedByteBuffer[((capacity - 1) >> CHUNK_SHIFT) + 1];
+            for (int i = 0; i < chunks.length; i++) {
+                long records = Math.min(capacity - ((long) i << CHUNK_SHIFT), 1L << CHUNK_SHIFT);
+                long position = HEADER_SIZE + ((long) i << CHUNK_SHIFT) * RECORD_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, records * RECORD_SIZE);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        l.debug("#open: " + file + " with " + capacity + " slots");
+    }
+
+    private void checkHeader() throws IOException {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT || header.getInt(8) != RECORD_SIZE)
+            throw new IOException(file + " is not a state store");
+        if (header.getInt(12) != capacity)
+            throw new IOException(file + " has " + header.getInt(12) + " slots instead of " + capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int get(int slot) {
+        return chunk(slot).getInt(offset(slot) + STATE_OFFSET) - 1;
+    }
+
+    /**
+     * Returns the number of times the slot has been written
+     */
+    public int getVersion(int slot) {
+        return chunk(slot).getInt(offset(slot) + VERSION_OFFSET);
+    }
+
+    /**
+     * Returns the time of the last write to the slot, in milliseconds
+     */
+    public long getTimestamp(int slot) {
+        return chunk(slot).getLong(offset(slot) + TIMESTAMP_OFFSET);
+    }
+
+    public void set(int slot, int state) {
+        MappedByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        chunk.putLong(offset + TIMESTAMP_OFFSET, System.currentTimeMillis());
+        chunk.putInt(offset + VERSION_OFFSET, chunk.getInt(offset + VERSION_OFFSET) + 1);
+        chunk.putInt(offset + STATE_OFFSET, state + 1);
+
+        if (syncEvery > 0 && writes.incrementAndGet() % syncEvery == 0)
+            sync();
+    }
+
+    /**
+     * Flushes the changes to the storage device
+     */
+    public void sync() {
+        header.force();
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    /**
+     * Flushes the changes and closes the file. The mapping itself is only
+     * released when the store is garbage collected.
+     */
+    public void close() throws IOException {
+        sync();
+        raf.close();
+    }
+
+    private MappedByteBuffer chunk(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & CHUNK_MASK) * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binds annotated methods to controllers and guards. Whenever it is possible, the
+ * controller is spun with {@link LambdaMetafactory}, so it is a plain class
+ * calling the annotated method directly and the JIT can inline it. Methods the
+ * metafactory cannot link (eg. declared in non public classes) are called
+ * through a bound {@link MethodHandle} instead.
+ *
+ * <p>
+ * In both cases the exceptions thrown by the annotated method are propagated
+ * as they are, without wrapping them.
+ */
+final class MethodControllers {
+    private static Logger l = LoggerFactory.getLogger(MethodControllers.class);
+
+    private static final MethodType TRANSITION_TYPE = MethodType.methodType(void.class, TransitionInfo.class);
+    private static final MethodType EXIT_TYPE = MethodType.methodType(Boolean.class, TransitionInfo.class);
+    private static final MethodType ENTER_TYPE = MethodType.methodType(EventInfo.class, TransitionInfo.class);
+    private static final MethodType GUARD_TYPE = MethodType.methodType(boolean.class, TransitionInfo.class);
+
+    private MethodControllers() {
+    }
+
+    /**
+     * Returns a handle that creates a controller of type <code>controllerType</code>
+     * for the annotated method when invoked with the callee. The handle can be
+     * cached and reused for every instance of the annotated class.
+     */
+    static MethodHandle factory(Class<?> controllerType, Method method) {
+        MethodType type = controllerType == TransitionController.class ? TRANSITION_TYPE
+                : controllerType == ExitStateController.class ? EXIT_TYPE
+                : controllerType == Guard.class ? GUARD_TYPE : ENTER_TYPE;
+        String methodName = controllerType == Guard.class ? "evaluate" : "execute";
+        Class<?> declaringClass = method.getDeclaringClass();
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            if (Modifier.isPublic(declaringClass.getModifiers()) && Modifier.isPublic(method.getModifiers())) {
+                try {
+                    CallSite site = LambdaMetafactory.metafactory(lookup, methodName,
+                            MethodType.methodType(controllerType, declaringClass), type, lookup.unreflect(method),
+                            type);
+                    return site.getTarget();
+                } catch (Throwable e) {
+                    l.debug("#factory: cannot spin a controller for " + method + ". Using a method handle", e);
+                }
+            }
+
+            method.setAccessible(true);
+            MethodHandle handle = lookup.unreflect(method).asType(type.insertParameterTypes(0, Object.class));
+            MethodHandle adapter = lookup.findStatic(MethodControllers.class, adapterName(controllerType),
+                    MethodType.methodType(controllerType, MethodHandle.class, Object.class));
+            return MethodHandles.insertArguments(adapter, 0, handle).asType(
+                    MethodType.methodType(controllerType, declaringClass));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot bind method " + method, e);
+        }
+    }
+
+    /**
+     * Creates the controller for the callee from a handle returned by
+     * {@link #factory(Class, Method)}
+     */
+    static Object bind(MethodHandle factory, Object callee) {
+        try {
+            return factory.invoke(callee);
+        } catch (Throwable e) {
+            throw new IllegalArgumentException("Cannot bind controller to " + callee, e);
+        }
+    }
+
+    private static String adapterName(Class<?> controllerType) {
+        return controllerType == TransitionController.class ? "transitionAdapter"
+                : controllerType == ExitStateController.class ? "exitStateAdapter"
+                : controllerType == Guard.class ? "guardAdapter" : "enterStateAdapter";
+    }
+
+    @SuppressWarnings("unused")
+    private static TransitionController transitionAdapter(final MethodHandle handle, final Object callee) {
+        return new TransitionController() {
+            public void execute(TransitionInfo event) {
+                try {
+                    handle.invokeExact(callee, event);
+                } catch (Throwable e) {
+                    throw MethodControllers.<RuntimeException> propagate(e);
+                }
+            }
+        };
+    }
+
+    @SuppressWarnings("unused")
+    private static ExitStateController exitStateAdapter(final MethodHandle handle, final Object callee) {
+        return new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                try {
+                    return (Boolean) handle.invokeExact(callee, event);
+                } catch (Throwable e) {
+                    throw MethodControllers.<RuntimeException> propagate(e);
+                }
+            }
+        };
+    }
+
+    @SuppressWarnings("unused")
+    private static EnterStateController enterStateAdapter(final MethodHandle handle, final Object callee) {
+        return new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                try {
+                    return (EventInfo) handle.invokeExact(callee, event);
+                } catch (Throwable e) {
+                    throw MethodControllers.<RuntimeException> propagate(e);
+                }
+            }
+        };
+    }
+
+    @SuppressWarnings("unused")
+    private static Guard guardAdapter(final MethodHandle handle, final Object callee) {
+        return new Guard() {
+            public boolean evaluate(TransitionInfo event) {
+                try {
+                    return (boolean) handle.invokeExact(callee, event);
+                } catch (Throwable e) {
+                    throw MethodControllers.<RuntimeException> propagate(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Rethrows any throwable, checked ones included, without wrapping it. The
+     * same thing a controller spun by the metafactory does.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T propagate(Throwable e) throws T {
+        throw (T) e;
+    }
+}
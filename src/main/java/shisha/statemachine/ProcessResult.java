@@ -0,0 +1,121 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.MailboxFullException;
+import shisha.statemachine.exceptions.RedirectChainTooLongException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineBusyException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+/**
+ * Outcome of processing an event with <code>tryProcessEvent</code>. Unlike
+ * <code>processEvent</code>, which throws an exception for events that do not
+ * apply, it reports them with these constants, so nothing is allocated for
+ * them.
+ *
+ * <p>
+ * When the enter phase redirects to other events, the result is the one of
+ * the last event of the chain. The events before it were applied.
+ */
+public enum ProcessResult {
+    /** The transition was executed */
+    APPLIED,
+
+    /** The exit phase cancelled the transition */
+    CANCELLED_BY_EXIT,
+
+    /**
+     * No transition applies to the event in the current state: it is not
+     * defined, or none of its guards or choice branches holds
+     */
+    NO_TRANSITION,
+
+    /** The event is not defined in the state machine */
+    UNKNOWN_EVENT,
+
+    /** Another event is being processed by the same thread */
+    REENTRANT_REJECTED,
+
+    /** The enter phases redirected to more events than allowed */
+    CHAIN_TOO_LONG,
+
+    /**
+     * The event was queued to be processed later, see
+     * {@link shisha.statemachine.strategy.MailboxStrategy}
+     */
+    QUEUED,
+
+    /** The event was not queued because the mailbox was full */
+    REJECTED,
+
+    /** The event was queued, but it was discarded to make room for newer ones */
+    DROPPED,
+
+    /**
+     * The lock of the state machine was not acquired before the deadline, see
+     * {@link shisha.statemachine.strategy.LockPolicy}
+     */
+    BUSY,
+
+    /**
+     * The event was not processed because an earlier one of the same batch
+     * failed, see {@link StateMachine#processEvents(EventInfo[], int, int, boolean)}
+     */
+    SKIPPED;
+
+    /**
+     * Whether the state machine accepted the event, even if the exit phase
+     * cancelled the transition
+     */
+    public boolean isAccepted() {
+        return this == APPLIED || this == CANCELLED_BY_EXIT;
+    }
+
+    /**
+     * Returns the result reported instead of the exception thrown by
+     * <code>processEvent</code>, for the implementations of
+     * {@link StateMachine} and {@link StateMachineStrategy} that only
+     * implement that method
+     *
+     * @throws IllegalStateException if the exception has no result
+     */
+    static ProcessResult of(StateMachineException e) {
+        if (e instanceof EventNotDefinedException)
+            return UNKNOWN_EVENT;
+        if (e instanceof TransitionNotDefinedException)
+            return NO_TRANSITION;
+        if (e instanceof ReentrantTransitionNotAllowed)
+            return REENTRANT_REJECTED;
+        if (e instanceof RedirectChainTooLongException)
+            return CHAIN_TOO_LONG;
+        if (e instanceof StateMachineBusyException)
+            return BUSY;
+        if (e instanceof MailboxFullException)
+            return REJECTED;
+        throw new IllegalStateException("Exceptions are not thrown when trying to process an event", e);
+    }
+
+    /**
+     * Whether the event was neither accepted nor queued. Batches stopping on
+     * the first failure stop on these.
+     */
+    public boolean isFailure() {
+        return !isAccepted() && this != QUEUED;
+    }
+}
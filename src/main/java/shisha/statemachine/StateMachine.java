@@ -15,7 +15,14 @@
  */
 package shisha.statemachine;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
 import shisha.statemachine.exceptions.StateMachineExecutionException;
 
 /**
@@ -61,6 +68,15 @@ public interface StateMachine {
      */
     public String getCurrentState();
 
+    /**
+     * Returns the id of the current state. Ids are the ones given by
+     * {@link StateMachineDefinitionImpl#getStateId(String)}, so by default it
+     * is {@link TransitionTable#UNDEFINED} for other definitions.
+     */
+    public default int getCurrentStateId() {
+        return StateMachineDefinitionImpl.stateId(getDefinition(), getCurrentState());
+    }
+
     /**
      * Returns the state machine definition
      */
@@ -71,4 +87,109 @@ public interface StateMachine {
      */
     public void processEvent(String event, Object object) throws StateMachineExecutionException,
             StateMachineDefinitionException;
+
+    /**
+     * Consumes an event identified by its id following the selected strategy.
+     * Ids are the ones given by {@link StateMachineDefinitionImpl#getEventId(String)},
+     * so callers that already carry numeric event codes do not need to build
+     * and hash the event name. By default, the name is looked up.
+     */
+    public default void processEvent(int event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        String name = StateMachineDefinitionImpl.eventName(getDefinition(), event);
+        if (name == null)
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        processEvent(name, object);
+    }
+
+    /**
+     * Consumes an event like {@link #processEvent(String, Object)}, but reports
+     * events that are not defined or that do not apply to the current state
+     * with the result instead of throwing an exception. Meant for flows where
+     * they are common, like duplicated or late events. Exceptions thrown by
+     * the controllers are propagated as they are.
+     *
+     * <p>
+     * By default, the exceptions of {@link #processEvent(String, Object)} are
+     * mapped to their result. It cannot tell the events cancelled by the exit
+     * phase, which are reported as {@link ProcessResult#APPLIED}.
+     */
+    public default ProcessResult tryProcessEvent(String event, Object object) {
+        try {
+            processEvent(event, object);
+            return ProcessResult.APPLIED;
+        } catch (StateMachineException e) {
+            return ProcessResult.of(e);
+        }
+    }
+
+    /**
+     * Same as {@link #tryProcessEvent(String, Object)} for an event identified
+     * by its id
+     */
+    public default ProcessResult tryProcessEvent(int event, Object object) {
+        String name = StateMachineDefinitionImpl.eventName(getDefinition(), event);
+        return name == null ? ProcessResult.UNKNOWN_EVENT : tryProcessEvent(name, object);
+    }
+
+    /**
+     * Processes the event and returns a stage completed with its result, or
+     * exceptionally with the exception thrown by a controller. Depending on
+     * the strategy, the event is processed by the calling thread, and the
+     * stage is already completed, or later by another one. By default, it is
+     * processed by the calling thread.
+     */
+    public default CompletionStage<ProcessResult> processEventAsync(String event, Object object) {
+        CompletableFuture<ProcessResult> result = new CompletableFuture<ProcessResult>();
+        try {
+            result.complete(tryProcessEvent(event, object));
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #processEventAsync(String, Object)} for an event
+     * identified by its id
+     */
+    public default CompletionStage<ProcessResult> processEventAsync(int event, Object object) {
+        String name = StateMachineDefinitionImpl.eventName(getDefinition(), event);
+        return name == null ? CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT)
+                : processEventAsync(name, object);
+    }
+
+    /**
+     * Processes a batch of events in order, paying for the lock once instead
+     * of once per event, and returns the result of each one. When
+     * <code>stopOnFailure</code> is set, the events after the first one that
+     * is neither applied, cancelled by its exit phase nor queued are
+     * {@link ProcessResult#SKIPPED}; otherwise every event is processed.
+     * Exceptions thrown by the controllers are propagated, and the events
+     * before them remain applied. By default, the events are processed one by
+     * one.
+     */
+    public default ProcessResult[] processEvents(List<EventInfo> events, boolean stopOnFailure) {
+        return processEvents(events.toArray(new EventInfo[events.size()]), 0, events.size(), stopOnFailure);
+    }
+
+    /**
+     * Same as {@link #processEvents(List, boolean)} for the <code>length</code>
+     * events of the array starting at <code>offset</code>
+     */
+    public default ProcessResult[] processEvents(EventInfo[] events, int offset, int length,
+            boolean stopOnFailure) {
+        StateMachineImpl.checkRange(events, offset, length);
+        ProcessResult[] results = new ProcessResult[length];
+        for (int i = 0; i < length; i++) {
+            EventInfo event = events[offset + i];
+            results[i] = tryProcessEvent(event.getEvent(), event.getObject());
+            if (stopOnFailure && results[i].isFailure()) {
+                Arrays.fill(results, i + 1, length, ProcessResult.SKIPPED);
+                break;
+            }
+        }
+        return results;
+    }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StartStateNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+import shisha.statemachine.metrics.StateMachineMetrics;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+/**
+ * Drives the state of many entities with a single definition. Instead of a
+ * {@link StateMachine} object per entity, each entity is given a slot and its
+ * current state is kept in a {@link StateStore}, a primitive array by default.
+ *
+ * <p>
+ * Events are processed as the {@link shisha.statemachine.strategy.NonReentrantStrategy}
+ * does: exit, transition and enter phases, redirections from the enter phase
+ * (up to {@link ReentrantStrategy#DEFAULT_MAX_CHAIN_LENGTH} per event),
+ * and {@link ReentrantTransitionNotAllowed} when a controller processes an
+ * event for the slot being processed. Slots are guarded by a fixed set of
+ * striped locks, so events for different slots may block each other when they
+ * share a stripe. When the definition enables them, the transitions and the
+ * slots in each state are recorded in its
+ * {@link shisha.statemachine.metrics.StateMachineMetrics}.
+ *
+ * <p>
+ * Slots are obtained with {@link #allocate()} and given back with
+ * {@link #release(int)}. Unless configured otherwise, slots reaching a final
+ * state are released automatically. Their state can still be read until the
+ * slot is allocated again.
+ */
+public class StateMachineArray {
+    private static Logger l = LoggerFactory.getLogger(StateMachineArray.class);
+
+    /** Default number of locks */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * Slots are mapped to locks in blocks of 64, so a word of the
+     * inTransition bitmap is always written under the same lock
+     */
+    private static final int BLOCK_SHIFT = 6;
+
+    // The state of a slot, recording the population as it moves
+    private static final TransitionDispatcher.StateAccessor<StateMachineArray> STATE =
+            new TransitionDispatcher.StateAccessor<StateMachineArray>() {
+        public int getStateId(StateMachineArray array, int slot) {
+            return array.states.get(slot);
+        }
+
+        public void setStateId(StateMachineArray array, int slot, int state) {
+            int previous = array.states.get(slot);
+            array.states.set(slot, state);
+            StateMachineMetrics metrics = array.table.getMetrics();
+            if (metrics != null)
+                metrics.moved(previous, state);
+        }
+    };
+
+    /**
+     * Visits the slots of a {@link StateMachineArray}
+     */
+    public interface SlotVisitor {
+        void visit(int slot);
+    }
+
+    private final StateMachineDefinitionImpl definition;
+    private final TransitionTable table;
+    private final StateStore states;
+    private final boolean releaseFinalStates;
+
+    private final ReentrantLock[] locks;
+    private final int lockMask;
+    private final long[] inTransition;
+
+    // Guarded by allocationLock. The bitmap tells the slots in the free list,
+    // which a slot enters only once.
+    private final Object allocationLock = new Object();
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private final long[] free;
+    private volatile int next;
+
+    public StateMachineArray(StateMachineDefinition definition, int capacity) throws StateMachineDefinitionException {
+        this(definition, StateStore.newArrayStore(stateCount(definition), capacity), DEFAULT_STRIPES, true);
+    }
+
+    /**
+     * Creates an array on top of a store, which may already contain states.
+     * Free slots, and the ones in a final state when
+     * <code>releaseFinalStates</code> is set, are available for allocation.
+     *
+     * @param stripes number of locks. It is rounded up to a power of two
+     */
+    public StateMachineArray(StateMachineDefinition definition, StateStore states, int stripes,
+            boolean releaseFinalStates) throws StateMachineDefinitionException {
+        if (definition.getStartState() == null)
+            throw new StartStateNotDefinedException("Start state has not been defined for the state machine");
+
+        this.table = StateMachineDefinitionImpl.freeze(definition);
+        this.definition = (StateMachineDefinitionImpl) definition;
+        this.states = states;
+        this.releaseFinalStates = releaseFinalStates;
+
+        int size = 1;
+        while (size < stripes)
+            size <<= 1;
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+        this.lockMask = locks.length - 1;
+        this.inTransition = new long[(states.capacity() >> BLOCK_SHIFT) + 1];
+        this.free = new long[(states.capacity() >> BLOCK_SHIFT) + 1];
+
+        recoverFreeSlots();
+    }
+
+    private static int stateCount(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        return StateMachineDefinitionImpl.freeze(definition).getStateCount();
+    }
+
+    /**
+     * Rebuilds the free list from the contents of the store
+     */
+    private void recoverFreeSlots() {
+        int last = -1;
+        for (int slot = 0; slot < states.capacity(); slot++) {
+            if (!isAvailable(states.get(slot)))
+                last = slot;
+        }
+
+        StateMachineMetrics metrics = table.getMetrics();
+        if (metrics != null) {
+            for (int slot = 0; slot <= last; slot++) {
+                if (states.get(slot) != StateStore.FREE)
+                    metrics.created(states.get(slot));
+            }
+        }
+
+        // Lower slots are handed first
+        for (int slot = last - 1; slot >= 0; slot--) {
+            if (isAvailable(states.get(slot)))
+                pushFreeSlot(slot);
+        }
+        next = last + 1;
+        l.debug("#recoverFreeSlots: " + next + " slots in use, " + freeCount + " of them free");
+    }
+
+    private boolean isAvailable(int state) {
+        return state == StateStore.FREE || (releaseFinalStates && table.isFinalState(state));
+    }
+
+    private void pushFreeSlot(int slot) {
+        synchronized (allocationLock) {
+            int word = slot >> BLOCK_SHIFT;
+            long bit = 1L << slot;
+            if ((free[word] & bit) != 0)
+                return;
+            free[word] |= bit;
+            if (freeCount == freeSlots.length)
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            freeSlots[freeCount++] = slot;
+        }
+    }
+
+    /**
+     * Returns a slot set to the start state
+     *
+     * @throws IllegalStateException if all the slots are in use
+     */
+    public int allocate() {
+        int slot;
+        synchronized (allocationLock) {
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+                free[slot >> BLOCK_SHIFT] &= ~(1L << slot);
+            } else if (next < states.capacity()) {
+                slot = next++;
+            } else {
+                throw new IllegalStateException("All the " + states.capacity() + " slots are in use");
+            }
+        }
+
+        ReentrantLock lock = lockFor(slot);
+        lock.lock();
+        try {
+            int previous = states.get(slot);
+            states.set(slot, table.getStartState());
+            StateMachineMetrics metrics = table.getMetrics();
+            if (metrics != null) {
+                // Slots released in a final state are still counted in it
+                if (previous == StateStore.FREE)
+                    metrics.created(table.getStartState());
+                else
+                    metrics.moved(previous, table.getStartState());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return slot;
+    }
+
+    /**
+     * Gives the slot back. Releasing a free slot, or one already released
+     * because it reached a final state, does nothing.
+     */
+    public void release(int slot) {
+        checkSlot(slot);
+        ReentrantLock lock = lockFor(slot);
+        lock.lock();
+        try {
+            int state = states.get(slot);
+            if (isAvailable(state))
+                return;
+
+            states.set(slot, StateStore.FREE);
+            if (table.getMetrics() != null)
+                table.getMetrics().released(state);
+            pushFreeSlot(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return states.capacity();
+    }
+
+    public StateMachineDefinition getDefinition() {
+        return definition;
+    }
+
+    public TransitionTable getTransitionTable() {
+        return table;
+    }
+
+    /**
+     * Returns the name of the current state of the slot, or null if it is free
+     */
+    public String getState(int slot) {
+        int state = getStateId(slot);
+        return state == StateStore.FREE ? null : table.getStateName(state);
+    }
+
+    /**
+     * Returns the ordinal of the current state of the slot, or
+     * {@link StateStore#FREE}
+     */
+    public int getStateId(int slot) {
+        checkSlot(slot);
+        return states.get(slot);
+    }
+
+    public void processEvent(int slot, String event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        int eventId = table.getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        processEvent(slot, eventId, object);
+    }
+
+    public void processEvent(int slot, int eventId, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        checkSlot(slot);
+        if (eventId < 0 || eventId >= table.getEventCount())
+            throw new EventNotDefinedException("Event " + eventId + " not defined", StateMachineException.STACKLESS);
+
+        int word = slot >> BLOCK_SHIFT;
+        long bit = 1L << slot;
+
+        ReentrantLock lock = lockFor(slot);
+        lock.lock();
+        try {
+            if ((inTransition[word] & bit) != 0)
+                throw new ReentrantTransitionNotAllowed("Reentrance from the same thread is not allowed",
+                        StateMachineException.STACKLESS);
+
+            if (states.get(slot) == StateStore.FREE)
+                throw new IllegalArgumentException("Slot " + slot + " is not allocated");
+
+            boolean wasFinal = table.isFinalState(states.get(slot));
+            inTransition[word] |= bit;
+            try {
+                TransitionDispatcher.SHARED.dispatch(table, STATE, this, slot, eventId, object, true);
+            } finally {
+                inTransition[word] &= ~bit;
+            }
+
+            releaseIfFinished(slot, wasFinal);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #processEvent(int, String, Object)}, but reports the events
+     * that do not apply with the result instead of an exception. See
+     * {@link StateMachine#tryProcessEvent(String, Object)}.
+     */
+    public ProcessResult tryProcessEvent(int slot, String event, Object object) {
+        int eventId = table.getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            return ProcessResult.UNKNOWN_EVENT;
+
+        return tryProcessEvent(slot, eventId, object);
+    }
+
+    public ProcessResult tryProcessEvent(int slot, int eventId, Object object) {
+        checkSlot(slot);
+        if (eventId < 0 || eventId >= table.getEventCount())
+            return ProcessResult.UNKNOWN_EVENT;
+
+        int word = slot >> BLOCK_SHIFT;
+        long bit = 1L << slot;
+
+        ReentrantLock lock = lockFor(slot);
+        lock.lock();
+        try {
+            if ((inTransition[word] & bit) != 0)
+                return ProcessResult.REENTRANT_REJECTED;
+
+            if (states.get(slot) == StateStore.FREE)
+                throw new IllegalArgumentException("Slot " + slot + " is not allocated");
+
+            ProcessResult result;
+            boolean wasFinal = table.isFinalState(states.get(slot));
+            inTransition[word] |= bit;
+            try {
+                result = TransitionDispatcher.SHARED.dispatch(table, STATE, this, slot, eventId, object, false);
+            } catch (StateMachineException e) {
+                throw new IllegalStateException("Exceptions are not thrown when trying to process an event", e);
+            } finally {
+                inTransition[word] &= ~bit;
+            }
+
+            releaseIfFinished(slot, wasFinal);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the slot back when the event took it to a final state. Events
+     * processed on a slot that already was in a final state do not, as the
+     * slot was given back then.
+     */
+    private void releaseIfFinished(int slot, boolean wasFinal) {
+        if (releaseFinalStates && !wasFinal && table.isFinalState(states.get(slot)))
+            pushFreeSlot(slot);
+    }
+
+    /**
+     * Returns the number of slots in the state. Slots are read without locking,
+     * so the result is not a snapshot if there are events being processed.
+     */
+    public int count(String state) throws StateNotDefinedException {
+        int stateId = checkState(state);
+        int count = 0;
+        int last = next;
+        for (int slot = 0; slot < last; slot++) {
+            if (states.get(slot) == stateId)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Calls the visitor for every slot in the state, in slot order. As with
+     * {@link #count(String)}, slots are read without locking.
+     */
+    public void forEach(String state, SlotVisitor visitor) throws StateNotDefinedException {
+        int stateId = checkState(state);
+        int last = next;
+        for (int slot = 0; slot < last; slot++) {
+            if (states.get(slot) == stateId)
+                visitor.visit(slot);
+        }
+    }
+
+    private int checkState(String state) throws StateNotDefinedException {
+        int stateId = table.getStateId(state);
+        if (stateId == TransitionTable.UNDEFINED)
+            throw new StateNotDefinedException("State " + state + " not defined");
+        return stateId;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= states.capacity())
+            throw new IndexOutOfBoundsException("Slot " + slot + " out of bounds");
+    }
+
+    private ReentrantLock lockFor(int slot) {
+        return locks[(slot >> BLOCK_SHIFT) & lockMask];
+    }
+}
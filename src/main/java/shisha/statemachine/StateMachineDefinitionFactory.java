@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+
+/**
+ * Builds the {@link StateMachineDefinition} of an annotated class for a given
+ * instance, binding its controllers to that instance.
+ *
+ * <p>
+ * The statemachine-processor module generates an implementation for every class
+ * annotated with {@link shisha.statemachine.annotations.AStateMachine}, named
+ * after the binary name of the class plus {@link #GENERATED_SUFFIX}. When it
+ * exists, {@link StateMachines} uses it instead of reading the annotations with
+ * reflection.
+ */
+public interface StateMachineDefinitionFactory<T> {
+    /** Suffix of the factories generated by the annotation processor */
+    public static final String GENERATED_SUFFIX = "_StateMachineFactory";
+
+    public StateMachineDefinition newDefinition(T instance) throws StateMachineDefinitionException;
+}
@@ -15,18 +15,20 @@
  */
 package shisha.statemachine;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import shisha.statemachine.annotations.Choice;
 import shisha.statemachine.annotations.EnterState;
 import shisha.statemachine.annotations.ExitState;
 import shisha.statemachine.annotations.Transition;
@@ -37,9 +39,10 @@ import shisha.statemachine.exceptions.StateAlreadyExistsException;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
 import shisha.statemachine.exceptions.StateNotDefinedException;
 import shisha.statemachine.exceptions.TransitionNotDefinedException;
+import shisha.statemachine.metrics.StateMachineMetrics;
+import shisha.statemachine.metrics.StateMachineMonitoring;
 
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 
 /**
  * Responsible for defining the set of states, events and transitions or a state
@@ -71,6 +74,21 @@ import com.google.common.collect.Sets;
  * <p>
  * A state machine has an initial state. Contains all the data for a state
  * machine. It is not thread-safe
+ * 
+ * <p>
+ * Once the definition is complete, it is compiled into a {@link TransitionTable}
+ * by {@link #freeze()}. That happens the first time a {@link StateMachine} is
+ * created from the definition. A frozen definition cannot be modified anymore.
+ * 
+ * <p>
+ * Decisions are modelled with choice states, see
+ * {@link #defineChoiceState(String)}.
+ * 
+ * <p>
+ * Transitions can be observed with listeners, see
+ * {@link #addTransitionListener(TransitionListener)}, and measured, see
+ * {@link #enableMetrics()}. The metrics of named definitions, see
+ * {@link #setName(String)}, are published through JMX.
  */
 public class StateMachineDefinitionImpl implements StateMachineDefinition {
     private static Logger l = LoggerFactory.getLogger(StateMachineDefinitionImpl.class);
@@ -78,15 +96,49 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
     private String startState;
 
     private HashMap<String, State> states;
-    private HashSet<String> events;
+    private HashMap<String, Integer> events;
+
+    // Definition order, which gives the ids used by the transition table
+    private ArrayList<State> stateList;
+    private ArrayList<String> eventList;
+
+    private HashMap<String, ContextKey<?>> contextKeys;
+
+    private ArrayList<TransitionListener> listeners;
+    // Sampling period of the metrics, 0 if disabled
+    private int metrics;
+    private String name;
+
+    private volatile TransitionTable table;
 
     public StateMachineDefinitionImpl() {
         this.states = Maps.newHashMap();
-        this.events = Sets.newHashSet();
+        this.events = Maps.newHashMap();
+        this.stateList = new ArrayList<State>();
+        this.eventList = new ArrayList<String>();
+        this.contextKeys = Maps.newHashMap();
+        this.listeners = new ArrayList<TransitionListener>();
+    }
+
+    /**
+     * A frozen copy of <code>template</code> that dispatches through
+     * <code>table</code>. See {@link #bind(Object)}
+     */
+    private StateMachineDefinitionImpl(StateMachineDefinitionImpl template, TransitionTable table) {
+        this.startState = template.startState;
+        this.states = template.states;
+        this.events = template.events;
+        this.stateList = template.stateList;
+        this.eventList = template.eventList;
+        this.contextKeys = template.contextKeys;
+        this.listeners = template.listeners;
+        this.metrics = template.metrics;
+        this.name = template.name;
+        this.table = table;
     }
 
     public boolean isEvent(String event) {
-        return this.events.contains(event);
+        return this.events.containsKey(event);
     }
 
     public boolean isState(String state) {
@@ -112,18 +164,56 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         return result;
     }
 
+    /**
+     * Returns the id of the state, or {@link TransitionTable#UNDEFINED} if it
+     * does not exist. Ids are assigned in definition order and never change,
+     * so they are the same ones used by the compiled {@link TransitionTable}.
+     */
+    public int getStateId(String state) {
+        State s = states.get(state);
+        return s == null ? TransitionTable.UNDEFINED : s.getId();
+    }
+
+    /**
+     * Returns the id of the event, or {@link TransitionTable#UNDEFINED} if it
+     * does not exist. Same rules as {@link #getStateId(String)} apply.
+     */
+    public int getEventId(String event) {
+        Integer id = events.get(event);
+        return id == null ? TransitionTable.UNDEFINED : id;
+    }
+
+    /**
+     * Defines a typed value of the transition context. Unlike states and
+     * events, keys can be defined after the definition is frozen.
+     *
+     * @throws IllegalArgumentException if the name was already used
+     */
+    public <T> ContextKey<T> defineContextKey(String name, Class<T> type) {
+        synchronized (contextKeys) {
+            if (contextKeys.containsKey(name))
+                throw new IllegalArgumentException("Context key " + name + " already defined");
+
+            ContextKey<T> key = new ContextKey<T>(name, type, contextKeys.size());
+            contextKeys.put(name, key);
+            return key;
+        }
+    }
+
     public void defineEvent(String event) throws EventAlreadyExistsException {
+        checkNotFrozen();
         checkEventNotNull(event);
 
-        if (events.contains(event))
+        if (events.containsKey(event))
             throw new EventAlreadyExistsException("Event " + event + " already defined in the state machine");
 
-        events.add(event);
+        events.put(event, eventList.size());
+        eventList.add(event);
         l.debug("#defineEvent succeed for event id " + event);
     }
 
     public Set<String> getEvents() {
-        return Collections.unmodifiableSet(events);
+        return Collections.unmodifiableSet(events.keySet());
     }
 
     public void defineState(String state) throws StateAlreadyExistsException, ConstraintException {
@@ -133,6 +223,7 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
     public void defineState(String state, boolean isStart, boolean isFinal) throws StateAlreadyExistsException,
             ConstraintException {
 
+        checkNotFrozen();
         checkStateNotNull(state);
 
         if (isStart && startState != null)
@@ -145,7 +236,9 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         if (states.containsKey(state)) {
             throw new StateAlreadyExistsException("State " + state + " already defined");
         } else {
-            states.put(state, new State(state, isStart, isFinal));
+            State internalState = new State(state, stateList.size(), isStart, isFinal);
+            states.put(state, internalState);
+            stateList.add(internalState);
         }
 
         l.debug("#defineState succeed for state id " + state);
@@ -154,6 +247,64 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
             this.startState = state;
     }
 
+    /**
+     * Defines a choice state. A choice state is never the current state of a
+     * state machine: a transition targeting it goes on to the target of the
+     * first of its branches whose {@link Guard} holds, all within the same
+     * transition. The exit and transition phases run as usual, then the enter
+     * phase of the state the choice resolves to. Guards are evaluated before
+     * any of them, so when no branch applies the transition fails with a
+     * {@link TransitionNotDefinedException} and nothing is executed.
+     * 
+     * <p>
+     * It replaces the intermediate states whose enter phase redirects to
+     * another event, which need a second transition for taking the decision.
+     * Branches are added with {@link #defineChoice(String, Guard, String)}.
+     * Choice states cannot have transitions nor controllers of their own.
+     */
+    public void defineChoiceState(String state) throws StateAlreadyExistsException, ConstraintException {
+        this.defineState(state, false, false);
+        states.get(state).isChoice = true;
+    }
+
+    /**
+     * Adds a branch to the choice state. Branches are evaluated in the order
+     * they were defined. The branch without guard is the default one, taken
+     * when no other applies, whatever the order it was defined in.
+     * 
+     * @param guard the condition of the branch, or null for the default one
+     */
+    public void defineChoice(String choice, Guard guard, String target) throws StateMachineDefinitionException {
+        checkNotFrozen();
+        State choiceState = checkStateExists(choice);
+        checkStateExists(target);
+
+        if (!choiceState.isChoice())
+            throw new ConstraintException("State " + choice + " is not a choice state");
+        if (choice.equals(target))
+            throw new ConstraintException("Choice state " + choice + " cannot choose itself");
+        if (guard == null && choiceState.getOtherwise() != null)
+            throw new ConstraintException("Choice state " + choice + " already goes to "
+                    + choiceState.getOtherwise().getState() + " by default");
+
+        choiceState.addBranch(guard, target);
+        l.debug("#defineChoice succeed for choice state " + choice + " and target " + target);
+    }
+
+    /**
+     * Defines a branch whose guard is an annotated method. See
+     * {@link #defineTransition(Transition, Method)}.
+     */
+    void defineChoice(Choice ann, Method method) throws StateMachineDefinitionException {
+        this.defineChoice(ann.source(), new UnboundGuard(MethodControllers.factory(Guard.class, method)),
+                ann.target());
+    }
+
+    public boolean isChoiceState(String state) {
+        State s = states.get(state);
+        return s != null && s.isChoice();
+    }
+
     public String getStartState() {
         return this.startState;
     }
@@ -175,6 +326,17 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         return states.get(state);
     }
 
+    private void checkNotChoice(State state) throws ConstraintException {
+        if (state.isChoice())
+            throw new ConstraintException("Choice state " + state.getName()
+                    + " cannot have transitions nor controllers. Use its branches instead");
+    }
+
+    private void checkNotFrozen() {
+        if (table != null)
+            throw new IllegalStateException("The state machine definition is frozen and cannot be modified");
+    }
+
     private void checkStateNotNull(String state) {
         if (state == null)
             throw new IllegalArgumentException("Can not define a state with null value");
@@ -190,88 +352,157 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
             throw new IllegalArgumentException("Can not define an event with null value");
     }
 
-    void defineTransition(Transition transition, final Method method, final Object callee)
-            throws StateMachineDefinitionException {
-        this.defineTransition(transition.source(), transition.event(), transition.target(), new TransitionController() {
-            public void execute(TransitionInfo event) {
-                try {
-                    method.invoke(callee, event);
-                } catch (IllegalAccessException e) {
-                    l.error("This should never happen");
-                } catch (IllegalArgumentException e) {
-                    l.error("This should never happen");
-                } catch (InvocationTargetException swallow) {
-                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
-                }
-            }
-        });
+    /**
+     * Defines a transition whose controller is an annotated method. The method
+     * is not bound to any instance until {@link #bind(Object)} is invoked.
+     */
+    void defineTransition(Transition transition, Method method) throws StateMachineDefinitionException {
+        this.defineTransition(transition, method, null);
+    }
+
+    /**
+     * Same as {@link #defineTransition(Transition, Method)} for a transition
+     * guarded by another annotated method, if not null
+     */
+    void defineTransition(Transition transition, Method method, Method guard) throws StateMachineDefinitionException {
+        this.defineTransition(transition.source(), transition.event(), transition.target(),
+                new UnboundTransitionController(MethodControllers.factory(TransitionController.class, method)),
+                guard == null ? null : new UnboundGuard(MethodControllers.factory(Guard.class, guard)));
     }
 
     public void defineTransition(String source, String event, String target, TransitionController controller)
             throws StateMachineDefinitionException {
+        this.defineTransition(source, event, target, controller, null);
+    }
+
+    /**
+     * Defines a transition that is only taken when the guard holds. A source
+     * state may have many transitions for the same event: their guards are
+     * evaluated in the order they were defined, and the first one that holds
+     * is taken. The transition without guard, if any, is taken when no other
+     * applies, whatever the order it was defined in. When none applies,
+     * processing the event throws a {@link TransitionNotDefinedException}.
+     * 
+     * <p>
+     * Pairs of source state and event with a single transition without guard,
+     * the most common case, are resolved without evaluating anything.
+     * 
+     * @param guard the condition of the transition, or null if it has none
+     */
+    public void defineTransition(String source, String event, String target, TransitionController controller,
+            Guard guard) throws StateMachineDefinitionException {
+        checkNotFrozen();
         State sourceState = checkStateExists(source);
         checkStateExists(target);
         checkEventExists(event);
 
         if (sourceState.isFinal() && !source.equals(target))
             throw new ConstraintException("Cannot create transitions from the final state " + source);
-        sourceState.setTransitionController(event, target, controller);
+        checkNotChoice(sourceState);
+        if (guard == null && sourceState.hasDefaultTransition(event))
+            throw new ConstraintException("Transition from state " + source + " with event " + event
+                    + " already defined without guard");
+        sourceState.addTransition(event, new TransitionTarget(target, controller, guard));
     }
 
-    void defineExitState(ExitState ann, final Method method, final Object callee)
-            throws StateMachineDefinitionException {
-        this.defineExitState(ann.value(), new ExitStateController() {
-            public Boolean execute(TransitionInfo event) {
-                Boolean result = null;
-                try {
-                    result = (Boolean) method.invoke(callee, event);
-                } catch (IllegalAccessException e) {
-                    l.error("This should never happen");
-                } catch (IllegalArgumentException e) {
-                    l.error("This should never happen");
-                } catch (InvocationTargetException swallow) {
-                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
-                }
-                return result;
-            }
-        });
+    void defineExitState(ExitState ann, Method method) throws StateMachineDefinitionException {
+        this.defineExitState(ann.value(),
+                new UnboundExitStateController(MethodControllers.factory(ExitStateController.class, method)));
     }
 
     public void defineExitState(String state, ExitStateController controller) throws StateMachineDefinitionException {
+        checkNotFrozen();
         State internalState = checkStateExists(state);
+        checkNotChoice(internalState);
         internalState.setExitStateController(controller);
     }
 
-    void defineEnterState(final EnterState ann, final Method method, final Object callee)
-            throws StateMachineDefinitionException {
-        this.defineEnterState(ann.value(), new EnterStateController() {
-            public EventInfo execute(TransitionInfo event) {
-                EventInfo evtInfo = null;
-                try {
-                    evtInfo = (EventInfo) method.invoke(callee, event);
-                } catch (IllegalAccessException e) {
-                    l.error("This should never happen");
-                } catch (IllegalArgumentException e) {
-                    l.error("This should never happen");
-                } catch (InvocationTargetException swallow) {
-                    l.error("Exceptions should be treated in the controller. Swallowing it", swallow);
-                }
-                return evtInfo;
-            }
-        });
+    void defineEnterState(EnterState ann, Method method) throws StateMachineDefinitionException {
+        this.defineEnterState(ann.value(),
+                new UnboundEnterStateController(MethodControllers.factory(EnterStateController.class, method)));
     }
 
     public void defineEnterState(String state, EnterStateController controller) throws StateMachineDefinitionException {
+        checkNotFrozen();
         State internalState = checkStateExists(state);
+        checkNotChoice(internalState);
         internalState.setEnterStateController(controller);
     }
 
+    /**
+     * Adds a listener called on every transition of the state machines created
+     * from this definition. Listeners are called in the order they were added,
+     * and they are compiled into a single one when the definition is frozen,
+     * so definitions without listeners do not pay for them.
+     */
+    public void addTransitionListener(TransitionListener listener) {
+        checkNotFrozen();
+        if (listener == null)
+            throw new IllegalArgumentException("The listener cannot be null");
+
+        listeners.add(listener);
+    }
+
+    /**
+     * Makes the state machines created from this definition record
+     * {@link StateMachineMetrics}, available from the {@link TransitionTable}
+     * once it is frozen. The strategies extending
+     * {@link shisha.statemachine.strategy.ReentrantStrategy}, the
+     * {@link CompactStateMachine}s and the {@link StateMachineArray}s record
+     * them. Every event is timed.
+     */
+    public void enableMetrics() {
+        enableMetrics(1);
+    }
+
+    /**
+     * Same as {@link #enableMetrics()}, timing one out of
+     * <code>samplingPeriod</code> events
+     */
+    public void enableMetrics(int samplingPeriod) {
+        checkNotFrozen();
+        if (samplingPeriod < 1)
+            throw new IllegalArgumentException("The sampling period must be at least 1");
+
+        this.metrics = samplingPeriod;
+    }
+
+    /**
+     * Names the definition. When its metrics are enabled they are registered
+     * in {@link StateMachineMonitoring} under this name, which publishes them
+     * as a JMX bean, and definitions with the same name share them. The
+     * definitions of {@link shisha.statemachine.annotations.AStateMachine}
+     * classes are named after the class.
+     */
+    public void setName(String name) {
+        checkNotFrozen();
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("The name cannot be empty");
+
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of the definition, or null if it is not named
+     */
+    public String getName() {
+        return name;
+    }
+
     public TransitionController getTransitionController(String state, String event) throws StateNotDefinedException,
             EventNotDefinedException, TransitionNotDefinedException {
         TransitionController controller = null;
         State internalState = checkStateExists(state);
-        if (internalState != null)
-            controller = internalState.getTransitionController(event);
+        if (internalState != null) {
+            // Bound definitions share the states with their template, so the
+            // controllers must be read from the table once it is compiled
+            TransitionTable compiled = table;
+            if (compiled == null) {
+                controller = internalState.getTransitionController(event);
+            } else if (isEvent(event)) {
+                controller = compiled.getTransitionController(internalState.getId(), getEventId(event));
+            }
+        }
 
         return controller;
     }
@@ -279,8 +510,11 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
     public EnterStateController getEnterStateController(String state) throws StateNotDefinedException {
         EnterStateController controller = null;
         State internalState = checkStateExists(state);
-        if (internalState != null)
-            controller = internalState.getEnterStateController();
+        if (internalState != null) {
+            TransitionTable compiled = table;
+            controller = compiled == null ? internalState.getEnterStateController() : compiled
+                    .getEnterStateController(internalState.getId());
+        }
 
         return controller;
     }
@@ -288,15 +522,19 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
     public ExitStateController getExitStateController(String state) throws StateNotDefinedException {
         ExitStateController controller = null;
         State internalState = checkStateExists(state);
-        if (internalState != null)
-            controller = internalState.getExitStateController();
+        if (internalState != null) {
+            TransitionTable compiled = table;
+            controller = compiled == null ? internalState.getExitStateController() : compiled
+                    .getExitStateController(internalState.getId());
+        }
 
         return controller;
     }
 
     /**
      * This method is only invoked for valid source states, so no additional
-     * checks are required.
+     * checks are required. For guarded transitions, returns the target of the
+     * first one to be evaluated.
      * 
      * @throws TransitionNotDefinedException
      *             in case the transition does not exist
@@ -333,22 +571,261 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         return result;
     }
 
+    /**
+     * Compiles the definition into a {@link TransitionTable} and forbids any
+     * further modification. Calling it more than once returns the same table.
+     */
+    public TransitionTable freeze() {
+        TransitionTable result = table;
+        if (result == null) {
+            synchronized (this) {
+                result = table;
+                if (result == null) {
+                    result = compile();
+                    table = result;
+                    l.debug("#freeze: compiled " + stateList.size() + " states and " + eventList.size() + " events");
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Freezes the definition of a state machine. State machines run the
+     * {@link TransitionTable} it is compiled into, so it has to be a
+     * {@link StateMachineDefinitionImpl}.
+     *
+     * @throws StateMachineDefinitionException for other implementations
+     */
+    static TransitionTable freeze(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        if (!(definition instanceof StateMachineDefinitionImpl))
+            throw new StateMachineDefinitionException("State machines run the transition table of a "
+                    + StateMachineDefinitionImpl.class.getSimpleName() + ", " + definition.getClass().getName()
+                    + " is not one");
+        return ((StateMachineDefinitionImpl) definition).freeze();
+    }
+
+    /**
+     * Returns the id of the state, or {@link TransitionTable#UNDEFINED} if it
+     * does not exist or the definition does not give ids to its states
+     */
+    static int stateId(StateMachineDefinition definition, String state) {
+        return definition instanceof StateMachineDefinitionImpl
+                ? ((StateMachineDefinitionImpl) definition).getStateId(state) : TransitionTable.UNDEFINED;
+    }
+
+    /**
+     * Returns the name of the event with the id, or null if it does not exist
+     * or the definition does not give ids to its events
+     */
+    static String eventName(StateMachineDefinition definition, int event) {
+        if (!(definition instanceof StateMachineDefinitionImpl))
+            return null;
+        List<String> events = ((StateMachineDefinitionImpl) definition).eventList;
+        return event < 0 || event >= events.size() ? null : events.get(event);
+    }
+
+    public boolean isFrozen() {
+        return table != null;
+    }
+
+    /**
+     * Returns the compiled table, or null if the definition has not been frozen
+     * yet
+     */
+    public TransitionTable getTransitionTable() {
+        return table;
+    }
+
+    /**
+     * Returns a copy of this definition whose annotated controllers are bound to
+     * <code>callee</code>. The copy shares states, events and transitions with this
+     * definition, which must be frozen, and only owns its controllers. Controllers
+     * that were not defined through annotations are shared as they are.
+     */
+    StateMachineDefinitionImpl bind(Object callee) {
+        TransitionTable template = freeze();
+        IdentityHashMap<MethodHandle, Object> bound = new IdentityHashMap<MethodHandle, Object>();
+
+        TransitionController[] transitionControllers = new TransitionController[template.getStateCount()
+                * template.getEventCount()];
+        ExitStateController[] exitControllers = new ExitStateController[template.getStateCount()];
+        EnterStateController[] enterControllers = new EnterStateController[template.getStateCount()];
+        Guard[][] choiceGuards = new Guard[template.getStateCount()][];
+
+        for (int s = 0; s < template.getStateCount(); s++) {
+            if (template.isChoiceState(s)) {
+                choiceGuards[s] = new Guard[template.getChoiceBranchCount(s)];
+                for (int b = 0; b < choiceGuards[s].length; b++) {
+                    Guard guard = template.getChoiceGuard(s, b);
+                    if (guard instanceof UnboundGuard)
+                        guard = (Guard) bind(((UnboundGuard) guard).factory, callee, bound);
+                    choiceGuards[s][b] = guard;
+                }
+            }
+
+            ExitStateController exit = template.getExitStateController(s);
+            if (exit instanceof UnboundExitStateController)
+                exit = (ExitStateController) bind(((UnboundExitStateController) exit).factory, callee, bound);
+            exitControllers[s] = exit;
+
+            EnterStateController enter = template.getEnterStateController(s);
+            if (enter instanceof UnboundEnterStateController)
+                enter = (EnterStateController) bind(((UnboundEnterStateController) enter).factory, callee, bound);
+            enterControllers[s] = enter;
+
+            for (int e = 0; e < template.getEventCount(); e++) {
+                TransitionController transition = template.getTransitionController(s, e);
+                if (transition instanceof UnboundTransitionController)
+                    transition = (TransitionController) bind(((UnboundTransitionController) transition).factory,
+                            callee, bound);
+                transitionControllers[s * template.getEventCount() + e] = transition;
+            }
+        }
+
+        TransitionController[][] guardedControllers = new TransitionController[template.getGuardedCount()][];
+        Guard[][] transitionGuards = new Guard[template.getGuardedCount()][];
+        for (int g = 0; g < guardedControllers.length; g++) {
+            guardedControllers[g] = template.getGuardedControllers(g).clone();
+            transitionGuards[g] = template.getGuardedGuards(g).clone();
+            for (int t = 0; t < guardedControllers[g].length; t++) {
+                TransitionController controller = guardedControllers[g][t];
+                if (controller instanceof UnboundTransitionController)
+                    guardedControllers[g][t] = (TransitionController) bind(
+                            ((UnboundTransitionController) controller).factory, callee, bound);
+                Guard guard = transitionGuards[g][t];
+                if (guard instanceof UnboundGuard)
+                    transitionGuards[g][t] = (Guard) bind(((UnboundGuard) guard).factory, callee, bound);
+            }
+        }
+
+        return new StateMachineDefinitionImpl(this, template.withControllers(transitionControllers, exitControllers,
+                enterControllers, choiceGuards, guardedControllers, transitionGuards));
+    }
+
+    private static Object bind(MethodHandle factory, Object callee, IdentityHashMap<MethodHandle, Object> bound) {
+        Object controller = bound.get(factory);
+        if (controller == null) {
+            controller = MethodControllers.bind(factory, callee);
+            bound.put(factory, controller);
+        }
+        return controller;
+    }
+
+    private TransitionTable compile() {
+        int stateCount = stateList.size();
+        int eventCount = eventList.size();
+
+        String[] stateNames = new String[stateCount];
+        String[] eventNames = eventList.toArray(new String[eventCount]);
+        boolean[] finalStates = new boolean[stateCount];
+        int[] targets = new int[stateCount * eventCount];
+        TransitionController[] transitionControllers = new TransitionController[stateCount * eventCount];
+        ExitStateController[] exitControllers = new ExitStateController[stateCount];
+        EnterStateController[] enterControllers = new EnterStateController[stateCount];
+        int[][] choiceTargets = new int[stateCount][];
+        Guard[][] choiceGuards = new Guard[stateCount][];
+        ArrayList<int[]> guardedTargets = new ArrayList<int[]>();
+        ArrayList<TransitionController[]> guardedControllers = new ArrayList<TransitionController[]>();
+        ArrayList<Guard[]> transitionGuards = new ArrayList<Guard[]>();
+        int start = TransitionTable.UNDEFINED;
+
+        Arrays.fill(targets, TransitionTable.UNDEFINED);
+        for (int s = 0; s < stateCount; s++) {
+            State state = stateList.get(s);
+            stateNames[s] = state.getName();
+            finalStates[s] = state.isFinal();
+            exitControllers[s] = state.getExitStateController();
+            enterControllers[s] = state.getEnterStateController();
+            if (state.isStart())
+                start = s;
+
+            if (state.isChoice()) {
+                List<ChoiceBranch> branches = state.getBranches();
+                choiceTargets[s] = new int[branches.size()];
+                choiceGuards[s] = new Guard[branches.size()];
+                for (int b = 0; b < branches.size(); b++) {
+                    choiceTargets[s][b] = states.get(branches.get(b).getState()).getId();
+                    choiceGuards[s][b] = branches.get(b).getGuard();
+                }
+            }
+
+            for (int e = 0; e < eventCount; e++) {
+                TransitionTarget target = state.getTransitions().get(eventNames[e]);
+                if (target == null)
+                    continue;
+
+                transitionControllers[s * eventCount + e] = target.getTransitionController();
+                if (target.getGuard() == null && target.getNext() == null) {
+                    targets[s * eventCount + e] = states.get(target.getState()).getId();
+                    continue;
+                }
+
+                int count = 0;
+                for (TransitionTarget t = target; t != null; t = t.getNext())
+                    count++;
+                int[] cellTargets = new int[count];
+                TransitionController[] cellControllers = new TransitionController[count];
+                Guard[] cellGuards = new Guard[count];
+                int i = 0;
+                for (TransitionTarget t = target; t != null; t = t.getNext(), i++) {
+                    cellTargets[i] = states.get(t.getState()).getId();
+                    cellControllers[i] = t.getTransitionController();
+                    cellGuards[i] = t.getGuard();
+                }
+                targets[s * eventCount + e] = TransitionTable.guardedCell(guardedTargets.size());
+                guardedTargets.add(cellTargets);
+                guardedControllers.add(cellControllers);
+                transitionGuards.add(cellGuards);
+            }
+        }
+
+        StateMachineMetrics recorder = null;
+        if (metrics != 0)
+            recorder = name == null ? new StateMachineMetrics(stateNames, eventNames, metrics)
+                    : StateMachineMonitoring.metrics(name, stateNames, eventNames, metrics);
+        return new TransitionTable(stateNames, eventNames, start, finalStates, targets, transitionControllers,
+                exitControllers, enterControllers, choiceTargets, choiceGuards,
+                guardedTargets.toArray(new int[guardedTargets.size()][]),
+                guardedControllers.toArray(new TransitionController[guardedControllers.size()][]),
+                transitionGuards.toArray(new Guard[transitionGuards.size()][]),
+                TransitionListeners.compose(listeners), recorder);
+    }
+
     private void printTransitionsForState(State state, StringBuilder sb) {
         String NEWLINE = "\n";
         sb.append("<Transitions>").append(NEWLINE);
 
-        if (state.getExitStateController() != null)
+        TransitionTable compiled = table;
+        ExitStateController exitController = compiled == null ? state.getExitStateController() : compiled
+                .getExitStateController(state.getId());
+        EnterStateController enterController = compiled == null ? state.getEnterStateController() : compiled
+                .getEnterStateController(state.getId());
+
+        if (exitController != null)
             sb.append("<ExitState state=\"").append(state.getName()).append("\" />").append(NEWLINE);
 
         HashMap<String, TransitionTarget> txs = state.getTransitions();
         for (String event : txs.keySet()) {
-            TransitionTarget target = txs.get(event);
-            sb.append("<Transition ").append("source=\"").append(state.getName()).append("\" ").append("event=\"")
-                    .append(event).append("\" ").append("target=\"").append(target.getState()).append("\"")
-                    .append(" />").append(NEWLINE);
+            for (TransitionTarget target = txs.get(event); target != null; target = target.getNext()) {
+                sb.append("<Transition ").append("source=\"").append(state.getName()).append("\" ")
+                        .append("event=\"").append(event).append("\" ").append("target=\"")
+                        .append(target.getState()).append("\"");
+                if (target.getGuard() != null)
+                    sb.append(" guarded=\"true\"");
+                sb.append(" />").append(NEWLINE);
+            }
         }
 
-        if (state.getEnterStateController() != null)
+        for (ChoiceBranch branch : state.getBranches()) {
+            sb.append("<Choice ").append("source=\"").append(state.getName()).append("\" ").append("target=\"")
+                    .append(branch.getState()).append("\"");
+            if (branch.getGuard() == null)
+                sb.append(" otherwise=\"true\"");
+            sb.append(" />").append(NEWLINE);
+        }
+
+        if (enterController != null)
             sb.append("<EnterState state=\"").append(state.getName()).append("\" />");
 
         sb.append("</Transitions>").append(NEWLINE);
@@ -372,6 +849,8 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         for (State state : states.values()) {
             if (state.isFinal()) {
                 sb.append("<FinalState>").append(state).append("</FinalState>").append(NEWLINE);
+            } else if (state.isChoice()) {
+                sb.append("<ChoiceState>").append(state).append("</ChoiceState>").append(NEWLINE);
             } else {
                 sb.append("<State>").append(state).append("</State>").append(NEWLINE);
             }
@@ -380,7 +859,7 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         sb.append("</States>").append(NEWLINE);
 
         sb.append("<Events>").append(NEWLINE);
-        for (String event : events) {
+        for (String event : events.keySet()) {
             sb.append("<Event>").append(event).append("</Event>").append(NEWLINE);
         }
         sb.append("</Events>").append(NEWLINE);
@@ -408,14 +887,91 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         return sb.toString();
     }
 
+    /**
+     * Placeholders for annotated controllers until the definition is bound to an
+     * instance of the annotated class
+     */
+    private static class UnboundTransitionController implements TransitionController {
+        private final MethodHandle factory;
+
+        UnboundTransitionController(MethodHandle factory) {
+            this.factory = factory;
+        }
+
+        public void execute(TransitionInfo event) {
+            throw new IllegalStateException("Controller not bound to any instance");
+        }
+    }
+
+    private static class UnboundExitStateController implements ExitStateController {
+        private final MethodHandle factory;
+
+        UnboundExitStateController(MethodHandle factory) {
+            this.factory = factory;
+        }
+
+        public Boolean execute(TransitionInfo event) {
+            throw new IllegalStateException("Controller not bound to any instance");
+        }
+    }
+
+    private static class UnboundEnterStateController implements EnterStateController {
+        private final MethodHandle factory;
+
+        UnboundEnterStateController(MethodHandle factory) {
+            this.factory = factory;
+        }
+
+        public EventInfo execute(TransitionInfo event) {
+            throw new IllegalStateException("Controller not bound to any instance");
+        }
+    }
+
+    private static class UnboundGuard implements Guard {
+        private final MethodHandle factory;
+
+        UnboundGuard(MethodHandle factory) {
+            this.factory = factory;
+        }
+
+        public boolean evaluate(TransitionInfo event) {
+            throw new IllegalStateException("Guard not bound to any instance");
+        }
+    }
+
+    private class ChoiceBranch {
+        private final Guard guard;
+        private final String state;
+
+        public ChoiceBranch(Guard guard, String state) {
+            this.guard = guard;
+            this.state = state;
+        }
+
+        public Guard getGuard() {
+            return guard;
+        }
+
+        public String getState() {
+            return state;
+        }
+    }
+
+    /**
+     * A transition, linked to the next one to be evaluated for the same source
+     * state and event
+     */
     private class TransitionTarget {
         private String state;
         private TransitionController transitionController;
+        private Guard guard;
+        private TransitionTarget next;
 
-        public TransitionTarget(String state, TransitionController transitionController) {
+        public TransitionTarget(String state, TransitionController transitionController, Guard guard) {
             super();
             this.state = state;
             this.transitionController = transitionController;
+            this.guard = guard;
         }
 
         public String getState() {
@@ -425,6 +981,14 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
         public TransitionController getTransitionController() {
             return transitionController;
         }
+
+        public Guard getGuard() {
+            return guard;
+        }
+
+        public TransitionTarget getNext() {
+            return next;
+        }
     }
 
     /**
@@ -433,15 +997,22 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
      */
     private class State {
         private String name;
+        private int id;
         private boolean isStart;
         private boolean isFinal;
+        private boolean isChoice;
         private EnterStateController enterStateController;
         private ExitStateController exitStateController;
 
         private HashMap<String, TransitionTarget> transitions;
 
-        public State(String name, boolean isStart, boolean isFinal) {
+        // Only for choice states, the default branch is kept apart
+        private ArrayList<ChoiceBranch> branches;
+        private ChoiceBranch otherwise;
+
+        public State(String name, int id, boolean isStart, boolean isFinal) {
             this.name = name;
+            this.id = id;
             this.isStart = isStart;
             this.isFinal = isFinal;
             this.transitions = new HashMap<String, TransitionTarget>();
@@ -451,6 +1022,10 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
             return this.name;
         }
 
+        public int getId() {
+            return this.id;
+        }
+
         public boolean isStart() {
             return this.isStart;
         }
@@ -459,6 +1034,37 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
             return this.isFinal;
         }
 
+        public boolean isChoice() {
+            return this.isChoice;
+        }
+
+        public void addBranch(Guard guard, String target) {
+            ChoiceBranch branch = new ChoiceBranch(guard, target);
+            if (guard == null) {
+                otherwise = branch;
+            } else {
+                if (branches == null)
+                    branches = new ArrayList<ChoiceBranch>();
+                branches.add(branch);
+            }
+        }
+
+        public ChoiceBranch getOtherwise() {
+            return otherwise;
+        }
+
+        /**
+         * Returns the branches in evaluation order, the default one last
+         */
+        public List<ChoiceBranch> getBranches() {
+            List<ChoiceBranch> result = new ArrayList<ChoiceBranch>();
+            if (branches != null)
+                result.addAll(branches);
+            if (otherwise != null)
+                result.add(otherwise);
+            return result;
+        }
+
         public void setEnterStateController(EnterStateController enterStateController) {
             this.enterStateController = enterStateController;
         }
@@ -475,9 +1081,31 @@ public class StateMachineDefinitionImpl implements StateMachineDefinition {
             this.exitStateController = exitStateController;
         }
 
-        public void setTransitionController(String event, String target, TransitionController controller) {
-            if (!transitions.containsKey(event))
-                transitions.put(event, new TransitionTarget(target, controller));
+        /**
+         * Adds the transition after the guarded ones for the event, so the
+         * transition without guard is always the last one
+         */
+        public void addTransition(String event, TransitionTarget added) {
+            TransitionTarget head = transitions.get(event);
+            if (head == null || (added.getGuard() != null && head.getGuard() == null)) {
+                added.next = head;
+                transitions.put(event, added);
+                return;
+            }
+
+            TransitionTarget last = head;
+            while (last.next != null && (added.getGuard() == null || last.next.getGuard() != null))
+                last = last.next;
+            added.next = last.next;
+            last.next = added;
+        }
+
+        public boolean hasDefaultTransition(String event) {
+            for (TransitionTarget target = transitions.get(event); target != null; target = target.getNext()) {
+                if (target.getGuard() == null)
+                    return true;
+            }
+            return false;
         }
 
         public TransitionController getTransitionController(String event) {
@@ -15,32 +15,69 @@
  */
 package shisha.statemachine;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import shisha.statemachine.exceptions.StartStateNotDefinedException;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
 import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.metrics.StateMachineMetrics;
 
 /**
  * Basic state machine implementation. Implements a non-reentrant transition
  * strategy
  */
 public class StateMachineImpl implements StateMachine {
-    protected Logger l = LoggerFactory.getLogger(getClass());
+    protected static Logger l = LoggerFactory.getLogger(StateMachineImpl.class);
+
+    // The state word holds the ordinal of the current state, the flags below
+    // and, in its upper half, the version: the number of state changes
+    private static final long STATE_MASK = (1 << 29) - 1;
+    private static final long VERSION = 1L << 32;
+
+    /** Set in the state while the strategy runs a transition and its redirections */
+    private static final long IN_TRANSITION = 1 << 29;
+
+    /**
+     * Set in the state while a {@link shisha.statemachine.strategy.LockFreeStrategy}
+     * runs a transition holding its lock, so the state is not changed without it
+     */
+    private static final long LOCKED = 1 << 30;
 
-    protected String currentState;
+    private static final AtomicLongFieldUpdater<StateMachineImpl> STATE =
+            AtomicLongFieldUpdater.newUpdater(StateMachineImpl.class, "currentState");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<StateMachineImpl, ConcurrentLinkedQueue> WAITERS =
+            AtomicReferenceFieldUpdater.newUpdater(StateMachineImpl.class, ConcurrentLinkedQueue.class, "waiters");
+
+    protected volatile long currentState;
+    // Threads in awaitState, created by the first one
+    private volatile ConcurrentLinkedQueue<Thread> waiters;
     protected StateMachineDefinition definition;
+    protected TransitionTable table;
     protected StateMachineStrategy strategy;
 
     public StateMachineImpl(StateMachineDefinition definition, StateMachineStrategy strategy)
-            throws StartStateNotDefinedException {
+            throws StateMachineDefinitionException {
         this.definition = definition;
         this.strategy = strategy;
-        this.currentState = definition.getStartState();
 
-        if (currentState == null)
+        if (definition.getStartState() == null)
             throw new StartStateNotDefinedException("Start state has not been defined for the state machine");
+
+        this.table = StateMachineDefinitionImpl.freeze(definition);
+        this.currentState = table.getStartState();
+        if (table.getMetrics() != null)
+            table.getMetrics().created(table.getStartState());
     }
 
     /**
@@ -56,6 +93,53 @@ public class StateMachineImpl implements StateMachine {
         strategy.processEvent(this, event, object);
     }
 
+    public void processEvent(int event, Object object) throws StateMachineExecutionException,
+            StateMachineDefinitionException {
+        strategy.processEvent(this, event, object);
+    }
+
+    public ProcessResult tryProcessEvent(String event, Object object) {
+        int eventId = getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            return ProcessResult.UNKNOWN_EVENT;
+
+        return strategy.tryProcessEvent(this, eventId, object);
+    }
+
+    public ProcessResult tryProcessEvent(int event, Object object) {
+        return strategy.tryProcessEvent(this, event, object);
+    }
+
+    public CompletionStage<ProcessResult> processEventAsync(String event, Object object) {
+        int eventId = getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        return strategy.processEventAsync(this, eventId, object);
+    }
+
+    public CompletionStage<ProcessResult> processEventAsync(int event, Object object) {
+        return strategy.processEventAsync(this, event, object);
+    }
+
+    public ProcessResult[] processEvents(List<EventInfo> events, boolean stopOnFailure) {
+        return processEvents(events.toArray(new EventInfo[events.size()]), 0, events.size(), stopOnFailure);
+    }
+
+    public ProcessResult[] processEvents(EventInfo[] events, int offset, int length, boolean stopOnFailure) {
+        checkRange(events, offset, length);
+        return strategy.processEvents(this, events, offset, length, stopOnFailure);
+    }
+
+    /**
+     * Checks the range of a batch before any of its events is processed
+     */
+    static void checkRange(EventInfo[] events, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > events.length - length)
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + offset + " + " + length
+                    + ") out of bounds for length " + events.length);
+    }
+
     public StateMachineDefinition getDefinition() {
         return this.definition;
     }
@@ -64,13 +148,197 @@ public class StateMachineImpl implements StateMachine {
         return this.strategy;
     }
 
+    /**
+     * Returns the compiled table of the definition the strategies dispatch through
+     */
+    public TransitionTable getTransitionTable() {
+        return this.table;
+    }
+
+    /**
+     * Returns the metrics shared by the state machines of the definition, or
+     * null if it did not enable them
+     */
+    public StateMachineMetrics getMetrics() {
+        return table.getMetrics();
+    }
+
     public String getCurrentState() {
-        return currentState;
+        return table.getStateName(getCurrentStateId());
+    }
+
+    /**
+     * Returns the ordinal of the current state in the {@link TransitionTable}
+     */
+    public int getCurrentStateId() {
+        return (int) (currentState & STATE_MASK);
+    }
+
+    /**
+     * Returns the number of state changes. Together with the state, it tells
+     * readers whether the machine moved between two reads.
+     */
+    public long getVersion() {
+        return currentState >>> 32;
+    }
+
+    /**
+     * Whether the strategy is running a transition. The current state may be
+     * the source or the target of the transition meanwhile.
+     */
+    public boolean isInTransition() {
+        return (currentState & IN_TRANSITION) != 0;
+    }
+
+    /**
+     * Returns the current state, its version and whether a transition is
+     * running, read at once without locking, so readers never wait for the
+     * transitions nor slow them down
+     */
+    public StateSnapshot getSnapshot() {
+        long state = currentState;
+        int id = (int) (state & STATE_MASK);
+        return new StateSnapshot(id, table.getStateName(id), state >>> 32, (state & IN_TRANSITION) != 0);
+    }
+
+    /**
+     * Waits until the machine is in the state and not in transition, or the
+     * timeout expires. The thread is parked meanwhile and woken up by the
+     * state changes. Returns false if the timeout expired.
+     */
+    public boolean awaitState(String state, long timeout, TimeUnit unit) throws InterruptedException {
+        int id = table.getStateId(state);
+        if (id == TransitionTable.UNDEFINED)
+            throw new IllegalArgumentException("State " + state + " does not exist");
+        if (isSettledIn(id))
+            return true;
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread thread = Thread.currentThread();
+        ConcurrentLinkedQueue<Thread> queue = waiters();
+        queue.add(thread);
+        try {
+            // Checked after queueing, so no state change goes unnoticed
+            while (!isSettledIn(id)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return true;
+        } finally {
+            queue.remove(thread);
+        }
+    }
+
+    private boolean isSettledIn(int id) {
+        return (currentState & (STATE_MASK | IN_TRANSITION)) == id;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentLinkedQueue<Thread> waiters() {
+        ConcurrentLinkedQueue<Thread> queue = waiters;
+        if (queue == null) {
+            WAITERS.compareAndSet(this, null, new ConcurrentLinkedQueue<Thread>());
+            queue = waiters;
+        }
+        return queue;
+    }
+
+    private void signal() {
+        ConcurrentLinkedQueue<Thread> queue = waiters;
+        if (queue != null && !queue.isEmpty()) {
+            for (Thread thread : queue)
+                LockSupport.unpark(thread);
+        }
     }
 
     public void setCurrentState(String currentState) {
-        l.debug("#setCurrentState: " + currentState);
-        this.currentState = currentState;
+        int id = table.getStateId(currentState);
+        if (id == TransitionTable.UNDEFINED)
+            throw new IllegalArgumentException("State " + currentState + " does not exist");
+
+        setCurrentStateId(id);
+    }
+
+    /**
+     * Only the thread running the transitions may call it
+     */
+    public void setCurrentStateId(int currentState) {
+        if (l.isDebugEnabled())
+            l.debug("#setCurrentState: " + table.getStateName(currentState));
+        long previous = this.currentState;
+        this.currentState = ((previous & ~STATE_MASK) + VERSION) | currentState;
+        moved((int) (previous & STATE_MASK), currentState);
+        signal();
+    }
+
+    /**
+     * Atomically sets the current state if it is <code>expect</code>, no
+     * transition is running and the state is not locked with
+     * {@link #lockState()}. It may also fail if the state changes and comes
+     * back to <code>expect</code> meanwhile.
+     */
+    public boolean compareAndSetCurrentStateId(int expect, int update) {
+        long state = currentState;
+        if ((state & (STATE_MASK | IN_TRANSITION | LOCKED)) != expect)
+            return false;
+        if (!STATE.compareAndSet(this, state, ((state & ~STATE_MASK) + VERSION) | update))
+            return false;
+        moved(expect, update);
+        signal();
+        return true;
+    }
+
+    private void moved(int from, int to) {
+        StateMachineMetrics metrics = table.getMetrics();
+        if (metrics != null)
+            metrics.moved(from, to);
+    }
+
+    /**
+     * Makes {@link #compareAndSetCurrentStateId(int, int)} fail until
+     * {@link #unlockState()} is called. Returns false if the state was already
+     * locked. Only the threads holding the lock of the strategy may call it.
+     */
+    public boolean lockState() {
+        for (;;) {
+            long state = currentState;
+            if ((state & LOCKED) != 0)
+                return false;
+            if (STATE.compareAndSet(this, state, state | LOCKED))
+                return true;
+        }
+    }
+
+    public void unlockState() {
+        currentState &= ~LOCKED;
+    }
+
+    public boolean isStateLocked() {
+        return (currentState & LOCKED) != 0;
+    }
+
+    /**
+     * Marks the machine in transition until {@link #endTransition()}. Returns
+     * false if it already was, for the transitions sent from a controller.
+     * Only the thread running the transitions may call it.
+     */
+    public boolean beginTransition() {
+        long state = currentState;
+        if ((state & IN_TRANSITION) != 0)
+            return false;
+        // Readers may see it late, as long as they see it before the state
+        // changes
+        STATE.lazySet(this, state | IN_TRANSITION);
+        return true;
+    }
+
+    public void endTransition() {
+        currentState &= ~IN_TRANSITION;
+        signal();
     }
 
     /**
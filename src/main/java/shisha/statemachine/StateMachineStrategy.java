@@ -15,9 +15,14 @@
  */ 
 package shisha.statemachine;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 import shisha.statemachine.exceptions.EventNotDefinedException;
 import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
 import shisha.statemachine.exceptions.StateMachineExecutionException;
 import shisha.statemachine.exceptions.TransitionNotDefinedException;
 
@@ -47,4 +52,100 @@ public interface StateMachineStrategy {
                              String event,
                              Object object)
         throws StateMachineExecutionException, StateMachineDefinitionException;
+
+    /**
+     * Same as {@link #processEvent(StateMachineImpl, String, Object)} but the event
+     * is identified by its id in the {@link TransitionTable}. By default, its
+     * name is looked up in the table.
+     */
+    public default void processEvent(StateMachineImpl statemachine,
+                                     int event,
+                                     Object object)
+        throws StateMachineExecutionException, StateMachineDefinitionException
+    {
+        TransitionTable table = statemachine.getTransitionTable();
+        if (event < 0 || event >= table.getEventCount())
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        processEvent(statemachine, table.getEventName(event), object);
+    }
+
+    /**
+     * Same as {@link #processEvent(StateMachineImpl, int, Object)}, but events
+     * that do not apply are reported with the result instead of an exception.
+     * Exceptions thrown by the controllers are propagated.
+     *
+     * <p>
+     * By default, the exceptions of
+     * {@link #processEvent(StateMachineImpl, String, Object)} are mapped to
+     * their result. It cannot tell the events cancelled by the exit phase,
+     * which are reported as {@link ProcessResult#APPLIED}.
+     */
+    public default ProcessResult tryProcessEvent(StateMachineImpl statemachine,
+                                                 int event,
+                                                 Object object)
+    {
+        TransitionTable table = statemachine.getTransitionTable();
+        if (event < 0 || event >= table.getEventCount())
+            return ProcessResult.UNKNOWN_EVENT;
+
+        try {
+            processEvent(statemachine, table.getEventName(event), object);
+            return ProcessResult.APPLIED;
+        } catch (StateMachineException e) {
+            return ProcessResult.of(e);
+        }
+    }
+
+    /**
+     * Processes the event and returns a stage completed with its result, or
+     * exceptionally with the exception thrown by a controller. Strategies
+     * processing events in the calling thread return a completed stage, as
+     * the default does.
+     */
+    public default CompletionStage<ProcessResult> processEventAsync(StateMachineImpl statemachine,
+                                                                    int event,
+                                                                    Object object)
+    {
+        CompletableFuture<ProcessResult> result = new CompletableFuture<ProcessResult>();
+        try {
+            result.complete(tryProcessEvent(statemachine, event, object));
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Processes <code>length</code> events starting at <code>offset</code>, in
+     * order, as {@link #tryProcessEvent(StateMachineImpl, int, Object)} does,
+     * but locking the state machine once for all of them. Returns the result
+     * of each event. When <code>stopOnFailure</code> is set, the events after
+     * the first {@link ProcessResult#isFailure() failure} are
+     * {@link ProcessResult#SKIPPED}. Exceptions thrown by the controllers are
+     * propagated, and the events before them remain applied.
+     *
+     * <p>
+     * By default, the events are processed one by one.
+     */
+    public default ProcessResult[] processEvents(StateMachineImpl statemachine,
+                                                 EventInfo[] events,
+                                                 int offset,
+                                                 int length,
+                                                 boolean stopOnFailure)
+    {
+        ProcessResult[] results = new ProcessResult[length];
+        TransitionTable table = statemachine.getTransitionTable();
+        for (int i = 0; i < length; i++) {
+            EventInfo event = events[offset + i];
+            int eventId = table.getEventId(event.getEvent());
+            results[i] = eventId == TransitionTable.UNDEFINED ? ProcessResult.UNKNOWN_EVENT
+                    : tryProcessEvent(statemachine, eventId, event.getObject());
+            if (stopOnFailure && results[i].isFailure()) {
+                Arrays.fill(results, i + 1, length, ProcessResult.SKIPPED);
+                break;
+            }
+        }
+        return results;
+    }
 }
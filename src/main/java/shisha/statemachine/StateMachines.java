@@ -20,10 +20,19 @@ import static org.slf4j.LoggerFactory.getLogger;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.slf4j.Logger;
 
 import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.Choice;
+import shisha.statemachine.annotations.ChoiceState;
 import shisha.statemachine.annotations.EnterState;
 import shisha.statemachine.annotations.Event;
 import shisha.statemachine.annotations.ExitState;
@@ -36,8 +45,11 @@ import shisha.statemachine.exceptions.IllegalEventAnnotationException;
 import shisha.statemachine.exceptions.IllegalStateAnnotationException;
 import shisha.statemachine.exceptions.IllegalTransitionAnnotationException;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.strategy.AsyncStrategy;
+import shisha.statemachine.strategy.LockFreeStrategy;
 import shisha.statemachine.strategy.NonReentrantStrategy;
 import shisha.statemachine.strategy.ReentrantStrategy;
+import shisha.statemachine.strategy.StripedStrategy;
 
 /**
  * Helper class for creating state machines from a state machine definition or
@@ -49,6 +61,34 @@ import shisha.statemachine.strategy.ReentrantStrategy;
 public class StateMachines {
     protected static Logger l = getLogger(StateMachines.class);
 
+    // Strategies shared by the machines created with newStriped
+    private static final Map<StateMachineDefinition, StripedStrategy> stripedStrategies =
+            new WeakHashMap<StateMachineDefinition, StripedStrategy>();
+
+    /**
+     * Definition factory for every annotated class. Factories generated at build
+     * time by the annotation processor are used if present, otherwise the class
+     * is parsed using reflection once and its definition is cached.
+     */
+    private static final ClassValue<StateMachineDefinitionFactory<Object>> factories =
+            new ClassValue<StateMachineDefinitionFactory<Object>>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        protected StateMachineDefinitionFactory<Object> computeValue(Class<?> type) {
+            String name = type.getName() + StateMachineDefinitionFactory.GENERATED_SUFFIX;
+            try {
+                Class<?> factory = Class.forName(name, true, type.getClassLoader());
+                l.debug("#computeValue: using generated factory " + name);
+                return (StateMachineDefinitionFactory<Object>) factory.getConstructor().newInstance();
+            } catch (ClassNotFoundException e) {
+                return new AnnotatedDefinitionFactory(type);
+            } catch (ReflectiveOperationException e) {
+                l.warn("#computeValue: cannot instantiate generated factory " + name + ". Using reflection", e);
+                return new AnnotatedDefinitionFactory(type);
+            }
+        }
+    };
+
     public static StateMachine newReentrant(StateMachineDefinition definition) throws StateMachineDefinitionException {
         return new StateMachineImpl(definition, new ReentrantStrategy());
     }
@@ -65,6 +105,81 @@ public class StateMachines {
         return new StateMachineImpl(processAnnotatedController(instance), new NonReentrantStrategy());
     }
 
+    /**
+     * Creates a state machine with a {@link LockFreeStrategy}, for definitions
+     * whose transitions are mostly without controllers
+     */
+    public static StateMachine newLockFree(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        return new StateMachineImpl(definition, new LockFreeStrategy());
+    }
+
+    /**
+     * Creates a state machine sharing a {@link StripedStrategy} with every
+     * other machine created this way from the same definition, so they do
+     * not need a lock each. Meant to be called for many machines.
+     */
+    public static StateMachine newStriped(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        StripedStrategy strategy;
+        synchronized (stripedStrategies) {
+            strategy = stripedStrategies.get(definition);
+            if (strategy == null) {
+                strategy = new StripedStrategy();
+                stripedStrategies.put(definition, strategy);
+            }
+        }
+        return new StateMachineImpl(definition, strategy);
+    }
+
+    /**
+     * Creates a state machine with an {@link AsyncStrategy} on the default
+     * executor: events are processed one at a time on a virtual thread when
+     * the runtime supports them
+     */
+    public static StateMachine newAsync(StateMachineDefinition definition) throws StateMachineDefinitionException {
+        return new StateMachineImpl(definition, new AsyncStrategy());
+    }
+
+    /**
+     * Creates a {@link CompactStateMachine}: the definition is shared and the
+     * machine only keeps its current state. Meant to be called for many
+     * machines with the same definition.
+     */
+    public static CompactStateMachine newCompact(StateMachineDefinition definition)
+            throws StateMachineDefinitionException {
+        return new CompactStateMachine(definition);
+    }
+
+    /**
+     * Creates a {@link StateMachineArray} able to drive <code>capacity</code>
+     * entities with the definition
+     */
+    public static StateMachineArray newArray(StateMachineDefinition definition, int capacity)
+            throws StateMachineDefinitionException {
+        return new StateMachineArray(definition, capacity);
+    }
+
+    public static <S extends Enum<S>, E extends Enum<E>> EnumStateMachine<S, E> newReentrant(
+            StateMachineDefinition definition, Class<S> stateType, Class<E> eventType)
+            throws StateMachineDefinitionException {
+        return new EnumStateMachine<S, E>(newReentrant(definition), stateType, eventType);
+    }
+
+    public static <S extends Enum<S>, E extends Enum<E>> EnumStateMachine<S, E> newReentrant(Object instance,
+            Class<S> stateType, Class<E> eventType) throws StateMachineDefinitionException {
+        return new EnumStateMachine<S, E>(newReentrant(instance), stateType, eventType);
+    }
+
+    public static <S extends Enum<S>, E extends Enum<E>> EnumStateMachine<S, E> newNonReentrant(
+            StateMachineDefinition definition, Class<S> stateType, Class<E> eventType)
+            throws StateMachineDefinitionException {
+        return new EnumStateMachine<S, E>(newNonReentrant(definition), stateType, eventType);
+    }
+
+    public static <S extends Enum<S>, E extends Enum<E>> EnumStateMachine<S, E> newNonReentrant(Object instance,
+            Class<S> stateType, Class<E> eventType) throws StateMachineDefinitionException {
+        return new EnumStateMachine<S, E>(newNonReentrant(instance), stateType, eventType);
+    }
+
     static void checkClassAnnotation(StateMachineDefinition definition, Object instance)
             throws StateMachineDefinitionException {
         Class<?> clazz = instance.getClass();
@@ -84,30 +199,69 @@ public class StateMachines {
             if (field.isAnnotationPresent(State.class))
                 checkStateAnnotation(instance, stateMachineDefinition, field, field.getAnnotation(State.class));
 
+            if (field.isAnnotationPresent(ChoiceState.class))
+                checkChoiceStateAnnotation(instance, stateMachineDefinition, field);
+
             if (field.isAnnotationPresent(Event.class))
                 checkEventAnnotation(instance, stateMachineDefinition, field, field.getAnnotation(Event.class));
         }
 
+        // Default branches, once all the states they may go to are defined
+        for (Field field : clazz.getDeclaredFields()) {
+            ChoiceState ann = field.getAnnotation(ChoiceState.class);
+            if (ann != null && ann.otherwise().length() > 0) {
+                try {
+                    stateMachineDefinition.defineChoice(getSymbolName(field, instance), null, ann.otherwise());
+                } catch (IllegalAccessException e) {
+                    l.error("Error. This should never happen as we have checked the conditions before using"
+                            + " reflection", e);
+                }
+            }
+        }
+
         return stateMachineDefinition;
     }
 
     static private StateMachineDefinition processAnnotatedController(Object instance)
             throws StateMachineDefinitionException {
-        StateMachineDefinitionImpl stateMachineDefinition = new StateMachineDefinitionImpl();
-
-        checkClassAnnotation(stateMachineDefinition, instance);
-        checkFieldAnnotations(stateMachineDefinition, instance);
-        checkTransitionAnnotations(stateMachineDefinition, instance);
+        checkClassAnnotation(null, instance);
+        StateMachineDefinition definition = factories.get(instance.getClass()).newDefinition(instance);
+        if (definition instanceof StateMachineDefinitionImpl
+                && !((StateMachineDefinitionImpl) definition).isFrozen())
+            configure((StateMachineDefinitionImpl) definition, instance.getClass());
+        return definition;
+    }
 
-        return stateMachineDefinition;
+    /**
+     * Names the definition of the annotated class and enables its metrics, as
+     * requested by {@link shisha.statemachine.annotations.AStateMachine}
+     */
+    static void configure(StateMachineDefinitionImpl definition, Class<?> type) {
+        shisha.statemachine.annotations.AStateMachine ann =
+                type.getAnnotation(shisha.statemachine.annotations.AStateMachine.class);
+        definition.setName(ann.name().isEmpty() ? type.getName() : ann.name());
+        if (ann.metrics())
+            definition.enableMetrics(ann.samplingPeriod());
     }
 
     static void checkTransitionAnnotations(StateMachineDefinitionImpl definition, Object instance)
             throws StateMachineDefinitionException {
         // Let's process the transitions
         Class<?> clazz = instance.getClass();
-        for (Method method : clazz.getMethods()) {
-            if (method.isAnnotationPresent(Transitions.class)) {
+        List<Method> choices = new ArrayList<Method>();
+
+        // Guarded transitions are evaluated in definition order, so methods are
+        // processed by name rather than in no particular order
+        Method[] methods = clazz.getMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            public int compare(Method m1, Method m2) {
+                return m1.getName().compareTo(m2.getName());
+            }
+        });
+        for (Method method : methods) {
+            if (method.isAnnotationPresent(Choice.class)) {
+                choices.add(method);
+            } else if (method.isAnnotationPresent(Transitions.class)) {
                 Transitions transitions = method.getAnnotation(Transitions.class);
                 for (Transition transition : transitions.value())
                     checkTransitionAnnotation(instance, definition, method, transition);
@@ -119,6 +273,17 @@ public class StateMachines {
                 checkExitStateAnnotation(instance, definition, method, method.getAnnotation(ExitState.class));
             }
         }
+
+        // The sort is stable, so ties stay sorted by name
+        Collections.sort(choices, new Comparator<Method>() {
+            public int compare(Method m1, Method m2) {
+                int o1 = m1.getAnnotation(Choice.class).order();
+                int o2 = m2.getAnnotation(Choice.class).order();
+                return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+            }
+        });
+        for (Method method : choices)
+            checkChoiceAnnotation(instance, definition, method, method.getAnnotation(Choice.class));
     }
 
     static void checkGenericTransitionHasTheRightParameters(Method method) throws IllegalTransitionAnnotationException {
@@ -139,7 +304,7 @@ public class StateMachines {
             throw new IllegalTransitionAnnotationException("Transition for method " + method.getName()
                     + " is not well defined. Enter phase must return a EventInfo");
 
-        definition.defineEnterState(ann, method, instance);
+        definition.defineEnterState(ann, method);
     }
 
     static void checkExitStateAnnotation(Object instance, StateMachineDefinitionImpl definition, Method method,
@@ -152,7 +317,7 @@ public class StateMachines {
             throw new IllegalTransitionAnnotationException("Transition for method " + method.getName()
                     + " is not well defined. Exit phase must return a boolean");
         
-        definition.defineExitState(ann, method, instance);
+        definition.defineExitState(ann, method);
     }
 
     static private void checkStateAnnotation(Object instance, StateMachineDefinitionImpl definition, Field field,
@@ -162,13 +327,37 @@ public class StateMachines {
                     + " must be declared as public static final");
 
         try {
-            String stateName = (String) field.get(instance);
+            String stateName = getSymbolName(field, instance);
             definition.defineState(stateName, ann.isStart(), ann.isFinal());
         } catch (IllegalAccessException e) {
             l.error("Error. This should never happen as we have checked the conditions before using reflection", e);
         }
     }
 
+    static private void checkChoiceStateAnnotation(Object instance, StateMachineDefinitionImpl definition,
+            Field field) throws IllegalStateAnnotationException, StateMachineDefinitionException {
+        if (!isStringAndFinal(field) || field.isAnnotationPresent(State.class))
+            throw new IllegalStateAnnotationException("@ChoiceState " + field.getName()
+                    + " must be declared as public static final and cannot be a @State");
+
+        try {
+            definition.defineChoiceState(getSymbolName(field, instance));
+        } catch (IllegalAccessException e) {
+            l.error("Error. This should never happen as we have checked the conditions before using reflection", e);
+        }
+    }
+
+    static void checkChoiceAnnotation(Object instance, StateMachineDefinitionImpl definition, Method method,
+            Choice ann) throws StateMachineDefinitionException {
+        checkGenericTransitionHasTheRightParameters(method);
+        Class<?> resultType = method.getReturnType();
+        if (!resultType.equals(boolean.class) && !resultType.equals(Boolean.class))
+            throw new IllegalTransitionAnnotationException("Choice for method " + method.getName()
+                    + " is not well defined. It must return a boolean");
+
+        definition.defineChoice(ann, method);
+    }
+
     static private void checkEventAnnotation(Object instance, StateMachineDefinitionImpl definition, Field field,
             Event ann) throws IllegalEventAnnotationException {
         if (!isStringAndFinal(field))
@@ -176,7 +365,7 @@ public class StateMachines {
                     + " must be declared as public static final");
 
         try {
-            String eventName = (String) field.get(instance);
+            String eventName = getSymbolName(field, instance);
             definition.defineEvent(eventName);
         } catch (IllegalAccessException e) {
             l.error("ERROR. This should never happen as we have checked the conditions before using reflection", e);
@@ -192,17 +381,45 @@ public class StateMachines {
             Method method, Transition ann) throws StateMachineDefinitionException, IllegalTransitionAnnotationException {
         // First of all, we check the parameters
         checkGenericTransitionHasTheRightParameters(method);
-        stateMachineDefinition.defineTransition(ann, method, instance);
+        if (ann.guard().length() == 0) {
+            stateMachineDefinition.defineTransition(ann, method);
+            return;
+        }
+
+        Method guard;
+        try {
+            guard = instance.getClass().getMethod(ann.guard(), TransitionInfo.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalTransitionAnnotationException("Guard " + ann.guard() + " of method "
+                    + method.getName() + " must be a public method with one and only TransitionEvent parameter");
+        }
+        if (!guard.getReturnType().equals(boolean.class) && !guard.getReturnType().equals(Boolean.class))
+            throw new IllegalTransitionAnnotationException("Guard " + ann.guard() + " of method "
+                    + method.getName() + " must return a boolean");
+
+        stateMachineDefinition.defineTransition(ann, method, guard);
     }
 
     /**
-     * We check that the annotated field is a public final String type
+     * We check that the annotated field is a public final String or enum type
      * 
      * @return true if it conforms the condition, false otherwise.
      */
     static private boolean isStringAndFinal(Field field) {
-        return (field.getType().equals(String.class) && Modifier.isFinal(field.getModifiers()) && Modifier
-                .isPublic(field.getModifiers()));
+        return ((field.getType().equals(String.class) || field.getType().isEnum())
+                && Modifier.isFinal(field.getModifiers()) && Modifier.isPublic(field.getModifiers()));
+    }
+
+    /**
+     * The name of a state or event is the value of the field, or the name of
+     * the constant for enum typed fields
+     */
+    static private String getSymbolName(Field field, Object instance) throws IllegalAccessException {
+        Object value = field.get(instance);
+        if (value instanceof Enum<?>)
+            return ((Enum<?>) value).name();
+
+        return (String) value;
     }
 
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * The state of a {@link StateMachineImpl} at a point in time, see
+ * {@link StateMachineImpl#getSnapshot()}. The version grows with every state
+ * change, so two snapshots with the same version saw the same state.
+ */
+public final class StateSnapshot {
+    private final int stateId;
+    private final String state;
+    private final long version;
+    private final boolean inTransition;
+
+    StateSnapshot(int stateId, String state, long version, boolean inTransition) {
+        this.stateId = stateId;
+        this.state = state;
+        this.version = version;
+        this.inTransition = inTransition;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public int getStateId() {
+        return stateId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Whether a transition was running. The state may be its source or its
+     * target.
+     */
+    public boolean isInTransition() {
+        return inTransition;
+    }
+
+    public String toString() {
+        return state + " v" + version + (inTransition ? " (in transition)" : "");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size storage for the current state of the entities of a
+ * {@link StateMachineArray}, indexed by slot. States are stored as their
+ * ordinal in the {@link TransitionTable}, and {@link #FREE} marks the slots not
+ * allocated to any entity.
+ *
+ * <p>
+ * Stores are not thread-safe. The {@link StateMachineArray} guarantees that a
+ * slot is only written by one thread at a time.
+ */
+public abstract class StateStore {
+    /** Value of the slots not allocated to any entity */
+    public static final int FREE = -1;
+
+    /**
+     * Returns a heap store of <code>capacity</code> slots, all of them free, using
+     * the narrowest primitive array able to hold <code>stateCount</code> states
+     */
+    public static StateStore newArrayStore(int stateCount, int capacity) {
+        if (stateCount <= Byte.MAX_VALUE)
+            return new ByteStore(capacity);
+        if (stateCount <= Short.MAX_VALUE)
+            return new ShortStore(capacity);
+        return new IntStore(capacity);
+    }
+
+    public abstract int capacity();
+
+    /**
+     * Returns the state ordinal of the slot or {@link #FREE}
+     */
+    public abstract int get(int slot);
+
+    public abstract void set(int slot, int state);
+
+    private static final class ByteStore extends StateStore {
+        private final byte[] states;
+
+        ByteStore(int capacity) {
+            states = new byte[capacity];
+            Arrays.fill(states, (byte) FREE);
+        }
+
+        public int capacity() {
+            return states.length;
+        }
+
+        public int get(int slot) {
+            return states[slot];
+        }
+
+        public void set(int slot, int state) {
+            states[slot] = (byte) state;
+        }
+    }
+
+    private static final class ShortStore extends StateStore {
+        private final short[] states;
+
+        ShortStore(int capacity) {
+            states = new short[capacity];
+            Arrays.fill(states, (short) FREE);
+        }
+
+        public int capacity() {
+            return states.length;
+        }
+
+        public int get(int slot) {
+            return states[slot];
+        }
+
+        public void set(int slot, int state) {
+            states[slot] = (short) state;
+        }
+    }
+
+    private static final class IntStore extends StateStore {
+        private final int[] states;
+
+        IntStore(int capacity) {
+            states = new int[capacity];
+            Arrays.fill(states, FREE);
+        }
+
+        public int capacity() {
+            return states.length;
+        }
+
+        public int get(int slot) {
+            return states[slot];
+        }
+
+        public void set(int slot, int state) {
+            states[slot] = state;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.RedirectChainTooLongException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+import shisha.statemachine.metrics.StateMachineMetrics;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+/**
+ * Processes an event and the redirections of its enter phase through the
+ * {@link TransitionTable}: guards and choices, the exit, transition and enter
+ * controllers, the {@link TransitionListener} and the
+ * {@link StateMachineMetrics}. The strategies extending
+ * {@link ReentrantStrategy}, the {@link CompactStateMachine} and the
+ * {@link StateMachineArray} all process their events with it. They only
+ * differ in where they keep the current state, which they read and write
+ * through a {@link StateAccessor}, and in how they keep other events out
+ * meanwhile, which is left to them.
+ *
+ * <p>
+ * A dispatcher counting chain lengths, reusing the {@link TransitionInfo} or
+ * collecting deferred stages keeps state between events, so only one thread
+ * may use it at a time, as the strategies do holding their lock. The
+ * {@link #SHARED} one keeps none and can be used by any number of threads.
+ */
+public final class TransitionDispatcher {
+    private static Logger l = LoggerFactory.getLogger(TransitionDispatcher.class);
+
+    /**
+     * Reads and writes the current state of a kind of state machine. The slot
+     * tells apart the machines kept in the same object, like the slots of a
+     * {@link StateMachineArray}; others ignore it.
+     */
+    public interface StateAccessor<M> {
+        int getStateId(M machine, int slot);
+
+        /**
+         * Moves the machine to the target of the transition, once its
+         * transition controller has run
+         */
+        void setStateId(M machine, int slot, int state);
+    }
+
+    /**
+     * Allows {@link ReentrantStrategy#DEFAULT_MAX_CHAIN_LENGTH} redirects and
+     * keeps no state between events
+     */
+    public static final TransitionDispatcher SHARED = new TransitionDispatcher(
+            ReentrantStrategy.DEFAULT_MAX_CHAIN_LENGTH, false, false);
+
+    // Returned by fire() instead of a redirection
+    private static final EventInfo CANCELLED = new EventInfo(null, null);
+    private static final EventInfo NOT_APPLICABLE = new EventInfo(null, null);
+
+    private final int maxChainLength;
+    // Events processed, indexed by the number of redirects they caused, or
+    // null if they are not counted
+    private final long[] chainLengths;
+
+    // Only when reusing, null while a transition is using it
+    private final boolean reuseTransitionInfo;
+    private TransitionInfo reusable;
+
+    // Only when collecting, stage the last transitions were deferred to
+    private boolean collectPending;
+    private CompletionStage<?> pending;
+
+    /**
+     * @param maxChainLength redirects from the enter phase allowed for a
+     *        single event
+     * @param countChainLengths whether to count the events by the redirects
+     *        they caused, see {@link #getChainLengths()}
+     * @param reuseTransitionInfo when set, the same {@link TransitionInfo} is
+     *        passed to the controllers of every transition
+     */
+    public TransitionDispatcher(int maxChainLength, boolean countChainLengths, boolean reuseTransitionInfo) {
+        if (maxChainLength < 0)
+            throw new IllegalArgumentException("The maximum chain length cannot be negative");
+
+        this.maxChainLength = maxChainLength;
+        this.chainLengths = countChainLengths ? new long[maxChainLength + 1] : null;
+        this.reuseTransitionInfo = reuseTransitionInfo;
+        if (reuseTransitionInfo)
+            this.reusable = new TransitionInfo(null, null, null, null);
+    }
+
+    /**
+     * Processes the event and the redirections of its enter phase. Events that
+     * do not apply throw an exception or return the result, depending on
+     * <code>throwing</code>.
+     */
+    public <M> ProcessResult dispatch(TransitionTable table, StateAccessor<M> accessor, M machine, int slot,
+            int eventId, Object object, boolean throwing)
+            throws RedirectChainTooLongException, StateMachineDefinitionException {
+        int current = eventId;
+        int redirects = 0;
+        EventInfo result = fire(table, accessor, machine, slot, eventId, object);
+        while (result != null) {
+            if (result == CANCELLED) {
+                if (chainLengths != null)
+                    chainLengths[redirects]++;
+                return ProcessResult.CANCELLED_BY_EXIT;
+            }
+
+            if (result == NOT_APPLICABLE) {
+                if (throwing)
+                    throw new TransitionNotDefinedException("Transition from state "
+                            + table.getStateName(accessor.getStateId(machine, slot)) + " with event "
+                            + table.getEventName(current) + " not defined", StateMachineException.STACKLESS);
+                return ProcessResult.NO_TRANSITION;
+            }
+
+            if (redirects == maxChainLength) {
+                if (throwing)
+                    throw new RedirectChainTooLongException("More than " + maxChainLength
+                            + " redirects processing event " + table.getEventName(eventId) + ". Last state is "
+                            + table.getStateName(accessor.getStateId(machine, slot)));
+                return ProcessResult.CHAIN_TOO_LONG;
+            }
+            redirects++;
+
+            if (l.isDebugEnabled())
+                l.debug("#processEvent: Redirecting forced by controller to event " + result.getEvent());
+            current = table.getEventId(result.getEvent());
+            if (current == TransitionTable.UNDEFINED) {
+                if (throwing)
+                    throw new EventNotDefinedException("Event " + result.getEvent() + " not defined",
+                            StateMachineException.STACKLESS);
+                return ProcessResult.UNKNOWN_EVENT;
+            }
+
+            result = fire(table, accessor, machine, slot, current, result.getObject());
+        }
+        if (chainLengths != null)
+            chainLengths[redirects]++;
+        return ProcessResult.APPLIED;
+    }
+
+    /**
+     * Runs the three phases of the transition for the event from the current
+     * state. Returns the event the enter phase redirects to, if any, or
+     * {@link #CANCELLED} or {@link #NOT_APPLICABLE}.
+     */
+    private <M> EventInfo fire(TransitionTable table, StateAccessor<M> accessor, M machine, int slot, int eventId,
+            Object object) {
+        String event = table.getEventName(eventId);
+        int source = accessor.getStateId(machine, slot);
+        int target = table.getTargetState(source, eventId);
+        StateMachineMetrics metrics = table.getMetrics();
+        if (target == TransitionTable.UNDEFINED)
+            return notApplicable(metrics, source, eventId);
+
+        // A reentrant transition finds it taken and gets its own
+        String targetName = target == TransitionTable.GUARDED ? null : table.getStateName(target);
+        TransitionInfo tEvent = reusable;
+        if (tEvent == null) {
+            tEvent = new TransitionInfo(table.getStateName(source), event, targetName, object);
+        } else {
+            reusable = null;
+            tEvent.reset(table.getStateName(source), event, targetName, object);
+        }
+
+        // Given back even if a guard or a controller throws
+        try {
+            // Guards and choices are resolved before running any controller
+            TransitionController transitionController = table.getTransitionController(source, eventId);
+            if (target == TransitionTable.GUARDED) {
+                int transition = table.selectTransition(source, eventId, tEvent);
+                if (transition == TransitionTable.UNDEFINED)
+                    return notApplicable(metrics, source, eventId);
+                target = table.getTargetState(source, eventId, transition);
+                transitionController = table.getTransitionController(source, eventId, transition);
+            }
+
+            if (table.isChoiceState(target)) {
+                target = table.resolveChoice(target, tEvent);
+                if (target == TransitionTable.UNDEFINED)
+                    return notApplicable(metrics, source, eventId);
+                tEvent.reset(table.getStateName(source), event, table.getStateName(target), object);
+            }
+
+            ExitStateController exitController = table.getExitStateController(source);
+            EnterStateController enterController = table.getEnterStateController(target);
+            TransitionListener listener = table.getTransitionListener();
+
+            // Listeners are timed with the phase that follows them
+            boolean timed = metrics != null && metrics.sample();
+            long started = now(timed);
+            listener.beforeExit(tEvent);
+            if (exitController != null && !exitController.execute(tEvent)) {
+                l.debug("The controller cancelled the event propagation");
+                if (metrics != null)
+                    metrics.cancelled(source, eventId);
+                listener.cancelled(tEvent);
+                return CANCELLED;
+            }
+
+            long exited = now(timed);
+            if (transitionController != null)
+                transitionController.execute(tEvent);
+            accessor.setStateId(machine, slot, target);
+            long transitioned = now(timed);
+            listener.afterTransition(tEvent);
+            EventInfo result = enterController == null ? null : enterController.execute(tEvent);
+            if (metrics != null) {
+                if (timed)
+                    metrics.transition(source, eventId, target, exited - started, transitioned - exited,
+                            System.nanoTime() - transitioned);
+                else
+                    metrics.applied(source, eventId, target);
+                if (result != null)
+                    metrics.redirected();
+            }
+            listener.afterEnter(tEvent);
+            if (result != null)
+                listener.redirected(tEvent, result);
+            if (collectPending) {
+                CompletionStage<?> stage = tEvent.takePending();
+                if (stage != null)
+                    pending = pending == null ? stage
+                            : CompletableFuture.allOf(pending.toCompletableFuture(), stage.toCompletableFuture());
+            } else {
+                tEvent.awaitPending();
+            }
+            return result;
+        } finally {
+            if (reuseTransitionInfo)
+                reusable = tEvent;
+        }
+    }
+
+    private static EventInfo notApplicable(StateMachineMetrics metrics, int source, int eventId) {
+        if (metrics != null)
+            metrics.undefined(source, eventId);
+        return NOT_APPLICABLE;
+    }
+
+    /**
+     * Returns the time if the transition is timed. Reading it is not free.
+     */
+    private static long now(boolean timed) {
+        return timed ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Makes the transitions deferred by the controllers return without
+     * waiting. Their stages are kept until {@link #takePending()} is called.
+     * Not for the {@link #SHARED} dispatcher.
+     */
+    public void collectPending() {
+        if (this == SHARED)
+            throw new IllegalStateException("The shared dispatcher cannot collect stages");
+
+        this.collectPending = true;
+    }
+
+    /**
+     * Whether a transition processed since the last {@link #takePending()}
+     * was deferred
+     */
+    public boolean hasPending() {
+        return pending != null;
+    }
+
+    /**
+     * Returns the stage the transitions processed since the last call were
+     * deferred to, if any
+     */
+    public CompletionStage<?> takePending() {
+        CompletionStage<?> result = pending;
+        pending = null;
+        return result;
+    }
+
+    /**
+     * Returns how many events have been processed with each chain length: the
+     * element i is the number of events that caused i redirects. Empty if they
+     * are not counted.
+     */
+    public long[] getChainLengths() {
+        return chainLengths == null ? new long[0] : chainLengths.clone();
+    }
+}
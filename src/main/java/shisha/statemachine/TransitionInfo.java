@@ -15,7 +15,10 @@
  */   
 package shisha.statemachine;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import com.google.common.collect.Maps;
 
@@ -24,20 +27,117 @@ import com.google.common.collect.Maps;
  * target and event), we provide the object passed when processing the event and
  * a transition context map which is really helpful when we need to store information
  * between phases of the same transition.
+ * 
+ * <p>
+ * Values can also be stored with a {@link ContextKey}, which is faster and does
+ * not need casts. The map is kept for compatibility, as a slower path: once it is
+ * created it contains the values stored with keys, by key name, and
+ * {@link #get(ContextKey)} reads from it.
+ *
+ * <p>
+ * Controllers starting asynchronous work can {@link #defer(CompletionStage)}
+ * the end of the transition until it completes.
  */
 public class TransitionInfo extends EventInfo {
     private String source;
     private String target;
     
-    // We offer a generic repository for all the distinct phases of a transition
+    // We offer a generic repository for all the distinct phases of a transition.
+    // Created the first time a controller asks for it
     private HashMap<String, Object> transitionContext;
     
+    // Values stored with context keys, indexed by key
+    private Object[] values;
+    private ContextKey<?>[] keys;
+    
+    // Set by the controllers deferring the end of the transition
+    private CompletionStage<?> pending;
+    
     public TransitionInfo(String source, String event, String target, Object object) {
         super(event, object);
         
         this.source = source;
         this.target = target;
-        this.transitionContext = Maps.newHashMap();
+    }
+    
+    /**
+     * Reinitializes the instance for another transition and empties the
+     * transition context. Used by the strategies that reuse the same instance
+     * for every transition, so controllers must not keep references to it.
+     */
+    public void reset(String source, String event, String target, Object object) {
+        this.source = source;
+        this.event = event;
+        this.target = target;
+        this.object = object;
+        if (transitionContext != null)
+            transitionContext.clear();
+        if (values != null)
+            Arrays.fill(values, null);
+        this.pending = null;
+    }
+    
+    /**
+     * Keeps the state machine in transition until the stage completes, so the
+     * events sent meanwhile are processed after it. Meant for the transition
+     * and enter controllers. The {@link shisha.statemachine.strategy.AsyncStrategy}
+     * can release its thread meanwhile, and completes the result of the event
+     * once the stage does, exceptionally if it fails. The rest of the
+     * strategies block the thread processing the event, holding their lock,
+     * and throw the {@link java.util.concurrent.CompletionException} of the
+     * stage if it fails. Deferring again waits for both stages.
+     */
+    public void defer(CompletionStage<?> stage) {
+        if (pending == null) {
+            pending = stage;
+        } else {
+            pending = CompletableFuture.allOf(pending.toCompletableFuture(), stage.toCompletableFuture());
+        }
+    }
+    
+    /**
+     * Returns the stage the transition has been deferred to, if any, and
+     * forgets it
+     */
+    public CompletionStage<?> takePending() {
+        CompletionStage<?> result = pending;
+        pending = null;
+        return result;
+    }
+    
+    /**
+     * Blocks until the stage the transition has been deferred to, if any,
+     * completes. Throws a {@link java.util.concurrent.CompletionException}
+     * if it completes exceptionally.
+     */
+    public void awaitPending() {
+        CompletionStage<?> stage = takePending();
+        if (stage != null)
+            stage.toCompletableFuture().join();
+    }
+    
+    @SuppressWarnings("unchecked")
+    public <T> T get(ContextKey<T> key) {
+        // Once created, the map holds every value, also the ones put in it directly
+        if (transitionContext != null)
+            return key.getType().cast(transitionContext.get(key.getName()));
+        
+        int index = key.getIndex();
+        return values != null && index < values.length ? (T) values[index] : null;
+    }
+    
+    public <T> void put(ContextKey<T> key, T value) {
+        int index = key.getIndex();
+        if (values == null || index >= values.length) {
+            int size = Math.max(index + 1, values == null ? 4 : values.length * 2);
+            values = values == null ? new Object[size] : Arrays.copyOf(values, size);
+            keys = keys == null ? new ContextKey<?>[size] : Arrays.copyOf(keys, size);
+        }
+        values[index] = value;
+        keys[index] = key;
+        
+        if (transitionContext != null)
+            transitionContext.put(key.getName(), value);
     }
     
     public String getSource() {
@@ -49,6 +149,13 @@ public class TransitionInfo extends EventInfo {
     }
     
     public HashMap<String,Object> getTransitionContext() {
+        if (this.transitionContext == null) {
+            this.transitionContext = Maps.newHashMap();
+            for (int i = 0; values != null && i < values.length; i++) {
+                if (values[i] != null)
+                    transitionContext.put(keys[i].getName(), values[i]);
+            }
+        }
         return this.transitionContext;
     }
     
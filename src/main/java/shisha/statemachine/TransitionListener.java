@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+/**
+ * Observes the transitions of the state machines created from a definition,
+ * for auditing, metrics or tracing, without wrapping their controllers. See
+ * {@link StateMachineDefinitionImpl#addTransitionListener(TransitionListener)}.
+ *
+ * <p>
+ * Listeners are called by the thread processing the event, while the strategy
+ * holds its lock, so they must be quick and must not process events. Like the
+ * controllers, they must not keep references to the {@link TransitionInfo},
+ * which some strategies reuse. Slow listeners can be wrapped with
+ * {@link TransitionListeners#async(TransitionListener, int)}.
+ *
+ * <p>
+ * {@link AbstractTransitionListener} implements every method doing nothing.
+ */
+public interface TransitionListener {
+    /**
+     * The transition has been resolved, guards and choices included, and its
+     * exit phase is about to run
+     */
+    void beforeExit(TransitionInfo event);
+
+    /**
+     * The exit controller cancelled the transition. The state has not changed.
+     */
+    void cancelled(TransitionInfo event);
+
+    /**
+     * The transition controller has run and the state machine is in the
+     * target state. The enter phase is about to run.
+     */
+    void afterTransition(TransitionInfo event);
+
+    /**
+     * The enter phase is done
+     */
+    void afterEnter(TransitionInfo event);
+
+    /**
+     * The enter controller redirected the state machine to another event,
+     * which is processed next holding the lock
+     */
+    void redirected(TransitionInfo event, EventInfo redirect);
+}
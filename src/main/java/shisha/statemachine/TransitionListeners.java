@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.List;
+
+/**
+ * Factory methods for {@link TransitionListener}s
+ */
+public final class TransitionListeners {
+    /**
+     * Listener of the definitions without listeners. Calls to it are empty,
+     * so the strategies call it unconditionally and the JIT removes them.
+     */
+    public static final TransitionListener NONE = new AbstractTransitionListener() {
+        public String toString() {
+            return "NONE";
+        }
+    };
+
+    private TransitionListeners() {
+    }
+
+    /**
+     * Returns a single listener calling the listeners in order: {@link #NONE}
+     * if there are none, the listener itself if there is only one
+     */
+    public static TransitionListener compose(List<TransitionListener> listeners) {
+        if (listeners.isEmpty())
+            return NONE;
+        if (listeners.size() == 1)
+            return listeners.get(0);
+        return new Composite(listeners.toArray(new TransitionListener[listeners.size()]));
+    }
+
+    /**
+     * Returns a listener delivering the transitions to <code>listener</code>
+     * from a thread of its own, through a ring buffer of
+     * <code>ringSize</code> entries, so it does not slow down the transitions.
+     * See {@link AsyncTransitionListener}.
+     */
+    public static AsyncTransitionListener async(TransitionListener listener, int ringSize) {
+        return new AsyncTransitionListener(listener, ringSize);
+    }
+
+    private static final class Composite implements TransitionListener {
+        private final TransitionListener[] listeners;
+
+        Composite(TransitionListener[] listeners) {
+            this.listeners = listeners;
+        }
+
+        public void beforeExit(TransitionInfo event) {
+            for (TransitionListener listener : listeners)
+                listener.beforeExit(event);
+        }
+
+        public void cancelled(TransitionInfo event) {
+            for (TransitionListener listener : listeners)
+                listener.cancelled(event);
+        }
+
+        public void afterTransition(TransitionInfo event) {
+            for (TransitionListener listener : listeners)
+                listener.afterTransition(event);
+        }
+
+        public void afterEnter(TransitionInfo event) {
+            for (TransitionListener listener : listeners)
+                listener.afterEnter(event);
+        }
+
+        public void redirected(TransitionInfo event, EventInfo redirect) {
+            for (TransitionListener listener : listeners)
+                listener.redirected(event, redirect);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import java.util.HashMap;
+
+import shisha.statemachine.metrics.StateMachineMetrics;
+
+/**
+ * Compiled, read-only view of a {@link StateMachineDefinitionImpl}. It is built
+ * once by {@link StateMachineDefinitionImpl#freeze()} and it is what the strategies
+ * use when processing events.
+ *
+ * <p>
+ * States and events are identified by their ordinal, which is the order in which
+ * they were defined. Transitions are kept in a dense state x event table, so
+ * resolving the target state and the transition controller for a given source
+ * state and event is a single array access. Pairs of source state and event
+ * with guarded transitions are marked as {@link #GUARDED} in the table, and the
+ * transition to take is chosen by
+ * {@link #selectTransition(int, int, TransitionInfo)}.
+ *
+ * <p>
+ * Choice states have no transitions. Instead, they have an ordered list of
+ * branches, each one a {@link Guard} and a target state, which are resolved by
+ * {@link #resolveChoice(int, TransitionInfo)}.
+ *
+ * <p>
+ * The listeners of the definition are compiled into a single one, see
+ * {@link #getTransitionListener()}, and so are its metrics, if enabled, see
+ * {@link #getMetrics()}.
+ *
+ * <p>
+ * This class is immutable and thread-safe.
+ */
+public final class TransitionTable {
+    /** Value returned when a state, event or transition does not exist */
+    public static final int UNDEFINED = -1;
+
+    /**
+     * Target state returned for a source state and event whose transitions
+     * have guards
+     */
+    public static final int GUARDED = -2;
+
+    private final String[] states;
+    private final String[] events;
+    private final HashMap<String, Integer> stateIds;
+    private final HashMap<String, Integer> eventIds;
+    private final int startState;
+    private final boolean[] finalStates;
+
+    // Indexed by state * events.length + event. Guarded pairs store the index
+    // of their transitions, encoded by guardedCell(), and the controller of
+    // the first one
+    private final int[] targets;
+    private final TransitionController[] transitionControllers;
+
+    // Indexed by guarded pair and transition, in evaluation order. Only the
+    // last transition may have no guard
+    private final int[][] guardedTargets;
+    private final TransitionController[][] guardedControllers;
+    private final Guard[][] transitionGuards;
+
+    // Indexed by state
+    private final ExitStateController[] exitControllers;
+    private final EnterStateController[] enterControllers;
+
+    // Indexed by state and branch, null for the states that are not choices.
+    // The default branch, if any, is the last one and has no guard
+    private final int[][] choiceTargets;
+    private final Guard[][] choiceGuards;
+
+    // Every listener of the definition, NONE if there are none
+    private final TransitionListener listener;
+
+    // Null unless the definition enabled them
+    private final StateMachineMetrics metrics;
+
+    // Indexed as targets, set for the transitions without controllers
+    private final boolean[] controllerFree;
+
+    private TransitionTable(TransitionTable template, TransitionController[] transitionControllers,
+            ExitStateController[] exitControllers, EnterStateController[] enterControllers, Guard[][] choiceGuards,
+            TransitionController[][] guardedControllers, Guard[][] transitionGuards) {
+        this.states = template.states;
+        this.events = template.events;
+        this.stateIds = template.stateIds;
+        this.eventIds = template.eventIds;
+        this.startState = template.startState;
+        this.finalStates = template.finalStates;
+        this.targets = template.targets;
+        this.transitionControllers = transitionControllers;
+        this.exitControllers = exitControllers;
+        this.enterControllers = enterControllers;
+        this.choiceTargets = template.choiceTargets;
+        this.choiceGuards = choiceGuards;
+        this.guardedTargets = template.guardedTargets;
+        this.guardedControllers = guardedControllers;
+        this.transitionGuards = transitionGuards;
+        this.listener = template.listener;
+        this.metrics = template.metrics;
+        this.controllerFree = controllerFree();
+    }
+
+    TransitionTable(String[] states, String[] events, int startState, boolean[] finalStates, int[] targets,
+            TransitionController[] transitionControllers, ExitStateController[] exitControllers,
+            EnterStateController[] enterControllers, int[][] choiceTargets, Guard[][] choiceGuards,
+            int[][] guardedTargets, TransitionController[][] guardedControllers, Guard[][] transitionGuards,
+            TransitionListener listener, StateMachineMetrics metrics) {
+        this.states = states;
+        this.events = events;
+        this.startState = startState;
+        this.finalStates = finalStates;
+        this.targets = targets;
+        this.transitionControllers = transitionControllers;
+        this.exitControllers = exitControllers;
+        this.enterControllers = enterControllers;
+        this.choiceTargets = choiceTargets;
+        this.choiceGuards = choiceGuards;
+        this.guardedTargets = guardedTargets;
+        this.guardedControllers = guardedControllers;
+        this.transitionGuards = transitionGuards;
+        this.listener = listener;
+        this.metrics = metrics;
+
+        this.stateIds = new HashMap<String, Integer>();
+        for (int i = 0; i < states.length; i++)
+            stateIds.put(states[i], i);
+
+        this.eventIds = new HashMap<String, Integer>();
+        for (int i = 0; i < events.length; i++)
+            eventIds.put(events[i], i);
+
+        this.controllerFree = controllerFree();
+    }
+
+    private boolean[] controllerFree() {
+        boolean[] result = new boolean[targets.length];
+        for (int cell = 0; cell < targets.length; cell++) {
+            int target = targets[cell];
+            result[cell] = listener == TransitionListeners.NONE && target >= 0 && choiceTargets[target] == null
+                    && transitionControllers[cell] == null && exitControllers[cell / events.length] == null
+                    && enterControllers[target] == null;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a table with the same states, events and transitions but other
+     * controllers and guards. Arrays are indexed as in this table.
+     */
+    TransitionTable withControllers(TransitionController[] transitionControllers,
+            ExitStateController[] exitControllers, EnterStateController[] enterControllers, Guard[][] choiceGuards,
+            TransitionController[][] guardedControllers, Guard[][] transitionGuards) {
+        return new TransitionTable(this, transitionControllers, exitControllers, enterControllers, choiceGuards,
+                guardedControllers, transitionGuards);
+    }
+
+    /**
+     * Value stored in the table for the guarded pair with the index
+     */
+    static int guardedCell(int index) {
+        return GUARDED - index;
+    }
+
+    /**
+     * Returns the ordinal of the state or {@link #UNDEFINED} if it does not exist
+     */
+    public int getStateId(String state) {
+        Integer id = stateIds.get(state);
+        return id == null ? UNDEFINED : id;
+    }
+
+    /**
+     * Returns the ordinal of the event or {@link #UNDEFINED} if it does not exist
+     */
+    public int getEventId(String event) {
+        Integer id = eventIds.get(event);
+        return id == null ? UNDEFINED : id;
+    }
+
+    public String getStateName(int state) {
+        return states[state];
+    }
+
+    public String getEventName(int event) {
+        return events[event];
+    }
+
+    public int getStateCount() {
+        return states.length;
+    }
+
+    public int getEventCount() {
+        return events.length;
+    }
+
+    public int getStartState() {
+        return startState;
+    }
+
+    public boolean isFinalState(int state) {
+        return finalStates[state];
+    }
+
+    /**
+     * Returns the target state for the source state and event,
+     * {@link #UNDEFINED} if the transition has not been defined or
+     * {@link #GUARDED} if it depends on guards
+     */
+    public int getTargetState(int source, int event) {
+        int target = targets[source * events.length + event];
+        return target < UNDEFINED ? GUARDED : target;
+    }
+
+    /**
+     * Returns the controller of the transition for the source state and event.
+     * For guarded ones, the controller of the first transition.
+     */
+    public TransitionController getTransitionController(int source, int event) {
+        return transitionControllers[source * events.length + event];
+    }
+
+    /**
+     * Evaluates in order the guards of the transitions for the source state and
+     * event, which must be {@link #GUARDED}, and returns the index of the first
+     * one that holds, or {@link #UNDEFINED} if none does. The target of the
+     * transition info is set to the target of each transition before
+     * evaluating its guard, so it is left with the one of the selected
+     * transition.
+     */
+    public int selectTransition(int source, int event, TransitionInfo info) {
+        int index = GUARDED - targets[source * events.length + event];
+        int[] candidates = guardedTargets[index];
+        Guard[] guards = transitionGuards[index];
+        for (int i = 0; i < candidates.length; i++) {
+            info.reset(info.getSource(), info.getEvent(), states[candidates[i]], info.getObject());
+            if (guards[i] == null || guards[i].evaluate(info))
+                return i;
+        }
+        return UNDEFINED;
+    }
+
+    /**
+     * Returns the target of a transition selected by
+     * {@link #selectTransition(int, int, TransitionInfo)}
+     */
+    public int getTargetState(int source, int event, int transition) {
+        return guardedTargets[GUARDED - targets[source * events.length + event]][transition];
+    }
+
+    /**
+     * Returns the controller of a transition selected by
+     * {@link #selectTransition(int, int, TransitionInfo)}
+     */
+    public TransitionController getTransitionController(int source, int event, int transition) {
+        return guardedControllers[GUARDED - targets[source * events.length + event]][transition];
+    }
+
+    /**
+     * Returns the number of guarded pairs of source state and event
+     */
+    int getGuardedCount() {
+        return guardedTargets.length;
+    }
+
+    TransitionController[] getGuardedControllers(int index) {
+        return guardedControllers[index];
+    }
+
+    Guard[] getGuardedGuards(int index) {
+        return transitionGuards[index];
+    }
+
+    /**
+     * Whether the source state and event have a single transition, to a state
+     * that is not a choice, and neither the exit controller of the source, the
+     * transition controller nor the enter controller of the target are
+     * defined, and the definition has no listeners. Processing the event is
+     * then just changing the current state.
+     */
+    public boolean isControllerFree(int source, int event) {
+        return controllerFree[source * events.length + event];
+    }
+
+    /**
+     * Returns the listeners of the definition, compiled into one. It is
+     * {@link TransitionListeners#NONE} if there are none, so the strategies
+     * call it without checking.
+     */
+    public TransitionListener getTransitionListener() {
+        return listener;
+    }
+
+    /**
+     * Returns the metrics of the transitions, or null if the definition did
+     * not enable them
+     */
+    public StateMachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ExitStateController getExitStateController(int state) {
+        return exitControllers[state];
+    }
+
+    public EnterStateController getEnterStateController(int state) {
+        return enterControllers[state];
+    }
+
+    public boolean isChoiceState(int state) {
+        return choiceTargets[state] != null;
+    }
+
+    /**
+     * Follows the branches of the choice state until reaching a state that is
+     * not a choice. The branches of each choice are evaluated in order with the
+     * transition info, and the first one whose guard holds is taken. Returns
+     * {@link #UNDEFINED} if no branch applies, or if choices lead to each other
+     * in a loop.
+     */
+    public int resolveChoice(int state, TransitionInfo event) {
+        int visited = 0;
+        while (choiceTargets[state] != null) {
+            if (visited++ == states.length)
+                return UNDEFINED;
+
+            int[] targets = choiceTargets[state];
+            Guard[] guards = choiceGuards[state];
+            int next = UNDEFINED;
+            for (int i = 0; i < targets.length && next == UNDEFINED; i++) {
+                if (guards[i] == null || guards[i].evaluate(event))
+                    next = targets[i];
+            }
+
+            if (next == UNDEFINED)
+                return UNDEFINED;
+            state = next;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the number of branches of the state, 0 if it is not a choice
+     */
+    int getChoiceBranchCount(int state) {
+        return choiceTargets[state] == null ? 0 : choiceTargets[state].length;
+    }
+
+    Guard getChoiceGuard(int state, int branch) {
+        return choiceGuards[state][branch];
+    }
+
+    int getChoiceTarget(int state, int branch) {
+        return choiceTargets[state][branch];
+    }
+}
@@ -24,6 +24,26 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 /**
  * All state machine classes must be annotated with it. Just to have some discipline about them :-)
+ *
+ * <p>
+ * It also names the definition, see
+ * {@link shisha.statemachine.StateMachineDefinitionImpl#setName(String)}, and
+ * may enable its metrics. All the instances of the class share them, so they
+ * must declare the same states and events.
  */
 public @interface AStateMachine {
+    /**
+     * Name of the definition. The name of the class if empty.
+     */
+    String name() default "";
+
+    /**
+     * Whether the machines record metrics, published through JMX
+     */
+    boolean metrics() default false;
+
+    /**
+     * One out of how many events are timed when metrics are enabled
+     */
+    int samplingPeriod() default 1;
 }
@@ -0,0 +1,44 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+/**
+ * Defines a branch of a choice state. Methods annotated with it
+ * might have the same contract as the {@link shisha.statemachine.Guard}
+ */
+public @interface Choice {
+    /**
+     * The choice state
+     */
+    String source();
+
+    /**
+     * The state we go to when the method returns true
+     */
+    String target();
+
+    /**
+     * Branches of the same choice state are evaluated in ascending order
+     */
+    int order() default 0;
+}
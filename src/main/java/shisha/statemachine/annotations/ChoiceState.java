@@ -0,0 +1,33 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+/**
+ * Defines a choice state in an annotated state machine. Same rules as for
+ * {@link State} apply to the annotated field. Its branches are the methods
+ * annotated with {@link Choice}
+ */
+public @interface ChoiceState {
+    /** The state to go when no branch applies, if any */
+    String otherwise() default "";
+}
@@ -22,7 +22,9 @@ import java.lang.annotation.Target;
 
 /**
  * Defines an event in an annotated state machine. The annotated
- * field must be defined as <code>public static final</code>
+ * field must be defined as <code>public static final</code>. It can be
+ * a String or an enum constant, in which case the name of the constant
+ * is the name of the event
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.FIELD)
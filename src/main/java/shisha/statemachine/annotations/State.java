@@ -24,7 +24,9 @@ import java.lang.annotation.Target;
 @Target(ElementType.FIELD)
 /**
  * Defines a state in an annotated state machine. The annotated
- * field must be defined as <code>public static final</code>
+ * field must be defined as <code>public static final</code>. It can be
+ * a String or an enum constant, in which case the name of the constant
+ * is the name of the state
  */
 public @interface State { 
     /** Whether the state is the start one of the state machine */
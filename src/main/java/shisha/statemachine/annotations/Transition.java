@@ -41,4 +41,13 @@ public @interface Transition {
      * The event that provokes the transition
      */
     String event();
+
+    /**
+     * Name of a public method of the annotated class guarding the transition,
+     * with the same contract as the {@link shisha.statemachine.Guard}. Guarded
+     * transitions for the same source and event are evaluated in the order of
+     * their {@link Transitions}, and across methods, in the order of the method
+     * names. The one without guard is always evaluated last.
+     */
+    String guard() default "";
 }
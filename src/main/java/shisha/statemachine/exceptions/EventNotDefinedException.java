@@ -21,4 +21,8 @@ public class EventNotDefinedException extends StateMachineDefinitionException {
     public EventNotDefinedException(String msg) {
         super(msg);
     }
+
+    public EventNotDefinedException(String msg, boolean stackless) {
+        super(msg, stackless);
+    }
 }
@@ -20,4 +20,8 @@ public class ReentrantTransitionNotAllowed extends StateMachineExecutionExceptio
     public ReentrantTransitionNotAllowed(String msg) {
         super(msg);
     }
+
+    public ReentrantTransitionNotAllowed(String msg, boolean stackless) {
+        super(msg, stackless);
+    }
 }
@@ -24,4 +24,8 @@ public class StateMachineDefinitionException extends StateMachineException {
     public StateMachineDefinitionException(String msg) {
         super(msg);
     }
+
+    public StateMachineDefinitionException(String msg, boolean stackless) {
+        super(msg, stackless);
+    }
 }
@@ -18,7 +18,23 @@ package shisha.statemachine.exceptions;
 public class StateMachineException extends Exception {
     private static final long serialVersionUID = 1L;
     
+    /**
+     * Whether the exceptions for events that do not apply to the current state
+     * are thrown without stack trace. Filling it in is most of the cost of
+     * throwing them. Set with the system property
+     * <code>shisha.statemachine.stacklessExceptions</code>
+     */
+    public static final boolean STACKLESS = Boolean.getBoolean("shisha.statemachine.stacklessExceptions");
+    
     public StateMachineException(String msg) {
         super(msg);
     }
+    
+    /**
+     * @param stackless when set, the stack trace is not filled in. Meant for
+     *        exceptions that are part of the normal flow of the application
+     */
+    public StateMachineException(String msg, boolean stackless) {
+        super(msg, null, true, !stackless);
+    }
 }
@@ -20,4 +20,8 @@ public class StateMachineExecutionException extends StateMachineException {
     public StateMachineExecutionException(String msg) {
         super(msg);
     }
+
+    public StateMachineExecutionException(String msg, boolean stackless) {
+        super(msg, stackless);
+    }
 }
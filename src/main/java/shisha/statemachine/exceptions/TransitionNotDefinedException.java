@@ -21,4 +21,8 @@ public class TransitionNotDefinedException extends StateMachineDefinitionExcepti
     public TransitionNotDefinedException(String msg) {
         super(msg);
     }
+
+    public TransitionNotDefinedException(String msg, boolean stackless) {
+        super(msg, stackless);
+    }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+/**
+ * Number of times an event was processed in a state without being applied
+ */
+public final class EventStats {
+    private final String state;
+    private final String event;
+    private final long count;
+
+    EventStats(String state, String event, long count) {
+        this.state = state;
+        this.event = event;
+        this.count = count;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public String toString() {
+        return "[" + state + " + " + event + "] " + count;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+/**
+ * Immutable copy of a {@link LatencyHistogram}
+ */
+public final class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+
+    HistogramSnapshot(long[] counts, long sum) {
+        long total = 0;
+        for (long c : counts)
+            total += c;
+
+        this.counts = counts;
+        this.count = total;
+        this.sum = sum;
+    }
+
+    /**
+     * Returns the number of values recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of the values recorded, in nanoseconds
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the number of values counted in the bucket, see
+     * {@link LatencyHistogram#upperBound(int)}
+     */
+    public long getBucket(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the percentile, between 0
+     * and 100, or 0 if there are no values. Values past the last bucket are
+     * reported as its lower bound.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("The percentile must be between 0 and 100");
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return bound(i);
+        }
+        return bound(counts.length - 1);
+    }
+
+    /**
+     * Returns the upper bound of the highest bucket with values, or 0 if
+     * there are none
+     */
+    public long getMax() {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] != 0)
+                return bound(i);
+        }
+        return 0;
+    }
+
+    private static long bound(int bucket) {
+        return bucket == LatencyHistogram.BUCKETS - 1 ? LatencyHistogram.lowerBound(bucket)
+                : LatencyHistogram.upperBound(bucket);
+    }
+
+    public String toString() {
+        return "count=" + count + ", mean=" + (long) getMean() + ", p50=" + getPercentile(50) + ", p99="
+                + getPercentile(99) + ", max=" + getMax();
+    }
+}
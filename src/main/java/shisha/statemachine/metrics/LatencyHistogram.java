@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of durations in nanoseconds. Every power of two is
+ * split into 8 linear buckets, so values are kept with an error below 12.5%
+ * in 304 buckets, from 0 up to 2^40 nanoseconds (about 18 minutes). Longer
+ * values are counted in the last bucket.
+ *
+ * <p>
+ * Recording a value increments a bucket and adds it to the sum, without
+ * locking nor allocating. Readers take a {@link #snapshot()}.
+ *
+ * <p>
+ * As with a {@link LongAdder}, the buckets start as a single array and are
+ * striped when threads collide incrementing them: each thread then counts in
+ * one of up to as many arrays as processors, chosen by its id, and the
+ * snapshot adds them up. Growing allocates, once per stripe.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+
+    /** Number of buckets of every histogram */
+    public static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    // Lowest power of two that is not below the number of processors
+    private static final int DEFAULT_MAX_STRIPES = Integer.highestOneBit(
+            Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    private final int maxStripes;
+    // Power of two in length, replaced by a longer copy when growing
+    private volatile AtomicLongArray[] stripes = { new AtomicLongArray(BUCKETS) };
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        this(DEFAULT_MAX_STRIPES);
+    }
+
+    /**
+     * @param maxStripes arrays the buckets are striped into at most, a power
+     *        of two
+     */
+    LatencyHistogram(int maxStripes) {
+        if (maxStripes < 1 || Integer.bitCount(maxStripes) != 1)
+            throw new IllegalArgumentException("The maximum number of stripes must be a power of two");
+
+        this.maxStripes = maxStripes;
+    }
+
+    public void record(long nanos) {
+        int bucket = bucketOf(nanos);
+        AtomicLongArray[] stripes = this.stripes;
+        AtomicLongArray counts = stripes[stripeOf(Thread.currentThread()) & (stripes.length - 1)];
+        long count = counts.get(bucket);
+        if (!counts.compareAndSet(bucket, count, count + 1)) {
+            grow(stripes);
+            counts.incrementAndGet(bucket);
+        }
+        sum.add(nanos);
+    }
+
+    /**
+     * Spreads the ids of the threads, which are usually consecutive
+     */
+    private static int stripeOf(Thread thread) {
+        return (int) ((thread.getId() * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    /**
+     * Doubles the stripes after a collision, unless another thread already
+     * did or they are at their maximum
+     */
+    private void grow(AtomicLongArray[] seen) {
+        if (seen.length >= maxStripes)
+            return;
+
+        synchronized (this) {
+            if (stripes != seen)
+                return;
+            AtomicLongArray[] grown = Arrays.copyOf(seen, seen.length * 2);
+            for (int i = seen.length; i < grown.length; i++)
+                grown[i] = new AtomicLongArray(BUCKETS);
+            stripes = grown;
+        }
+    }
+
+    /**
+     * Returns the number of arrays the buckets are striped into
+     */
+    int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns a copy of the counts. Values recorded meanwhile may be in the
+     * sum and not in the buckets, or the other way round.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += stripe.get(i);
+        }
+        return new HistogramSnapshot(counts, sum.sum());
+    }
+
+    /**
+     * Returns the bucket the value is counted in
+     */
+    public static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return nanos < 0 ? 0 : (int) nanos;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT)
+            return BUCKETS - 1;
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the smallest value counted in the bucket
+     */
+    public static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * Returns the largest value counted in the bucket, {@link Long#MAX_VALUE}
+     * for the last one
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy of the {@link StateMachineMetrics} at some point. Latencies are in
+ * nanoseconds.
+ */
+public final class MetricsSnapshot {
+    private final Map<String, Long> population;
+    private final List<TransitionStats> transitions;
+    private final List<EventStats> cancellations;
+    private final List<EventStats> undefined;
+    private final long redirects;
+    private final HistogramSnapshot exitLatency;
+    private final HistogramSnapshot transitionLatency;
+    private final HistogramSnapshot enterLatency;
+    private final HistogramSnapshot lockWait;
+    private final HistogramSnapshot lockHold;
+
+    MetricsSnapshot(Map<String, Long> population, List<TransitionStats> transitions,
+            List<EventStats> cancellations, List<EventStats> undefined, long redirects,
+            HistogramSnapshot exitLatency, HistogramSnapshot transitionLatency, HistogramSnapshot enterLatency,
+            HistogramSnapshot lockWait, HistogramSnapshot lockHold) {
+        this.population = Collections.unmodifiableMap(population);
+        this.transitions = Collections.unmodifiableList(transitions);
+        this.cancellations = Collections.unmodifiableList(cancellations);
+        this.undefined = Collections.unmodifiableList(undefined);
+        this.redirects = redirects;
+        this.exitLatency = exitLatency;
+        this.transitionLatency = transitionLatency;
+        this.enterLatency = enterLatency;
+        this.lockWait = lockWait;
+        this.lockHold = lockHold;
+    }
+
+    /**
+     * Returns the number of machines in each state, in definition order
+     */
+    public Map<String, Long> getPopulation() {
+        return population;
+    }
+
+    /**
+     * Returns the transitions taken at least once
+     */
+    public List<TransitionStats> getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * Returns the transition, or null if it has not been taken
+     */
+    public TransitionStats getTransition(String source, String event, String target) {
+        for (TransitionStats stats : transitions) {
+            if (stats.getSource().equals(source) && stats.getEvent().equals(event)
+                    && stats.getTarget().equals(target))
+                return stats;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the transitions cancelled by the exit controller, by source
+     * state and event
+     */
+    public List<EventStats> getCancellations() {
+        return cancellations;
+    }
+
+    /**
+     * Returns the events processed in a state without transition for them, or
+     * whose guards did not hold
+     */
+    public List<EventStats> getUndefined() {
+        return undefined;
+    }
+
+    public long getRedirects() {
+        return redirects;
+    }
+
+    public HistogramSnapshot getExitLatency() {
+        return exitLatency;
+    }
+
+    public HistogramSnapshot getTransitionLatency() {
+        return transitionLatency;
+    }
+
+    public HistogramSnapshot getEnterLatency() {
+        return enterLatency;
+    }
+
+    /**
+     * Returns the time threads waited for the lock of the strategy
+     */
+    public HistogramSnapshot getLockWait() {
+        return lockWait;
+    }
+
+    /**
+     * Returns the time the lock of the strategy was held
+     */
+    public HistogramSnapshot getLockHold() {
+        return lockHold;
+    }
+
+    public String toString() {
+        return "population=" + population + ", transitions=" + transitions + ", cancellations=" + cancellations
+                + ", undefined=" + undefined + ", redirects=" + redirects + ", exit=(" + exitLatency + "), transition=(" + transitionLatency
+                + "), enter=(" + enterLatency + "), lockWait=(" + lockWait + "), lockHold=(" + lockHold + ")";
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics registered in {@link StateMachineMonitoring} in the
+ * Prometheus text format, version 0.0.4, at <code>/metrics</code>, using the
+ * HTTP server of the JDK. Every sample is labelled with the name of the
+ * definition as <code>machine</code>:
+ * <ul>
+ * <li><code>statemachine_state_population</code>: machines in each state.</li>
+ * <li><code>statemachine_transitions_total</code>: transitions taken, by
+ * source, event and target.</li>
+ * <li><code>statemachine_cancelled_total</code> and
+ * <code>statemachine_undefined_total</code>: events cancelled by the exit
+ * controller and events without transition, by state and event.</li>
+ * <li><code>statemachine_redirects_total</code>.</li>
+ * <li><code>statemachine_phase_seconds</code>,
+ * <code>statemachine_transition_seconds</code>,
+ * <code>statemachine_lock_wait_seconds</code> and
+ * <code>statemachine_lock_hold_seconds</code>: summaries of the latencies, by
+ * phase and by transition.</li>
+ * </ul>
+ *
+ * <p>
+ * A scrape reads the counters and histograms of each definition, which are
+ * aggregated as the machines work, so it never visits the machines
+ * themselves. Quantiles are the upper bound of the {@link LatencyHistogram}
+ * bucket holding them.
+ */
+public final class PrometheusExporter implements Closeable {
+    private static Logger l = LoggerFactory.getLogger(PrometheusExporter.class);
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+    private static final String[] PHASES = { "exit", "transition", "enter" };
+
+    private final HttpServer server;
+
+    /**
+     * Starts serving the metrics. Requests are handled by the thread of the
+     * server, one at a time.
+     * 
+     * @param address where to listen; port 0 picks a free one, see
+     *        {@link #getAddress()}
+     */
+    public PrometheusExporter(InetSocketAddress address) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        l.info("#PrometheusExporter: serving metrics at " + server.getAddress());
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops the server, without waiting for the requests being served
+     */
+    public void close() {
+        server.stop(0);
+    }
+
+    private static void serve(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            StringBuilder text = new StringBuilder(4096);
+            write(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Writes the metrics of every registered definition
+     */
+    public static void write(Appendable out) throws IOException {
+        write(out, StateMachineMonitoring.getAll());
+    }
+
+    /**
+     * Writes the metrics, keyed by the name used as <code>machine</code>
+     * label
+     */
+    public static void write(Appendable out, Map<String, StateMachineMetrics> metrics) throws IOException {
+        List<String> names = new ArrayList<String>(metrics.size());
+        List<MetricsSnapshot> snapshots = new ArrayList<MetricsSnapshot>(metrics.size());
+        for (Map.Entry<String, StateMachineMetrics> entry : metrics.entrySet()) {
+            names.add(escape(entry.getKey()));
+            snapshots.add(entry.getValue().snapshot());
+        }
+
+        header(out, "statemachine_state_population", "gauge", "Machines in each state");
+        for (int i = 0; i < names.size(); i++) {
+            for (Map.Entry<String, Long> state : snapshots.get(i).getPopulation().entrySet())
+                sample(out, "statemachine_state_population", machine(names.get(i)) + ",state=\""
+                        + escape(state.getKey()) + "\"", state.getValue());
+        }
+
+        header(out, "statemachine_transitions_total", "counter", "Transitions taken");
+        for (int i = 0; i < names.size(); i++) {
+            for (TransitionStats stats : snapshots.get(i).getTransitions())
+                sample(out, "statemachine_transitions_total", transition(names.get(i), stats), stats.getCount());
+        }
+
+        header(out, "statemachine_cancelled_total", "counter", "Transitions cancelled by the exit controller");
+        for (int i = 0; i < names.size(); i++)
+            events(out, "statemachine_cancelled_total", names.get(i), snapshots.get(i).getCancellations());
+
+        header(out, "statemachine_undefined_total", "counter", "Events without transition from the state");
+        for (int i = 0; i < names.size(); i++)
+            events(out, "statemachine_undefined_total", names.get(i), snapshots.get(i).getUndefined());
+
+        header(out, "statemachine_redirects_total", "counter", "Events redirected by the enter controller");
+        for (int i = 0; i < names.size(); i++)
+            sample(out, "statemachine_redirects_total", machine(names.get(i)), snapshots.get(i).getRedirects());
+
+        header(out, "statemachine_phase_seconds", "summary", "Latency of the phases of the timed transitions");
+        for (int i = 0; i < names.size(); i++) {
+            MetricsSnapshot snapshot = snapshots.get(i);
+            HistogramSnapshot[] phases = { snapshot.getExitLatency(), snapshot.getTransitionLatency(),
+                    snapshot.getEnterLatency() };
+            for (int p = 0; p < PHASES.length; p++)
+                summary(out, "statemachine_phase_seconds", machine(names.get(i)) + ",phase=\"" + PHASES[p] + "\"",
+                        phases[p]);
+        }
+
+        header(out, "statemachine_transition_seconds", "summary", "Latency of the timed transitions");
+        for (int i = 0; i < names.size(); i++) {
+            for (TransitionStats stats : snapshots.get(i).getTransitions())
+                summary(out, "statemachine_transition_seconds", transition(names.get(i), stats), stats.getLatency());
+        }
+
+        header(out, "statemachine_lock_wait_seconds", "summary", "Time waited for the lock of the strategy");
+        for (int i = 0; i < names.size(); i++)
+            summary(out, "statemachine_lock_wait_seconds", machine(names.get(i)), snapshots.get(i).getLockWait());
+
+        header(out, "statemachine_lock_hold_seconds", "summary", "Time the lock of the strategy was held");
+        for (int i = 0; i < names.size(); i++)
+            summary(out, "statemachine_lock_hold_seconds", machine(names.get(i)), snapshots.get(i).getLockHold());
+    }
+
+    private static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labels, long value) throws IOException {
+        out.append(name).append('{').append(labels).append("} ").append(Long.toString(value)).append('\n');
+    }
+
+    private static void events(Appendable out, String name, String machine, List<EventStats> events)
+            throws IOException {
+        for (EventStats stats : events)
+            sample(out, name, machine(machine) + ",state=\"" + escape(stats.getState()) + "\",event=\""
+                    + escape(stats.getEvent()) + "\"", stats.getCount());
+    }
+
+    private static void summary(Appendable out, String name, String labels, HistogramSnapshot histogram)
+            throws IOException {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(Double.toString(quantile))
+                    .append("\"} ");
+            out.append(histogram.getCount() == 0 ? "NaN" : seconds(histogram.getPercentile(quantile * 100)));
+            out.append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(seconds(histogram.getSum()))
+                .append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(Long.toString(histogram.getCount()))
+                .append('\n');
+    }
+
+    private static String machine(String escapedName) {
+        return "machine=\"" + escapedName + "\"";
+    }
+
+    private static String transition(String machine, TransitionStats stats) {
+        return machine(machine) + ",source=\"" + escape(stats.getSource()) + "\",event=\""
+                + escape(stats.getEvent()) + "\",target=\"" + escape(stats.getTarget()) + "\"";
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    /**
+     * Escapes a label value as the text format requires
+     */
+    static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+            return value;
+
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '"')
+                sb.append("\\\"");
+            else if (c == '\n')
+                sb.append("\\n");
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link StateMachineMXBean} registered for a named definition
+ */
+final class StateMachineBean implements StateMachineMXBean {
+    private final String name;
+    private final StateMachineMetrics metrics;
+
+    StateMachineBean(String name, StateMachineMetrics metrics) {
+        this.name = name;
+        this.metrics = metrics;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSamplingPeriod() {
+        return metrics.getSamplingPeriod();
+    }
+
+    public Map<String, Long> getPopulation() {
+        return metrics.getPopulation();
+    }
+
+    public Map<String, Long> getTransitionCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (TransitionStats stats : metrics.snapshot().getTransitions())
+            result.put(stats.getSource() + " + " + stats.getEvent() + " -> " + stats.getTarget(), stats.getCount());
+        return result;
+    }
+
+    public long getTransitionCount() {
+        long total = 0;
+        for (TransitionStats stats : metrics.snapshot().getTransitions())
+            total += stats.getCount();
+        return total;
+    }
+
+    public long getCancelledCount() {
+        long total = 0;
+        for (EventStats stats : metrics.snapshot().getCancellations())
+            total += stats.getCount();
+        return total;
+    }
+
+    public long getUndefinedCount() {
+        long total = 0;
+        for (EventStats stats : metrics.snapshot().getUndefined())
+            total += stats.getCount();
+        return total;
+    }
+
+    public long getRedirectCount() {
+        return metrics.getRedirects();
+    }
+
+    public double getExitMeanNanos() {
+        return metrics.getExitLatency().snapshot().getMean();
+    }
+
+    public long getExitP99Nanos() {
+        return metrics.getExitLatency().snapshot().getPercentile(99);
+    }
+
+    public double getTransitionMeanNanos() {
+        return metrics.getTransitionLatency().snapshot().getMean();
+    }
+
+    public long getTransitionP99Nanos() {
+        return metrics.getTransitionLatency().snapshot().getPercentile(99);
+    }
+
+    public double getEnterMeanNanos() {
+        return metrics.getEnterLatency().snapshot().getMean();
+    }
+
+    public long getEnterP99Nanos() {
+        return metrics.getEnterLatency().snapshot().getPercentile(99);
+    }
+
+    public long getLockAcquisitions() {
+        return metrics.getLockAcquisitions();
+    }
+
+    public double getLockWaitMeanNanos() {
+        return metrics.getLockWait().snapshot().getMean();
+    }
+
+    public long getLockWaitP99Nanos() {
+        return metrics.getLockWait().snapshot().getPercentile(99);
+    }
+
+    public long getLockWaitMaxNanos() {
+        return metrics.getLockWait().snapshot().getMax();
+    }
+
+    public double getLockHoldMeanNanos() {
+        return metrics.getLockHold().snapshot().getMean();
+    }
+
+    public long getLockHoldP99Nanos() {
+        return metrics.getLockHold().snapshot().getPercentile(99);
+    }
+
+    public long getLockHoldMaxNanos() {
+        return metrics.getLockHold().snapshot().getMax();
+    }
+}
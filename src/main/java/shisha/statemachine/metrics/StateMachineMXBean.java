@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link StateMachineMetrics} of a named definition,
+ * registered by {@link StateMachineMonitoring}. Every attribute is read from
+ * counters aggregated as the machines work, so reading them costs the same
+ * whatever the number of machines. Latencies are in nanoseconds; percentiles
+ * and maximums are the upper bound of the {@link LatencyHistogram} bucket
+ * holding them.
+ */
+public interface StateMachineMXBean {
+    String getName();
+
+    int getSamplingPeriod();
+
+    /**
+     * Machines in each state, by state name
+     */
+    Map<String, Long> getPopulation();
+
+    /**
+     * Transitions taken, keyed as <code>source + event -&gt; target</code>
+     */
+    Map<String, Long> getTransitionCounts();
+
+    long getTransitionCount();
+
+    /**
+     * Transitions cancelled by the exit controller
+     */
+    long getCancelledCount();
+
+    /**
+     * Events without transition from the state of the machine
+     */
+    long getUndefinedCount();
+
+    long getRedirectCount();
+
+    double getExitMeanNanos();
+
+    long getExitP99Nanos();
+
+    double getTransitionMeanNanos();
+
+    long getTransitionP99Nanos();
+
+    double getEnterMeanNanos();
+
+    long getEnterP99Nanos();
+
+    /**
+     * Acquisitions of the lock of the strategy, including the ones not timed
+     * when sampling
+     */
+    long getLockAcquisitions();
+
+    double getLockWaitMeanNanos();
+
+    long getLockWaitP99Nanos();
+
+    long getLockWaitMaxNanos();
+
+    double getLockHoldMeanNanos();
+
+    long getLockHoldP99Nanos();
+
+    long getLockHoldMaxNanos();
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the transitions of the state machines sharing a definition,
+ * enabled with
+ * {@link shisha.statemachine.StateMachineDefinitionImpl#enableMetrics()}:
+ * <ul>
+ * <li>Machines in each state.</li>
+ * <li>Transitions taken, by source, event and target, with their latency.</li>
+ * <li>Transitions cancelled by the exit controller, and events without
+ * transition from the current state, by state and event.</li>
+ * <li>Redirections from the enter phase.</li>
+ * <li>Latency of the exit, transition and enter phases.</li>
+ * <li>Time waited for the lock of the strategy and time it was held.</li>
+ * </ul>
+ *
+ * <p>
+ * They are recorded by the {@link shisha.statemachine.TransitionDispatcher},
+ * so the strategies extending
+ * {@link shisha.statemachine.strategy.ReentrantStrategy}, the
+ * {@link shisha.statemachine.CompactStateMachine}s and the
+ * {@link shisha.statemachine.StateMachineArray}s record the same metrics; the
+ * lock is only timed by the strategies. The machines are counted in their
+ * state from the moment they are created; machines that are not used anymore
+ * keep being counted, so the population of the final states is the number of
+ * machines that finished. Slots of an array are counted until they are
+ * released or allocated again. Counters are {@link LongAdder}s, created the
+ * first time the transition is taken, and latencies are
+ * {@link LatencyHistogram}s, striped as threads collide, so recording does
+ * not lock and only allocates the first times. Transitions applied without
+ * locking by the {@link shisha.statemachine.strategy.LockFreeStrategy} are
+ * counted without latency.
+ *
+ * <p>
+ * Reading the clock is the main cost of the metrics, about seven reads per
+ * event. With a sampling period of N, only one out of N events, chosen at
+ * random, is timed: the counters are exact and the latencies a sample. The
+ * time taken by the {@link shisha.statemachine.TransitionListener}s is
+ * included in the phase that follows them.
+ *
+ * <p>
+ * Readers take a {@link #snapshot()}. The metrics of named definitions are
+ * also available through {@link StateMachineMonitoring}.
+ */
+public final class StateMachineMetrics {
+    private final String[] states;
+    private final String[] events;
+    private final int samplingPeriod;
+
+    // Indexed by state
+    private final LongAdder[] population;
+
+    // Indexed by source * events + event, created when first recorded
+    private final AtomicReferenceArray<TransitionCounter> transitions;
+    private final AtomicReferenceArray<LongAdder> cancellations;
+    private final AtomicReferenceArray<LongAdder> undefined;
+
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder lockAcquisitions = new LongAdder();
+    private final LatencyHistogram exitLatency = new LatencyHistogram();
+    private final LatencyHistogram transitionLatency = new LatencyHistogram();
+    private final LatencyHistogram enterLatency = new LatencyHistogram();
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LatencyHistogram lockHold = new LatencyHistogram();
+
+    /**
+     * @param states names of the states, indexed by their ordinal
+     * @param events names of the events, indexed by their ordinal
+     * @param samplingPeriod one out of how many events are timed
+     */
+    public StateMachineMetrics(String[] states, String[] events, int samplingPeriod) {
+        if (samplingPeriod < 1)
+            throw new IllegalArgumentException("The sampling period must be at least 1");
+
+        this.samplingPeriod = samplingPeriod;
+        this.states = states.clone();
+        this.events = events.clone();
+        this.transitions = new AtomicReferenceArray<TransitionCounter>(states.length * events.length);
+        this.cancellations = new AtomicReferenceArray<LongAdder>(states.length * events.length);
+        this.undefined = new AtomicReferenceArray<LongAdder>(states.length * events.length);
+        this.population = new LongAdder[states.length];
+        for (int i = 0; i < states.length; i++)
+            population[i] = new LongAdder();
+    }
+
+    /**
+     * Whether the metrics are for the states and events
+     */
+    boolean isFor(String[] states, String[] events) {
+        return Arrays.equals(this.states, states) && Arrays.equals(this.events, events);
+    }
+
+    public int getSamplingPeriod() {
+        return samplingPeriod;
+    }
+
+    /**
+     * Whether the event being processed has to be timed
+     */
+    public boolean sample() {
+        return samplingPeriod == 1 || ThreadLocalRandom.current().nextInt(samplingPeriod) == 0;
+    }
+
+    /**
+     * Records a machine created in the state
+     */
+    public void created(int state) {
+        population[state].increment();
+    }
+
+    /**
+     * Records a machine that is not counted in the state anymore, like a slot
+     * of a {@link shisha.statemachine.StateMachineArray} given back
+     */
+    public void released(int state) {
+        population[state].decrement();
+    }
+
+    /**
+     * Records a machine changing its state
+     */
+    public void moved(int from, int to) {
+        if (from != to) {
+            population[from].decrement();
+            population[to].increment();
+        }
+    }
+
+    /**
+     * Records a transition and the time taken by each of its phases
+     */
+    public void transition(int source, int event, int target, long exitNanos, long transitionNanos, long enterNanos) {
+        TransitionCounter counter = counter(source, event, target);
+        counter.count.increment();
+        counter.latency.record(exitNanos + transitionNanos + enterNanos);
+        exitLatency.record(exitNanos);
+        transitionLatency.record(transitionNanos);
+        enterLatency.record(enterNanos);
+    }
+
+    /**
+     * Records a transition that was not timed
+     */
+    public void applied(int source, int event, int target) {
+        counter(source, event, target).count.increment();
+    }
+
+    public void cancelled(int source, int event) {
+        adder(cancellations, source * events.length + event).increment();
+    }
+
+    /**
+     * Records an event without transition from the state, or whose guards
+     * did not hold
+     */
+    public void undefined(int state, int event) {
+        adder(undefined, state * events.length + event).increment();
+    }
+
+    public void redirected() {
+        redirects.increment();
+    }
+
+    /**
+     * Counts an acquisition of the lock, timed or not
+     */
+    public void lockAcquired() {
+        lockAcquisitions.increment();
+    }
+
+    public void lockWaited(long nanos) {
+        lockWait.record(nanos);
+    }
+
+    public void lockHeld(long nanos) {
+        lockHold.record(nanos);
+    }
+
+    private TransitionCounter counter(int source, int event, int target) {
+        int cell = source * events.length + event;
+        for (;;) {
+            TransitionCounter head = transitions.get(cell);
+            for (TransitionCounter counter = head; counter != null; counter = counter.next) {
+                if (counter.target == target)
+                    return counter;
+            }
+
+            TransitionCounter created = new TransitionCounter(target, head);
+            if (transitions.compareAndSet(cell, head, created))
+                return created;
+        }
+    }
+
+    private static LongAdder adder(AtomicReferenceArray<LongAdder> adders, int cell) {
+        LongAdder adder = adders.get(cell);
+        if (adder == null) {
+            adders.compareAndSet(cell, null, new LongAdder());
+            adder = adders.get(cell);
+        }
+        return adder;
+    }
+
+    /**
+     * Returns the number of machines in each state, by state name in
+     * definition order. It only reads a counter per state, whatever the
+     * number of machines.
+     */
+    public Map<String, Long> getPopulation() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < states.length; i++)
+            result.put(states[i], population[i].sum());
+        return result;
+    }
+
+    long getRedirects() {
+        return redirects.sum();
+    }
+
+    long getLockAcquisitions() {
+        return lockAcquisitions.sum();
+    }
+
+    LatencyHistogram getExitLatency() {
+        return exitLatency;
+    }
+
+    LatencyHistogram getTransitionLatency() {
+        return transitionLatency;
+    }
+
+    LatencyHistogram getEnterLatency() {
+        return enterLatency;
+    }
+
+    LatencyHistogram getLockWait() {
+        return lockWait;
+    }
+
+    LatencyHistogram getLockHold() {
+        return lockHold;
+    }
+
+    /**
+     * Returns a copy of the metrics. It is not atomic: transitions recorded
+     * meanwhile may be partially in it.
+     */
+    public MetricsSnapshot snapshot() {
+        List<TransitionStats> taken = new ArrayList<TransitionStats>();
+        List<EventStats> cancelled = new ArrayList<EventStats>();
+        List<EventStats> notApplicable = new ArrayList<EventStats>();
+        for (int cell = 0; cell < transitions.length(); cell++) {
+            String source = states[cell / events.length];
+            String event = events[cell % events.length];
+            for (TransitionCounter counter = transitions.get(cell); counter != null; counter = counter.next)
+                taken.add(new TransitionStats(source, event, states[counter.target], counter.count.sum(),
+                        counter.latency.snapshot()));
+            if (cancellations.get(cell) != null)
+                cancelled.add(new EventStats(source, event, cancellations.get(cell).sum()));
+            if (undefined.get(cell) != null)
+                notApplicable.add(new EventStats(source, event, undefined.get(cell).sum()));
+        }
+
+        return new MetricsSnapshot(getPopulation(), taken, cancelled, notApplicable, redirects.sum(),
+                exitLatency.snapshot(), transitionLatency.snapshot(), enterLatency.snapshot(), lockWait.snapshot(),
+                lockHold.snapshot());
+    }
+
+    private static final class TransitionCounter {
+        final int target;
+        final TransitionCounter next;
+        final LongAdder count = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        TransitionCounter(int target, TransitionCounter next) {
+            this.target = target;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the {@link StateMachineMetrics} of the named definitions, see
+ * {@link shisha.statemachine.StateMachineDefinitionImpl#setName(String)}.
+ * Definitions with the same name, like the ones of the instances of an
+ * {@link shisha.statemachine.annotations.AStateMachine} class, share their
+ * metrics. Each name is published in the platform MBean server as a
+ * {@link StateMachineMXBean} named
+ * <code>shisha.statemachine:type=StateMachine,name="&lt;name&gt;"</code>, and
+ * all of them are exposed to Prometheus by the {@link PrometheusExporter}.
+ */
+public final class StateMachineMonitoring {
+    private static Logger l = LoggerFactory.getLogger(StateMachineMonitoring.class);
+
+    public static final String DOMAIN = "shisha.statemachine";
+
+    private static final ConcurrentHashMap<String, StateMachineMetrics> registry =
+            new ConcurrentHashMap<String, StateMachineMetrics>();
+
+    private StateMachineMonitoring() {
+    }
+
+    /**
+     * Returns the metrics registered under the name, registering new ones the
+     * first time. Their sampling period is the one of the first definition
+     * using the name.
+     * 
+     * @throws IllegalArgumentException if the name is used by a definition
+     *         with other states or events
+     */
+    public static StateMachineMetrics metrics(String name, String[] states, String[] events, int samplingPeriod) {
+        StateMachineMetrics metrics = registry.get(name);
+        if (metrics == null) {
+            synchronized (registry) {
+                metrics = registry.get(name);
+                if (metrics == null) {
+                    metrics = new StateMachineMetrics(states, events, samplingPeriod);
+                    register(name, metrics);
+                    registry.put(name, metrics);
+                }
+            }
+        }
+
+        if (!metrics.isFor(states, events))
+            throw new IllegalArgumentException("Metrics " + name + " are registered for other states or events");
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics registered under the name, or null
+     */
+    public static StateMachineMetrics get(String name) {
+        return registry.get(name);
+    }
+
+    /**
+     * Returns the registered names, sorted
+     */
+    public static Set<String> getNames() {
+        return new TreeSet<String>(registry.keySet());
+    }
+
+    /**
+     * Returns the registered metrics, sorted by name
+     */
+    public static Map<String, StateMachineMetrics> getAll() {
+        return new TreeMap<String, StateMachineMetrics>(registry);
+    }
+
+    /**
+     * Unregisters the metrics and their bean. Machines created before keep
+     * recording them, while definitions frozen afterwards get new ones.
+     */
+    public static void remove(String name) {
+        synchronized (registry) {
+            if (registry.remove(name) == null)
+                return;
+
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = objectName(name);
+                if (server.isRegistered(objectName))
+                    server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                l.warn("#remove: could not unregister the bean of " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the bean of the metrics
+     */
+    public static ObjectName objectName(String name) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=StateMachine,name=" + ObjectName.quote(name));
+    }
+
+    private static void register(String name, StateMachineMetrics metrics) {
+        // Metrics work without JMX, so failures are only reported
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StateMachineBean(name, metrics),
+                    objectName(name));
+            l.debug("#register: registered the bean of " + name);
+        } catch (JMException e) {
+            l.warn("#register: could not register the bean of " + name, e);
+        }
+    }
+}
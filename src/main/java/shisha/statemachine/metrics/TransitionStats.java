@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+/**
+ * Number of times a transition was taken, and its latency
+ */
+public final class TransitionStats {
+    private final String source;
+    private final String event;
+    private final String target;
+    private final long count;
+    private final HistogramSnapshot latency;
+
+    TransitionStats(String source, String event, String target, long count, HistogramSnapshot latency) {
+        this.source = source;
+        this.event = event;
+        this.target = target;
+        this.count = count;
+        this.latency = latency;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the time taken by the three phases of the transition. Its count
+     * is lower than {@link #getCount()} if some were applied without timing.
+     */
+    public HistogramSnapshot getLatency() {
+        return latency;
+    }
+
+    public String toString() {
+        return "[" + source + " + " + event + " -> " + target + "] " + count + " (" + latency + ")";
+    }
+}
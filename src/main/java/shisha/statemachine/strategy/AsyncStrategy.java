@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineStrategy;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.TransitionTable;
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineException;
+
+/**
+ * Processes the events of a state machine one at a time on an executor, so
+ * callers never wait for the transitions nor hold a lock while controllers
+ * block. Each state machine needs its own instance, which serializes its
+ * events; any number of them can share the executor. By default it is one
+ * creating a virtual thread per task when running on Java 21 or later, and a
+ * pool of daemon threads otherwise.
+ *
+ * <p>
+ * Transition and enter controllers may {@link TransitionInfo#defer(CompletionStage)}
+ * the end of the transition until some asynchronous work completes. The
+ * state machine stays in transition meanwhile, as its
+ * {@link StateMachineImpl#getSnapshot() snapshot} tells, and new events are
+ * queued and processed after it. When <code>releaseWhilePending</code> is set, the
+ * executor thread is released while waiting, otherwise it blocks.
+ *
+ * <p>
+ * Controllers may send events to their own state machine: they are queued and
+ * processed after the current one. {@link #processEvent(StateMachineImpl, int, Object)}
+ * and {@link #tryProcessEvent(StateMachineImpl, int, Object)} only queue the
+ * event; use {@link #processEventAsync(StateMachineImpl, int, Object)} to get
+ * its result.
+ */
+public class AsyncStrategy implements StateMachineStrategy {
+    private static Logger l = LoggerFactory.getLogger(AsyncStrategy.class);
+
+    private static Executor defaultExecutor;
+
+    private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<Message>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor executor;
+    private final boolean releaseWhilePending;
+    private final ReentrantStrategy engine = new NonReentrantStrategy();
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Uses the default executor, blocking its threads while transitions are
+     * deferred, which is cheap with virtual threads
+     */
+    public AsyncStrategy() {
+        this(getDefaultExecutor(), false);
+    }
+
+    /**
+     * @param releaseWhilePending release the executor thread while a deferred
+     *        transition is pending, instead of blocking it
+     */
+    public AsyncStrategy(Executor executor, boolean releaseWhilePending) {
+        if (executor == null)
+            throw new IllegalArgumentException("The executor cannot be null");
+
+        this.executor = executor;
+        this.releaseWhilePending = releaseWhilePending;
+        engine.collectPending();
+    }
+
+    /**
+     * Returns the executor shared by the strategies created without one
+     */
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            try {
+                defaultExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                l.debug("#getDefaultExecutor: using virtual threads");
+            } catch (ReflectiveOperationException e) {
+                defaultExecutor = newDaemonPool();
+            }
+        }
+        return defaultExecutor;
+    }
+
+    private static ExecutorService newDaemonPool() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "statemachine-async");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void processEvent(StateMachineImpl statemachine, String event, Object object)
+            throws EventNotDefinedException {
+        int eventId = statemachine.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        processEvent(statemachine, eventId, object);
+    }
+
+    /**
+     * Queues the event
+     */
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws EventNotDefinedException {
+        if (eventId < 0 || eventId >= statemachine.getTransitionTable().getEventCount())
+            throw new EventNotDefinedException("Event " + eventId + " not defined", StateMachineException.STACKLESS);
+
+        enqueue(new Message(statemachine, eventId, object, null));
+    }
+
+    /**
+     * Queues the event and returns {@link ProcessResult#QUEUED} or
+     * {@link ProcessResult#UNKNOWN_EVENT}
+     */
+    public ProcessResult tryProcessEvent(StateMachineImpl statemachine, int eventId, Object object) {
+        if (eventId < 0 || eventId >= statemachine.getTransitionTable().getEventCount())
+            return ProcessResult.UNKNOWN_EVENT;
+
+        enqueue(new Message(statemachine, eventId, object, null));
+        return ProcessResult.QUEUED;
+    }
+
+    /**
+     * Queues the event and returns a stage completed with its result once it
+     * has been processed and the stages its controllers deferred it to have
+     * completed
+     */
+    public CompletionStage<ProcessResult> processEventAsync(StateMachineImpl statemachine, int eventId,
+            Object object) {
+        if (eventId < 0 || eventId >= statemachine.getTransitionTable().getEventCount())
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        CompletableFuture<ProcessResult> future = new CompletableFuture<ProcessResult>();
+        enqueue(new Message(statemachine, eventId, object, future));
+        return future;
+    }
+
+    /**
+     * Queues the events in order. Every defined event is
+     * {@link ProcessResult#QUEUED}; a batch stopping on failure stops at the
+     * first one that is not defined.
+     */
+    public ProcessResult[] processEvents(StateMachineImpl statemachine, EventInfo[] events, int offset, int length,
+            boolean stopOnFailure) {
+        ProcessResult[] results = new ProcessResult[length];
+        TransitionTable table = statemachine.getTransitionTable();
+        for (int i = 0; i < length; i++) {
+            EventInfo event = events[offset + i];
+            int eventId = table.getEventId(event.getEvent());
+            if (eventId == TransitionTable.UNDEFINED) {
+                results[i] = ProcessResult.UNKNOWN_EVENT;
+                if (stopOnFailure) {
+                    Arrays.fill(results, i + 1, length, ProcessResult.SKIPPED);
+                    break;
+                }
+            } else {
+                enqueue(new Message(statemachine, eventId, event.getObject(), null));
+                results[i] = ProcessResult.QUEUED;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of events waiting to be processed
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void enqueue(Message message) {
+        queue.offer(message);
+        if (scheduled.compareAndSet(false, true))
+            executor.execute(drain);
+    }
+
+    private void drain() {
+        Message message;
+        while ((message = queue.poll()) != null) {
+            ProcessResult result;
+            try {
+                result = engine.processWithoutLock(message.statemachine, message.eventId, message.object);
+            } catch (Throwable e) {
+                // Errors and checked exceptions of annotated controllers
+                // fail the event, and the queue goes on
+                engine.takePending();
+                message.fail(e);
+                continue;
+            }
+
+            CompletionStage<?> pending = engine.takePending();
+            if (pending == null) {
+                message.done(result);
+            } else if (!releaseWhilePending) {
+                Throwable failure = null;
+                try {
+                    pending.toCompletableFuture().join();
+                } catch (CompletionException e) {
+                    failure = e.getCause();
+                } catch (Throwable e) {
+                    // Cancelled stages fail the event too
+                    failure = e;
+                } finally {
+                    message.statemachine.endTransition();
+                }
+                if (failure == null)
+                    message.done(result);
+                else
+                    message.fail(failure);
+            } else {
+                // Still in transition: the queue is not processed, but new
+                // events are queued, until the stage completes
+                final Message deferred = message;
+                final ProcessResult applied = result;
+                pending.whenComplete(new BiConsumer<Object, Throwable>() {
+                    public void accept(Object value, Throwable failure) {
+                        deferred.statemachine.endTransition();
+                        if (failure == null)
+                            deferred.done(applied);
+                        else
+                            deferred.fail(failure instanceof CompletionException ? failure.getCause() : failure);
+                        executor.execute(drain);
+                    }
+                });
+                return;
+            }
+        }
+
+        scheduled.set(false);
+        // Events queued after the last poll and before clearing the flag
+        // would be left behind
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+            executor.execute(drain);
+    }
+
+    private static final class Message {
+        final StateMachineImpl statemachine;
+        final int eventId;
+        final Object object;
+        final CompletableFuture<ProcessResult> future;
+
+        Message(StateMachineImpl statemachine, int eventId, Object object,
+                CompletableFuture<ProcessResult> future) {
+            this.statemachine = statemachine;
+            this.eventId = eventId;
+            this.object = object;
+            this.future = future;
+        }
+
+        void done(ProcessResult result) {
+            if (future != null)
+                future.complete(result);
+            else if (!result.isAccepted() && l.isDebugEnabled())
+                l.debug("#drain: event " + statemachine.getTransitionTable().getEventName(eventId)
+                        + " not processed in state " + statemachine.getCurrentState() + ": " + result);
+        }
+
+        void fail(Throwable failure) {
+            if (future != null)
+                future.completeExceptionally(failure);
+            else
+                l.error("#drain: failed processing event "
+                        + statemachine.getTransitionTable().getEventName(eventId), failure);
+        }
+    }
+}
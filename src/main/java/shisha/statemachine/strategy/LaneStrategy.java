@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineStrategy;
+import shisha.statemachine.TransitionTable;
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.MailboxFullException;
+import shisha.statemachine.exceptions.StateMachineException;
+
+/**
+ * Strategy processing the events of a state machine in a lane of
+ * {@link ShardedLanes}. Events are published to the lane and processed later
+ * by its thread, as the {@link NonReentrantStrategy} does but without locking.
+ * Events sent from a controller are processed after the current one.
+ *
+ * <p>
+ * {@link #processEvent(StateMachineImpl, int, Object)} only reports the
+ * errors detected when publishing the event. Use
+ * {@link #submit(StateMachineImpl, int, Object)} to get the result of the
+ * event, or the exception thrown by a controller.
+ */
+public class LaneStrategy implements StateMachineStrategy {
+    private final ShardedLanes.Lane lane;
+
+    LaneStrategy(ShardedLanes.Lane lane) {
+        this.lane = lane;
+    }
+
+    public void processEvent(StateMachineImpl statemachine, String event, Object object)
+            throws EventNotDefinedException, MailboxFullException {
+        int eventId = statemachine.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        processEvent(statemachine, eventId, object);
+    }
+
+    /**
+     * Publishes the event to the lane. Throws {@link MailboxFullException} if
+     * the lane is full and the event is sent from a controller, or if the
+     * lanes are closed.
+     */
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws EventNotDefinedException, MailboxFullException {
+        TransitionTable table = statemachine.getTransitionTable();
+        if (eventId < 0 || eventId >= table.getEventCount())
+            throw new EventNotDefinedException("Event " + eventId + " not defined", StateMachineException.STACKLESS);
+
+        if (!lane.publish(statemachine, eventId, object, null))
+            throw new MailboxFullException("The lane cannot take the event " + table.getEventName(eventId),
+                    StateMachineException.STACKLESS);
+    }
+
+    /**
+     * Publishes the event and returns {@link ProcessResult#QUEUED},
+     * {@link ProcessResult#REJECTED} or {@link ProcessResult#UNKNOWN_EVENT}
+     */
+    public ProcessResult tryProcessEvent(StateMachineImpl statemachine, int eventId, Object object) {
+        if (eventId < 0 || eventId >= statemachine.getTransitionTable().getEventCount())
+            return ProcessResult.UNKNOWN_EVENT;
+
+        return lane.publish(statemachine, eventId, object, null) ? ProcessResult.QUEUED : ProcessResult.REJECTED;
+    }
+
+    /**
+     * Publishes the events in order. The results are the ones of
+     * {@link #tryProcessEvent(StateMachineImpl, int, Object)}: a batch stopping
+     * on failure stops at the first event that cannot be published or is not
+     * defined.
+     */
+    public ProcessResult[] processEvents(StateMachineImpl statemachine, EventInfo[] events, int offset, int length,
+            boolean stopOnFailure) {
+        ProcessResult[] results = new ProcessResult[length];
+        TransitionTable table = statemachine.getTransitionTable();
+        for (int i = 0; i < length; i++) {
+            EventInfo event = events[offset + i];
+            int eventId = table.getEventId(event.getEvent());
+            if (eventId == TransitionTable.UNDEFINED)
+                results[i] = ProcessResult.UNKNOWN_EVENT;
+            else if (lane.publish(statemachine, eventId, event.getObject(), null))
+                results[i] = ProcessResult.QUEUED;
+            else
+                results[i] = ProcessResult.REJECTED;
+
+            if (stopOnFailure && results[i].isFailure()) {
+                Arrays.fill(results, i + 1, length, ProcessResult.SKIPPED);
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Same as {@link #submit(StateMachineImpl, int, Object)}
+     */
+    public CompletionStage<ProcessResult> processEventAsync(StateMachineImpl statemachine, int eventId,
+            Object object) {
+        return submit(statemachine, eventId, object);
+    }
+
+    public CompletableFuture<ProcessResult> submit(StateMachineImpl statemachine, String event, Object object) {
+        int eventId = statemachine.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        return submit(statemachine, eventId, object);
+    }
+
+    /**
+     * Publishes the event and returns a future completed with its result once
+     * the lane has processed it, or exceptionally with the exception thrown by
+     * a controller. It is completed with {@link ProcessResult#REJECTED} if the
+     * event cannot be published.
+     */
+    public CompletableFuture<ProcessResult> submit(StateMachineImpl statemachine, int eventId, Object object) {
+        if (eventId < 0 || eventId >= statemachine.getTransitionTable().getEventCount())
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        CompletableFuture<ProcessResult> future = new CompletableFuture<ProcessResult>();
+        if (!lane.publish(statemachine, eventId, object, future))
+            future.complete(ProcessResult.REJECTED);
+        return future;
+    }
+}
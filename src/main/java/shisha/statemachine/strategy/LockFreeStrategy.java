@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionTable;
+import shisha.statemachine.exceptions.RedirectChainTooLongException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineBusyException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.metrics.StateMachineMetrics;
+
+/**
+ * Strategy for state machines whose transitions are mostly plain state
+ * changes, like the ones tracking the status of an entity. Transitions without
+ * exit, transition nor enter controllers, see
+ * {@link TransitionTable#isControllerFree(int, int)}, are applied with a
+ * compare and set of the current state, so concurrent threads never wait for
+ * each other. The rest of them are processed holding a lock, as the
+ * {@link ReentrantStrategy} does, and the state is locked meanwhile so no
+ * other thread changes it until the transition and its redirections are done.
+ *
+ * <p>
+ * Events applied without locking are not counted in
+ * {@link #getChainLengthHistogram()}, and they are counted without latency
+ * in the {@link StateMachineMetrics}.
+ */
+public class LockFreeStrategy extends ReentrantStrategy {
+    private static Logger l = LoggerFactory.getLogger(LockFreeStrategy.class);
+
+    /**
+     * Reentrant transitions are not allowed, as in the
+     * {@link NonReentrantStrategy}
+     */
+    public LockFreeStrategy() {
+        this(false);
+    }
+
+    public LockFreeStrategy(boolean allowsReentrant) {
+        super(allowsReentrant);
+    }
+
+    /**
+     * @param lockPolicy how the lock is acquired for the transitions with
+     *        controllers
+     */
+    public LockFreeStrategy(boolean allowsReentrant, LockPolicy lockPolicy) {
+        super(allowsReentrant, false, DEFAULT_MAX_CHAIN_LENGTH, lockPolicy);
+    }
+
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws ReentrantTransitionNotAllowed, StateMachineBusyException, RedirectChainTooLongException,
+            StateMachineDefinitionException {
+        if (!compareAndSet(statemachine, eventId))
+            super.processEvent(statemachine, eventId, object);
+    }
+
+    public ProcessResult tryProcessEvent(StateMachineImpl statemachine, int eventId, Object object) {
+        if (compareAndSet(statemachine, eventId))
+            return ProcessResult.APPLIED;
+        return super.tryProcessEvent(statemachine, eventId, object);
+    }
+
+    /**
+     * Locks the state, so it is not changed with a compare and set while the
+     * lock is held. Batches are always processed holding the lock.
+     */
+    protected boolean lockStateMachine(StateMachineImpl statemachine) {
+        return statemachine.lockState();
+    }
+
+    protected void unlockStateMachine(StateMachineImpl statemachine) {
+        statemachine.unlockState();
+    }
+
+    /**
+     * Applies the event if its transition from the current state is controller
+     * free. Returns false if the event has to be processed with the lock.
+     */
+    private boolean compareAndSet(StateMachineImpl statemachine, int eventId) {
+        TransitionTable table = statemachine.getTransitionTable();
+        if (eventId < 0 || eventId >= table.getEventCount())
+            return false;
+
+        int source = statemachine.getCurrentStateId();
+        while (table.isControllerFree(source, eventId)) {
+            int target = table.getTargetState(source, eventId);
+            if (statemachine.compareAndSetCurrentStateId(source, target)) {
+                StateMachineMetrics metrics = table.getMetrics();
+                if (metrics != null)
+                    metrics.applied(source, eventId, target);
+                if (l.isDebugEnabled())
+                    l.debug("#processEvent: " + table.getStateName(source) + " + " + table.getEventName(eventId)
+                            + " -> " + table.getStateName(target));
+                return true;
+            }
+
+            // Either another thread changed the state or it is running a
+            // transition with controllers
+            if (statemachine.isStateLocked())
+                return false;
+            source = statemachine.getCurrentStateId();
+        }
+        return false;
+    }
+}
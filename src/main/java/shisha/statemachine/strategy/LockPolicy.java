@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How a strategy acquires the lock of its state machine:
+ * <ul>
+ * <li>{@link #blocking(boolean)} waits as long as needed. It is the default.</li>
+ * <li>{@link #bounded(long, TimeUnit, boolean)} gives up after a timeout, and
+ * the event is reported as {@link shisha.statemachine.ProcessResult#BUSY}.</li>
+ * <li>{@link #spinning(int, boolean)} retries a number of times before
+ * parking, for transitions shorter than the cost of parking and waking up a
+ * thread. Spinning threads do not queue, so they may get the lock before
+ * the ones waiting on a fair lock.</li>
+ * </ul>
+ * Fair locks are granted in arrival order, at the cost of throughput.
+ *
+ * <p>
+ * A {@link #measured()} policy makes the strategy record how long threads wait
+ * for the lock and how long they hold it, see {@link LockStats}. It costs a
+ * few clock reads per event.
+ */
+public final class LockPolicy {
+    private static final int BLOCKING = 0;
+    private static final int BOUNDED = 1;
+    private static final int SPINNING = 2;
+
+    private final int mode;
+    private final boolean fair;
+    private final long timeoutNanos;
+    private final int spins;
+    private final boolean measured;
+
+    private LockPolicy(int mode, boolean fair, long timeoutNanos, int spins, boolean measured) {
+        this.mode = mode;
+        this.fair = fair;
+        this.timeoutNanos = timeoutNanos;
+        this.spins = spins;
+        this.measured = measured;
+    }
+
+    /**
+     * Waits for the lock as long as needed
+     */
+    public static LockPolicy blocking(boolean fair) {
+        return new LockPolicy(BLOCKING, fair, 0, 0, false);
+    }
+
+    /**
+     * Waits for the lock up to the timeout
+     */
+    public static LockPolicy bounded(long timeout, TimeUnit unit, boolean fair) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("The timeout cannot be negative");
+        return new LockPolicy(BOUNDED, fair, unit.toNanos(timeout), 0, false);
+    }
+
+    /**
+     * Tries to get the lock <code>spins</code> times before waiting for it as
+     * long as needed
+     */
+    public static LockPolicy spinning(int spins, boolean fair) {
+        if (spins < 0)
+            throw new IllegalArgumentException("The spins cannot be negative");
+        return new LockPolicy(SPINNING, fair, 0, spins, false);
+    }
+
+    /**
+     * Returns the same policy recording wait and hold times
+     */
+    public LockPolicy measured() {
+        return new LockPolicy(mode, fair, timeoutNanos, spins, true);
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    public boolean isMeasured() {
+        return measured;
+    }
+
+    StrategyLock newLock() {
+        return new StrategyLock(fair);
+    }
+
+    /**
+     * Returns false if the lock was not acquired before the deadline. An
+     * interrupted thread gives up as well, keeping its interrupted status.
+     */
+    boolean acquire(ReentrantLock lock) {
+        switch (mode) {
+        case BOUNDED:
+            try {
+                return lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        case SPINNING:
+            for (int i = 0; i < spins; i++) {
+                if (lock.tryLock())
+                    return true;
+            }
+            lock.lock();
+            return true;
+        default:
+            lock.lock();
+            return true;
+        }
+    }
+
+    public String toString() {
+        String name = mode == BOUNDED ? "bounded(" + timeoutNanos + "ns)"
+                : mode == SPINNING ? "spinning(" + spins + ")" : "blocking";
+        return name + (fair ? ", fair" : "") + (measured ? ", measured" : "");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Lock statistics of a strategy. Times are only recorded when its
+ * {@link LockPolicy} is {@link LockPolicy#measured() measured}; timeouts are
+ * always counted. Values are updated as the locks are used and read without
+ * locking, so they may be slightly out of step with each other.
+ */
+public final class LockStats {
+    private static final AtomicLongFieldUpdater<LockStats> ACQUISITIONS = updater("acquisitions");
+    private static final AtomicLongFieldUpdater<LockStats> WAIT = updater("waitNanos");
+    private static final AtomicLongFieldUpdater<LockStats> MAX_WAIT = updater("maxWaitNanos");
+    private static final AtomicLongFieldUpdater<LockStats> HOLD = updater("holdNanos");
+    private static final AtomicLongFieldUpdater<LockStats> MAX_HOLD = updater("maxHoldNanos");
+    private static final AtomicLongFieldUpdater<LockStats> TIMEOUTS = updater("timeouts");
+
+    // Strategies sharing locks among machines update them from many threads
+    private volatile long acquisitions;
+    private volatile long waitNanos;
+    private volatile long maxWaitNanos;
+    private volatile long holdNanos;
+    private volatile long maxHoldNanos;
+    private volatile long timeouts;
+
+    LockStats() {
+    }
+
+    private static AtomicLongFieldUpdater<LockStats> updater(String field) {
+        return AtomicLongFieldUpdater.newUpdater(LockStats.class, field);
+    }
+
+    void waited(long nanos) {
+        ACQUISITIONS.incrementAndGet(this);
+        WAIT.addAndGet(this, nanos);
+        max(MAX_WAIT, nanos);
+    }
+
+    void held(long nanos) {
+        HOLD.addAndGet(this, nanos);
+        max(MAX_HOLD, nanos);
+    }
+
+    void timedOut() {
+        TIMEOUTS.incrementAndGet(this);
+    }
+
+    private void max(AtomicLongFieldUpdater<LockStats> max, long nanos) {
+        long current;
+        while (nanos > (current = max.get(this)) && !max.compareAndSet(this, current, nanos))
+            ;
+    }
+
+    /**
+     * Times a lock was acquired, not counting reentrant acquisitions
+     */
+    public long getAcquisitions() {
+        return acquisitions;
+    }
+
+    /**
+     * Times a lock was not acquired before the deadline
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Total time threads waited for the locks before getting them
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * Total time the locks were held
+     */
+    public long getHoldNanos() {
+        return holdNanos;
+    }
+
+    public long getMaxHoldNanos() {
+        return maxHoldNanos;
+    }
+
+    public String toString() {
+        return "acquisitions=" + acquisitions + ", timeouts=" + timeouts + ", waitNanos=" + waitNanos
+                + ", maxWaitNanos=" + maxWaitNanos + ", holdNanos=" + holdNanos + ", maxHoldNanos=" + maxHoldNanos;
+    }
+}
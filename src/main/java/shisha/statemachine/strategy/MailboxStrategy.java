@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineStrategy;
+import shisha.statemachine.TransitionTable;
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.MailboxFullException;
+import shisha.statemachine.exceptions.StateMachineException;
+
+/**
+ * Actor like strategy: events are queued in a mailbox and processed one at a
+ * time by a single thread, so producers never wait for the transitions of
+ * other threads. When there is no executor, the thread that finds the mailbox
+ * idle processes the queued events, including the ones other threads queue
+ * meanwhile, before returning. Otherwise they are processed by the executor.
+ *
+ * <p>
+ * Events are processed as the {@link NonReentrantStrategy} does. Controllers
+ * may send events to their own state machine: they are queued and processed
+ * after the current one, instead of being rejected as reentrant.
+ *
+ * <p>
+ * The mailbox is bounded. When it is full, the {@link Overflow} policy decides
+ * whether the producer waits, the event is rejected or the oldest queued
+ * event is dropped. The thread processing the mailbox never waits for room in
+ * it, as it is the one making it: its events are rejected instead.
+ *
+ * <p>
+ * {@link #processEvent(StateMachineImpl, int, Object)} only reports the
+ * errors detected when queueing the event. Use
+ * {@link #submit(StateMachineImpl, int, Object)} to get the result of the
+ * event, or the exception thrown by a controller.
+ */
+public class MailboxStrategy implements StateMachineStrategy {
+    private static Logger l = LoggerFactory.getLogger(MailboxStrategy.class);
+
+    /** What to do with an event when the mailbox is full */
+    public enum Overflow {
+        /** Wait until there is room for the event */
+        BLOCK,
+
+        /** Do not queue the event */
+        REJECT,
+
+        /** Drop the oldest event in the mailbox and queue the new one */
+        DROP_OLDEST
+    }
+
+    private final ConcurrentLinkedQueue<Message> mailbox = new ConcurrentLinkedQueue<Message>();
+    private final Semaphore room;
+    private final Overflow overflow;
+    private final Executor executor;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile Thread drainer;
+
+    // Only used by the thread draining the mailbox, so events are processed
+    // without its lock. Events sent from a controller are queued.
+    private final ReentrantStrategy engine = new NonReentrantStrategy();
+
+    /**
+     * The mailbox is processed by the threads sending the events
+     */
+    public MailboxStrategy(int capacity, Overflow overflow) {
+        this(capacity, overflow, null);
+    }
+
+    /**
+     * @param executor runs the task processing the mailbox, or null to have it
+     *        processed by the threads sending the events
+     */
+    public MailboxStrategy(int capacity, Overflow overflow, Executor executor) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        if (overflow == null)
+            throw new IllegalArgumentException("The overflow policy cannot be null");
+
+        this.room = new Semaphore(capacity);
+        this.overflow = overflow;
+        this.executor = executor;
+    }
+
+    public void processEvent(StateMachineImpl statemachine, String event, Object object)
+            throws EventNotDefinedException, MailboxFullException {
+        int eventId = statemachine.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        processEvent(statemachine, eventId, object);
+    }
+
+    /**
+     * Queues the event. Throws {@link MailboxFullException} if the mailbox is
+     * full and the event is rejected.
+     */
+    public void processEvent(StateMachineImpl statemachine, int eventId, Object object)
+            throws EventNotDefinedException, MailboxFullException {
+        TransitionTable table = statemachine.getTransitionTable();
+        if (eventId < 0 || eventId >= table.getEventCount())
+            throw new EventNotDefinedException("Event " + eventId + " not defined", StateMachineException.STACKLESS);
+
+        if (!offer(new Message(statemachine, eventId, object, null)))
+            throw new MailboxFullException("The mailbox is full. Event " + table.getEventName(eventId)
+                    + " rejected", StateMachineException.STACKLESS);
+        drain();
+    }
+
+    /**
+     * Queues the event and returns {@link ProcessResult#QUEUED},
+     * {@link ProcessResult#REJECTED} or {@link ProcessResult#UNKNOWN_EVENT}
+     */
+    public ProcessResult tryProcessEvent(StateMachineImpl statemachine, int eventId, Object object) {
+        if (eventId < 0 || eventId >= statemachine.getTransitionTable().getEventCount())
+            return ProcessResult.UNKNOWN_EVENT;
+
+        if (!offer(new Message(statemachine, eventId, object, null)))
+            return ProcessResult.REJECTED;
+        drain();
+        return ProcessResult.QUEUED;
+    }
+
+    /**
+     * Queues the events and processes the mailbox once for all of them. The
+     * results are the ones of {@link #tryProcessEvent(StateMachineImpl, int, Object)}:
+     * a batch stopping on failure stops at the first event rejected or not
+     * defined.
+     */
+    public ProcessResult[] processEvents(StateMachineImpl statemachine, EventInfo[] events, int offset, int length,
+            boolean stopOnFailure) {
+        ProcessResult[] results = new ProcessResult[length];
+        TransitionTable table = statemachine.getTransitionTable();
+        for (int i = 0; i < length; i++) {
+            EventInfo event = events[offset + i];
+            int eventId = table.getEventId(event.getEvent());
+            if (eventId == TransitionTable.UNDEFINED)
+                results[i] = ProcessResult.UNKNOWN_EVENT;
+            else if (offer(new Message(statemachine, eventId, event.getObject(), null)))
+                results[i] = ProcessResult.QUEUED;
+            else
+                results[i] = ProcessResult.REJECTED;
+
+            if (stopOnFailure && results[i].isFailure()) {
+                Arrays.fill(results, i + 1, length, ProcessResult.SKIPPED);
+                break;
+            }
+        }
+        drain();
+        return results;
+    }
+
+    /**
+     * Same as {@link #submit(StateMachineImpl, int, Object)}
+     */
+    public CompletionStage<ProcessResult> processEventAsync(StateMachineImpl statemachine, int eventId,
+            Object object) {
+        return submit(statemachine, eventId, object);
+    }
+
+    public CompletableFuture<ProcessResult> submit(StateMachineImpl statemachine, String event, Object object) {
+        int eventId = statemachine.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        return submit(statemachine, eventId, object);
+    }
+
+    /**
+     * Queues the event and returns a future completed with its result once it
+     * has been processed, or exceptionally with the exception thrown by a
+     * controller. If the mailbox is full, the future is completed with
+     * {@link ProcessResult#REJECTED}, or later with
+     * {@link ProcessResult#DROPPED} if it is dropped to make room for others.
+     */
+    public CompletableFuture<ProcessResult> submit(StateMachineImpl statemachine, int eventId, Object object) {
+        if (eventId < 0 || eventId >= statemachine.getTransitionTable().getEventCount())
+            return CompletableFuture.completedFuture(ProcessResult.UNKNOWN_EVENT);
+
+        CompletableFuture<ProcessResult> future = new CompletableFuture<ProcessResult>();
+        if (!offer(new Message(statemachine, eventId, object, future)))
+            future.complete(ProcessResult.REJECTED);
+        drain();
+        return future;
+    }
+
+    /**
+     * Returns the number of events waiting in the mailbox
+     */
+    public int getQueueSize() {
+        return mailbox.size();
+    }
+
+    /**
+     * Returns false if the event is rejected
+     */
+    private boolean offer(Message message) {
+        if (!room.tryAcquire()) {
+            if (overflow == Overflow.REJECT)
+                return false;
+
+            if (overflow == Overflow.BLOCK) {
+                if (Thread.currentThread() == drainer)
+                    return false;
+                try {
+                    room.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            } else {
+                // The room of the dropped event is taken by the new one
+                while (!room.tryAcquire()) {
+                    Message oldest = mailbox.poll();
+                    if (oldest != null) {
+                        if (l.isDebugEnabled())
+                            l.debug("#offer: mailbox full, dropping " + oldest);
+                        oldest.done(ProcessResult.DROPPED);
+                        break;
+                    }
+                    Thread.yield();
+                }
+            }
+        }
+
+        mailbox.offer(message);
+        return true;
+    }
+
+    /**
+     * Processes the mailbox, or schedules it with the executor, unless another
+     * thread is already doing it
+     */
+    private void drain() {
+        if (!draining.compareAndSet(false, true))
+            return;
+
+        if (executor == null) {
+            run();
+        } else {
+            executor.execute(new Runnable() {
+                public void run() {
+                    MailboxStrategy.this.run();
+                }
+            });
+        }
+    }
+
+    private void run() {
+        for (;;) {
+            drainer = Thread.currentThread();
+            try {
+                Message message;
+                while ((message = mailbox.poll()) != null) {
+                    room.release();
+                    message.run(engine);
+                }
+            } finally {
+                drainer = null;
+                draining.set(false);
+            }
+
+            // Events queued after the last poll and before clearing the flag
+            // would be left behind
+            if (mailbox.isEmpty() || !draining.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    private static final class Message {
+        private final StateMachineImpl statemachine;
+        private final int eventId;
+        private final Object object;
+        private final CompletableFuture<ProcessResult> future;
+
+        Message(StateMachineImpl statemachine, int eventId, Object object,
+                CompletableFuture<ProcessResult> future) {
+            this.statemachine = statemachine;
+            this.eventId = eventId;
+            this.object = object;
+            this.future = future;
+        }
+
+        void run(ReentrantStrategy engine) {
+            try {
+                ProcessResult result = engine.processWithoutLock(statemachine, eventId, object);
+                if (future != null)
+                    future.complete(result);
+                else if (!result.isAccepted() && l.isDebugEnabled())
+                    l.debug("#run: " + this + " not processed: " + result);
+            } catch (Throwable e) {
+                // Errors and checked exceptions of annotated controllers fail
+                // the event, not the producer draining the mailbox
+                if (future != null)
+                    future.completeExceptionally(e);
+                else
+                    l.error("#run: controller failed processing " + this, e);
+            }
+        }
+
+        void done(ProcessResult result) {
+            if (future != null)
+                future.complete(result);
+        }
+
+        public String toString() {
+            return "event " + statemachine.getTransitionTable().getEventName(eventId) + " in state "
+                    + statemachine.getCurrentState();
+        }
+    }
+}
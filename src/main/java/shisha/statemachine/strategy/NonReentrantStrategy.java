@@ -19,4 +19,32 @@ public class NonReentrantStrategy extends ReentrantStrategy {
     public NonReentrantStrategy() {
         super();
     }
+
+    /**
+     * See {@link ReentrantStrategy#ReentrantStrategy(boolean, boolean)}
+     */
+    public NonReentrantStrategy(boolean reuseTransitionInfo) {
+        super(false, reuseTransitionInfo);
+    }
+
+    /**
+     * See {@link ReentrantStrategy#ReentrantStrategy(boolean, boolean, int)}
+     */
+    public NonReentrantStrategy(boolean reuseTransitionInfo, int maxChainLength) {
+        super(false, reuseTransitionInfo, maxChainLength);
+    }
+
+    /**
+     * See {@link ReentrantStrategy#ReentrantStrategy(boolean, boolean, int, LockPolicy)}
+     */
+    public NonReentrantStrategy(LockPolicy lockPolicy) {
+        super(false, false, DEFAULT_MAX_CHAIN_LENGTH, lockPolicy);
+    }
+
+    /**
+     * See {@link ReentrantStrategy#ReentrantStrategy(boolean, boolean, int, LockPolicy)}
+     */
+    public NonReentrantStrategy(boolean reuseTransitionInfo, int maxChainLength, LockPolicy lockPolicy) {
+        super(false, reuseTransitionInfo, maxChainLength, lockPolicy);
+    }
 }
@@ -15,34 +15,60 @@
  */ 
 package shisha.statemachine.strategy;
 
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import shisha.statemachine.EnterStateController;
 import shisha.statemachine.EventInfo;
-import shisha.statemachine.ExitStateController;
-import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.ProcessResult;
 import shisha.statemachine.StateMachineImpl;
 import shisha.statemachine.StateMachineStrategy;
-import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionDispatcher;
+import shisha.statemachine.TransitionDispatcher.StateAccessor;
 import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.TransitionTable;
 import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.RedirectChainTooLongException;
 import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineBusyException;
 import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.metrics.StateMachineMetrics;
 
 /**
  * Single-thread implementation which user can configure whether it allows reentrant 
- * transitions
+ * transitions. Events are processed holding a lock acquired as its
+ * {@link LockPolicy} says; a transition sent from a controller is detected
+ * because its thread already owns the lock.
+ * 
+ * <p>
+ * When the definition enables them, the transitions, the time taken by their
+ * phases and the time the lock is waited for and held are recorded in its
+ * {@link StateMachineMetrics}.
  */
 public class ReentrantStrategy implements StateMachineStrategy {
-    private static Logger l = LoggerFactory.getLogger(ReentrantStrategy.class);
+    /** Redirects allowed for a single event unless configured otherwise */
+    public static final int DEFAULT_MAX_CHAIN_LENGTH = 32;
+    
+    // The current state of the state machine being processed
+    private static final StateAccessor<StateMachineImpl> STATE = new StateAccessor<StateMachineImpl>() {
+        public int getStateId(StateMachineImpl machine, int slot) {
+            return machine.getCurrentStateId();
+        }
+        
+        public void setStateId(StateMachineImpl machine, int slot, int state) {
+            machine.setCurrentStateId(state);
+        }
+    };
     
-    private ReentrantLock lock = new ReentrantLock();
+    private final LockPolicy lockPolicy;
+    private final StrategyLock lock;
+    private final LockStats lockStats = new LockStats();
     private boolean allowsReentrantTransitions;
-    private boolean inTransition = false;
+    
+    // Counts the chain lengths, reuses the TransitionInfo and collects the
+    // deferred stages of this strategy
+    private final TransitionDispatcher dispatcher;
     
     /**
      * By default, we don't allow reentrant transitions. That means that if there
@@ -55,67 +81,328 @@ public class ReentrantStrategy implements StateMachineStrategy {
     }
     
     protected ReentrantStrategy(boolean allowsReentrant) {
+        this(allowsReentrant, false);
+    }
+    
+    /**
+     * @param reuseTransitionInfo when set, the same {@link TransitionInfo} is passed
+     *        to the controllers of every transition, so processing an event does
+     *        not allocate. Controllers must not keep references to it.
+     */
+    protected ReentrantStrategy(boolean allowsReentrant, boolean reuseTransitionInfo) {
+        this(allowsReentrant, reuseTransitionInfo, DEFAULT_MAX_CHAIN_LENGTH);
+    }
+    
+    /**
+     * @param maxChainLength redirects from the enter phase allowed for a single
+     *        event. Past it, a {@link RedirectChainTooLongException} is thrown
+     */
+    protected ReentrantStrategy(boolean allowsReentrant, boolean reuseTransitionInfo, int maxChainLength) {
+        this(allowsReentrant, reuseTransitionInfo, maxChainLength, LockPolicy.blocking(false));
+    }
+    
+    /**
+     * @param lockPolicy how the lock of the state machine is acquired
+     */
+    protected ReentrantStrategy(boolean allowsReentrant, boolean reuseTransitionInfo, int maxChainLength,
+            LockPolicy lockPolicy) {
+        this(allowsReentrant, reuseTransitionInfo, maxChainLength, lockPolicy, false);
+    }
+    
+    /**
+     * @param shared whether the strategy is shared by state machines guarded by
+     *        different locks, see {@link #lockFor(StateMachineImpl)}. It has no
+     *        lock of its own then, and does not count the chain lengths, which
+     *        would be updated from threads holding different locks.
+     */
+    ReentrantStrategy(boolean allowsReentrant, boolean reuseTransitionInfo, int maxChainLength,
+            LockPolicy lockPolicy, boolean shared) {
+        if (lockPolicy == null)
+            throw new IllegalArgumentException("The lock policy cannot be null");
+        
+        this.lockPolicy = lockPolicy;
+        this.lock = shared ? null : lockPolicy.newLock();
         this.allowsReentrantTransitions = allowsReentrant;
+        this.dispatcher = new TransitionDispatcher(maxChainLength, !shared, reuseTransitionInfo);
     }
     
     public void processEvent(StateMachineImpl statemachine,
                              String event, Object object)
-            throws ReentrantTransitionNotAllowed, StateMachineDefinitionException
+            throws ReentrantTransitionNotAllowed, StateMachineBusyException, RedirectChainTooLongException,
+            StateMachineDefinitionException
+    {
+        int eventId = statemachine.getTransitionTable().getEventId(event);
+        if (eventId == TransitionTable.UNDEFINED)
+            throw new EventNotDefinedException("Event " + event + " not defined", StateMachineException.STACKLESS);
+
+        this.processEvent(statemachine, eventId, object);
+    }
+
+    /**
+     * Redirections from the enter phase are processed in a loop, without
+     * releasing the lock, until an enter phase returns null or the chain
+     * is longer than the maximum.
+     */
+    public void processEvent(StateMachineImpl statemachine,
+                             int eventId, Object object)
+            throws ReentrantTransitionNotAllowed, StateMachineBusyException, RedirectChainTooLongException,
+            StateMachineDefinitionException
     {
-        StateMachineDefinitionImpl stateMachineDefinition = (StateMachineDefinitionImpl) statemachine.getDefinition();
-        if (!stateMachineDefinition.isEvent(event))
-            throw new EventNotDefinedException("Event " + event + " not defined");
+        TransitionTable table = statemachine.getTransitionTable();
+        if (eventId < 0 || eventId >= table.getEventCount())
+            throw new EventNotDefinedException("Event " + eventId + " not defined", StateMachineException.STACKLESS);
+
+        StrategyLock lock = lockFor(statemachine);
+        if (isReentrance(statemachine, lock))
+            throw new ReentrantTransitionNotAllowed("Reentrance from the same thread is not allowed",
+                    StateMachineException.STACKLESS);
+        if (!acquire(lock, table.getMetrics()))
+            throw new StateMachineBusyException("Lock not acquired processing event " + table.getEventName(eventId)
+                    + " with policy " + lockPolicy, StateMachineException.STACKLESS);
         
+        boolean locked = lockStateMachine(statemachine);
         try {
-            // More fair approach when locking resources than
-            // the normal tryLock one
-            lock.tryLock(0, TimeUnit.SECONDS); 
-            
-            if (!allowsReentrantTransitions) {
-                if (inTransition) {
-                    throw new ReentrantTransitionNotAllowed("Reentrance from the same thread is not allowed");
-                } else {
-                    inTransition = true;
-                }    
-            } 
+            run(statemachine, table, eventId, object, true);
+        } finally {
+            release(statemachine, lock, locked, table.getMetrics());
+        }
+    }
+    
+    public ProcessResult tryProcessEvent(StateMachineImpl statemachine, int eventId, Object object) {
+        TransitionTable table = statemachine.getTransitionTable();
+        if (eventId < 0 || eventId >= table.getEventCount())
+            return ProcessResult.UNKNOWN_EVENT;
+
+        StrategyLock lock = lockFor(statemachine);
+        if (isReentrance(statemachine, lock))
+            return ProcessResult.REENTRANT_REJECTED;
+        if (!acquire(lock, table.getMetrics()))
+            return ProcessResult.BUSY;
         
-            String source = statemachine.getCurrentState();
-            String target = stateMachineDefinition.getTargetState(source, event);
-            TransitionInfo tEvent = new TransitionInfo(source, event, target, object);
-            
-            ExitStateController exitController = stateMachineDefinition.getExitStateController(source);
-            EnterStateController enterController = stateMachineDefinition.getEnterStateController(target);
-            TransitionController transitionController = stateMachineDefinition.getTransitionController(source, event);
-            
-            if (exitController != null) {
-                if (!exitController.execute(tEvent)) {
-                    l.debug("The controller cancelled the event propagation");
-                    return;
+        boolean locked = lockStateMachine(statemachine);
+        try {
+            return run(statemachine, table, eventId, object, false);
+        } catch (StateMachineException e) {
+            throw new IllegalStateException("Exceptions are not thrown when trying to process an event", e);
+        } finally {
+            release(statemachine, lock, locked, table.getMetrics());
+        }
+    }
+    
+    /**
+     * Processes the batch holding the lock once. When reentrant transitions
+     * are not allowed, a batch sent from a controller is rejected as a whole:
+     * every event is {@link ProcessResult#REENTRANT_REJECTED}. Every event is
+     * {@link ProcessResult#BUSY} if the lock is not acquired.
+     */
+    public ProcessResult[] processEvents(StateMachineImpl statemachine, EventInfo[] events, int offset, int length,
+            boolean stopOnFailure) {
+        ProcessResult[] results = new ProcessResult[length];
+        TransitionTable table = statemachine.getTransitionTable();
+        StrategyLock lock = lockFor(statemachine);
+        if (isReentrance(statemachine, lock)) {
+            Arrays.fill(results, ProcessResult.REENTRANT_REJECTED);
+            return results;
+        }
+        if (!acquire(lock, table.getMetrics())) {
+            Arrays.fill(results, ProcessResult.BUSY);
+            return results;
+        }
+        
+        boolean locked = lockStateMachine(statemachine);
+        try {
+            for (int i = 0; i < length; i++) {
+                EventInfo event = events[offset + i];
+                int eventId = table.getEventId(event.getEvent());
+                results[i] = eventId == TransitionTable.UNDEFINED ? ProcessResult.UNKNOWN_EVENT
+                        : run(statemachine, table, eventId, event.getObject(), false);
+                if (stopOnFailure && results[i].isFailure()) {
+                    Arrays.fill(results, i + 1, length, ProcessResult.SKIPPED);
+                    break;
                 }
-            } 
-            
-            if (transitionController != null) {
-                transitionController.execute(tEvent);
             }
-            statemachine.setCurrentState(target);
-            EventInfo result = null;
-            if (enterController != null) {
-                result = enterController.execute(tEvent);
+            return results;
+        } catch (StateMachineException e) {
+            throw new IllegalStateException("Exceptions are not thrown when trying to process an event", e);
+        } finally {
+            release(statemachine, lock, locked, table.getMetrics());
+        }
+    }
+    
+    /**
+     * Returns the lock guarding the state machine
+     */
+    StrategyLock lockFor(StateMachineImpl statemachine) {
+        return lock;
+    }
+    
+    /**
+     * Whether the event is sent from a transition of the same state machine
+     * in the same thread and reentrant transitions are not allowed. Threads
+     * are told apart by the owner of the lock, so events from other threads
+     * wait instead.
+     */
+    private boolean isReentrance(StateMachineImpl statemachine, StrategyLock lock) {
+        return !allowsReentrantTransitions && lock.isHeldByCurrentThread() && statemachine.isInTransition();
+    }
+    
+    /**
+     * Times are measured when the policy is measured, for the statistics of
+     * the lock, or when the metrics sample the event. The lock is then
+     * stamped with the time it was acquired. The acquisitions are counted
+     * whether they are timed or not.
+     */
+    private boolean acquire(StrategyLock lock, StateMachineMetrics metrics) {
+        if (!lockPolicy.isMeasured() && (metrics == null || !metrics.sample())) {
+            if (lockPolicy.acquire(lock)) {
+                if (metrics != null && lock.getHoldCount() == 1)
+                    metrics.lockAcquired();
+                return true;
             }
-            
-            if (result != null) {
-                l.debug("#processEvent: Redirecting forced by controller to event " + result.getEvent());
-                inTransition = false; 
-                
-                this.processEvent(statemachine, 
-                                  result.getEvent(), 
-                                  result.getObject());
+            lockStats.timedOut();
+            return false;
+        }
+        
+        long start = System.nanoTime();
+        if (!lockPolicy.acquire(lock)) {
+            lockStats.timedOut();
+            return false;
+        }
+        if (lock.getHoldCount() == 1) {
+            lock.lockedAt = System.nanoTime();
+            if (lockPolicy.isMeasured())
+                lockStats.waited(lock.lockedAt - start);
+            if (metrics != null) {
+                metrics.lockAcquired();
+                metrics.lockWaited(lock.lockedAt - start);
             }
-        } catch (InterruptedException ie) {
-            l.warn("#processEvent: interrupted exception might not happen");
+        }
+        return true;
+    }
+    
+    private void release(StateMachineImpl statemachine, StrategyLock lock, boolean locked,
+            StateMachineMetrics metrics) {
+        try {
+            if (locked)
+                unlockStateMachine(statemachine);
         } finally {
-            inTransition = false;
+            long lockedAt = lock.lockedAt;
+            if (lockedAt != 0 && lock.getHoldCount() == 1) {
+                long held = System.nanoTime() - lockedAt;
+                lock.lockedAt = 0;
+                if (lockPolicy.isMeasured())
+                    lockStats.held(held);
+                if (metrics != null)
+                    metrics.lockHeld(held);
+            }
             lock.unlock();
         }
     }
+    
+    /**
+     * Called once the lock is acquired, before processing the events. Returns
+     * whether {@link #unlockStateMachine(StateMachineImpl)} has to be called
+     * before releasing it.
+     */
+    protected boolean lockStateMachine(StateMachineImpl statemachine) {
+        return false;
+    }
+    
+    /**
+     * Called before releasing the lock when
+     * {@link #lockStateMachine(StateMachineImpl)} returned true
+     */
+    protected void unlockStateMachine(StateMachineImpl statemachine) {
+    }
+    
+    /**
+     * Returns the policy the lock is acquired with
+     */
+    public LockPolicy getLockPolicy() {
+        return lockPolicy;
+    }
+    
+    /**
+     * Returns the statistics of the lock, updated as it is used
+     */
+    public LockStats getLockStats() {
+        return lockStats;
+    }
+    
+    /**
+     * Processes the event in the calling thread
+     */
+    public CompletionStage<ProcessResult> processEventAsync(StateMachineImpl statemachine, int eventId,
+            Object object) {
+        CompletableFuture<ProcessResult> result = new CompletableFuture<ProcessResult>();
+        try {
+            result.complete(tryProcessEvent(statemachine, eventId, object));
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+    
+    /**
+     * Same as {@link #tryProcessEvent(StateMachineImpl, int, Object)}, without
+     * locking nor checking for reentrance. For executors that only process
+     * the events of a state machine from a single thread, and never from its
+     * controllers.
+     */
+    ProcessResult processWithoutLock(StateMachineImpl statemachine, int eventId, Object object) {
+        try {
+            return run(statemachine, statemachine.getTransitionTable(), eventId, object, false);
+        } catch (StateMachineException e) {
+            throw new IllegalStateException("Exceptions are not thrown when trying to process an event", e);
+        }
+    }
+    
+    /**
+     * Processes the event and the redirections of its enter phase. Events that
+     * do not apply throw an exception or return the result, depending on
+     * <code>throwing</code>.
+     */
+    private ProcessResult run(StateMachineImpl statemachine, TransitionTable table, int eventId, Object object,
+            boolean throwing) throws RedirectChainTooLongException, StateMachineDefinitionException {
+        boolean began = statemachine.beginTransition();
+        boolean deferred = false;
+        try {
+            ProcessResult result = dispatcher.dispatch(table, STATE, statemachine, 0, eventId, object, throwing);
+            // Deferred transitions end when their stage completes, see
+            // takePending()
+            deferred = began && dispatcher.hasPending();
+            return result;
+        } finally {
+            if (began && !deferred)
+                statemachine.endTransition();
+        }
+    }
+    
+    /**
+     * Makes the transitions deferred by the controllers return without
+     * waiting. Their stages are kept until {@link #takePending()} is called,
+     * and the state machine is left in transition: the caller ends it with
+     * {@link StateMachineImpl#endTransition()} once the stage completes.
+     */
+    void collectPending() {
+        dispatcher.collectPending();
+    }
+    
+    /**
+     * Returns the stage the transitions processed since the last call were
+     * deferred to, if any
+     */
+    CompletionStage<?> takePending() {
+        return dispatcher.takePending();
+    }
+    
+    /**
+     * Returns how many events have been processed with each chain length: the
+     * element i is the number of events that caused i redirects. The copy
+     * is not taken under the lock. Shared strategies do not count them and
+     * return an empty array.
+     */
+    public long[] getChainLengthHistogram() {
+        return dispatcher.getChainLengths();
+    }
 }
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineImpl;
+
+/**
+ * Fixed set of single threaded lanes processing the events of many state
+ * machines. Each state machine is assigned to a lane by hashing a key, and
+ * all its events are processed by the thread of that lane, so transitions run
+ * without locks. State machines opt in with the strategy returned by
+ * {@link #strategyFor(Object)}.
+ *
+ * <p>
+ * Every lane has a ring buffer of preallocated entries. Producers claim an
+ * entry, fill it in and publish it, and the lane thread processes every
+ * published entry in a batch before giving the entries back, so there is one
+ * handoff per batch instead of one per event. Producers wait while the ring
+ * is full, except the lane thread itself, whose events are rejected: it
+ * would wait for itself.
+ *
+ * <p>
+ * Threads are daemons and run until {@link #close()} is called. Java cannot
+ * pin them to a core; use the operating system tools if needed.
+ */
+public class ShardedLanes implements Closeable {
+    private static Logger l = LoggerFactory.getLogger(ShardedLanes.class);
+
+    private final Lane[] lanes;
+
+    /**
+     * @param lanes number of lanes, each one with its own thread
+     * @param ringSize entries per lane, rounded up to a power of two
+     */
+    public ShardedLanes(int lanes, int ringSize) {
+        if (lanes <= 0)
+            throw new IllegalArgumentException("There must be at least one lane");
+        if (ringSize <= 0 || ringSize > 1 << 30)
+            throw new IllegalArgumentException("Ring size must be between 1 and 2^30");
+
+        int size = Integer.highestOneBit(ringSize);
+        if (size < ringSize)
+            size <<= 1;
+
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(size);
+            Thread thread = new Thread(this.lanes[i], "statemachine-lane-" + i);
+            thread.setDaemon(true);
+            this.lanes[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns a strategy processing the events in the lane of the key. The
+     * strategy holds no state of its own, so it can be shared by the machines
+     * with the same key.
+     */
+    public LaneStrategy strategyFor(Object key) {
+        return new LaneStrategy(lanes[laneOf(key)]);
+    }
+
+    /**
+     * Returns the index of the lane the key is assigned to
+     */
+    public int laneOf(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the number of events waiting in the lane
+     */
+    public int getQueueDepth(int lane) {
+        return lanes[lane].depth();
+    }
+
+    /**
+     * Returns the number of events processed by the lane
+     */
+    public long getProcessedCount(int lane) {
+        return lanes[lane].processed;
+    }
+
+    /**
+     * Returns the fraction of time the thread of the lane has been processing
+     * events since it started, between 0 and 1
+     */
+    public double getUtilisation(int lane) {
+        Lane target = lanes[lane];
+        long elapsed = System.nanoTime() - target.started;
+        return elapsed <= 0 ? 0 : Math.min(1, (double) target.busy / elapsed);
+    }
+
+    /**
+     * Stops the lanes once the events already published are processed, and
+     * waits for their threads to finish
+     */
+    public void close() {
+        for (Lane lane : lanes) {
+            lane.running = false;
+            LockSupport.unpark(lane.thread);
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Entry {
+        StateMachineImpl statemachine;
+        int eventId;
+        Object object;
+        CompletableFuture<ProcessResult> future;
+    }
+
+    static final class Lane implements Runnable {
+        private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final Entry[] entries;
+        private final int mask;
+
+        // Sequence of the entry published in each position, -1 if none
+        private final AtomicLongArray published;
+        // Next sequence to claim and next sequence to process
+        private final AtomicLong claimed = new AtomicLong();
+        private final AtomicLong consumed = new AtomicLong();
+
+        // Events are processed by a single thread, so the engine is never
+        // contended nor reentered
+        private final ReentrantStrategy engine = new NonReentrantStrategy();
+
+        private Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean sleeping;
+
+        // Written by the lane thread only
+        private volatile long processed;
+        private volatile long busy;
+        private final long started = System.nanoTime();
+
+        Lane(int size) {
+            this.entries = new Entry[size];
+            this.mask = size - 1;
+            this.published = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                entries[i] = new Entry();
+                published.set(i, -1);
+            }
+        }
+
+        boolean isLaneThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        int depth() {
+            return (int) (claimed.get() - consumed.get());
+        }
+
+        /**
+         * Publishes the event. Returns false if the ring is full and the
+         * caller is the lane thread, or if the lane is closed.
+         */
+        boolean publish(StateMachineImpl statemachine, int eventId, Object object,
+                CompletableFuture<ProcessResult> future) {
+            long sequence;
+            for (;;) {
+                if (!running)
+                    return false;
+
+                sequence = claimed.get();
+                if (sequence - consumed.get() >= entries.length) {
+                    if (isLaneThread())
+                        return false;
+                    LockSupport.parkNanos(PARK_NANOS / 100);
+                    continue;
+                }
+                if (claimed.compareAndSet(sequence, sequence + 1))
+                    break;
+            }
+
+            int index = (int) sequence & mask;
+            Entry entry = entries[index];
+            entry.statemachine = statemachine;
+            entry.eventId = eventId;
+            entry.object = object;
+            entry.future = future;
+            published.set(index, sequence);
+
+            if (sleeping)
+                LockSupport.unpark(thread);
+            return true;
+        }
+
+        public void run() {
+            long next = 0;
+            while (running || next != claimed.get()) {
+                // Collect the batch: every entry published in sequence
+                long end = next;
+                while (end - next < entries.length && published.get((int) end & mask) == end)
+                    end++;
+
+                if (end == next) {
+                    sleeping = true;
+                    if (published.get((int) next & mask) != next && running)
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    sleeping = false;
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                for (long sequence = next; sequence < end; sequence++)
+                    process(entries[(int) sequence & mask]);
+                busy += System.nanoTime() - start;
+                processed += end - next;
+
+                next = end;
+                consumed.set(next);
+            }
+            l.debug("#run: lane stopped");
+        }
+
+        private void process(Entry entry) {
+            StateMachineImpl statemachine = entry.statemachine;
+            int eventId = entry.eventId;
+            Object object = entry.object;
+            CompletableFuture<ProcessResult> future = entry.future;
+            entry.statemachine = null;
+            entry.object = null;
+            entry.future = null;
+
+            try {
+                ProcessResult result = engine.processWithoutLock(statemachine, eventId, object);
+                if (future != null)
+                    future.complete(result);
+                else if (!result.isAccepted() && l.isDebugEnabled())
+                    l.debug("#process: event " + statemachine.getTransitionTable().getEventName(eventId)
+                            + " not processed in state " + statemachine.getCurrentState() + ": " + result);
+            } catch (Throwable e) {
+                // Controllers may throw errors and, when annotated, checked
+                // exceptions. The lane goes on with the rest of its machines.
+                if (future != null)
+                    future.completeExceptionally(e);
+                else
+                    l.error("#process: controller failed processing event "
+                            + statemachine.getTransitionTable().getEventName(eventId), e);
+            }
+        }
+    }
+}
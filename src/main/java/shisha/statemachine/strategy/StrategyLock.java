@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock of a strategy, keeping when it was acquired for the
+ * {@link LockPolicy#measured() measured} policies
+ */
+class StrategyLock extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
+
+    // Only written by the owner, 0 when the acquisition is not timed
+    long lockedAt;
+
+    StrategyLock(boolean fair) {
+        super(fair);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import shisha.statemachine.StateMachineImpl;
+
+/**
+ * Strategy shared by many state machines, usually all the ones of a
+ * definition, guarding them with a fixed number of locks instead of one per
+ * machine. Machines are mapped to a lock by their identity, so events for
+ * different machines may wait for each other when they share it.
+ *
+ * <p>
+ * Reentrance is detected per machine: a controller may process events of
+ * another machine sharing its lock, but not of its own one unless reentrant
+ * transitions are allowed. Controllers processing events of other machines
+ * may deadlock with threads doing the same the other way around, even for
+ * unrelated machines, so they should queue them instead.
+ *
+ * <p>
+ * Locks are padded so that the ones allocated together do not share a cache
+ * line, as far as the garbage collector keeps them in allocation order.
+ * The chain lengths are not counted, so
+ * {@link #getChainLengthHistogram()} is empty.
+ */
+public class StripedStrategy extends ReentrantStrategy {
+    /** Default number of locks */
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final StrategyLock[] locks;
+    private final int mask;
+
+    public StripedStrategy() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of locks. It is rounded up to a power of two
+     */
+    public StripedStrategy(int stripes) {
+        this(stripes, false, LockPolicy.blocking(false));
+    }
+
+    public StripedStrategy(int stripes, boolean allowsReentrant, LockPolicy lockPolicy) {
+        super(allowsReentrant, false, DEFAULT_MAX_CHAIN_LENGTH, lockPolicy, true);
+        if (stripes <= 0)
+            throw new IllegalArgumentException("The number of stripes must be positive");
+
+        int size = 1;
+        while (size < stripes)
+            size <<= 1;
+        this.locks = new StrategyLock[size];
+        for (int i = 0; i < size; i++)
+            locks[i] = new PaddedLock(lockPolicy.isFair());
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the number of locks
+     */
+    public int getStripes() {
+        return locks.length;
+    }
+
+    /**
+     * Returns the index of the lock guarding the state machine
+     */
+    public int stripeOf(StateMachineImpl statemachine) {
+        int h = System.identityHashCode(statemachine);
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    StrategyLock lockFor(StateMachineImpl statemachine) {
+        return locks[stripeOf(statemachine)];
+    }
+
+    /**
+     * The lock, the synchronizer it allocates right after it and the
+     * padding of the next lock fill more than a cache line
+     */
+    private static final class PaddedLock extends StrategyLock {
+        private static final long serialVersionUID = 1L;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        PaddedLock(boolean fair) {
+            super(fair);
+        }
+    }
+}
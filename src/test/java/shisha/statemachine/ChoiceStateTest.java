@@ -0,0 +1,227 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.annotations.util.ChoiceStateMachine;
+import shisha.statemachine.exceptions.ConstraintException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class ChoiceStateTest {
+    private StateMachineDefinitionImpl definition;
+    private List<String> phases;
+
+    private static Guard above(final int limit) {
+        return new Guard() {
+            public boolean evaluate(TransitionInfo event) {
+                return (Integer) event.getObject() > limit;
+            }
+        };
+    }
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        phases = new ArrayList<String>();
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineChoiceState("COND");
+        definition.defineState("SMALL");
+        definition.defineState("BIG");
+        definition.defineState("HUGE");
+        definition.defineEvent("GO");
+        definition.defineEvent("BACK");
+        definition.defineTransition("A", "GO", "COND", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                phases.add("transition " + event.getTarget());
+            }
+        });
+        definition.defineTransition("BIG", "BACK", "A", null);
+        definition.defineTransition("SMALL", "BACK", "A", null);
+        definition.defineExitState("A", new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                phases.add("exit " + event.getTarget());
+                return true;
+            }
+        });
+        definition.defineEnterState("BIG", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                phases.add("enter " + event.getTarget());
+                return null;
+            }
+        });
+
+        // Default branch first, still evaluated last
+        definition.defineChoice("COND", null, "SMALL");
+        definition.defineChoice("COND", above(1000), "HUGE");
+        definition.defineChoice("COND", above(100), "BIG");
+    }
+
+    @Test
+    public void testBranchesAreEvaluatedInOrder() throws StateMachineException {
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("GO", 5000);
+        assertEquals(sm.getCurrentState(), "HUGE");
+
+        sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("GO", 500);
+        assertEquals(sm.getCurrentState(), "BIG");
+
+        sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("GO", 5);
+        assertEquals(sm.getCurrentState(), "SMALL");
+    }
+
+    @Test
+    public void testChoiceIsResolvedInASingleTransition() throws StateMachineException {
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("GO", 500);
+
+        // Controllers only see the state the choice resolved to
+        assertEquals(phases.size(), 3);
+        assertEquals(phases.get(0), "exit BIG");
+        assertEquals(phases.get(1), "transition BIG");
+        assertEquals(phases.get(2), "enter BIG");
+    }
+
+    @Test
+    public void testNoBranchApplies() throws StateMachineException {
+        StateMachineDefinitionImpl other = new StateMachineDefinitionImpl();
+        other.defineState("A", true, false);
+        other.defineChoiceState("COND");
+        other.defineState("BIG");
+        other.defineEvent("GO");
+        other.defineTransition("A", "GO", "COND", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                phases.add("transition " + event.getTarget());
+            }
+        });
+        other.defineChoice("COND", above(100), "BIG");
+
+        StateMachine sm = StateMachines.newNonReentrant(other);
+        try {
+            sm.processEvent("GO", 5);
+            fail("No branch should apply");
+        } catch (TransitionNotDefinedException e) {
+            assertEquals(sm.getCurrentState(), "A");
+            assertTrue(phases.isEmpty());
+        }
+    }
+
+    @Test
+    public void testChoicesLeadingToChoices() throws StateMachineException {
+        StateMachineDefinitionImpl other = new StateMachineDefinitionImpl();
+        other.defineState("A", true, false);
+        other.defineChoiceState("FIRST");
+        other.defineChoiceState("SECOND");
+        other.defineState("B");
+        other.defineEvent("GO");
+        other.defineTransition("A", "GO", "FIRST", null);
+        other.defineChoice("FIRST", null, "SECOND");
+        other.defineChoice("SECOND", null, "B");
+
+        StateMachine sm = StateMachines.newNonReentrant(other);
+        sm.processEvent("GO", null);
+        assertEquals(sm.getCurrentState(), "B");
+    }
+
+    @Test(expectedExceptions = TransitionNotDefinedException.class)
+    public void testChoicesInALoop() throws StateMachineException {
+        StateMachineDefinitionImpl other = new StateMachineDefinitionImpl();
+        other.defineState("A", true, false);
+        other.defineChoiceState("FIRST");
+        other.defineChoiceState("SECOND");
+        other.defineEvent("GO");
+        other.defineTransition("A", "GO", "FIRST", null);
+        other.defineChoice("FIRST", null, "SECOND");
+        other.defineChoice("SECOND", null, "FIRST");
+
+        StateMachines.newNonReentrant(other).processEvent("GO", null);
+    }
+
+    @Test
+    public void testCompactAndArray() throws StateMachineException {
+        CompactStateMachine compact = StateMachines.newCompact(definition);
+        compact.processEvent("GO", 500);
+        assertEquals(compact.getCurrentState(), "BIG");
+
+        StateMachineArray array = StateMachines.newArray(definition, 4);
+        int slot = array.allocate();
+        array.processEvent(slot, "GO", 5000);
+        assertEquals(array.getState(slot), "HUGE");
+        assertEquals(array.count("COND"), 0);
+    }
+
+    @Test(expectedExceptions = ConstraintException.class)
+    public void testChoiceStatesHaveNoTransitions() throws StateMachineException {
+        definition.defineTransition("COND", "BACK", "A", null);
+    }
+
+    @Test(expectedExceptions = ConstraintException.class)
+    public void testChoiceStatesHaveNoEnterPhase() throws StateMachineException {
+        definition.defineEnterState("COND", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return null;
+            }
+        });
+    }
+
+    @Test(expectedExceptions = ConstraintException.class)
+    public void testOnlyOneDefaultBranch() throws StateMachineException {
+        definition.defineChoice("COND", null, "BIG");
+    }
+
+    @Test(expectedExceptions = ConstraintException.class)
+    public void testBranchesOnlyForChoiceStates() throws StateMachineException {
+        definition.defineChoice("A", above(0), "BIG");
+    }
+
+    @Test
+    public void testAnnotatedChoiceState() throws StateMachineException {
+        ChoiceStateMachine instance = new ChoiceStateMachine();
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent(ChoiceStateMachine.EVENT_GO, 5000);
+        assertEquals(sm.getCurrentState(), ChoiceStateMachine.STATE_HUGE);
+        assertEquals(instance.getEvaluated(), 2);
+
+        // Guards are bound to each instance
+        ChoiceStateMachine other = new ChoiceStateMachine();
+        sm = StateMachines.newNonReentrant(other);
+        sm.processEvent(ChoiceStateMachine.EVENT_GO, 500);
+        assertEquals(sm.getCurrentState(), ChoiceStateMachine.STATE_BIG);
+        assertEquals(other.getEvaluated(), 1);
+
+        sm = StateMachines.newNonReentrant(new ChoiceStateMachine());
+        sm.processEvent(ChoiceStateMachine.EVENT_GO, 5);
+        assertEquals(sm.getCurrentState(), ChoiceStateMachine.STATE_A);
+
+        StateMachineDefinitionImpl definition = (StateMachineDefinitionImpl) sm.getDefinition();
+        assertTrue(definition.isChoiceState(ChoiceStateMachine.STATE_COND));
+        assertFalse(definition.isChoiceState(ChoiceStateMachine.STATE_A));
+        assertNull(definition.getEnterStateController(ChoiceStateMachine.STATE_COND));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class CompactStateMachineTest {
+    private StateMachineDefinitionImpl definition;
+    private CompactStateMachine sm;
+    private StateMachineException reentrant;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent("AB");
+        definition.defineEvent("BC");
+        definition.defineEvent("CA");
+        definition.defineEvent("ERROR");
+        definition.defineTransition("A", "AB", "B", null);
+        definition.defineTransition("A", "ERROR", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new AssertionError("failed");
+            }
+        });
+        definition.defineTransition("B", "BC", "C", null);
+        definition.defineTransition("C", "CA", "A", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                try {
+                    sm.processEvent("AB", null);
+                } catch (StateMachineException e) {
+                    reentrant = e;
+                }
+            }
+        });
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return "redirect".equals(event.getObject()) ? new EventInfo("BC", null) : null;
+            }
+        });
+
+        sm = StateMachines.newCompact(definition);
+    }
+
+    @Test
+    public void testTransitions() throws StateMachineException {
+        assertEquals(sm.getCurrentState(), "A");
+        sm.processEvent("AB", null);
+        assertEquals(sm.getCurrentState(), "B");
+        sm.processEvent(definition.getEventId("BC"), null);
+        assertEquals(sm.getCurrentState(), "C");
+        assertEquals(sm.getCurrentStateId(), definition.getStateId("C"));
+    }
+
+    @Test
+    public void testRedirectOnEnterState() throws StateMachineException {
+        sm.processEvent("AB", "redirect");
+        assertEquals(sm.getCurrentState(), "C");
+    }
+
+    @Test
+    public void testReentrantTransitionNotAllowed() throws StateMachineException {
+        sm.processEvent("AB", null);
+        sm.processEvent("BC", null);
+        sm.processEvent("CA", null);
+
+        assertTrue(reentrant instanceof ReentrantTransitionNotAllowed);
+        assertEquals(sm.getCurrentState(), "A");
+        sm.processEvent("AB", null);
+        assertEquals(sm.getCurrentState(), "B");
+    }
+
+    @Test
+    public void testErrorsCompleteTheFuture() throws Exception {
+        CompletableFuture<ProcessResult> failed = sm.processEventAsync("ERROR", null).toCompletableFuture();
+        try {
+            failed.get();
+            fail("The error should complete the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(sm.getCurrentState(), "A");
+        assertEquals(sm.processEventAsync("AB", null).toCompletableFuture().get(), ProcessResult.APPLIED);
+    }
+
+    @Test(expectedExceptions = TransitionNotDefinedException.class)
+    public void testTransitionNotDefined() throws StateMachineException {
+        sm.processEvent("BC", null);
+    }
+
+    @Test(expectedExceptions = EventNotDefinedException.class)
+    public void testEventNotDefined() throws StateMachineException {
+        sm.processEvent("NON_EXISTENT", null);
+    }
+
+    @Test
+    public void testMachinesShareTheDefinition() throws StateMachineException {
+        CompactStateMachine other = StateMachines.newCompact(definition);
+        sm.processEvent("AB", null);
+
+        assertEquals(other.getCurrentState(), "A");
+        assertTrue(other.getDefinition() == sm.getDefinition());
+    }
+
+    @Test
+    public void testFootprint() throws StateMachineException {
+        StateMachineImpl regular = (StateMachineImpl) StateMachines.newNonReentrant(definition);
+
+        long compact = ClassLayout.parseInstance(sm).instanceSize();
+        // The machine and its strategy and lock, but not the shared definition
+        long perInstance = GraphLayout.parseInstance(regular, regular.getStrategy()).totalSize()
+                - GraphLayout.parseInstance(definition).totalSize();
+        System.out.println("Compact machine: " + compact + " bytes. Regular machine: " + perInstance + " bytes");
+
+        // Object header, a reference, the state and the flags
+        assertTrue(compact <= 32, ClassLayout.parseInstance(sm).toPrintable());
+        assertTrue(compact * 3 <= perInstance, GraphLayout.parseInstance(regular).toFootprint());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.annotations.Transition;
+import shisha.statemachine.annotations.Transitions;
+import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateNotDefinedException;
+
+@AStateMachine
+public class EnumStateMachineTest {
+    public enum OrderState { CREATED, PAID, SHIPPED }
+    public enum OrderEvent { PAY, SHIP, REFUND }
+    public enum ShortState { CREATED, PAID }
+
+    @State(isStart = true) public static final OrderState CREATED = OrderState.CREATED;
+    @State public static final OrderState PAID = OrderState.PAID;
+    @State public static final OrderState SHIPPED = OrderState.SHIPPED;
+
+    @Event public static final OrderEvent PAY = OrderEvent.PAY;
+    @Event public static final OrderEvent SHIP = OrderEvent.SHIP;
+
+    @Transitions({@Transition(source = "CREATED", event = "PAY", target = "PAID"),
+                  @Transition(source = "PAID", event = "SHIP", target = "SHIPPED")})
+    public void noop(TransitionInfo info) { }
+
+    @Test
+    public void testEnumAnnotatedStateMachine() throws StateMachineException {
+        EnumStateMachine<OrderState, OrderEvent> sm = StateMachines.newNonReentrant(this, OrderState.class,
+                OrderEvent.class);
+        assertEquals(sm.getCurrentState(), OrderState.CREATED);
+
+        sm.processEvent(OrderEvent.PAY, null);
+        assertEquals(sm.getCurrentState(), OrderState.PAID);
+        assertEquals(sm.getStateMachine().getCurrentState(), "PAID");
+
+        sm.processEvent(OrderEvent.SHIP, null);
+        assertEquals(sm.getCurrentState(), OrderState.SHIPPED);
+    }
+
+    @Test(expectedExceptions = EventNotDefinedException.class)
+    public void testEnumEventNotInTheDefinition() throws StateMachineException {
+        EnumStateMachine<OrderState, OrderEvent> sm = StateMachines.newNonReentrant(this, OrderState.class,
+                OrderEvent.class);
+        sm.processEvent(OrderEvent.REFUND, null);
+    }
+
+    @Test(expectedExceptions = StateNotDefinedException.class)
+    public void testStateWithoutEnumConstant() throws StateMachineDefinitionException {
+        StateMachines.newNonReentrant(this, ShortState.class, OrderEvent.class);
+    }
+
+    @Test
+    public void testProcessEventById() throws StateMachineException {
+        StateMachine sm = StateMachines.newNonReentrant(this);
+        StateMachineDefinitionImpl definition = (StateMachineDefinitionImpl) sm.getDefinition();
+        int pay = definition.getEventId("PAY");
+
+        assertEquals(sm.getCurrentStateId(), definition.getStateId("CREATED"));
+        sm.processEvent(pay, null);
+        assertEquals(sm.getCurrentStateId(), definition.getStateId("PAID"));
+    }
+
+    @Test(expectedExceptions = EventNotDefinedException.class)
+    public void testProcessUnknownEventId() throws StateMachineException {
+        StateMachine sm = StateMachines.newNonReentrant(this);
+        sm.processEvent(42, null);
+    }
+}
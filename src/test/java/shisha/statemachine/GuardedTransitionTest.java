@@ -0,0 +1,183 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.annotations.util.GuardedStateMachine;
+import shisha.statemachine.exceptions.ConstraintException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class GuardedTransitionTest {
+    private StateMachineDefinitionImpl definition;
+    private List<String> phases;
+
+    private static Guard above(final int limit) {
+        return new Guard() {
+            public boolean evaluate(TransitionInfo event) {
+                return (Integer) event.getObject() > limit;
+            }
+        };
+    }
+
+    private TransitionController trace(final String name) {
+        return new TransitionController() {
+            public void execute(TransitionInfo event) {
+                phases.add(name + " " + event.getTarget());
+            }
+        };
+    }
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        phases = new ArrayList<String>();
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("SMALL");
+        definition.defineState("BIG");
+        definition.defineState("HUGE");
+        definition.defineEvent("GO");
+        definition.defineEvent("BACK");
+
+        // Without guard first, still evaluated last
+        definition.defineTransition("A", "GO", "SMALL", trace("small"));
+        definition.defineTransition("A", "GO", "HUGE", trace("huge"), above(1000));
+        definition.defineTransition("A", "GO", "BIG", trace("big"), above(100));
+        definition.defineTransition("SMALL", "BACK", "A", null);
+    }
+
+    @Test
+    public void testGuardsAreEvaluatedInOrder() throws StateMachineException {
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("GO", 5000);
+        assertEquals(sm.getCurrentState(), "HUGE");
+
+        sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("GO", 500);
+        assertEquals(sm.getCurrentState(), "BIG");
+
+        sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("GO", 5);
+        assertEquals(sm.getCurrentState(), "SMALL");
+
+        assertEquals(phases.size(), 3);
+        assertEquals(phases.get(0), "huge HUGE");
+        assertEquals(phases.get(1), "big BIG");
+        assertEquals(phases.get(2), "small SMALL");
+    }
+
+    @Test
+    public void testSingleTransitionsAreNotGuarded() throws StateMachineException {
+        TransitionTable table = definition.freeze();
+        int a = table.getStateId("A");
+        int small = table.getStateId("SMALL");
+        assertEquals(table.getTargetState(a, table.getEventId("GO")), TransitionTable.GUARDED);
+        assertEquals(table.getTargetState(small, table.getEventId("BACK")), a);
+    }
+
+    @Test
+    public void testNoGuardHolds() throws StateMachineException {
+        StateMachineDefinitionImpl other = new StateMachineDefinitionImpl();
+        other.defineState("A", true, false);
+        other.defineState("BIG");
+        other.defineEvent("GO");
+        other.defineExitState("A", new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                phases.add("exit");
+                return true;
+            }
+        });
+        other.defineTransition("A", "GO", "BIG", trace("big"), above(100));
+
+        StateMachine sm = StateMachines.newNonReentrant(other);
+        try {
+            sm.processEvent("GO", 5);
+            fail("No guard should hold");
+        } catch (TransitionNotDefinedException e) {
+            assertEquals(sm.getCurrentState(), "A");
+            assertTrue(phases.isEmpty());
+        }
+        sm.processEvent("GO", 500);
+        assertEquals(sm.getCurrentState(), "BIG");
+    }
+
+    @Test(expectedExceptions = ConstraintException.class)
+    public void testOnlyOneTransitionWithoutGuard() throws StateMachineException {
+        definition.defineTransition("A", "GO", "BIG", null);
+    }
+
+    @Test
+    public void testGuardedTransitionToChoice() throws StateMachineException {
+        StateMachineDefinitionImpl other = new StateMachineDefinitionImpl();
+        other.defineState("A", true, false);
+        other.defineChoiceState("COND");
+        other.defineState("BIG");
+        other.defineState("HUGE");
+        other.defineEvent("GO");
+        other.defineTransition("A", "GO", "COND", trace("cond"), above(100));
+        other.defineChoice("COND", above(1000), "HUGE");
+        other.defineChoice("COND", null, "BIG");
+
+        StateMachine sm = StateMachines.newNonReentrant(other);
+        sm.processEvent("GO", 5000);
+        assertEquals(sm.getCurrentState(), "HUGE");
+        assertEquals(phases.get(0), "cond HUGE");
+    }
+
+    @Test
+    public void testCompactAndArray() throws StateMachineException {
+        CompactStateMachine compact = StateMachines.newCompact(definition);
+        compact.processEvent("GO", 500);
+        assertEquals(compact.getCurrentState(), "BIG");
+
+        StateMachineArray array = StateMachines.newArray(definition, 4);
+        int slot = array.allocate();
+        array.processEvent(slot, "GO", 5);
+        assertEquals(array.getState(slot), "SMALL");
+        array.processEvent(slot, "BACK", null);
+        array.processEvent(slot, "GO", 5000);
+        assertEquals(array.getState(slot), "HUGE");
+    }
+
+    @Test
+    public void testAnnotatedGuards() throws StateMachineException {
+        GuardedStateMachine instance = new GuardedStateMachine(100);
+        StateMachine sm = StateMachines.newNonReentrant(instance);
+        sm.processEvent(GuardedStateMachine.EVENT_PAY, 50);
+        assertEquals(sm.getCurrentState(), GuardedStateMachine.STATE_AUTO);
+        assertEquals(instance.getTrace(), "check ");
+
+        // Guards are bound to each instance
+        GuardedStateMachine other = new GuardedStateMachine(10);
+        sm = StateMachines.newNonReentrant(other);
+        sm.processEvent(GuardedStateMachine.EVENT_PAY, 50);
+        assertEquals(sm.getCurrentState(), GuardedStateMachine.STATE_MANUAL);
+        assertEquals(other.getTrace(), "review ");
+
+        sm = StateMachines.newNonReentrant(new GuardedStateMachine(100));
+        sm.processEvent(GuardedStateMachine.EVENT_PAY, -5);
+        assertEquals(sm.getCurrentState(), GuardedStateMachine.STATE_REJECTED);
+    }
+}
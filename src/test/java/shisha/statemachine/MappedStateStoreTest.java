@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class MappedStateStoreTest {
+    private StateMachineDefinitionImpl definition;
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException, IOException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("OPEN", true, false);
+        definition.defineState("READY");
+        definition.defineState("CLOSED", false, true);
+        definition.defineEvent("ACCEPT");
+        definition.defineEvent("CLOSE");
+        definition.defineTransition("OPEN", "ACCEPT", "READY", null);
+        definition.defineTransition("READY", "CLOSE", "CLOSED", null);
+
+        file = File.createTempFile("states", ".bin");
+        file.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testNewStoreIsFree() throws IOException {
+        MappedStateStore store = new MappedStateStore(file, 100, 0);
+        try {
+            assertEquals(store.capacity(), 100);
+            assertEquals(store.get(0), StateStore.FREE);
+            assertEquals(store.get(99), StateStore.FREE);
+            assertEquals(store.getVersion(99), 0);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRecordsAreUpdatedInPlace() throws StateMachineException, IOException {
+        MappedStateStore store = new MappedStateStore(file, 100, 1);
+        try {
+            StateMachineArray array = new StateMachineArray(definition, store, 4, true);
+            long before = System.currentTimeMillis();
+            int slot = array.allocate();
+            array.processEvent(slot, "ACCEPT", null);
+
+            assertEquals(store.get(slot), definition.getStateId("READY"));
+            assertEquals(store.getVersion(slot), 2);
+            assertTrue(store.getTimestamp(slot) >= before);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testStatesSurviveReopening() throws StateMachineException, IOException {
+        MappedStateStore store = new MappedStateStore(file, 100, 0);
+        StateMachineArray array = new StateMachineArray(definition, store, 4, true);
+        for (int i = 0; i < 5; i++)
+            array.allocate();
+        array.processEvent(1, "ACCEPT", null);
+        array.processEvent(3, "ACCEPT", null);
+        array.processEvent(3, "CLOSE", null);
+        store.close();
+
+        store = new MappedStateStore(file, 100, 0);
+        try {
+            array = new StateMachineArray(definition, store, 4, true);
+            assertEquals(array.getState(0), "OPEN");
+            assertEquals(array.getState(1), "READY");
+            assertEquals(array.getState(3), "CLOSED");
+            assertEquals(store.getVersion(3), 3);
+
+            // The slot in the final state is reused, then the unused ones
+            assertEquals(array.allocate(), 3);
+            assertEquals(array.allocate(), 5);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testCapacityMustMatch() throws IOException {
+        new MappedStateStore(file, 100, 0).close();
+        new MappedStateStore(file, 200, 0);
+    }
+}
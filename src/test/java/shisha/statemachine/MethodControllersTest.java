@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.EnterState;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.ExitState;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.annotations.Transition;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class MethodControllersTest {
+    @AStateMachine
+    public static class PublicController {
+        @State(isStart = true) public static final String STATE_A = "STATE_A";
+        @State public static final String STATE_B = "STATE_B";
+        @Event public static final String EVENT_AB = "EVENT_AB";
+
+        boolean exited;
+        boolean entered;
+
+        @ExitState(STATE_A)
+        public Boolean exitA(TransitionInfo info) {
+            exited = true;
+            return true;
+        }
+
+        @Transition(source = STATE_A, event = EVENT_AB, target = STATE_B)
+        public void transitionAB(TransitionInfo info) throws IOException {
+            if (info.getObject() != null)
+                throw new IOException("checked exceptions are not swallowed");
+        }
+
+        @EnterState(STATE_B)
+        public EventInfo enterB(TransitionInfo info) {
+            entered = true;
+            return null;
+        }
+    }
+
+    @AStateMachine
+    static class PackageController {
+        @State(isStart = true) public static final String STATE_A = "STATE_A";
+        @State public static final String STATE_B = "STATE_B";
+        @Event public static final String EVENT_AB = "EVENT_AB";
+
+        int transitions;
+
+        @Transition(source = STATE_A, event = EVENT_AB, target = STATE_B)
+        public void transitionAB(TransitionInfo info) {
+            if (info.getObject() != null)
+                throw new IllegalStateException("runtime exceptions are not swallowed");
+            transitions++;
+        }
+    }
+
+    @Test
+    public void testControllersAreBound() throws StateMachineException {
+        PublicController controller = new PublicController();
+        StateMachine sm = StateMachines.newNonReentrant(controller);
+        sm.processEvent(PublicController.EVENT_AB, null);
+
+        assertEquals(sm.getCurrentState(), PublicController.STATE_B);
+        assertTrue(controller.exited);
+        assertTrue(controller.entered);
+    }
+
+    @Test
+    public void testCheckedExceptionIsPropagated() throws StateMachineException {
+        PublicController controller = new PublicController();
+        StateMachine sm = StateMachines.newNonReentrant(controller);
+        try {
+            sm.processEvent(PublicController.EVENT_AB, "boom");
+            throw new AssertionError("IOException expected");
+        } catch (Exception e) {
+            assertTrue(e instanceof IOException);
+        }
+        assertEquals(sm.getCurrentState(), PublicController.STATE_A);
+        assertFalse(controller.entered);
+    }
+
+    @Test
+    public void testNonPublicClassIsBoundThroughMethodHandle() throws StateMachineException {
+        PackageController controller = new PackageController();
+        StateMachine sm = StateMachines.newNonReentrant(controller);
+        sm.processEvent(PackageController.EVENT_AB, null);
+
+        assertEquals(sm.getCurrentState(), PackageController.STATE_B);
+        assertEquals(controller.transitions, 1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testRuntimeExceptionIsPropagated() throws StateMachineException {
+        StateMachine sm = StateMachines.newNonReentrant(new PackageController());
+        sm.processEvent(PackageController.EVENT_AB, "boom");
+    }
+}
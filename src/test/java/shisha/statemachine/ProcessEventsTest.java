@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.MailboxStrategy;
+
+public class ProcessEventsTest {
+    private StateMachineDefinitionImpl definition;
+    private StateMachine sm;
+    private ProcessResult[] nested;
+
+    // Data providers run before the methods annotated with @BeforeMethod
+    private void define() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent("AB");
+        definition.defineEvent("BC");
+        definition.defineEvent("CA");
+        definition.defineEvent("FAIL");
+        definition.defineTransition("A", "AB", "B", null);
+        definition.defineTransition("B", "BC", "C", null);
+        definition.defineTransition("C", "CA", "A", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                if ("nested".equals(event.getObject()))
+                    nested = sm.processEvents(Arrays.asList(new EventInfo("AB", null)), false);
+            }
+        });
+        definition.defineTransition("A", "FAIL", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new IllegalArgumentException("failed");
+            }
+        });
+    }
+
+    @DataProvider(name = "machines")
+    public Object[][] machines() throws StateMachineException {
+        define();
+        return new Object[][] { { StateMachines.newReentrant(definition) },
+                { StateMachines.newNonReentrant(definition) }, { StateMachines.newLockFree(definition) },
+                { StateMachines.newCompact(definition) } };
+    }
+
+    @DataProvider(name = "nonReentrant")
+    public Object[][] nonReentrant() throws StateMachineException {
+        define();
+        return new Object[][] { { StateMachines.newNonReentrant(definition) },
+                { StateMachines.newLockFree(definition) }, { StateMachines.newCompact(definition) } };
+    }
+
+    private static EventInfo[] events(String... names) {
+        EventInfo[] events = new EventInfo[names.length];
+        for (int i = 0; i < names.length; i++)
+            events[i] = new EventInfo(names[i], null);
+        return events;
+    }
+
+    @Test(dataProvider = "machines")
+    public void testContinueOnFailure(StateMachine machine) {
+        sm = machine;
+        ProcessResult[] results = sm.processEvents(events("AB", "AB", "NON_EXISTENT", "BC", "CA", "AB"), 0, 6,
+                false);
+
+        assertEquals(results, new ProcessResult[] { ProcessResult.APPLIED, ProcessResult.NO_TRANSITION,
+                ProcessResult.UNKNOWN_EVENT, ProcessResult.APPLIED, ProcessResult.APPLIED, ProcessResult.APPLIED });
+        assertEquals(sm.getCurrentState(), "B");
+    }
+
+    @Test(dataProvider = "machines")
+    public void testStopOnFailure(StateMachine machine) {
+        sm = machine;
+        ProcessResult[] results = sm.processEvents(Arrays.asList(events("AB", "CA", "BC", "CA")), true);
+
+        assertEquals(results, new ProcessResult[] { ProcessResult.APPLIED, ProcessResult.NO_TRANSITION,
+                ProcessResult.SKIPPED, ProcessResult.SKIPPED });
+        assertEquals(sm.getCurrentState(), "B");
+    }
+
+    @Test(dataProvider = "machines")
+    public void testRange(StateMachine machine) {
+        sm = machine;
+        EventInfo[] events = events("CA", "AB", "BC", "CA");
+
+        assertEquals(sm.processEvents(events, 1, 2, true), new ProcessResult[] { ProcessResult.APPLIED,
+                ProcessResult.APPLIED });
+        assertEquals(sm.getCurrentState(), "C");
+        assertEquals(sm.processEvents(events, 4, 0, true).length, 0);
+        try {
+            sm.processEvents(events, 3, 2, false);
+            fail("The range is out of the array");
+        } catch (IndexOutOfBoundsException e) {
+            // Nothing processed
+            assertEquals(sm.getCurrentState(), "C");
+        }
+    }
+
+    @Test(dataProvider = "machines")
+    public void testControllerExceptionsArePropagated(StateMachine machine) {
+        sm = machine;
+        try {
+            sm.processEvents(events("FAIL", "AB"), 0, 2, false);
+            fail("The controller exception should be propagated");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(sm.processEvents(events("AB"), 0, 1, true)[0], ProcessResult.APPLIED);
+    }
+
+    @Test(dataProvider = "nonReentrant")
+    public void testReentrantBatchIsRejected(StateMachine machine) {
+        sm = machine;
+        EventInfo[] events = events("AB", "BC", "CA");
+        events[2] = new EventInfo("CA", "nested");
+
+        assertEquals(sm.processEvents(events, 0, 3, true)[2], ProcessResult.APPLIED);
+        assertEquals(nested, new ProcessResult[] { ProcessResult.REENTRANT_REJECTED });
+        assertEquals(sm.getCurrentState(), "A");
+    }
+
+    @Test
+    public void testQueueingStrategies() throws Exception {
+        define();
+        MailboxStrategy strategy = new MailboxStrategy(2, MailboxStrategy.Overflow.REJECT);
+        sm = new StateMachineImpl(definition, strategy);
+
+        assertEquals(sm.processEvents(events("AB", "NON_EXISTENT", "BC"), 0, 3, false), new ProcessResult[] {
+                ProcessResult.QUEUED, ProcessResult.UNKNOWN_EVENT, ProcessResult.QUEUED });
+        assertEquals(sm.getCurrentState(), "C");
+        assertEquals(sm.processEvents(events("CA", "AB", "BC"), 0, 3, true), new ProcessResult[] {
+                ProcessResult.QUEUED, ProcessResult.QUEUED, ProcessResult.REJECTED });
+        assertEquals(strategy.submit((StateMachineImpl) sm, "BC", null).get(5, TimeUnit.SECONDS),
+                ProcessResult.APPLIED);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class StateMachineArrayTest {
+    private StateMachineDefinitionImpl definition;
+    private StateMachineArray array;
+    private StateMachineException reentrant;
+    private int reentrantSlot;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("OPEN", true, false);
+        definition.defineState("CHECKING");
+        definition.defineState("READY");
+        definition.defineState("CLOSED", false, true);
+        definition.defineEvent("CHECK");
+        definition.defineEvent("ACCEPT");
+        definition.defineEvent("CLOSE");
+        definition.defineEvent("GO");
+        definition.defineEvent("STAY");
+        definition.defineTransition("OPEN", "CHECK", "CHECKING", null);
+        definition.defineTransition("CHECKING", "ACCEPT", "READY", null);
+        definition.defineTransition("OPEN", "GO", "CLOSED", null);
+        definition.defineTransition("CLOSED", "STAY", "CLOSED", null);
+        definition.defineTransition("READY", "CLOSE", "CLOSED", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                if (event.getObject() == null)
+                    return;
+                try {
+                    array.processEvent(reentrantSlot, "CLOSE", null);
+                } catch (StateMachineException e) {
+                    reentrant = e;
+                }
+            }
+        });
+        definition.defineEnterState("CHECKING", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return new EventInfo("ACCEPT", null);
+            }
+        });
+
+        array = StateMachines.newArray(definition, 200);
+    }
+
+    @Test
+    public void testTransitions() throws StateMachineException {
+        int first = array.allocate();
+        int second = array.allocate();
+        assertEquals(array.getState(first), "OPEN");
+
+        array.processEvent(first, "CHECK", null);
+        assertEquals(array.getState(first), "READY");
+        assertEquals(array.getState(second), "OPEN");
+        assertEquals(array.getStateId(first), definition.getStateId("READY"));
+    }
+
+    @Test(expectedExceptions = TransitionNotDefinedException.class)
+    public void testTransitionNotDefined() throws StateMachineException {
+        array.processEvent(array.allocate(), "CLOSE", null);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testSlotNotAllocated() throws StateMachineException {
+        array.processEvent(3, "CHECK", null);
+    }
+
+    @Test
+    public void testFinalStatesAreReleased() throws StateMachineException {
+        int first = array.allocate();
+        int second = array.allocate();
+        array.processEvent(first, "CHECK", null);
+        array.processEvent(first, "CLOSE", null);
+
+        // The state can be read until the slot is reused
+        assertEquals(array.getState(first), "CLOSED");
+        array.release(first);
+        assertEquals(array.allocate(), first);
+        assertEquals(array.getState(first), "OPEN");
+
+        array.release(second);
+        assertNull(array.getState(second));
+        assertEquals(array.allocate(), second);
+        assertEquals(array.allocate(), 2);
+    }
+
+    @Test
+    public void testFinalSlotsAreReleasedOnce() {
+        int slot = array.allocate();
+        assertEquals(array.tryProcessEvent(slot, "GO", null), ProcessResult.APPLIED);
+        assertEquals(array.tryProcessEvent(slot, "GO", null), ProcessResult.NO_TRANSITION);
+        assertEquals(array.tryProcessEvent(slot, "STAY", null), ProcessResult.APPLIED);
+        array.release(slot);
+
+        assertEquals(array.allocate(), slot);
+        assertEquals(array.allocate(), slot + 1);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testFull() {
+        for (int i = 0; i <= array.capacity(); i++)
+            array.allocate();
+    }
+
+    @Test
+    public void testReentrantTransitionNotAllowed() throws StateMachineException {
+        reentrantSlot = array.allocate();
+        array.processEvent(reentrantSlot, "CHECK", null);
+        array.processEvent(reentrantSlot, "CLOSE", "reenter");
+
+        assertTrue(reentrant instanceof ReentrantTransitionNotAllowed);
+        assertEquals(array.getState(reentrantSlot), "CLOSED");
+    }
+
+    @Test
+    public void testIterationByState() throws StateMachineException {
+        for (int i = 0; i < 150; i++) {
+            int slot = array.allocate();
+            if (slot % 3 == 0)
+                array.processEvent(slot, "CHECK", null);
+        }
+
+        final List<Integer> ready = new ArrayList<Integer>();
+        array.forEach("READY", new StateMachineArray.SlotVisitor() {
+            public void visit(int slot) {
+                ready.add(slot);
+            }
+        });
+
+        assertEquals(array.count("READY"), 50);
+        assertEquals(array.count("OPEN"), 100);
+        assertEquals(ready.size(), 50);
+        assertEquals(ready.get(49).intValue(), 147);
+    }
+
+    @Test
+    public void testStoreIsRecovered() throws StateMachineException {
+        StateStore store = StateStore.newArrayStore(4, 10);
+        StateMachineArray first = new StateMachineArray(definition, store, 4, true);
+        for (int i = 0; i < 4; i++)
+            first.allocate();
+        first.processEvent(1, "CHECK", null);
+        first.processEvent(1, "CLOSE", null);
+        first.release(2);
+
+        StateMachineArray second = new StateMachineArray(definition, store, 4, true);
+        assertEquals(second.getState(0), "OPEN");
+        assertEquals(second.allocate(), 1);
+        assertEquals(second.allocate(), 2);
+        assertEquals(second.allocate(), 4);
+    }
+}
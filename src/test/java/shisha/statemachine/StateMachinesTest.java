@@ -1,9 +1,16 @@
 package shisha.statemachine;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
 import junit.framework.Assert;
 
 import org.testng.annotations.Test;
 
+import shisha.statemachine.annotations.util.CountingStateMachine;
+import shisha.statemachine.annotations.util.GeneratedStateMachine;
+import shisha.statemachine.annotations.util.GeneratedStateMachine_StateMachineFactory;
 import shisha.statemachine.annotations.util.IllegalEventAnnotation_01;
 import shisha.statemachine.annotations.util.IllegalEventAnnotation_02;
 import shisha.statemachine.annotations.util.IllegalStateAnnotation_01;
@@ -77,4 +84,58 @@ public class StateMachinesTest {
         
         Assert.assertEquals(sm.getCurrentState(), StateMachineWithRedirectOnEnterPhase.STATE_D);
     }
+    
+    @Test
+    public void testGeneratedFactoryIsPickedUp() throws StateMachineException {
+        int definitions = GeneratedStateMachine_StateMachineFactory.definitions;
+        GeneratedStateMachine controller = new GeneratedStateMachine();
+        StateMachine sm = StateMachines.newNonReentrant(controller);
+        sm.processEvent(GeneratedStateMachine.EVENT_AB, null);
+
+        Assert.assertEquals(GeneratedStateMachine_StateMachineFactory.definitions, definitions + 1);
+        Assert.assertEquals(sm.getCurrentState(), GeneratedStateMachine.STATE_B);
+        Assert.assertEquals(controller.transitions, 1);
+    }
+
+    @Test
+    public void testCachedDefinitionIsBoundToEachInstance() throws StateMachineException {
+        CountingStateMachine first = new CountingStateMachine();
+        CountingStateMachine second = new CountingStateMachine();
+        StateMachine sm1 = StateMachines.newNonReentrant(first);
+        StateMachine sm2 = StateMachines.newNonReentrant(second);
+
+        sm1.processEvent(CountingStateMachine.EVENT_AB, null);
+        sm1.processEvent(CountingStateMachine.EVENT_BA, null);
+        sm2.processEvent(CountingStateMachine.EVENT_AB, null);
+
+        Assert.assertEquals(first.exits, 1);
+        Assert.assertEquals(first.transitions, 2);
+        Assert.assertEquals(second.exits, 1);
+        Assert.assertEquals(second.transitions, 1);
+        Assert.assertEquals(sm1.getCurrentState(), CountingStateMachine.STATE_A);
+        Assert.assertEquals(sm2.getCurrentState(), CountingStateMachine.STATE_B);
+        Assert.assertEquals(sm1.getDefinition().toString(), sm2.getDefinition().toString());
+    }
+
+    @Test
+    public void testOtherDefinitionsAreRejected() throws StateMachineException {
+        StateMachineDefinition definition = (StateMachineDefinition) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { StateMachineDefinition.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getStartState".equals(method.getName()) ? "A" : null;
+                    }
+                });
+        try {
+            StateMachines.newNonReentrant(definition);
+            Assert.fail("Only StateMachineDefinitionImpl can be run");
+        } catch (StateMachineDefinitionException e) {
+            Assert.assertTrue(e.getMessage().contains("StateMachineDefinitionImpl"));
+        }
+        try {
+            StateMachines.newCompact(definition);
+            Assert.fail("Only StateMachineDefinitionImpl can be run");
+        } catch (StateMachineDefinitionException e) {
+            Assert.assertTrue(e.getMessage().contains("StateMachineDefinitionImpl"));
+        }
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class StateSnapshotTest {
+    private StateMachineDefinitionImpl definition;
+    private StateMachineImpl sm;
+    private StateSnapshot inController;
+    private StateSnapshot inEnter;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent("AB");
+        definition.defineEvent("BC");
+        definition.defineEvent("CA");
+        definition.defineTransition("A", "AB", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                inController = sm.getSnapshot();
+            }
+        });
+        definition.defineTransition("B", "BC", "C", null);
+        definition.defineTransition("C", "CA", "A", null);
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                inEnter = sm.getSnapshot();
+                return "redirect".equals(event.getObject()) ? new EventInfo("BC", null) : null;
+            }
+        });
+        sm = (StateMachineImpl) StateMachines.newNonReentrant(definition);
+    }
+
+    @Test
+    public void testSnapshots() throws StateMachineException {
+        StateSnapshot snapshot = sm.getSnapshot();
+        assertEquals(snapshot.getState(), "A");
+        assertEquals(snapshot.getStateId(), definition.getStateId("A"));
+        assertEquals(snapshot.getVersion(), 0);
+        assertFalse(snapshot.isInTransition());
+
+        sm.processEvent("AB", null);
+        assertEquals(inController.getState(), "A");
+        assertTrue(inController.isInTransition());
+        assertEquals(inEnter.getState(), "B");
+        assertEquals(inEnter.getVersion(), 1);
+        assertTrue(inEnter.isInTransition());
+
+        snapshot = sm.getSnapshot();
+        assertEquals(snapshot.getState(), "B");
+        assertEquals(snapshot.getVersion(), 1);
+        assertFalse(snapshot.isInTransition());
+        assertFalse(sm.isInTransition());
+
+        // Events that do not apply do not change the version
+        assertEquals(sm.tryProcessEvent("AB", null), ProcessResult.NO_TRANSITION);
+        assertEquals(sm.getVersion(), 1);
+    }
+
+    @Test
+    public void testRedirectsChangeTheVersion() throws StateMachineException {
+        sm.processEvent("AB", "redirect");
+        assertEquals(sm.getSnapshot().toString(), "C v2");
+    }
+
+    @Test
+    public void testCompareAndSetChangesTheVersion() throws StateMachineException {
+        sm = (StateMachineImpl) StateMachines.newLockFree(definition);
+        sm.setCurrentState("C");
+        sm.processEvent("CA", null);
+        assertEquals(sm.getCurrentState(), "A");
+        assertEquals(sm.getVersion(), 2);
+    }
+
+    @Test
+    public void testAwaitState() throws Exception {
+        assertTrue(sm.awaitState("A", 0, TimeUnit.SECONDS));
+        assertFalse(sm.awaitState("C", 20, TimeUnit.MILLISECONDS));
+
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    sm.processEvent("AB", "redirect");
+                } catch (Exception e) {
+                    // The wait times out
+                }
+            }
+        };
+        writer.start();
+        assertTrue(sm.awaitState("C", 5, TimeUnit.SECONDS));
+        assertEquals(sm.getCurrentState(), "C");
+        writer.join();
+    }
+
+    @Test
+    public void testAwaitStateIsInterruptible() throws Exception {
+        Thread.currentThread().interrupt();
+        try {
+            sm.awaitState("B", 5, TimeUnit.SECONDS);
+            fail("The wait should be interrupted");
+        } catch (InterruptedException e) {
+            // Expected
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testAwaitUnknownState() throws Exception {
+        sm.awaitState("NON_EXISTENT", 1, TimeUnit.SECONDS);
+    }
+}
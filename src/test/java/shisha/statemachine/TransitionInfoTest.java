@@ -17,6 +17,7 @@ package shisha.statemachine;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import org.testng.annotations.Test;
@@ -91,4 +92,45 @@ public class TransitionInfoTest {
         
         assertEquals(stateMachine.getCurrentState(), STATE_B);
     }
+
+    @Test
+    public void testContextKeys() {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        ContextKey<String> name = definition.defineContextKey("name", String.class);
+        ContextKey<Integer> count = definition.defineContextKey("count", Integer.class);
+        
+        TransitionInfo ti = new TransitionInfo("SOURCE", "EVENT", "TARGET", null);
+        assertNull(ti.get(name));
+        ti.put(name, "value");
+        ti.put(count, 3);
+        
+        assertEquals(ti.get(name), "value");
+        assertEquals(ti.get(count).intValue(), 3);
+        
+        ti.reset("SOURCE", "EVENT", "TARGET", null);
+        assertNull(ti.get(name));
+    }
+    
+    @Test
+    public void testContextKeysAndMapAreInterchangeable() {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        ContextKey<String> name = definition.defineContextKey("name", String.class);
+        ContextKey<String> other = definition.defineContextKey("other", String.class);
+        
+        TransitionInfo ti = new TransitionInfo("SOURCE", "EVENT", "TARGET", null);
+        ti.put(name, "value");
+        assertEquals(ti.getTransitionContext().get("name"), "value");
+        
+        ti.getTransitionContext().put("other", "from map");
+        ti.put(name, "changed");
+        assertEquals(ti.get(other), "from map");
+        assertEquals(ti.getTransitionContext().get("name"), "changed");
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testContextKeyDefinedTwice() {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineContextKey("name", String.class);
+        definition.defineContextKey("name", Integer.class);
+    }
 }
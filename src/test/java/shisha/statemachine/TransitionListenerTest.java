@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class TransitionListenerTest {
+    private StateMachineDefinitionImpl definition;
+    private Recorder recorder;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent("AB");
+        definition.defineEvent("BC");
+        definition.defineEvent("CA");
+        definition.defineEvent("BA");
+        definition.defineTransition("A", "AB", "B", null);
+        definition.defineTransition("B", "BC", "C", null);
+        definition.defineTransition("C", "CA", "A", null);
+        definition.defineTransition("B", "BA", "A", null);
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return "redirect".equals(event.getObject()) ? new EventInfo("BC", null) : null;
+            }
+        });
+        definition.defineExitState("B", new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                return !"cancel".equals(event.getObject());
+            }
+        });
+        recorder = new Recorder("");
+    }
+
+    @DataProvider(name = "kinds")
+    public Object[][] kinds() {
+        return new Object[][] { { "reentrant" }, { "nonReentrant" }, { "lockFree" }, { "compact" } };
+    }
+
+    private StateMachine create(String kind) throws StateMachineException {
+        if ("reentrant".equals(kind))
+            return StateMachines.newReentrant(definition);
+        if ("nonReentrant".equals(kind))
+            return StateMachines.newNonReentrant(definition);
+        if ("lockFree".equals(kind))
+            return StateMachines.newLockFree(definition);
+        return StateMachines.newCompact(definition);
+    }
+
+    @Test(dataProvider = "kinds")
+    public void testCallbacks(String kind) throws StateMachineException {
+        definition.addTransitionListener(recorder);
+        StateMachine sm = create(kind);
+
+        sm.processEvent("AB", "redirect");
+        sm.processEvent("CA", null);
+        assertEquals(sm.tryProcessEvent("CA", null), ProcessResult.NO_TRANSITION);
+
+        assertEquals(recorder.calls, Arrays.asList("beforeExit A-AB->B", "afterTransition A-AB->B",
+                "afterEnter A-AB->B", "redirected A-AB->B BC", "beforeExit B-BC->C", "afterTransition B-BC->C",
+                "afterEnter B-BC->C", "beforeExit C-CA->A", "afterTransition C-CA->A", "afterEnter C-CA->A"));
+    }
+
+    @Test(dataProvider = "kinds")
+    public void testCancelled(String kind) throws StateMachineException {
+        definition.addTransitionListener(recorder);
+        StateMachine sm = create(kind);
+
+        sm.processEvent("AB", null);
+        assertEquals(sm.tryProcessEvent("BA", "cancel"), ProcessResult.CANCELLED_BY_EXIT);
+
+        assertEquals(sm.getCurrentState(), "B");
+        assertEquals(recorder.calls.subList(3, 5), Arrays.asList("beforeExit B-BA->A", "cancelled B-BA->A"));
+    }
+
+    @Test
+    public void testStateMachineArray() throws StateMachineException {
+        definition.addTransitionListener(recorder);
+        StateMachineArray array = StateMachines.newArray(definition, 4);
+        int slot = array.allocate();
+
+        array.processEvent(slot, "AB", "redirect");
+        assertEquals(recorder.calls.get(3), "redirected A-AB->B BC");
+        assertEquals(recorder.calls.get(6), "afterEnter B-BC->C");
+    }
+
+    @Test
+    public void testListenersAreCalledInOrder() throws StateMachineException {
+        Recorder second = new Recorder("second ");
+        definition.addTransitionListener(recorder);
+        definition.addTransitionListener(second);
+        recorder.calls = second.calls;
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+
+        sm.processEvent("AB", null);
+        assertEquals(second.calls.subList(0, 2), Arrays.asList("beforeExit A-AB->B", "second beforeExit A-AB->B"));
+        assertEquals(second.calls.size(), 6);
+    }
+
+    @Test
+    public void testWithoutListeners() throws StateMachineException {
+        TransitionTable table = definition.freeze();
+
+        assertSame(table.getTransitionListener(), TransitionListeners.NONE);
+        assertTrue(table.isControllerFree(table.getStateId("C"), table.getEventId("CA")));
+        try {
+            definition.addTransitionListener(recorder);
+            fail("Listeners cannot be added to a frozen definition");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testListenersDisableTheLockFreePath() throws StateMachineException {
+        definition.addTransitionListener(recorder);
+        TransitionTable table = definition.freeze();
+
+        assertSame(table.getTransitionListener(), recorder);
+        assertFalse(table.isControllerFree(table.getStateId("C"), table.getEventId("CA")));
+        assertSame(TransitionListeners.compose(Collections.<TransitionListener> emptyList()),
+                TransitionListeners.NONE);
+    }
+
+    @Test
+    public void testAsyncDelivery() throws Exception {
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        recorder = new Recorder("") {
+            public void afterEnter(TransitionInfo event) {
+                threads.add(Thread.currentThread());
+                super.afterEnter(event);
+            }
+        };
+        AsyncTransitionListener async = TransitionListeners.async(recorder, 16);
+        definition.addTransitionListener(async);
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+
+        sm.processEvent("AB", "redirect");
+        async.close();
+
+        assertEquals(async.getDeliveredCount(), 7);
+        assertEquals(async.getDroppedCount(), 0);
+        assertEquals(recorder.calls.get(3), "redirected A-AB->B BC");
+        assertNotSame(threads.get(0), Thread.currentThread());
+    }
+
+    @Test
+    public void testAsyncDeliversAfterErrors() throws Exception {
+        recorder = new Recorder("") {
+            public void beforeExit(TransitionInfo event) {
+                throw new AssertionError("failed");
+            }
+        };
+        AsyncTransitionListener async = TransitionListeners.async(recorder, 16);
+        definition.addTransitionListener(async);
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+
+        sm.processEvent("AB", null);
+        sm.processEvent("BA", null);
+        async.close();
+
+        assertEquals(async.getDeliveredCount(), 6);
+        assertEquals(recorder.calls, Arrays.asList("afterTransition A-AB->B", "afterEnter A-AB->B",
+                "afterTransition B-BA->A", "afterEnter B-BA->A"));
+    }
+
+    @Test
+    public void testAsyncDropsWhenFull() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncTransitionListener async = TransitionListeners.async(new AbstractTransitionListener() {
+            public void beforeExit(TransitionInfo event) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 4);
+        definition.addTransitionListener(async);
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+
+        sm.processEvent("AB", null);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        // The listener is blocked, the transitions are not
+        for (int i = 0; i < 10; i++) {
+            sm.processEvent("BA", null);
+            sm.processEvent("AB", null);
+        }
+        assertEquals(sm.getCurrentState(), "B");
+        assertTrue(async.getDroppedCount() > 0);
+
+        release.countDown();
+        async.close();
+        assertEquals(async.getDeliveredCount() + async.getDroppedCount(), 63);
+    }
+
+    private static class Recorder implements TransitionListener {
+        private final String prefix;
+        List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+        Recorder(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private void record(String callback, TransitionInfo event) {
+            calls.add(prefix + callback + " " + event.getSource() + "-" + event.getEvent() + "->" + event.getTarget());
+        }
+
+        public void beforeExit(TransitionInfo event) {
+            record("beforeExit", event);
+        }
+
+        public void cancelled(TransitionInfo event) {
+            record("cancelled", event);
+        }
+
+        public void afterTransition(TransitionInfo event) {
+            record("afterTransition", event);
+        }
+
+        public void afterEnter(TransitionInfo event) {
+            record("afterEnter", event);
+        }
+
+        public void redirected(TransitionInfo event, EventInfo redirect) {
+            calls.add(prefix + "redirected " + event.getSource() + "-" + event.getEvent() + "->" + event.getTarget()
+                    + " " + redirect.getEvent());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class TransitionTableTest {
+    public static String STATE_A = "STATE_A";
+    public static String STATE_B = "STATE_B";
+    public static String STATE_C = "STATE_C";
+
+    public static String EVENT_AB = "EVENT_AB";
+    public static String EVENT_BC = "EVENT_BC";
+    public static String EVENT_BB = "EVENT_BB";
+
+    private StateMachineDefinitionImpl definition;
+    private TransitionController transitionController;
+    private ExitStateController exitController;
+    private EnterStateController enterController;
+
+    @BeforeMethod
+    public void beforeAnyMethod() throws StateMachineDefinitionException {
+        transitionController = mock(TransitionController.class);
+        exitController = mock(ExitStateController.class);
+        enterController = mock(EnterStateController.class);
+
+        definition = new StateMachineDefinitionImpl();
+        definition.defineEvent(EVENT_AB);
+        definition.defineEvent(EVENT_BC);
+        definition.defineEvent(EVENT_BB);
+
+        definition.defineState(STATE_A, true, false);
+        definition.defineState(STATE_B);
+        definition.defineState(STATE_C, false, true);
+
+        definition.defineTransition(STATE_A, EVENT_AB, STATE_B, null);
+        definition.defineTransition(STATE_B, EVENT_BC, STATE_C, transitionController);
+        definition.defineTransition(STATE_B, EVENT_BB, STATE_B, null);
+        definition.defineExitState(STATE_A, exitController);
+        definition.defineEnterState(STATE_C, enterController);
+    }
+
+    @Test
+    public void testOrdinalsFollowDefinitionOrder() {
+        TransitionTable table = definition.freeze();
+
+        assertEquals(table.getStateCount(), 3);
+        assertEquals(table.getEventCount(), 3);
+        assertEquals(table.getStateId(STATE_A), 0);
+        assertEquals(table.getStateId(STATE_C), 2);
+        assertEquals(table.getEventId(EVENT_BB), 2);
+        assertEquals(table.getStateName(1), STATE_B);
+        assertEquals(table.getEventName(1), EVENT_BC);
+        assertEquals(table.getStateId("DOHH"), TransitionTable.UNDEFINED);
+        assertEquals(table.getEventId("DOHH"), TransitionTable.UNDEFINED);
+    }
+
+    @Test
+    public void testTransitionsAreCompiled() {
+        TransitionTable table = definition.freeze();
+        int a = table.getStateId(STATE_A);
+        int b = table.getStateId(STATE_B);
+        int c = table.getStateId(STATE_C);
+
+        assertEquals(table.getStartState(), a);
+        assertTrue(table.isFinalState(c));
+        assertFalse(table.isFinalState(b));
+
+        assertEquals(table.getTargetState(a, table.getEventId(EVENT_AB)), b);
+        assertEquals(table.getTargetState(b, table.getEventId(EVENT_BB)), b);
+        assertEquals(table.getTargetState(a, table.getEventId(EVENT_BC)), TransitionTable.UNDEFINED);
+
+        assertSame(table.getTransitionController(b, table.getEventId(EVENT_BC)), transitionController);
+        assertNull(table.getTransitionController(a, table.getEventId(EVENT_AB)));
+        assertSame(table.getExitStateController(a), exitController);
+        assertSame(table.getEnterStateController(c), enterController);
+        assertNull(table.getEnterStateController(a));
+    }
+
+    @Test
+    public void testFreezeIsIdempotent() {
+        assertFalse(definition.isFrozen());
+        TransitionTable table = definition.freeze();
+        assertTrue(definition.isFrozen());
+        assertSame(definition.freeze(), table);
+        assertSame(definition.getTransitionTable(), table);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testFrozenDefinitionCannotBeModified() throws StateMachineDefinitionException {
+        definition.freeze();
+        definition.defineEvent("EVENT_CC");
+    }
+
+    @Test
+    public void testStateMachineFreezesTheDefinition() throws StateMachineException {
+        when(exitController.execute(any(TransitionInfo.class))).thenReturn(true);
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        assertTrue(definition.isFrozen());
+
+        sm.processEvent(EVENT_AB, null);
+        sm.processEvent(EVENT_BB, null);
+        sm.processEvent(EVENT_BC, null);
+        assertEquals(sm.getCurrentState(), STATE_C);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.StateMachineExecutionException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+public class TryProcessEventTest {
+    private static final int EVENTS = 100000;
+
+    private StateMachineDefinitionImpl definition;
+    private StateMachine sm;
+    private ProcessResult nested;
+    private Level level;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        // The debug messages are only built when they are going to be logged
+        level = LogManager.getRootLogger().getLevel();
+        LogManager.getRootLogger().setLevel(Level.INFO);
+
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent("AB");
+        definition.defineEvent("BC");
+        definition.defineEvent("CA");
+        definition.defineEvent("LOOP");
+        definition.defineTransition("A", "AB", "B", null);
+        definition.defineTransition("B", "BC", "C", null);
+        definition.defineTransition("B", "LOOP", "B", null);
+        definition.defineTransition("C", "CA", "A", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                nested = sm.tryProcessEvent("AB", null);
+            }
+        });
+        definition.defineExitState("B", new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                return !"cancel".equals(event.getObject());
+            }
+        });
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                if ("loop".equals(event.getObject()))
+                    return new EventInfo("LOOP", "loop");
+                if ("unknown".equals(event.getObject()))
+                    return new EventInfo("NON_EXISTENT", null);
+                return null;
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        LogManager.getRootLogger().setLevel(level);
+    }
+
+    @DataProvider(name = "machines")
+    public Object[][] machines() throws StateMachineException {
+        return new Object[][] { { StateMachines.newReentrant(definition) },
+                { StateMachines.newNonReentrant(definition) }, { StateMachines.newCompact(definition) } };
+    }
+
+    @Test(dataProvider = "machines")
+    public void testResults(StateMachine machine) {
+        sm = machine;
+        assertEquals(sm.tryProcessEvent("AB", null), ProcessResult.APPLIED);
+        assertEquals(sm.getCurrentState(), "B");
+
+        assertEquals(sm.tryProcessEvent("AB", null), ProcessResult.NO_TRANSITION);
+        assertEquals(sm.tryProcessEvent("NON_EXISTENT", null), ProcessResult.UNKNOWN_EVENT);
+        assertEquals(sm.tryProcessEvent(-1, null), ProcessResult.UNKNOWN_EVENT);
+        assertEquals(sm.tryProcessEvent(definition.getEventId("BC"), "cancel"), ProcessResult.CANCELLED_BY_EXIT);
+        assertEquals(sm.getCurrentState(), "B");
+
+        assertEquals(sm.tryProcessEvent("BC", null), ProcessResult.APPLIED);
+        assertEquals(sm.tryProcessEvent("CA", null), ProcessResult.APPLIED);
+        assertEquals(sm.getCurrentState(), "A");
+    }
+
+    @Test(dataProvider = "machines")
+    public void testResultOfTheRedirectChain(StateMachine machine) {
+        sm = machine;
+        assertEquals(sm.tryProcessEvent("AB", "unknown"), ProcessResult.UNKNOWN_EVENT);
+        assertEquals(sm.getCurrentState(), "B");
+        assertEquals(sm.tryProcessEvent("LOOP", "loop"), ProcessResult.CHAIN_TOO_LONG);
+        assertEquals(sm.getCurrentState(), "B");
+        assertEquals(sm.tryProcessEvent("BC", null), ProcessResult.APPLIED);
+    }
+
+    @DataProvider(name = "nonReentrantMachines")
+    public Object[][] nonReentrantMachines() throws StateMachineException {
+        return new Object[][] { { StateMachines.newNonReentrant(definition) },
+                { StateMachines.newCompact(definition) } };
+    }
+
+    @Test(dataProvider = "nonReentrantMachines")
+    public void testReentrantRejected(StateMachine machine) throws StateMachineException {
+        sm = machine;
+        sm.processEvent("AB", null);
+        sm.processEvent("BC", null);
+        sm.processEvent("CA", null);
+
+        assertEquals(nested, ProcessResult.REENTRANT_REJECTED);
+        assertEquals(sm.getCurrentState(), "A");
+
+        // The machine is not left in transition
+        assertEquals(sm.tryProcessEvent("AB", null), ProcessResult.APPLIED);
+    }
+
+    @Test
+    public void testStrategiesOnlyProcessingEventsByName() throws Exception {
+        sm = new StateMachineImpl(definition, new StateMachineStrategy() {
+            private final NonReentrantStrategy delegate = new NonReentrantStrategy();
+
+            public void processEvent(StateMachineImpl statemachine, String event, Object object)
+                    throws StateMachineExecutionException, StateMachineDefinitionException {
+                delegate.processEvent(statemachine, event, object);
+            }
+        });
+        checkDefaultMethods();
+    }
+
+    @Test
+    public void testStateMachinesOnlyProcessingEventsByName() throws Exception {
+        final StateMachine delegate = StateMachines.newNonReentrant(definition);
+        sm = new StateMachine() {
+            public String getCurrentState() {
+                return delegate.getCurrentState();
+            }
+
+            public StateMachineDefinition getDefinition() {
+                return delegate.getDefinition();
+            }
+
+            public void processEvent(String event, Object object) throws StateMachineExecutionException,
+                    StateMachineDefinitionException {
+                delegate.processEvent(event, object);
+            }
+        };
+        checkDefaultMethods();
+    }
+
+    private void checkDefaultMethods() throws Exception {
+        sm.processEvent(definition.getEventId("AB"), null);
+        assertEquals(sm.getCurrentStateId(), definition.getStateId("B"));
+        assertEquals(sm.tryProcessEvent("AB", null), ProcessResult.NO_TRANSITION);
+        assertEquals(sm.tryProcessEvent(-1, null), ProcessResult.UNKNOWN_EVENT);
+        assertEquals(sm.tryProcessEvent("LOOP", "loop"), ProcessResult.CHAIN_TOO_LONG);
+        assertEquals(sm.processEventAsync(definition.getEventId("BC"), null).toCompletableFuture().get(),
+                ProcessResult.APPLIED);
+
+        ProcessResult[] results = sm.processEvents(Arrays.asList(new EventInfo("BC", null),
+                new EventInfo("CA", null), new EventInfo("AB", null)), true);
+        assertEquals(results, new ProcessResult[] { ProcessResult.NO_TRANSITION, ProcessResult.SKIPPED,
+                ProcessResult.SKIPPED });
+        assertEquals(sm.getCurrentState(), "C");
+    }
+
+    @Test
+    public void testStateMachineArray() throws StateMachineException {
+        StateMachineArray array = StateMachines.newArray(definition, 4);
+        int slot = array.allocate();
+
+        assertEquals(array.tryProcessEvent(slot, "AB", null), ProcessResult.APPLIED);
+        assertEquals(array.tryProcessEvent(slot, "AB", null), ProcessResult.NO_TRANSITION);
+        assertEquals(array.tryProcessEvent(slot, "NON_EXISTENT", null), ProcessResult.UNKNOWN_EVENT);
+        assertEquals(array.tryProcessEvent(slot, "BC", "cancel"), ProcessResult.CANCELLED_BY_EXIT);
+        assertEquals(array.tryProcessEvent(slot, "LOOP", "loop"), ProcessResult.CHAIN_TOO_LONG);
+        assertEquals(array.getState(slot), "B");
+    }
+
+    @Test
+    public void testNoAllocationWhenTheTransitionIsNotDefined() throws StateMachineException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        sm = new StateMachineImpl(definition, new NonReentrantStrategy(true));
+        int ab = definition.getEventId("AB");
+        sm.processEvent(ab, null);
+
+        // Warm up, so nothing is allocated by the interpreter or class loading
+        for (int i = 0; i < EVENTS; i++)
+            sm.tryProcessEvent(ab, null);
+
+        long overhead = threads.getThreadAllocatedBytes(thread);
+        overhead = threads.getThreadAllocatedBytes(thread) - overhead;
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < EVENTS; i++)
+            assertEquals(sm.tryProcessEvent(ab, null), ProcessResult.NO_TRANSITION);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+        assertEquals(allocated / EVENTS, 0, allocated + " bytes allocated for " + EVENTS + " events");
+    }
+
+    @Test
+    public void testStacklessException() {
+        TransitionNotDefinedException e = new TransitionNotDefinedException("stackless", true);
+        assertEquals(e.getStackTrace().length, 0);
+        assertFalse(new TransitionNotDefinedException("regular").getStackTrace().length == 0);
+    }
+}
@@ -0,0 +1,60 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine.annotations.util;
+
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.Choice;
+import shisha.statemachine.annotations.ChoiceState;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.annotations.Transition;
+
+/**
+ * Routes orders by amount through a choice state
+ */
+@AStateMachine
+public class ChoiceStateMachine {
+    @State(isStart=true) public static final String STATE_A = "STATE_A";
+    @ChoiceState(otherwise=STATE_A) public static final String STATE_COND = "STATE_COND";
+    @State public static final String STATE_BIG = "STATE_BIG";
+    @State public static final String STATE_HUGE = "STATE_HUGE";
+
+    @Event public static final String EVENT_GO = "EVENT_GO";
+
+    private int evaluated;
+
+    @Transition(source=STATE_A, target=STATE_COND, event=EVENT_GO)
+    public void go(TransitionInfo info) {
+    }
+
+    // Declared before isBig, but evaluated after it
+    @Choice(source=STATE_COND, target=STATE_HUGE, order=1)
+    public boolean isHuge(TransitionInfo info) {
+        evaluated++;
+        return (Integer) info.getObject() > 1000;
+    }
+
+    @Choice(source=STATE_COND, target=STATE_BIG)
+    public Boolean isBig(TransitionInfo info) {
+        evaluated++;
+        return (Integer) info.getObject() > 100 && (Integer) info.getObject() <= 1000;
+    }
+
+    public int getEvaluated() {
+        return evaluated;
+    }
+}
@@ -0,0 +1,53 @@
+/*  
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.annotations.util;
+
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.ExitState;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.annotations.Transition;
+
+/**
+ * Annotated state machine counting how many times its controllers are called
+ */
+@AStateMachine
+public class CountingStateMachine {
+    @State(isStart = true) public static final String STATE_A = "STATE_A";
+    @State public static final String STATE_B = "STATE_B";
+    @Event public static final String EVENT_AB = "EVENT_AB";
+    @Event public static final String EVENT_BA = "EVENT_BA";
+
+    public int exits;
+    public int transitions;
+
+    @ExitState(STATE_A)
+    public Boolean exitA(TransitionInfo info) {
+        exits++;
+        return true;
+    }
+
+    @Transition(source = STATE_A, event = EVENT_AB, target = STATE_B)
+    public void transitionAB(TransitionInfo info) {
+        transitions++;
+    }
+
+    @Transition(source = STATE_B, event = EVENT_BA, target = STATE_A)
+    public void transitionBA(TransitionInfo info) {
+        transitions++;
+    }
+}
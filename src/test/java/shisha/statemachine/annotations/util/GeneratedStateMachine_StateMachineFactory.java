@@ -0,0 +1,49 @@
+/*  
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.annotations.util;
+
+import shisha.statemachine.StateMachineDefinition;
+import shisha.statemachine.StateMachineDefinitionFactory;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineDefinitionException;
+
+/**
+ * Hand-written equivalent of the factory the annotation processor generates
+ * for {@link GeneratedStateMachine}. It counts how many definitions it built
+ * so tests can check it is picked up.
+ */
+public final class GeneratedStateMachine_StateMachineFactory implements
+        StateMachineDefinitionFactory<GeneratedStateMachine> {
+    public static int definitions;
+
+    public StateMachineDefinition newDefinition(final GeneratedStateMachine instance)
+            throws StateMachineDefinitionException {
+        definitions++;
+
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState(GeneratedStateMachine.STATE_A, true, false);
+        definition.defineState(GeneratedStateMachine.STATE_B, false, false);
+        definition.defineEvent(GeneratedStateMachine.EVENT_AB);
+        definition.defineTransition("STATE_A", "EVENT_AB", "STATE_B", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                instance.transitionAB(info);
+            }
+        });
+        return definition;
+    }
+}
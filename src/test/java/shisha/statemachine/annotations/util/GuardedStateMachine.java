@@ -0,0 +1,66 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine.annotations.util;
+
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.State;
+import shisha.statemachine.annotations.Transition;
+import shisha.statemachine.annotations.Transitions;
+
+/**
+ * Routes payments by amount with guarded transitions
+ */
+@AStateMachine
+public class GuardedStateMachine {
+    @State(isStart=true) public static final String STATE_A = "STATE_A";
+    @State public static final String STATE_AUTO = "STATE_AUTO";
+    @State public static final String STATE_MANUAL = "STATE_MANUAL";
+    @State public static final String STATE_REJECTED = "STATE_REJECTED";
+
+    @Event public static final String EVENT_PAY = "EVENT_PAY";
+
+    private final int limit;
+    private final StringBuilder trace = new StringBuilder();
+
+    public GuardedStateMachine(int limit) {
+        this.limit = limit;
+    }
+
+    @Transitions({@Transition(source=STATE_A, target=STATE_REJECTED, event=EVENT_PAY, guard="isNegative"),
+                  @Transition(source=STATE_A, target=STATE_AUTO, event=EVENT_PAY, guard="isBelowLimit")})
+    public void check(TransitionInfo info) {
+        trace.append("check ");
+    }
+
+    @Transition(source=STATE_A, target=STATE_MANUAL, event=EVENT_PAY)
+    public void review(TransitionInfo info) {
+        trace.append("review ");
+    }
+
+    public boolean isNegative(TransitionInfo info) {
+        return (Integer) info.getObject() < 0;
+    }
+
+    public Boolean isBelowLimit(TransitionInfo info) {
+        return (Integer) info.getObject() < limit;
+    }
+
+    public String getTrace() {
+        return trace.toString();
+    }
+}
@@ -0,0 +1,90 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * Replays the same events to a machine one call at a time and as a batch.
+ * Scores are per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+    private static final int EVENTS = 256;
+
+    private StateMachineImpl sm;
+    private EventInfo[] events;
+
+    @Setup
+    public void setup() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        definition.defineTransition("A", "AB", "B", null);
+        definition.defineTransition("B", "BA", "A", null);
+        sm = new StateMachineImpl(definition, new NonReentrantStrategy());
+
+        events = new EventInfo[EVENTS];
+        for (int i = 0; i < EVENTS; i++)
+            events[i] = new EventInfo(i % 2 == 0 ? "AB" : "BA", null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void oneByOne() throws StateMachineException {
+        for (int i = 0; i < EVENTS; i++)
+            sm.processEvent(events[i].getEvent(), events[i].getObject());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public ProcessResult[] batch() {
+        return sm.processEvents(events, 0, EVENTS, true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BatchBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,139 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.Guard;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * A decision among three states depending on the amount sent with the event,
+ * taken by an intermediate state redirecting from its enter phase and by a
+ * choice state. Every operation is the decision plus the event going back to
+ * the start state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChoiceStateBenchmark {
+    private static final Integer[] AMOUNTS = { 5, 500, 5000, 50 };
+    private static final EventInfo TO_SMALL = new EventInfo("TO_SMALL", null);
+    private static final EventInfo TO_BIG = new EventInfo("TO_BIG", null);
+    private static final EventInfo TO_HUGE = new EventInfo("TO_HUGE", null);
+
+    private StateMachineImpl redirect;
+    private StateMachineImpl choice;
+    private int go;
+    private int back;
+    private int next;
+
+    @Setup
+    public void setup() throws StateMachineException {
+        StateMachineDefinitionImpl redirecting = definition();
+        redirecting.defineState("COND");
+        redirecting.defineEvent("TO_SMALL");
+        redirecting.defineEvent("TO_BIG");
+        redirecting.defineEvent("TO_HUGE");
+        redirecting.defineTransition("A", "GO", "COND", null);
+        redirecting.defineTransition("COND", "TO_SMALL", "SMALL", null);
+        redirecting.defineTransition("COND", "TO_BIG", "BIG", null);
+        redirecting.defineTransition("COND", "TO_HUGE", "HUGE", null);
+        redirecting.defineEnterState("COND", new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                int amount = (Integer) info.getObject();
+                return amount > 1000 ? TO_HUGE : amount > 100 ? TO_BIG : TO_SMALL;
+            }
+        });
+        redirect = new StateMachineImpl(redirecting, new NonReentrantStrategy());
+
+        StateMachineDefinitionImpl choosing = definition();
+        choosing.defineChoiceState("COND");
+        choosing.defineTransition("A", "GO", "COND", null);
+        choosing.defineChoice("COND", new Guard() {
+            public boolean evaluate(TransitionInfo info) {
+                return (Integer) info.getObject() > 1000;
+            }
+        }, "HUGE");
+        choosing.defineChoice("COND", new Guard() {
+            public boolean evaluate(TransitionInfo info) {
+                return (Integer) info.getObject() > 100;
+            }
+        }, "BIG");
+        choosing.defineChoice("COND", null, "SMALL");
+        choice = new StateMachineImpl(choosing, new NonReentrantStrategy());
+
+        go = choosing.getEventId("GO");
+        back = choosing.getEventId("BACK");
+    }
+
+    private static StateMachineDefinitionImpl definition() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("SMALL");
+        definition.defineState("BIG");
+        definition.defineState("HUGE");
+        definition.defineEvent("GO");
+        definition.defineEvent("BACK");
+        definition.defineTransition("SMALL", "BACK", "A", null);
+        definition.defineTransition("BIG", "BACK", "A", null);
+        definition.defineTransition("HUGE", "BACK", "A", null);
+        return definition;
+    }
+
+    private Integer amount() {
+        return AMOUNTS[next++ & 3];
+    }
+
+    @Benchmark
+    public void redirectState() throws StateMachineException {
+        redirect.processEvent(go, amount());
+        redirect.processEvent(back, null);
+    }
+
+    @Benchmark
+    public void choiceState() throws StateMachineException {
+        choice.processEvent(go, amount());
+        choice.processEvent(back, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ChoiceStateBenchmark.class.getSimpleName()).build()).run();
+    }
+}
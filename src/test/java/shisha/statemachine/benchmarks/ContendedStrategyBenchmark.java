@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachineStrategy;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.LockFreeStrategy;
+import shisha.statemachine.strategy.LockPolicy;
+import shisha.statemachine.strategy.MailboxStrategy;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.ReentrantStrategy;
+
+/**
+ * Many threads toggling a single status tracking machine, whose transitions
+ * have no controllers, with each strategy. Events are processed with
+ * tryProcessEvent, so every strategy waits for its lock instead of failing
+ * when it is taken. The mailbox strategy only queues the event, unless the
+ * thread finds the mailbox idle and processes it. Run it through the main
+ * method, which repeats it with 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContendedStrategyBenchmark {
+    @Param({ "reentrant", "nonReentrant", "spinning", "fair", "lockFree", "mailbox" })
+    public String strategy;
+
+    private StateMachineImpl sm;
+    private int toggle;
+
+    @Setup
+    public void setup() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("ACTIVE", true, false);
+        definition.defineState("INACTIVE");
+        definition.defineEvent("TOGGLE");
+        definition.defineTransition("ACTIVE", "TOGGLE", "INACTIVE", null);
+        definition.defineTransition("INACTIVE", "TOGGLE", "ACTIVE", null);
+
+        StateMachineStrategy selected;
+        if ("reentrant".equals(strategy))
+            selected = new ReentrantStrategy();
+        else if ("nonReentrant".equals(strategy))
+            selected = new NonReentrantStrategy();
+        else if ("spinning".equals(strategy))
+            selected = new NonReentrantStrategy(LockPolicy.spinning(64, false));
+        else if ("fair".equals(strategy))
+            selected = new NonReentrantStrategy(LockPolicy.blocking(true));
+        else if ("lockFree".equals(strategy))
+            selected = new LockFreeStrategy();
+        else
+            selected = new MailboxStrategy(1024, MailboxStrategy.Overflow.BLOCK);
+        sm = new StateMachineImpl(definition, selected);
+        toggle = definition.getEventId("TOGGLE");
+    }
+
+    @Benchmark
+    public ProcessResult toggle() {
+        return sm.tryProcessEvent(toggle, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2)
+            new Runner(new OptionsBuilder().include(ContendedStrategyBenchmark.class.getSimpleName())
+                    .threads(threads).build()).run();
+    }
+}
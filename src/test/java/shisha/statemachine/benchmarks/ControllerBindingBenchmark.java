@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.EnterState;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.ExitState;
+import shisha.statemachine.annotations.Transition;
+import shisha.statemachine.exceptions.StateMachineException;
+
+/**
+ * Compares the cost of a transition whose three phases are annotated methods
+ * bound by the library, the same methods called through the former
+ * <code>Method.invoke</code> adapters and hand-written controllers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControllerBindingBenchmark {
+    @AStateMachine
+    public static class Controller {
+        @shisha.statemachine.annotations.State(isStart = true) public static final String STATE_A = "STATE_A";
+        @Event public static final String EVENT_AA = "EVENT_AA";
+
+        public long count;
+
+        @ExitState(STATE_A)
+        public Boolean exit(TransitionInfo info) {
+            count++;
+            return Boolean.TRUE;
+        }
+
+        @Transition(source = STATE_A, event = EVENT_AA, target = STATE_A)
+        public void transition(TransitionInfo info) {
+            count++;
+        }
+
+        @EnterState(STATE_A)
+        public EventInfo enter(TransitionInfo info) {
+            count++;
+            return null;
+        }
+    }
+
+    private StateMachine annotated;
+    private StateMachine reflective;
+    private StateMachine handWritten;
+
+    @Setup
+    public void setup() throws Exception {
+        annotated = StateMachines.newReentrant(new Controller());
+        reflective = StateMachines.newReentrant(reflectiveDefinition(new Controller()));
+        handWritten = StateMachines.newReentrant(handWrittenDefinition(new Controller()));
+    }
+
+    @Benchmark
+    public StateMachine annotatedControllers() throws StateMachineException {
+        annotated.processEvent(Controller.EVENT_AA, null);
+        return annotated;
+    }
+
+    @Benchmark
+    public StateMachine reflectiveControllers() throws StateMachineException {
+        reflective.processEvent(Controller.EVENT_AA, null);
+        return reflective;
+    }
+
+    @Benchmark
+    public StateMachine handWrittenControllers() throws StateMachineException {
+        handWritten.processEvent(Controller.EVENT_AA, null);
+        return handWritten;
+    }
+
+    private static StateMachineDefinitionImpl newDefinition() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState(Controller.STATE_A, true, false);
+        definition.defineEvent(Controller.EVENT_AA);
+        return definition;
+    }
+
+    private static StateMachineDefinitionImpl handWrittenDefinition(final Controller controller)
+            throws StateMachineException {
+        StateMachineDefinitionImpl definition = newDefinition();
+        definition.defineExitState(Controller.STATE_A, new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                return controller.exit(event);
+            }
+        });
+        definition.defineTransition(Controller.STATE_A, Controller.EVENT_AA, Controller.STATE_A,
+                new TransitionController() {
+                    public void execute(TransitionInfo event) {
+                        controller.transition(event);
+                    }
+                });
+        definition.defineEnterState(Controller.STATE_A, new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return controller.enter(event);
+            }
+        });
+        return definition;
+    }
+
+    /**
+     * Same adapters the definition used to build for annotated methods
+     */
+    private static StateMachineDefinitionImpl reflectiveDefinition(final Controller controller) throws Exception {
+        final Method exit = Controller.class.getMethod("exit", TransitionInfo.class);
+        final Method transition = Controller.class.getMethod("transition", TransitionInfo.class);
+        final Method enter = Controller.class.getMethod("enter", TransitionInfo.class);
+
+        StateMachineDefinitionImpl definition = newDefinition();
+        definition.defineExitState(Controller.STATE_A, new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                try {
+                    return (Boolean) exit.invoke(controller, event);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        definition.defineTransition(Controller.STATE_A, Controller.EVENT_AA, Controller.STATE_A,
+                new TransitionController() {
+                    public void execute(TransitionInfo event) {
+                        try {
+                            transition.invoke(controller, event);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+        definition.defineEnterState(Controller.STATE_A, new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                try {
+                    return (EventInfo) enter.invoke(controller, event);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        return definition;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ControllerBindingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.annotations.AStateMachine;
+import shisha.statemachine.annotations.EnterState;
+import shisha.statemachine.annotations.Event;
+import shisha.statemachine.annotations.ExitState;
+import shisha.statemachine.annotations.Transition;
+import shisha.statemachine.annotations.Transitions;
+import shisha.statemachine.exceptions.StateMachineException;
+
+/**
+ * Measures how many state machines per second we can create, one per business
+ * entity, from an annotated class and from a shared definition.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MachineCreationBenchmark {
+    @AStateMachine
+    public static class Order {
+        @shisha.statemachine.annotations.State(isStart = true) public static final String CREATED = "CREATED";
+        @shisha.statemachine.annotations.State public static final String PAID = "PAID";
+        @shisha.statemachine.annotations.State public static final String SHIPPED = "SHIPPED";
+        @shisha.statemachine.annotations.State public static final String CHECKING = "CHECKING";
+        @shisha.statemachine.annotations.State(isFinal = true) public static final String CLOSED = "CLOSED";
+
+        @Event public static final String PAY = "PAY";
+        @Event public static final String SHIP = "SHIP";
+        @Event public static final String CHECK = "CHECK";
+        @Event public static final String CLOSE = "CLOSE";
+
+        @Transitions({ @Transition(source = CREATED, event = PAY, target = PAID),
+                @Transition(source = PAID, event = CHECK, target = CHECKING),
+                @Transition(source = CHECKING, event = SHIP, target = SHIPPED) })
+        public void noop(TransitionInfo info) {
+        }
+
+        @Transition(source = SHIPPED, event = CLOSE, target = CLOSED)
+        public void close(TransitionInfo info) {
+        }
+
+        @ExitState(CREATED)
+        public Boolean exitCreated(TransitionInfo info) {
+            return Boolean.TRUE;
+        }
+
+        @EnterState(CHECKING)
+        public EventInfo enterChecking(TransitionInfo info) {
+            return new EventInfo(SHIP, null);
+        }
+    }
+
+    private StateMachineDefinitionImpl definition;
+
+    @Setup
+    public void setup() throws StateMachineException {
+        definition = (StateMachineDefinitionImpl) StateMachines.newNonReentrant(new Order()).getDefinition();
+    }
+
+    @Benchmark
+    public StateMachine fromAnnotatedInstance() throws StateMachineException {
+        return StateMachines.newNonReentrant(new Order());
+    }
+
+    @Benchmark
+    public StateMachine fromSharedDefinition() throws StateMachineException {
+        return StateMachines.newNonReentrant(definition);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MachineCreationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
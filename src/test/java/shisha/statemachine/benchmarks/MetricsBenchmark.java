@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * Cost of recording the metrics of the transitions. Every thread has its own
+ * machine, and all of them share the definition and so its metrics. Scores
+ * are per event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private static final int EVENTS = 256;
+
+    @State(Scope.Benchmark)
+    public static class Definition {
+        // 0 disables the metrics
+        @Param({ "0", "1", "16" })
+        public int samplingPeriod;
+
+        StateMachineDefinitionImpl definition;
+
+        @Setup
+        public void setup() throws StateMachineException {
+            TransitionController controller = new TransitionController() {
+                public void execute(TransitionInfo event) {
+                }
+            };
+            definition = new StateMachineDefinitionImpl();
+            definition.defineState("A", true, false);
+            definition.defineState("B");
+            definition.defineEvent("AB");
+            definition.defineEvent("BA");
+            definition.defineTransition("A", "AB", "B", controller);
+            definition.defineTransition("B", "BA", "A", controller);
+            if (samplingPeriod > 0)
+                definition.enableMetrics(samplingPeriod);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Machine {
+        StateMachineImpl sm;
+
+        @Setup
+        public void setup(Definition definition) throws StateMachineException {
+            sm = new StateMachineImpl(definition.definition, new NonReentrantStrategy(true));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void process(Machine machine) throws StateMachineException {
+        for (int i = 0; i < EVENTS; i += 2) {
+            machine.sm.processEvent(0, null);
+            machine.sm.processEvent(1, null);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] { 1, 4 }) {
+            new Runner(new OptionsBuilder().include(MetricsBenchmark.class.getSimpleName()).threads(threads)
+                    .build()).run();
+        }
+    }
+}
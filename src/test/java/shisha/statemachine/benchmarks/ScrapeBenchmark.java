@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.CompactStateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.metrics.PrometheusExporter;
+import shisha.statemachine.metrics.StateMachineMonitoring;
+
+/**
+ * Cost of reading the metrics of a definition, as a Prometheus scrape and as
+ * the population attribute of its bean, depending on the number of machines
+ * created from it. Neither visits the machines, so the scores should not
+ * grow with them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ScrapeBenchmark {
+    private static final String NAME = "scrape";
+
+    @Param({ "1000", "10000000" })
+    public int machines;
+
+    private CompactStateMachine[] sms;
+    private final StringBuilder text = new StringBuilder(16384);
+
+    @Setup
+    public void setup() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("NEW", true, false);
+        definition.defineState("PAID");
+        definition.defineState("SHIPPED");
+        definition.defineState("DELIVERED", false, true);
+        definition.defineEvent("PAY");
+        definition.defineEvent("SHIP");
+        definition.defineEvent("DELIVER");
+        definition.defineTransition("NEW", "PAY", "PAID", null);
+        definition.defineTransition("PAID", "SHIP", "SHIPPED", null);
+        definition.defineTransition("SHIPPED", "DELIVER", "DELIVERED", null);
+        definition.setName(NAME);
+        definition.enableMetrics();
+
+        // Machines spread over the states
+        String[] events = { "PAY", "SHIP", "DELIVER" };
+        sms = new CompactStateMachine[machines];
+        for (int i = 0; i < machines; i++) {
+            sms[i] = new CompactStateMachine(definition);
+            for (int e = 0; e < i % 4; e++)
+                sms[i].processEvent(events[e], null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        StateMachineMonitoring.remove(NAME);
+    }
+
+    @Benchmark
+    public int prometheus() throws IOException {
+        text.setLength(0);
+        PrometheusExporter.write(text);
+        return text.length();
+    }
+
+    @Benchmark
+    public Map<String, Long> population() {
+        return StateMachineMonitoring.get(NAME).getPopulation();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ScrapeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateSnapshot;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * Readers taking snapshots of a machine while a writer keeps it busy with
+ * transitions running a controller
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateReadBenchmark {
+    private StateMachineImpl sm;
+
+    @Setup
+    public void setup() throws StateMachineException {
+        TransitionController controller = new TransitionController() {
+            public void execute(TransitionInfo event) {
+                for (int i = 0; i < 100; i++)
+                    event.getObject();
+            }
+        };
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("TOGGLE");
+        definition.defineTransition("A", "TOGGLE", "B", controller);
+        definition.defineTransition("B", "TOGGLE", "A", controller);
+        sm = new StateMachineImpl(definition, new NonReentrantStrategy());
+    }
+
+    @Benchmark
+    @Group("busy")
+    @GroupThreads(1)
+    public ProcessResult writer() {
+        return sm.tryProcessEvent("TOGGLE", null);
+    }
+
+    @Benchmark
+    @Group("busy")
+    @GroupThreads(3)
+    public StateSnapshot reader() {
+        return sm.getSnapshot();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(StateReadBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,102 @@
+/*  
+ * Copyright 2012 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */   
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jol.info.GraphLayout;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+import shisha.statemachine.strategy.StripedStrategy;
+
+/**
+ * Events sent to random machines out of a large population, each one with its
+ * own strategy and lock or all of them sharing a {@link StripedStrategy}. The
+ * setup prints the footprint of the machines, without the shared definition.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class StripedLockBenchmark {
+    @Param({ "perMachine", "striped" })
+    public String locks;
+
+    @Param({ "1000000" })
+    public int machines;
+
+    private StateMachineImpl[] population;
+    private int toggle;
+
+    @Setup
+    public void setup() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("TOGGLE");
+        definition.defineTransition("A", "TOGGLE", "B", null);
+        definition.defineTransition("B", "TOGGLE", "A", null);
+        toggle = definition.getEventId("TOGGLE");
+
+        StripedStrategy shared = new StripedStrategy();
+        population = new StateMachineImpl[machines];
+        for (int i = 0; i < machines; i++)
+            population[i] = new StateMachineImpl(definition,
+                    "striped".equals(locks) ? shared : new NonReentrantStrategy());
+
+        // Measured on a sample, as walking a million machines takes long
+        int sample = Math.min(machines, 10000);
+        Object[] machinesInSample = new Object[sample];
+        System.arraycopy(population, 0, machinesInSample, 0, sample);
+        long bytes = GraphLayout.parseInstance(machinesInSample).totalSize()
+                - GraphLayout.parseInstance(definition).totalSize();
+        System.out.println();
+        System.out.println(locks + ": " + bytes / sample + " bytes per machine, ~" + bytes / sample * machines
+                / (1024 * 1024) + " MB for " + machines + " machines");
+    }
+
+    @Benchmark
+    public ProcessResult toggle() {
+        return population[ThreadLocalRandom.current().nextInt(machines)].tryProcessEvent(toggle, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] { 1, 4, 16 })
+            new Runner(new OptionsBuilder().include(StripedLockBenchmark.class.getSimpleName()).threads(threads)
+                    .build()).run();
+    }
+}
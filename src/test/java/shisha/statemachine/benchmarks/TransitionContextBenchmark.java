@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.ContextKey;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * A transition passing four values from the exit phase to the transition and
+ * enter phases, through the context map and through context keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionContextBenchmark {
+    private static final String[] NAMES = { "order", "customer", "amount", "channel" };
+
+    private StateMachineImpl withMap;
+    private StateMachineImpl withKeys;
+    private int event;
+
+    @Setup
+    public void setup() throws StateMachineException {
+        StateMachineDefinitionImpl map = definition();
+        map.defineExitState("A", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                for (String name : NAMES)
+                    info.getTransitionContext().put(name, name);
+                return Boolean.TRUE;
+            }
+        });
+        map.defineTransition("A", "AA", "A", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                for (String name : NAMES)
+                    info.getTransitionContext().get(name);
+            }
+        });
+        map.defineEnterState("A", new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                for (String name : NAMES)
+                    info.getTransitionContext().get(name);
+                return null;
+            }
+        });
+        withMap = new StateMachineImpl(map, new NonReentrantStrategy(true));
+
+        StateMachineDefinitionImpl keyed = definition();
+        @SuppressWarnings("unchecked")
+        final ContextKey<String>[] keys = new ContextKey[NAMES.length];
+        for (int i = 0; i < NAMES.length; i++)
+            keys[i] = keyed.defineContextKey(NAMES[i], String.class);
+        keyed.defineExitState("A", new ExitStateController() {
+            public Boolean execute(TransitionInfo info) {
+                for (int i = 0; i < keys.length; i++)
+                    info.put(keys[i], NAMES[i]);
+                return Boolean.TRUE;
+            }
+        });
+        keyed.defineTransition("A", "AA", "A", new TransitionController() {
+            public void execute(TransitionInfo info) {
+                for (ContextKey<String> key : keys)
+                    info.get(key);
+            }
+        });
+        keyed.defineEnterState("A", new EnterStateController() {
+            public EventInfo execute(TransitionInfo info) {
+                for (ContextKey<String> key : keys)
+                    info.get(key);
+                return null;
+            }
+        });
+        withKeys = new StateMachineImpl(keyed, new NonReentrantStrategy(true));
+        event = keyed.getEventId("AA");
+    }
+
+    private static StateMachineDefinitionImpl definition() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineEvent("AA");
+        return definition;
+    }
+
+    @Benchmark
+    public void contextMap() throws StateMachineException {
+        withMap.processEvent(event, null);
+    }
+
+    @Benchmark
+    public void contextKeys() throws StateMachineException {
+        withKeys.processEvent(event, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TransitionContextBenchmark.class.getSimpleName()).build()).run();
+    }
+}
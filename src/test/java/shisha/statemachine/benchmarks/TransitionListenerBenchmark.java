@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import shisha.statemachine.AbstractTransitionListener;
+import shisha.statemachine.AsyncTransitionListener;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.TransitionListeners;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.strategy.NonReentrantStrategy;
+
+/**
+ * Cost of the listeners on the transitions: none, a listener counting the
+ * transitions in the thread processing them, and the same listener behind
+ * an {@link AsyncTransitionListener}. Scores are per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionListenerBenchmark {
+    private static final int EVENTS = 256;
+
+    @Param({ "none", "sync", "async" })
+    public String listener;
+
+    private StateMachineImpl sm;
+    private AsyncTransitionListener async;
+    private long transitions;
+
+    @Setup(Level.Trial)
+    public void setup() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        TransitionController controller = new TransitionController() {
+            public void execute(TransitionInfo event) {
+            }
+        };
+        definition.defineTransition("A", "AB", "B", controller);
+        definition.defineTransition("B", "BA", "A", controller);
+
+        AbstractTransitionListener counter = new AbstractTransitionListener() {
+            public void afterTransition(TransitionInfo event) {
+                transitions++;
+            }
+        };
+        if ("sync".equals(listener)) {
+            definition.addTransitionListener(counter);
+        } else if ("async".equals(listener)) {
+            async = TransitionListeners.async(counter, 1 << 16);
+            definition.addTransitionListener(async);
+        }
+        sm = new StateMachineImpl(definition, new NonReentrantStrategy(true));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (async != null) {
+            async.close();
+            System.out.println("\nDelivered " + async.getDeliveredCount() + ", dropped " + async.getDroppedCount());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void process() throws StateMachineException {
+        for (int i = 0; i < EVENTS; i += 2) {
+            sm.processEvent(0, null);
+            sm.processEvent(1, null);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TransitionListenerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBuckets() {
+        assertEquals(LatencyHistogram.bucketOf(-1), 0);
+        assertEquals(LatencyHistogram.bucketOf(7), 7);
+        assertEquals(LatencyHistogram.bucketOf(8), 8);
+        assertEquals(LatencyHistogram.bucketOf(17), 16);
+        assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE), LatencyHistogram.BUCKETS - 1);
+
+        long previous = -1;
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lower = LatencyHistogram.lowerBound(bucket);
+            assertEquals(lower, previous + 1);
+            assertEquals(LatencyHistogram.bucketOf(lower), bucket);
+            assertEquals(LatencyHistogram.bucketOf(LatencyHistogram.upperBound(bucket)), bucket);
+            // Buckets are never wider than 1/8 of their values
+            if (bucket < LatencyHistogram.BUCKETS - 1)
+                assertTrue(LatencyHistogram.upperBound(bucket) - lower <= Math.max(0, lower / 8));
+            previous = LatencyHistogram.upperBound(bucket);
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.snapshot().getPercentile(99), 0);
+
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i * 1000);
+        histogram.record(1L << 50);
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(snapshot.getCount(), 101);
+        assertEquals(snapshot.getSum(), 5050 * 1000 + (1L << 50));
+        assertTrue(Math.abs(snapshot.getPercentile(50) - 51000) <= 51000 / 8);
+        assertTrue(Math.abs(snapshot.getPercentile(99) - 100000) <= 100000 / 8);
+        assertEquals(snapshot.getMax(), LatencyHistogram.lowerBound(LatencyHistogram.BUCKETS - 1));
+        assertEquals(snapshot.getPercentile(0), 1023);
+    }
+
+    @Test
+    public void testStripes() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram(4);
+        assertEquals(histogram.getStripes(), 1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        histogram.record(100);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 400000);
+        assertEquals(snapshot.getSum(), 400000 * 100);
+        assertTrue(histogram.getStripes() <= 4);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidStripes() {
+        new LatencyHistogram(3);
+    }
+}
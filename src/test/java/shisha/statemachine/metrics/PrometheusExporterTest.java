@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class PrometheusExporterTest {
+    private static final String NAME = "exporter \"test\"";
+
+    private StateMachineDefinitionImpl definition;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("NEW", true, false);
+        definition.defineState("PAID");
+        definition.defineEvent("PAY");
+        definition.defineTransition("NEW", "PAY", "PAID", null);
+        definition.setName(NAME);
+        definition.enableMetrics();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        StateMachineMonitoring.remove(NAME);
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        sm.processEvent("PAY", null);
+        sm.tryProcessEvent("PAY", null);
+        StateMachines.newNonReentrant(definition);
+
+        StringBuilder text = new StringBuilder();
+        PrometheusExporter.write(text, Collections.singletonMap(NAME, StateMachineMonitoring.get(NAME)));
+        String machine = "machine=\"exporter \\\"test\\\"\"";
+        assertContains(text, "# TYPE statemachine_state_population gauge\n");
+        assertContains(text, "statemachine_state_population{" + machine + ",state=\"NEW\"} 1\n");
+        assertContains(text, "statemachine_state_population{" + machine + ",state=\"PAID\"} 1\n");
+        assertContains(text, "# TYPE statemachine_transitions_total counter\n");
+        assertContains(text, "statemachine_transitions_total{" + machine
+                + ",source=\"NEW\",event=\"PAY\",target=\"PAID\"} 1\n");
+        assertContains(text, "statemachine_undefined_total{" + machine + ",state=\"PAID\",event=\"PAY\"} 1\n");
+        assertContains(text, "statemachine_redirects_total{" + machine + "} 0\n");
+        assertContains(text, "# TYPE statemachine_phase_seconds summary\n");
+        assertContains(text, "statemachine_phase_seconds_count{" + machine + ",phase=\"exit\"} 1\n");
+        assertContains(text, "statemachine_transition_seconds{" + machine
+                + ",source=\"NEW\",event=\"PAY\",target=\"PAID\",quantile=\"0.99\"} ");
+        assertContains(text, "statemachine_lock_wait_seconds_count{" + machine + "} 2\n");
+
+        // Every family is declared once
+        assertEquals(text.toString().split("# TYPE statemachine_transitions_total ", -1).length, 2);
+    }
+
+    @Test
+    public void testEmptySummaries() throws Exception {
+        definition.freeze();
+        StringBuilder text = new StringBuilder();
+        PrometheusExporter.write(text, Collections.singletonMap("empty", definition.getTransitionTable().getMetrics()));
+        assertContains(text, "statemachine_lock_hold_seconds{machine=\"empty\",quantile=\"0.5\"} NaN\n");
+        assertContains(text, "statemachine_lock_hold_seconds_sum{machine=\"empty\"} 0.0\n");
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals(PrometheusExporter.escape("plain"), "plain");
+        assertEquals(PrometheusExporter.escape("a\\b\"c\nd"), "a\\\\b\\\"c\\nd");
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        StateMachines.newNonReentrant(definition).processEvent("PAY", null);
+
+        PrometheusExporter exporter = new PrometheusExporter(new InetSocketAddress("127.0.0.1", 0));
+        try {
+            URL url = new URL("http://127.0.0.1:" + exporter.getAddress().getPort() + "/metrics");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(connection.getResponseCode(), 200);
+            assertEquals(connection.getContentType(), PrometheusExporter.CONTENT_TYPE);
+            String body = read(connection.getInputStream());
+            assertContains(body, "statemachine_state_population{machine=\"exporter \\\"test\\\"\",state=\"PAID\"} 1\n");
+
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            assertEquals(connection.getResponseCode(), 405);
+        } finally {
+            exporter.close();
+        }
+    }
+
+    private static void assertContains(CharSequence text, String expected) {
+        assertTrue(text.toString().contains(expected), text.toString());
+    }
+
+    private static String read(InputStream in) throws Exception {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
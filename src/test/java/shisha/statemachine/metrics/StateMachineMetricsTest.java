@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineArray;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class StateMachineMetricsTest {
+    private StateMachineDefinitionImpl definition;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent("AB");
+        definition.defineEvent("BC");
+        definition.defineEvent("CA");
+        definition.defineEvent("BA");
+        definition.defineTransition("A", "AB", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                if ("slow".equals(event.getObject()))
+                    sleep();
+            }
+        });
+        definition.defineTransition("B", "BC", "C", null);
+        definition.defineTransition("C", "CA", "A", null);
+        definition.defineTransition("B", "BA", "A", null);
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return "redirect".equals(event.getObject()) ? new EventInfo("BC", null) : null;
+            }
+        });
+        definition.defineExitState("B", new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                return !"cancel".equals(event.getObject());
+            }
+        });
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testDisabled() throws StateMachineException {
+        StateMachineImpl sm = (StateMachineImpl) StateMachines.newNonReentrant(definition);
+        sm.processEvent("AB", null);
+        assertNull(sm.getMetrics());
+    }
+
+    @Test
+    public void testTransitions() throws StateMachineException {
+        definition.enableMetrics();
+        StateMachineImpl sm = (StateMachineImpl) StateMachines.newNonReentrant(definition);
+        StateMachineImpl other = (StateMachineImpl) StateMachines.newReentrant(definition);
+        assertSame(other.getMetrics(), sm.getMetrics());
+
+        sm.processEvent("AB", "redirect");
+        sm.processEvent("CA", null);
+        sm.processEvent("AB", "slow");
+        assertEquals(sm.tryProcessEvent("BA", "cancel"), ProcessResult.CANCELLED_BY_EXIT);
+        assertEquals(sm.tryProcessEvent("CA", null), ProcessResult.NO_TRANSITION);
+        assertEquals(other.tryProcessEvent("CA", null), ProcessResult.NO_TRANSITION);
+
+        MetricsSnapshot snapshot = sm.getMetrics().snapshot();
+        TransitionStats ab = snapshot.getTransition("A", "AB", "B");
+        assertEquals(ab.getCount(), 2);
+        assertEquals(ab.getLatency().getCount(), 2);
+        assertTrue(ab.getLatency().getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(snapshot.getTransition("B", "BC", "C").getCount(), 1);
+        assertEquals(snapshot.getTransition("C", "CA", "A").getCount(), 1);
+        assertNull(snapshot.getTransition("B", "BA", "A"));
+        assertEquals(snapshot.getTransitions().size(), 3);
+
+        assertEquals(snapshot.getCancellations().size(), 1);
+        assertEquals(snapshot.getCancellations().get(0).getState(), "B");
+        assertEquals(snapshot.getCancellations().get(0).getEvent(), "BA");
+        assertEquals(snapshot.getUndefined().size(), 2);
+        // By source state and event, in definition order
+        assertEquals(snapshot.getUndefined().get(0).toString(), "[A + CA] 1");
+        assertEquals(snapshot.getUndefined().get(1).toString(), "[B + CA] 1");
+        assertEquals(snapshot.getRedirects(), 1);
+
+        assertEquals(snapshot.getExitLatency().getCount(), 4);
+        assertTrue(snapshot.getTransitionLatency().getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(snapshot.getEnterLatency().getCount(), 4);
+        assertEquals(snapshot.getLockWait().getCount(), 6);
+        assertEquals(snapshot.getLockHold().getCount(), 6);
+        assertTrue(snapshot.getLockHold().getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testLockFreeTransitionsAreCountedWithoutLatency() throws StateMachineException {
+        definition.enableMetrics();
+        StateMachineImpl sm = (StateMachineImpl) StateMachines.newLockFree(definition);
+
+        sm.processEvent("AB", "redirect");
+        sm.processEvent("CA", null);
+
+        MetricsSnapshot snapshot = sm.getMetrics().snapshot();
+        assertEquals(snapshot.getTransition("B", "BC", "C").getLatency().getCount(), 1);
+        TransitionStats ca = snapshot.getTransition("C", "CA", "A");
+        assertEquals(ca.getCount(), 1);
+        assertEquals(ca.getLatency().getCount(), 0);
+    }
+
+    @Test
+    public void testPopulation() throws StateMachineException {
+        definition.enableMetrics();
+        StateMachine locked = StateMachines.newNonReentrant(definition);
+        StateMachine lockFree = StateMachines.newLockFree(definition);
+        StateMachine compact = StateMachines.newCompact(definition);
+        StateMachines.newCompact(definition);
+
+        locked.processEvent("AB", "redirect");
+        lockFree.processEvent("AB", null);
+        lockFree.processEvent("BA", null);
+        lockFree.processEvent("AB", null);
+        compact.processEvent("AB", null);
+        compact.tryProcessEvent("BC", null);
+
+        StateMachineMetrics metrics = definition.getTransitionTable().getMetrics();
+        assertEquals(metrics.getPopulation().toString(), "{A=1, B=1, C=2}");
+        assertEquals(metrics.snapshot().getPopulation(), metrics.getPopulation());
+    }
+
+    @Test
+    public void testCompactStateMachinesAreTimed() throws StateMachineException {
+        definition.enableMetrics();
+        StateMachine sm = StateMachines.newCompact(definition);
+
+        sm.processEvent("AB", "redirect");
+        assertEquals(sm.tryProcessEvent("BA", null), ProcessResult.NO_TRANSITION);
+        sm.processEvent("CA", null);
+        sm.processEvent("AB", null);
+        assertEquals(sm.tryProcessEvent("BA", "cancel"), ProcessResult.CANCELLED_BY_EXIT);
+
+        MetricsSnapshot snapshot = definition.getTransitionTable().getMetrics().snapshot();
+        TransitionStats ab = snapshot.getTransition("A", "AB", "B");
+        assertEquals(ab.getCount(), 2);
+        assertEquals(ab.getLatency().getCount(), 2);
+        assertEquals(snapshot.getTransition("B", "BC", "C").getCount(), 1);
+        assertEquals(snapshot.getRedirects(), 1);
+        assertEquals(snapshot.getUndefined().get(0).toString(), "[C + BA] 1");
+        assertEquals(snapshot.getCancellations().get(0).toString(), "[B + BA] 1");
+        assertEquals(snapshot.getExitLatency().getCount(), 4);
+        assertEquals(snapshot.getLockWait().getCount(), 0);
+    }
+
+    @Test
+    public void testArrays() throws StateMachineException {
+        definition.enableMetrics();
+        StateMachineArray array = new StateMachineArray(definition, 4);
+        int first = array.allocate();
+        int second = array.allocate();
+
+        array.processEvent(first, "AB", "redirect");
+        assertEquals(array.tryProcessEvent(second, "BA", null), ProcessResult.NO_TRANSITION);
+        array.release(second);
+
+        StateMachineMetrics metrics = definition.getTransitionTable().getMetrics();
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(snapshot.getTransition("A", "AB", "B").getLatency().getCount(), 1);
+        assertEquals(snapshot.getTransition("B", "BC", "C").getCount(), 1);
+        assertEquals(snapshot.getRedirects(), 1);
+        assertEquals(snapshot.getUndefined().get(0).toString(), "[A + BA] 1");
+        assertEquals(metrics.getPopulation().toString(), "{A=0, B=0, C=1}");
+
+        array.allocate();
+        assertEquals(metrics.getPopulation().toString(), "{A=1, B=0, C=1}");
+    }
+
+    @Test
+    public void testSampling() throws StateMachineException {
+        definition.enableMetrics(1000);
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        for (int i = 0; i < 100; i++) {
+            sm.processEvent("AB", null);
+            sm.processEvent("BA", null);
+        }
+
+        TransitionStats ab = definition.getTransitionTable().getMetrics().snapshot().getTransition("A", "AB", "B");
+        assertEquals(ab.getCount(), 100);
+        assertTrue(ab.getLatency().getCount() < 100);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidSamplingPeriod() {
+        definition.enableMetrics(0);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        definition.enableMetrics();
+        final int threads = 4;
+        final int events = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final StateMachine sm = StateMachines.newNonReentrant(definition);
+            executor.execute(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < events; i++) {
+                        sm.tryProcessEvent("AB", null);
+                        sm.tryProcessEvent("BA", null);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        MetricsSnapshot snapshot = definition.getTransitionTable().getMetrics().snapshot();
+        assertEquals(snapshot.getTransition("A", "AB", "B").getCount(), threads * events);
+        assertEquals(snapshot.getTransition("B", "BA", "A").getLatency().getCount(), threads * events);
+        assertEquals(snapshot.getLockHold().getCount(), 2 * threads * events);
+    }
+}
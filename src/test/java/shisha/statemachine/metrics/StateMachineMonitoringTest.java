@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.annotations.util.MonitoredStateMachine;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class StateMachineMonitoringTest {
+    private static final String NAME = "orders";
+
+    @AfterMethod
+    public void tearDown() {
+        StateMachineMonitoring.remove(NAME);
+        StateMachineMonitoring.remove(MonitoredStateMachine.class.getName());
+    }
+
+    private static StateMachineDefinitionImpl newDefinition(String name) throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("NEW", true, false);
+        definition.defineState("PAID");
+        definition.defineEvent("PAY");
+        definition.defineTransition("NEW", "PAY", "PAID", null);
+        definition.setName(name);
+        definition.enableMetrics();
+        return definition;
+    }
+
+    @Test
+    public void testDefinitionsWithTheSameNameShareTheMetrics() throws StateMachineException {
+        StateMachineDefinitionImpl first = newDefinition(NAME);
+        StateMachineDefinitionImpl second = newDefinition(NAME);
+        StateMachines.newNonReentrant(first).processEvent("PAY", null);
+        StateMachines.newCompact(second);
+
+        StateMachineMetrics metrics = StateMachineMonitoring.get(NAME);
+        assertSame(first.getTransitionTable().getMetrics(), metrics);
+        assertSame(second.getTransitionTable().getMetrics(), metrics);
+        assertTrue(StateMachineMonitoring.getNames().contains(NAME));
+        assertEquals(metrics.getPopulation().toString(), "{NEW=1, PAID=1}");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTheSameNameWithOtherStates() throws StateMachineException {
+        newDefinition(NAME).freeze();
+        StateMachineDefinitionImpl other = newDefinition(NAME);
+        other.defineState("SHIPPED");
+        other.freeze();
+    }
+
+    @Test
+    public void testUnnamedDefinitionsAreNotRegistered() throws StateMachineException {
+        StateMachineDefinitionImpl definition = newDefinition(NAME);
+        StateMachineDefinitionImpl unnamed = new StateMachineDefinitionImpl();
+        unnamed.defineState("NEW", true, false);
+        unnamed.enableMetrics();
+        unnamed.freeze();
+
+        assertNotNull(unnamed.getTransitionTable().getMetrics());
+        assertNull(StateMachineMonitoring.get(NAME));
+        assertEquals(definition.getName(), NAME);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNameOfFrozenDefinition() throws StateMachineException {
+        StateMachineDefinitionImpl definition = newDefinition(NAME);
+        definition.freeze();
+        definition.setName("other");
+    }
+
+    @Test
+    public void testBean() throws Exception {
+        StateMachine sm = StateMachines.newNonReentrant(newDefinition(NAME));
+        sm.processEvent("PAY", null);
+        sm.tryProcessEvent("PAY", null);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = StateMachineMonitoring.objectName(NAME);
+        assertEquals(name.toString(), "shisha.statemachine:type=StateMachine,name=\"orders\"");
+        assertEquals(server.getAttribute(name, "Name"), NAME);
+        assertEquals(server.getAttribute(name, "TransitionCount"), 1L);
+        assertEquals(server.getAttribute(name, "UndefinedCount"), 1L);
+        assertEquals(server.getAttribute(name, "LockAcquisitions"), 2L);
+        assertTrue((Long) server.getAttribute(name, "LockHoldMaxNanos") > 0);
+
+        TabularData population = (TabularData) server.getAttribute(name, "Population");
+        assertEquals(population.get(new Object[] { "PAID" }).get("value"), 1L);
+        TabularData transitions = (TabularData) server.getAttribute(name, "TransitionCounts");
+        assertEquals(transitions.get(new Object[] { "NEW + PAY -> PAID" }).get("value"), 1L);
+
+        StateMachineMonitoring.remove(NAME);
+        assertFalse(server.isRegistered(name));
+        assertNull(StateMachineMonitoring.get(NAME));
+    }
+
+    @Test
+    public void testBeanCountsAcquisitionsNotTimed() throws Exception {
+        StateMachineDefinitionImpl definition = newDefinition(NAME);
+        definition.enableMetrics(Integer.MAX_VALUE);
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        for (int i = 0; i < 100; i++)
+            sm.tryProcessEvent("PAY", null);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = StateMachineMonitoring.objectName(NAME);
+        assertEquals(server.getAttribute(name, "LockAcquisitions"), 100L);
+        assertEquals(server.getAttribute(name, "TransitionCount"), 1L);
+    }
+
+    @Test
+    public void testAnnotatedClass() throws Exception {
+        StateMachineImpl first = (StateMachineImpl) StateMachines.newNonReentrant(new MonitoredStateMachine());
+        StateMachineImpl second = (StateMachineImpl) StateMachines.newNonReentrant(new MonitoredStateMachine());
+        first.processEvent(MonitoredStateMachine.EVENT_AB, null);
+
+        String name = MonitoredStateMachine.class.getName();
+        assertSame(first.getMetrics(), StateMachineMonitoring.get(name));
+        assertSame(second.getMetrics(), first.getMetrics());
+        Map<String, Long> population = first.getMetrics().getPopulation();
+        assertEquals(population.get(MonitoredStateMachine.STATE_B), Long.valueOf(1));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(StateMachineMonitoring.objectName(name)));
+    }
+}
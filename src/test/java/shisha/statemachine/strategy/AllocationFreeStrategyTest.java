@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.ContextKey;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ExitStateController;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class AllocationFreeStrategyTest {
+    private static final int EVENTS = 100000;
+
+    private StateMachineDefinitionImpl definition;
+    private TransitionInfo last;
+    private ContextKey<String> key;
+    private Level level;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        // The debug messages are only built when they are going to be logged
+        level = LogManager.getRootLogger().getLevel();
+        LogManager.getRootLogger().setLevel(Level.INFO);
+
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        key = definition.defineContextKey("key", String.class);
+        definition.defineTransition("A", "AB", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                event.put(key, "value");
+                last = event;
+                if ("fail".equals(event.getObject()))
+                    throw new IllegalStateException("failed");
+            }
+        });
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                assertEquals(event.get(key), "value");
+                return null;
+            }
+        });
+        definition.defineTransition("B", "BA", "A", null);
+        definition.defineExitState("B", new ExitStateController() {
+            public Boolean execute(TransitionInfo event) {
+                return true;
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        LogManager.getRootLogger().setLevel(level);
+    }
+
+    private void process(StateMachineImpl sm, int ab, int ba) throws StateMachineException {
+        for (int i = 0; i < EVENTS; i++) {
+            sm.processEvent(ab, null);
+            sm.processEvent(ba, null);
+        }
+    }
+
+    @Test
+    public void testNoAllocationInSteadyState() throws StateMachineException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        StateMachineImpl sm = new StateMachineImpl(definition, new NonReentrantStrategy(true));
+        int ab = definition.getEventId("AB");
+        int ba = definition.getEventId("BA");
+
+        // Warm up, so nothing is allocated by the interpreter or class loading
+        process(sm, ab, ba);
+
+        long overhead = threads.getThreadAllocatedBytes(thread);
+        overhead = threads.getThreadAllocatedBytes(thread) - overhead;
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        process(sm, ab, ba);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+        assertEquals(allocated / (2 * EVENTS), 0, allocated + " bytes allocated for " + 2 * EVENTS + " events");
+        assertEquals(sm.getCurrentState(), "A");
+    }
+
+    @Test
+    public void testTransitionInfoIsReused() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(definition, new NonReentrantStrategy(true));
+        sm.processEvent("AB", "first");
+        TransitionInfo first = last;
+        first.getTransitionContext().put("other", "value");
+        sm.processEvent("BA", null);
+        sm.processEvent("AB", "second");
+
+        assertSame(last, first);
+        assertEquals(last.getObject(), "second");
+        assertEquals(last.getTransitionContext().size(), 1);
+        assertEquals(last.get(key), "value");
+    }
+
+    @Test
+    public void testTransitionInfoIsReusedAfterAnException() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(definition, new NonReentrantStrategy(true));
+        try {
+            sm.processEvent("AB", "fail");
+            fail("The controller exception should be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        TransitionInfo failed = last;
+        sm.processEvent("AB", "second");
+
+        assertSame(last, failed);
+        assertEquals(last.getObject(), "second");
+    }
+
+    @Test
+    public void testTransitionInfoIsNotReusedByDefault() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(definition, new NonReentrantStrategy());
+        sm.processEvent("AB", null);
+        TransitionInfo first = last;
+        sm.processEvent("BA", null);
+        sm.processEvent("AB", null);
+
+        assertNotSame(last, first);
+    }
+}
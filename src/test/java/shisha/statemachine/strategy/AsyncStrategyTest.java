@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class AsyncStrategyTest {
+    private StateMachineDefinitionImpl definition;
+    private ExecutorService executor;
+    private volatile CompletableFuture<Object> io;
+    private volatile Thread controllerThread;
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        executor = Executors.newSingleThreadExecutor();
+        io = null;
+
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        definition.defineEvent("FAIL");
+        definition.defineEvent("ERROR");
+        definition.defineTransition("A", "AB", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                controllerThread = Thread.currentThread();
+                if (io != null)
+                    event.defer(io);
+            }
+        });
+        definition.defineTransition("B", "BA", "A", null);
+        definition.defineTransition("A", "FAIL", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new IllegalArgumentException("failed");
+            }
+        });
+        definition.defineTransition("A", "ERROR", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new AssertionError("failed");
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSynchronousStrategies() throws Exception {
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        CompletionStage<ProcessResult> stage = sm.processEventAsync("AB", null);
+
+        assertTrue(stage.toCompletableFuture().isDone());
+        assertEquals(stage.toCompletableFuture().get(), ProcessResult.APPLIED);
+        assertEquals(sm.processEventAsync("AB", null).toCompletableFuture().get(), ProcessResult.NO_TRANSITION);
+        assertEquals(sm.processEventAsync("NON_EXISTENT", null).toCompletableFuture().get(),
+                ProcessResult.UNKNOWN_EVENT);
+    }
+
+    @Test
+    public void testSynchronousStrategiesCompleteTheFutureWithErrors() throws Exception {
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        CompletableFuture<ProcessResult> failed = sm.processEventAsync("ERROR", null).toCompletableFuture();
+        try {
+            failed.get();
+            fail("The error should complete the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(sm.processEventAsync("AB", null).toCompletableFuture().get(), ProcessResult.APPLIED);
+    }
+
+    @Test
+    public void testSynchronousStrategiesWaitForDeferredTransitions() throws Exception {
+        StateMachine sm = StateMachines.newNonReentrant(definition);
+        io = new CompletableFuture<Object>();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // Completed anyway
+                }
+                io.complete("done");
+            }
+        });
+        sm.processEvent("AB", null);
+        assertTrue(io.isDone());
+
+        sm.processEvent("BA", null);
+        io = new CompletableFuture<Object>();
+        io.completeExceptionally(new IllegalStateException("io failed"));
+        try {
+            sm.processEvent("AB", null);
+            fail("The failure of the deferred transition should be thrown");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testEventsAreProcessedByTheExecutor() throws Exception {
+        StateMachine sm = new StateMachineImpl(definition, new AsyncStrategy(executor, false));
+
+        assertEquals(sm.processEventAsync("AB", null).toCompletableFuture().get(), ProcessResult.APPLIED);
+        assertNotSame(controllerThread, Thread.currentThread());
+        assertEquals(sm.processEventAsync("AB", null).toCompletableFuture().get(), ProcessResult.NO_TRANSITION);
+        assertEquals(sm.tryProcessEvent("BA", null), ProcessResult.QUEUED);
+        try {
+            sm.processEventAsync("FAIL", null).toCompletableFuture().get();
+            fail("The controller exception should complete the stage");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testErrorsDoNotStopTheQueue() throws Exception {
+        StateMachine sm = new StateMachineImpl(definition, new AsyncStrategy(executor, false));
+        try {
+            sm.processEventAsync("ERROR", null).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail("The error should complete the stage");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(sm.processEventAsync("AB", null).toCompletableFuture().get(5, TimeUnit.SECONDS),
+                ProcessResult.APPLIED);
+    }
+
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        StateMachine sm = StateMachines.newAsync(definition);
+        assertEquals(sm.processEventAsync("AB", null).toCompletableFuture().get(5, TimeUnit.SECONDS),
+                ProcessResult.APPLIED);
+    }
+
+    @Test
+    public void testDeferredTransitionReleasingTheThread() throws Exception {
+        checkDeferredTransition(new AsyncStrategy(executor, true));
+    }
+
+    @Test
+    public void testDeferredTransitionBlockingTheThread() throws Exception {
+        checkDeferredTransition(new AsyncStrategy(executor, false));
+    }
+
+    @Test
+    public void testCancelledDeferredTransitionReleasingTheThread() throws Exception {
+        checkCancelledDeferredTransition(new AsyncStrategy(executor, true));
+    }
+
+    @Test
+    public void testCancelledDeferredTransitionBlockingTheThread() throws Exception {
+        checkCancelledDeferredTransition(new AsyncStrategy(executor, false));
+    }
+
+    private void checkCancelledDeferredTransition(AsyncStrategy strategy) throws Exception {
+        StateMachineImpl sm = new StateMachineImpl(definition, strategy);
+        io = new CompletableFuture<Object>();
+        CompletableFuture<ProcessResult> first = sm.processEventAsync("AB", null).toCompletableFuture();
+
+        Thread.sleep(50);
+        io.cancel(true);
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail("The cancellation of the deferred transition should complete the stage");
+        } catch (CancellationException e) {
+            // The stage of the event is cancelled too
+        }
+        assertFalse(sm.getSnapshot().isInTransition());
+        assertEquals(sm.processEventAsync("BA", null).toCompletableFuture().get(5, TimeUnit.SECONDS),
+                ProcessResult.APPLIED);
+    }
+
+    private void checkDeferredTransition(AsyncStrategy strategy) throws Exception {
+        StateMachineImpl sm = new StateMachineImpl(definition, strategy);
+        io = new CompletableFuture<Object>();
+        CompletableFuture<ProcessResult> first = sm.processEventAsync("AB", null).toCompletableFuture();
+        CompletableFuture<ProcessResult> second = sm.processEventAsync("BA", null).toCompletableFuture();
+
+        Thread.sleep(50);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(strategy.getQueueSize(), 1);
+        assertEquals(sm.getCurrentState(), "B");
+        assertTrue(sm.getSnapshot().isInTransition());
+        assertFalse(sm.awaitState("B", 10, TimeUnit.MILLISECONDS));
+
+        io.complete("done");
+        assertEquals(first.get(5, TimeUnit.SECONDS), ProcessResult.APPLIED);
+        assertEquals(second.get(5, TimeUnit.SECONDS), ProcessResult.APPLIED);
+        assertEquals(sm.getCurrentState(), "A");
+        assertFalse(sm.getSnapshot().isInTransition());
+
+        io = new CompletableFuture<Object>();
+        first = sm.processEventAsync("AB", null).toCompletableFuture();
+        io.completeExceptionally(new IllegalStateException("io failed"));
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail("The failure of the deferred transition should complete the stage");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(sm.awaitState("B", 5, TimeUnit.SECONDS));
+    }
+}
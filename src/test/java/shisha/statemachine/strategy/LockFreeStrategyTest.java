@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachine;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.TransitionTable;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
+import shisha.statemachine.exceptions.StateMachineException;
+import shisha.statemachine.exceptions.TransitionNotDefinedException;
+
+public class LockFreeStrategyTest {
+    private static final int THREADS = 8;
+    private static final int EVENTS = 20000;
+
+    private StateMachineDefinitionImpl definition;
+    private StateMachine sm;
+    private int laps;
+    private volatile String changed;
+
+    /**
+     * S0 -> S1 -> S2 -> S3 -> S0 with NEXT. Only the last transition has a
+     * controller, which checks that nobody changes the state meanwhile.
+     */
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        laps = 0;
+        changed = null;
+        definition = new StateMachineDefinitionImpl();
+        for (int i = 0; i < 4; i++)
+            definition.defineState("S" + i, i == 0, false);
+        definition.defineEvent("NEXT");
+        definition.defineEvent("RESET");
+        definition.defineTransition("S0", "NEXT", "S1", null);
+        definition.defineTransition("S1", "NEXT", "S2", null);
+        definition.defineTransition("S2", "NEXT", "S3", null);
+        definition.defineTransition("S3", "NEXT", "S0", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                laps++;
+                Thread.yield();
+                if (!"S3".equals(sm.getCurrentState()))
+                    changed = sm.getCurrentState();
+            }
+        });
+        definition.defineTransition("S2", "RESET", "S1", null);
+        definition.defineEnterState("S1", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return "RESET".equals(event.getEvent()) ? new EventInfo("NEXT", null) : null;
+            }
+        });
+
+        sm = StateMachines.newLockFree(definition);
+    }
+
+    @Test
+    public void testControllerFreeTransitions() throws StateMachineException {
+        TransitionTable table = definition.freeze();
+        int next = table.getEventId("NEXT");
+        assertFalse(table.isControllerFree(table.getStateId("S0"), next));
+        assertTrue(table.isControllerFree(table.getStateId("S1"), next));
+        assertFalse(table.isControllerFree(table.getStateId("S2"), table.getEventId("RESET")));
+        assertFalse(table.isControllerFree(table.getStateId("S3"), next));
+        assertFalse(table.isControllerFree(table.getStateId("S0"), table.getEventId("RESET")));
+    }
+
+    @Test
+    public void testTransitions() throws StateMachineException {
+        sm.processEvent("NEXT", null);
+        sm.processEvent("NEXT", null);
+        assertEquals(sm.getCurrentState(), "S2");
+
+        // Redirected from the enter phase of S1
+        sm.processEvent("RESET", null);
+        assertEquals(sm.getCurrentState(), "S2");
+
+        assertEquals(sm.tryProcessEvent("NEXT", null), ProcessResult.APPLIED);
+        assertEquals(sm.tryProcessEvent("RESET", null), ProcessResult.NO_TRANSITION);
+        sm.processEvent("NEXT", null);
+        assertEquals(sm.getCurrentState(), "S0");
+        assertEquals(laps, 1);
+    }
+
+    @Test(expectedExceptions = TransitionNotDefinedException.class)
+    public void testTransitionNotDefined() throws StateMachineException {
+        sm.processEvent("RESET", null);
+    }
+
+    @Test
+    public void testReentrantTransitionNotAllowed() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        definition.defineTransition("A", "AB", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                try {
+                    sm.processEvent("BA", null);
+                } catch (StateMachineException e) {
+                    changed = e.getClass().getName();
+                }
+            }
+        });
+        definition.defineTransition("B", "BA", "A", null);
+        sm = StateMachines.newLockFree(definition);
+
+        sm.processEvent("AB", null);
+        assertEquals(changed, ReentrantTransitionNotAllowed.class.getName());
+        assertEquals(sm.getCurrentState(), "B");
+    }
+
+    @Test
+    public void testConcurrentEvents() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < EVENTS; j++)
+                            sm.processEvent("NEXT", null);
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure[0]);
+        assertNull(changed, "The state changed while running a controller");
+        assertEquals(laps, THREADS * EVENTS / 4);
+        assertEquals(sm.getCurrentState(), "S0");
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineBusyException;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class LockPolicyTest {
+    private static final long HOLD_MILLIS = 100;
+
+    private CountDownLatch entered;
+    private CountDownLatch release;
+    private StateMachineImpl sm;
+
+    /**
+     * The controller of AB waits until released, holding the lock
+     */
+    private StateMachineImpl newStateMachine(ReentrantStrategy strategy) throws StateMachineException {
+        entered = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        definition.defineTransition("A", "AB", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                if (event.getObject() == null)
+                    return;
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        definition.defineTransition("B", "BA", "A", null);
+        sm = new StateMachineImpl(definition, strategy);
+        return sm;
+    }
+
+    /**
+     * Processes AB in another thread and returns once its controller holds
+     * the lock
+     */
+    private Thread holdLock() throws InterruptedException {
+        Thread holder = new Thread() {
+            public void run() {
+                sm.tryProcessEvent("AB", "hold");
+            }
+        };
+        holder.start();
+        entered.await();
+        return holder;
+    }
+
+    @DataProvider(name = "policies")
+    public Object[][] policies() {
+        return new Object[][] { { LockPolicy.blocking(false) }, { LockPolicy.blocking(true) },
+                { LockPolicy.spinning(100, false) }, { LockPolicy.spinning(0, true).measured() },
+                { LockPolicy.bounded(1, TimeUnit.SECONDS, false) } };
+    }
+
+    @Test(dataProvider = "policies")
+    public void testOtherThreadsWaitForTheLock(LockPolicy policy) throws Exception {
+        newStateMachine(new NonReentrantStrategy(policy));
+        Thread holder = holdLock();
+
+        // Neither rejected as reentrant nor run without the lock
+        final Object[] result = new Object[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    sm.processEvent("BA", null);
+                    result[0] = ProcessResult.APPLIED;
+                } catch (Exception e) {
+                    result[0] = e;
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(20);
+        assertNull(result[0]);
+
+        release.countDown();
+        holder.join();
+        waiter.join();
+        assertEquals(result[0], ProcessResult.APPLIED);
+        assertEquals(sm.getCurrentState(), "A");
+        assertEquals(((ReentrantStrategy) sm.getStrategy()).getLockStats().getTimeouts(), 0);
+    }
+
+    @Test
+    public void testBoundedWait() throws Exception {
+        NonReentrantStrategy strategy = new NonReentrantStrategy(LockPolicy.bounded(20, TimeUnit.MILLISECONDS, false));
+        newStateMachine(strategy);
+        Thread holder = holdLock();
+
+        assertEquals(sm.tryProcessEvent("BA", null), ProcessResult.BUSY);
+        try {
+            sm.processEvent("BA", null);
+            fail("The lock should not be acquired");
+        } catch (StateMachineBusyException e) {
+            // Expected
+        }
+        EventInfo[] events = { new EventInfo("BA", null) };
+        assertEquals(sm.processEvents(events, 0, 1, false)[0], ProcessResult.BUSY);
+        assertEquals(strategy.getLockStats().getTimeouts(), 3);
+
+        release.countDown();
+        holder.join();
+        assertEquals(sm.tryProcessEvent("BA", null), ProcessResult.APPLIED);
+    }
+
+    @Test
+    public void testInterruptedThreadGivesUp() throws Exception {
+        newStateMachine(new NonReentrantStrategy(LockPolicy.bounded(1, TimeUnit.SECONDS, false)));
+        Thread holder = holdLock();
+
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals(sm.tryProcessEvent("BA", null), ProcessResult.BUSY);
+            assertTrue(Thread.interrupted());
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void testLockFreeStrategyWithPolicy() throws Exception {
+        newStateMachine(new LockFreeStrategy(false, LockPolicy.bounded(20, TimeUnit.MILLISECONDS, false)));
+        Thread holder = holdLock();
+
+        // The state is locked, so the transition without controllers waits too
+        assertEquals(sm.tryProcessEvent("BA", null), ProcessResult.BUSY);
+
+        release.countDown();
+        holder.join();
+        assertEquals(sm.tryProcessEvent("BA", null), ProcessResult.APPLIED);
+        assertFalse(sm.isStateLocked());
+    }
+
+    @Test
+    public void testMeasuredTimes() throws Exception {
+        NonReentrantStrategy strategy = new NonReentrantStrategy(LockPolicy.blocking(false).measured());
+        newStateMachine(strategy);
+        Thread holder = holdLock();
+
+        Thread waiter = new Thread() {
+            public void run() {
+                sm.tryProcessEvent("BA", null);
+            }
+        };
+        waiter.start();
+        Thread.sleep(HOLD_MILLIS);
+        release.countDown();
+        holder.join();
+        waiter.join();
+
+        LockStats stats = strategy.getLockStats();
+        assertEquals(stats.getAcquisitions(), 2);
+        assertTrue(stats.getHoldNanos() >= TimeUnit.MILLISECONDS.toNanos(HOLD_MILLIS), stats.toString());
+        assertTrue(stats.getMaxHoldNanos() >= TimeUnit.MILLISECONDS.toNanos(HOLD_MILLIS), stats.toString());
+        assertTrue(stats.getMaxWaitNanos() > 0, stats.toString());
+        assertTrue(stats.getWaitNanos() >= stats.getMaxWaitNanos(), stats.toString());
+    }
+}
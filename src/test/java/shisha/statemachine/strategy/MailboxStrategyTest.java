@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.MailboxFullException;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class MailboxStrategyTest {
+    private static final int THREADS = 8;
+    private static final int EVENTS = 10000;
+
+    private StateMachineDefinitionImpl definition;
+    private StateMachineImpl sm;
+    private List<String> trace;
+    private int transitions;
+    private AtomicBoolean running;
+    private volatile boolean overlapped;
+
+    /**
+     * Queued tasks are only run when the test says so
+     */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        synchronized Runnable next() {
+            return tasks.remove(0);
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        trace = new ArrayList<String>();
+        transitions = 0;
+        running = new AtomicBoolean();
+        overlapped = false;
+
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineState("C");
+        definition.defineEvent("AB");
+        definition.defineEvent("BC");
+        definition.defineEvent("CA");
+        definition.defineEvent("FAIL");
+        definition.defineEvent("ERROR");
+        TransitionController controller = new TransitionController() {
+            public void execute(TransitionInfo event) {
+                if (!running.compareAndSet(false, true))
+                    overlapped = true;
+                transitions++;
+                trace.add(event.getEvent());
+                if ("chain".equals(event.getObject())) {
+                    try {
+                        // Queued, so it runs after this transition
+                        sm.processEvent("BC", null);
+                        trace.add("queued");
+                    } catch (StateMachineException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                running.set(false);
+            }
+        };
+        definition.defineTransition("A", "AB", "B", controller);
+        definition.defineTransition("B", "BC", "C", controller);
+        definition.defineTransition("C", "CA", "A", controller);
+        definition.defineTransition("A", "FAIL", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new IllegalArgumentException("failed");
+            }
+        });
+        definition.defineTransition("A", "ERROR", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new AssertionError("failed");
+            }
+        });
+    }
+
+    @Test
+    public void testEventsFromControllersAreQueued() throws StateMachineException {
+        sm = new StateMachineImpl(definition, new MailboxStrategy(16, MailboxStrategy.Overflow.REJECT));
+        sm.processEvent("AB", "chain");
+
+        assertEquals(sm.getCurrentState(), "C");
+        assertEquals(trace.toString(), "[AB, queued, BC]");
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        MailboxStrategy mailbox = new MailboxStrategy(16, MailboxStrategy.Overflow.REJECT);
+        sm = new StateMachineImpl(definition, mailbox);
+
+        assertEquals(mailbox.submit(sm, "AB", null).get(), ProcessResult.APPLIED);
+        assertEquals(mailbox.submit(sm, "AB", null).get(), ProcessResult.NO_TRANSITION);
+        assertEquals(mailbox.submit(sm, "NON_EXISTENT", null).get(), ProcessResult.UNKNOWN_EVENT);
+        assertEquals(sm.tryProcessEvent("BC", null), ProcessResult.QUEUED);
+        assertEquals(sm.getCurrentState(), "C");
+
+        mailbox.submit(sm, "CA", null).get();
+        try {
+            mailbox.submit(sm, "FAIL", null).get();
+            fail("The controller exception should complete the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(sm.getCurrentState(), "A");
+    }
+
+    @Test
+    public void testErrorsCompleteTheFuture() throws Exception {
+        MailboxStrategy mailbox = new MailboxStrategy(16, MailboxStrategy.Overflow.REJECT);
+        sm = new StateMachineImpl(definition, mailbox);
+
+        CompletableFuture<ProcessResult> failed = mailbox.submit(sm, "ERROR", null);
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("The error should complete the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(mailbox.submit(sm, "AB", null).get(5, TimeUnit.SECONDS), ProcessResult.APPLIED);
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        MailboxStrategy mailbox = new MailboxStrategy(2, MailboxStrategy.Overflow.REJECT, executor);
+        sm = new StateMachineImpl(definition, mailbox);
+
+        CompletableFuture<ProcessResult> first = mailbox.submit(sm, "AB", null);
+        mailbox.submit(sm, "BC", null);
+        assertEquals(mailbox.submit(sm, "CA", null).get(), ProcessResult.REJECTED);
+        assertEquals(sm.tryProcessEvent("CA", null), ProcessResult.REJECTED);
+        try {
+            sm.processEvent("CA", null);
+            fail("The mailbox is full");
+        } catch (MailboxFullException e) {
+            // Expected
+        }
+        assertFalse(first.isDone());
+
+        executor.next().run();
+        assertEquals(first.get(), ProcessResult.APPLIED);
+        assertEquals(sm.getCurrentState(), "C");
+        assertEquals(mailbox.getQueueSize(), 0);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        MailboxStrategy mailbox = new MailboxStrategy(2, MailboxStrategy.Overflow.DROP_OLDEST, executor);
+        sm = new StateMachineImpl(definition, mailbox);
+
+        CompletableFuture<ProcessResult> first = mailbox.submit(sm, "FAIL", null);
+        mailbox.submit(sm, "AB", null);
+        CompletableFuture<ProcessResult> last = mailbox.submit(sm, "BC", null);
+        assertEquals(first.get(), ProcessResult.DROPPED);
+
+        executor.next().run();
+        assertEquals(last.get(), ProcessResult.APPLIED);
+        assertEquals(sm.getCurrentState(), "C");
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        final MailboxStrategy mailbox = new MailboxStrategy(1, MailboxStrategy.Overflow.BLOCK, executor);
+        sm = new StateMachineImpl(definition, mailbox);
+
+        mailbox.submit(sm, "AB", null);
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            public void run() {
+                mailbox.submit(sm, "BC", null);
+                queued.countDown();
+            }
+        };
+        producer.start();
+        assertFalse(queued.await(100, TimeUnit.MILLISECONDS), "The producer should wait for room");
+
+        executor.next().run();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        producer.join();
+
+        // The first drain may have taken the second event too
+        if (sm.getCurrentState().equals("B"))
+            executor.next().run();
+        assertEquals(sm.getCurrentState(), "C");
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final MailboxStrategy mailbox = new MailboxStrategy(64, MailboxStrategy.Overflow.BLOCK);
+        sm = new StateMachineImpl(definition, mailbox);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        final List<CompletableFuture<ProcessResult>> last = new ArrayList<CompletableFuture<ProcessResult>>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        CompletableFuture<ProcessResult> future = null;
+                        for (int j = 0; j < EVENTS; j++)
+                            future = mailbox.submit(sm, j % 3 == 0 ? "AB" : j % 3 == 1 ? "BC" : "CA", null);
+                        synchronized (last) {
+                            last.add(future);
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        for (CompletableFuture<ProcessResult> future : last)
+            future.get(5, TimeUnit.SECONDS);
+
+        assertNull(failure[0]);
+        assertFalse(overlapped, "Controllers ran concurrently");
+        assertEquals(mailbox.getQueueSize(), 0);
+        assertTrue(transitions > 0 && transitions <= THREADS * EVENTS);
+    }
+}
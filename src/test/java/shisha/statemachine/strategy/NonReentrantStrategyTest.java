@@ -26,6 +26,7 @@ import shisha.statemachine.annotations.Event;
 import shisha.statemachine.annotations.State;
 import shisha.statemachine.annotations.Transition;
 import shisha.statemachine.exceptions.EventNotDefinedException;
+import shisha.statemachine.exceptions.ReentrantTransitionNotAllowed;
 import shisha.statemachine.exceptions.StateMachineException;
 
 @shisha.statemachine.annotations.AStateMachine
@@ -53,8 +54,13 @@ public class NonReentrantStrategyTest {
     @Test
     public void testDefinedTransition() throws StateMachineException {
         sm = StateMachines.newNonReentrant(this);
-        sm.processEvent(EVENT_AB, null);
-        Assert.assertEquals(sm.getCurrentState(), STATE_B);
+        try {
+            sm.processEvent(EVENT_AB, null);
+            Assert.fail("The reentrant transition should have been propagated");
+        } catch (ReentrantTransitionNotAllowed e) {
+            // The controller exception is not swallowed, so the transition never completes
+        }
+        Assert.assertEquals(sm.getCurrentState(), STATE_A);
     }
 
     @Test(expectedExceptions = EventNotDefinedException.class)
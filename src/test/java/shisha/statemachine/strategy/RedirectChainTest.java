@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import org.testng.annotations.Test;
+
+import shisha.statemachine.CompactStateMachine;
+import shisha.statemachine.EnterStateController;
+import shisha.statemachine.EventInfo;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.RedirectChainTooLongException;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class RedirectChainTest {
+    /**
+     * A line of <code>length</code> states, S0 to Sn, joined by the event NEXT.
+     * Entering every state but the last one redirects to the next.
+     */
+    private StateMachineDefinitionImpl line(int length) throws StateMachineException {
+        final EventInfo next = new EventInfo("NEXT", null);
+        EnterStateController redirect = new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return next;
+            }
+        };
+
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("S0", true, false);
+        definition.defineEvent("NEXT");
+        for (int i = 1; i <= length; i++) {
+            definition.defineState("S" + i);
+            definition.defineTransition("S" + (i - 1), "NEXT", "S" + i, null);
+            if (i < length)
+                definition.defineEnterState("S" + i, redirect);
+        }
+        return definition;
+    }
+
+    /**
+     * Two states redirecting to each other forever
+     */
+    private StateMachineDefinitionImpl cycle() throws StateMachineException {
+        StateMachineDefinitionImpl definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        definition.defineTransition("A", "AB", "B", null);
+        definition.defineTransition("B", "BA", "A", null);
+        definition.defineEnterState("A", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return new EventInfo("AB", null);
+            }
+        });
+        definition.defineEnterState("B", new EnterStateController() {
+            public EventInfo execute(TransitionInfo event) {
+                return new EventInfo("BA", null);
+            }
+        });
+        return definition;
+    }
+
+    @Test
+    public void testLongChainDoesNotGrowTheStack() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(line(20000), new NonReentrantStrategy(false, 20000));
+        sm.processEvent("NEXT", null);
+        assertEquals(sm.getCurrentState(), "S20000");
+    }
+
+    @Test
+    public void testCycleFailsFast() throws StateMachineException {
+        StateMachineImpl sm = new StateMachineImpl(cycle(), new NonReentrantStrategy(false, 10));
+        try {
+            sm.processEvent("AB", null);
+            fail("The cycle should have been detected");
+        } catch (RedirectChainTooLongException e) {
+            // 10 redirects after the first transition
+            assertEquals(sm.getCurrentState(), "B");
+        }
+
+        // The reentrance flag is cleared, so the cycle is detected again
+        try {
+            sm.processEvent("BA", null);
+            fail("The cycle should have been detected");
+        } catch (RedirectChainTooLongException e) {
+            assertEquals(sm.getCurrentState(), "A");
+        }
+    }
+
+    @Test(expectedExceptions = RedirectChainTooLongException.class)
+    public void testCycleInCompactMachine() throws StateMachineException {
+        CompactStateMachine sm = StateMachines.newCompact(cycle());
+        sm.processEvent("AB", null);
+    }
+
+    @Test
+    public void testChainLengthHistogram() throws StateMachineException {
+        NonReentrantStrategy strategy = new NonReentrantStrategy(false, 5);
+        StateMachineImpl sm = new StateMachineImpl(line(4), strategy);
+        sm.processEvent("NEXT", null);
+
+        sm = new StateMachineImpl(line(1), strategy);
+        sm.processEvent("NEXT", null);
+
+        long[] histogram = strategy.getChainLengthHistogram();
+        assertEquals(histogram.length, 6);
+        assertEquals(histogram[0], 1);
+        assertEquals(histogram[1], 0);
+        assertEquals(histogram[3], 1);
+    }
+}
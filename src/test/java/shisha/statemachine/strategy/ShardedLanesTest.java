@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class ShardedLanesTest {
+    private static final int LANES = 4;
+    private static final int MACHINES = 64;
+    private static final int THREADS = 8;
+    private static final int EVENTS = 2048;
+
+    private ShardedLanes lanes;
+    private StateMachineDefinitionImpl definition;
+
+    /**
+     * Counts the transitions of an entity and the threads that ran them,
+     * without synchronization
+     */
+    private static class Entity {
+        int transitions;
+        Thread thread;
+        boolean moved;
+    }
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        lanes = new ShardedLanes(LANES, 64);
+
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("TOGGLE");
+        definition.defineEvent("FAIL");
+        definition.defineEvent("ERROR");
+        TransitionController controller = new TransitionController() {
+            public void execute(TransitionInfo event) {
+                Object object = event.getObject();
+                if (object instanceof Entity) {
+                    Entity entity = (Entity) object;
+                    entity.transitions++;
+                    if (entity.thread == null)
+                        entity.thread = Thread.currentThread();
+                    else if (entity.thread != Thread.currentThread())
+                        entity.moved = true;
+                }
+            }
+        };
+        definition.defineTransition("A", "TOGGLE", "B", controller);
+        definition.defineTransition("B", "TOGGLE", "A", controller);
+        definition.defineTransition("A", "FAIL", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new IllegalArgumentException("failed");
+            }
+        });
+        definition.defineTransition("A", "ERROR", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                throw new AssertionError("failed");
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        lanes.close();
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        StateMachineImpl sm = new StateMachineImpl(definition, lanes.strategyFor("key"));
+        LaneStrategy strategy = (LaneStrategy) sm.getStrategy();
+
+        assertEquals(strategy.submit(sm, "TOGGLE", null).get(), ProcessResult.APPLIED);
+        assertEquals(sm.getCurrentState(), "B");
+        assertEquals(strategy.submit(sm, "FAIL", null).get(), ProcessResult.NO_TRANSITION);
+        assertEquals(strategy.submit(sm, "NON_EXISTENT", null).get(), ProcessResult.UNKNOWN_EVENT);
+        assertEquals(sm.tryProcessEvent("TOGGLE", null), ProcessResult.QUEUED);
+        try {
+            strategy.submit(sm, "FAIL", null).get();
+            fail("The controller exception should complete the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testErrorsDoNotStopTheLane() throws Exception {
+        StateMachineImpl failing = new StateMachineImpl(definition, lanes.strategyFor("key"));
+        StateMachineImpl other = new StateMachineImpl(definition, lanes.strategyFor("key"));
+        LaneStrategy strategy = (LaneStrategy) failing.getStrategy();
+
+        try {
+            strategy.submit(failing, "ERROR", null).get(5, TimeUnit.SECONDS);
+            fail("The error should complete the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(failing.getCurrentState(), "A");
+        assertTrue(!failing.isInTransition());
+
+        // Both machines share the lane, which keeps processing
+        assertEquals(strategy.submit(other, "TOGGLE", null).get(5, TimeUnit.SECONDS), ProcessResult.APPLIED);
+        assertEquals(strategy.submit(failing, "TOGGLE", null).get(5, TimeUnit.SECONDS), ProcessResult.APPLIED);
+    }
+
+    @Test
+    public void testEventsFromControllersArePublished() throws Exception {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("AB");
+        definition.defineEvent("BA");
+        final List<ProcessResult> results = new ArrayList<ProcessResult>();
+        final StateMachineImpl[] sm = new StateMachineImpl[1];
+        definition.defineTransition("A", "AB", "B", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                // The entry being processed is not given back until the
+                // batch is done, so the second one does not fit
+                results.add(sm[0].tryProcessEvent("BA", null));
+                results.add(sm[0].tryProcessEvent("BA", null));
+            }
+        });
+        definition.defineTransition("B", "BA", "A", null);
+        lanes.close();
+        lanes = new ShardedLanes(1, 2);
+        sm[0] = new StateMachineImpl(definition, lanes.strategyFor("key"));
+
+        LaneStrategy strategy = (LaneStrategy) sm[0].getStrategy();
+        assertEquals(strategy.submit(sm[0], "AB", null).get(), ProcessResult.APPLIED);
+        // The event queued by the controller is processed before
+        assertEquals(strategy.submit(sm[0], "BA", null).get(), ProcessResult.NO_TRANSITION);
+
+        assertEquals(results.toString(), "[QUEUED, REJECTED]");
+        assertEquals(sm[0].getCurrentState(), "A");
+    }
+
+    @Test
+    public void testEachMachineIsProcessedByItsLane() throws Exception {
+        final StateMachineImpl[] machines = new StateMachineImpl[MACHINES];
+        final Entity[] entities = new Entity[MACHINES];
+        for (int i = 0; i < MACHINES; i++) {
+            machines[i] = new StateMachineImpl(definition, lanes.strategyFor(i));
+            entities[i] = new Entity();
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < EVENTS; j++)
+                            machines[j % MACHINES].processEvent("TOGGLE", entities[j % MACHINES]);
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        // Lanes process in order, so once these are done every event is processed
+        List<CompletableFuture<ProcessResult>> last = new ArrayList<CompletableFuture<ProcessResult>>();
+        for (int i = 0; i < MACHINES; i++)
+            last.add(((LaneStrategy) machines[i].getStrategy()).submit(machines[i], "TOGGLE", null));
+        for (CompletableFuture<ProcessResult> future : last)
+            future.get(5, TimeUnit.SECONDS);
+
+        assertNull(failure[0]);
+        long processed = 0;
+        for (int lane = 0; lane < LANES; lane++) {
+            processed += lanes.getProcessedCount(lane);
+            assertEquals(lanes.getQueueDepth(lane), 0);
+            assertTrue(lanes.getUtilisation(lane) >= 0 && lanes.getUtilisation(lane) <= 1);
+        }
+        assertEquals(processed, THREADS * EVENTS + MACHINES);
+
+        for (int i = 0; i < MACHINES; i++) {
+            assertEquals(entities[i].transitions, THREADS * EVENTS / MACHINES);
+            assertTrue(!entities[i].moved, "Machine " + i + " processed by many threads");
+            assertTrue(entities[i].thread.getName().endsWith("-" + lanes.laneOf(i)));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012-2013 xavi.ferro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package shisha.statemachine.strategy;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import shisha.statemachine.ProcessResult;
+import shisha.statemachine.StateMachineDefinitionImpl;
+import shisha.statemachine.StateMachineImpl;
+import shisha.statemachine.StateMachines;
+import shisha.statemachine.TransitionController;
+import shisha.statemachine.TransitionInfo;
+import shisha.statemachine.exceptions.StateMachineException;
+
+public class StripedStrategyTest {
+    private static final int MACHINES = 256;
+    private static final int THREADS = 8;
+    private static final int EVENTS = 4096;
+
+    private StateMachineDefinitionImpl definition;
+    private StateMachineImpl other;
+    private ProcessResult nested;
+
+    /**
+     * Counts its transitions without synchronization
+     */
+    private static class Entity {
+        int transitions;
+    }
+
+    @BeforeMethod
+    public void setUp() throws StateMachineException {
+        definition = new StateMachineDefinitionImpl();
+        definition.defineState("A", true, false);
+        definition.defineState("B");
+        definition.defineEvent("TOGGLE");
+        definition.defineEvent("NESTED");
+        TransitionController controller = new TransitionController() {
+            public void execute(TransitionInfo event) {
+                Object object = event.getObject();
+                if (object instanceof Entity)
+                    ((Entity) object).transitions++;
+            }
+        };
+        definition.defineTransition("A", "TOGGLE", "B", controller);
+        definition.defineTransition("B", "TOGGLE", "A", controller);
+        definition.defineTransition("A", "NESTED", "A", new TransitionController() {
+            public void execute(TransitionInfo event) {
+                nested = ((StateMachineImpl) event.getObject()).tryProcessEvent("TOGGLE", null);
+            }
+        });
+    }
+
+    @Test
+    public void testStripes() {
+        assertEquals(new StripedStrategy().getStripes(), StripedStrategy.DEFAULT_STRIPES);
+        assertEquals(new StripedStrategy(5).getStripes(), 8);
+        assertEquals(new StripedStrategy(1).getStripes(), 1);
+    }
+
+    @Test
+    public void testStrategyIsSharedPerDefinition() throws StateMachineException {
+        StateMachineImpl first = (StateMachineImpl) StateMachines.newStriped(definition);
+        StateMachineImpl second = (StateMachineImpl) StateMachines.newStriped(definition);
+        assertSame(first.getStrategy(), second.getStrategy());
+
+        StateMachineDefinitionImpl another = new StateMachineDefinitionImpl();
+        another.defineState("A", true, false);
+        assertNotSame(((StateMachineImpl) StateMachines.newStriped(another)).getStrategy(), first.getStrategy());
+
+        StripedStrategy strategy = (StripedStrategy) first.getStrategy();
+        int stripe = strategy.stripeOf(first);
+        assertTrue(stripe >= 0 && stripe < strategy.getStripes());
+        assertEquals(strategy.stripeOf(first), stripe);
+    }
+
+    @Test
+    public void testReentranceIsDetectedPerMachine() throws StateMachineException {
+        // A single lock for both machines
+        StripedStrategy strategy = new StripedStrategy(1);
+        StateMachineImpl sm = new StateMachineImpl(definition, strategy);
+        other = new StateMachineImpl(definition, strategy);
+
+        assertEquals(sm.tryProcessEvent("NESTED", other), ProcessResult.APPLIED);
+        assertEquals(nested, ProcessResult.APPLIED);
+        assertEquals(other.getCurrentState(), "B");
+
+        assertEquals(sm.tryProcessEvent("NESTED", sm), ProcessResult.APPLIED);
+        assertEquals(nested, ProcessResult.REENTRANT_REJECTED);
+        assertEquals(sm.getCurrentState(), "A");
+    }
+
+    @Test
+    public void testConcurrentMachines() throws Exception {
+        final StripedStrategy strategy = new StripedStrategy(8, false, LockPolicy.blocking(false).measured());
+        final StateMachineImpl[] machines = new StateMachineImpl[MACHINES];
+        final Entity[] entities = new Entity[MACHINES];
+        for (int i = 0; i < MACHINES; i++) {
+            machines[i] = new StateMachineImpl(definition, strategy);
+            entities[i] = new Entity();
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < EVENTS; j++)
+                            machines[j % MACHINES].processEvent("TOGGLE", entities[j % MACHINES]);
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure[0]);
+        for (int i = 0; i < MACHINES; i++) {
+            assertEquals(entities[i].transitions, THREADS * EVENTS / MACHINES);
+            assertEquals(machines[i].getCurrentState(), "A");
+        }
+        assertEquals(strategy.getLockStats().getAcquisitions(), THREADS * EVENTS);
+        assertEquals(strategy.getChainLengthHistogram().length, 0);
+    }
+}